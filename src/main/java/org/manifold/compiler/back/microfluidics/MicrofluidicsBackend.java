@@ -3,8 +3,16 @@ package org.manifold.compiler.back.microfluidics;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
@@ -13,17 +21,54 @@ import org.apache.commons.cli.Options;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.manifold.compiler.Backend;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.optimize.AreaCompaction;
+import org.manifold.compiler.back.microfluidics.optimize.BisectionOptimizer;
+import org.manifold.compiler.back.microfluidics.optimize.Objective;
+import org.manifold.compiler.back.microfluidics.partition.HierarchicalPlacement;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionOrdering;
+import org.manifold.compiler.back.microfluidics.smt2.CachingSolver;
+import org.manifold.compiler.back.microfluidics.smt2.ConeOfInfluence;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
 import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.DeltaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.DenominatorClearing;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.LazyConstraintSolver;
+import org.manifold.compiler.back.microfluidics.smt2.OrderingBenchmark;
 import org.manifold.compiler.back.microfluidics.smt2.ParenList;
+import org.manifold.compiler.back.microfluidics.smt2.PrecisionEscalationSolver;
 import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.RedundancyElimination;
+import org.manifold.compiler.back.microfluidics.smt2.ResultCache;
 import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.ScalingSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Simplifier;
 import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolCollector;
 import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.smt2.WarmStartSolver;
+import org.manifold.compiler.back.microfluidics.strategies.GridPlacementStrategySet;
 import org.manifold.compiler.back.microfluidics.strategies.MultiPhaseStrategySet;
 import org.manifold.compiler.back.microfluidics.strategies.PlacementTranslationStrategySet;
 import org.manifold.compiler.back.microfluidics.strategies.PressureFlowStrategySet;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ChannelCrossingStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.placement.CrossingCheckSolver;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ForceDirectedPlacement;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ManhattanLengthRuleStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ReferencePlacement;
+import org.manifold.compiler.back.microfluidics.strategies.placement.SymmetryBreaking;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.LoopPressureFlowStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.PressureFlowStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.ReducedPressureFlowStrategy;
+import org.manifold.compiler.back.microfluidics.sweep.ParameterSweep;
+import org.manifold.compiler.back.microfluidics.sweep.SweepCoordinator;
 import org.manifold.compiler.middle.Schematic;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
 public class MicrofluidicsBackend implements Backend {
 
   private static final Logger log =
@@ -48,6 +93,172 @@ public class MicrofluidicsBackend implements Backend {
         .create("bProcessFile");
     options.addOption(processFile);
     ProcessParameters.createOptions(options);
+    Option sweepFile = OptionBuilder.withArgName("file")
+        .hasArg()
+        .withDescription("solve for every process parameter point described"
+            + " by the given JSON file, instead of generating a formula")
+        .create("bProcessSweep");
+    options.addOption(sweepFile);
+    Option sweepThreads = OptionBuilder.withArgName("count")
+        .hasArg()
+        .withDescription("number of process parameter points to solve"
+            + " concurrently")
+        .create("bSweepThreads");
+    options.addOption(sweepThreads);
+    Option sweepWorkers = OptionBuilder.withArgName("count")
+        .hasArg()
+        .withDescription("solve the process parameter points in the given"
+            + " number of separate worker processes; an interrupted sweep"
+            + " resumes where it stopped")
+        .create("bSweepWorkers");
+    options.addOption(sweepWorkers);
+  }
+
+  @SuppressWarnings("static-access")
+  private void createOptionOptimize(Options options) {
+    Option objective = OptionBuilder.withArgName("objective")
+        .hasArg()
+        .withDescription("solve for the design that minimizes the given"
+            + " objective (" + Objective.CHIP_AREA + ", "
+            + Objective.CHANNEL_LENGTH + " or " + Objective.INLET_PRESSURE
+            + "), instead of generating a formula")
+        .create("bOptimize");
+    options.addOption(objective);
+    Option tolerance = OptionBuilder.withArgName("value")
+        .hasArg()
+        .withDescription("stop optimizing once the optimum is known"
+            + " to within this amount")
+        .create("bOptimizeTolerance");
+    options.addOption(tolerance);
+    Option lazy = OptionBuilder
+        .withDescription("when optimizing, compacting or querying, add"
+            + " pairwise placement rules to the formula only once a"
+            + " solution violates them")
+        .create("bLazyConstraints");
+    options.addOption(lazy);
+    Option compact = OptionBuilder
+        .withDescription("place the design on an unbounded chip first,"
+            + " then shrink the chip step by step, instead of generating"
+            + " a formula")
+        .create("bCompactArea");
+    options.addOption(compact);
+    Option query = OptionBuilder.withArgName("symbols")
+        .hasArg()
+        .withDescription("solve only the part of the formula that can"
+            + " influence the given comma-separated symbols, instead of"
+            + " generating a formula")
+        .create("bQuery");
+    options.addOption(query);
+    Option benchmark = OptionBuilder
+        .withDescription("time the solver on the formula under every"
+            + " assertion ordering, instead of generating a formula")
+        .create("bBenchmarkOrdering");
+    options.addOption(benchmark);
+  }
+  
+  @SuppressWarnings("static-access")
+  private void createOptionPlacement(Options options) {
+    Option initial = OptionBuilder
+        .withDescription("compute a force-directed layout first, and use it"
+            + " to choose the pairwise placement rules and to seed the"
+            + " solver")
+        .create("bInitialPlacement");
+    options.addOption(initial);
+    Option hierarchical = OptionBuilder.withArgName("size")
+        .hasArg()
+        .withDescription("solve the placement first in clusters of about"
+            + " the given number of nodes, and use it like the initial"
+            + " placement")
+        .create("bHierarchicalPlacement");
+    options.addOption(hierarchical);
+    Option lengthRule = OptionBuilder.withArgName("rule")
+        .hasArg()
+        .withDescription("measure channel lengths as " + LENGTH_EUCLIDEAN
+            + " (default), " + LENGTH_MANHATTAN + " or " + LENGTH_OCTILINEAR
+            + " distances; the latter two keep placement linear")
+        .create("bLengthRule");
+    options.addOption(lengthRule);
+    Option separation = OptionBuilder
+        .withDescription("keep nodes that are a few channels apart, or"
+            + " close in the initial placement, the process's minimum node"
+            + " distance apart")
+        .create("bNodeSeparation");
+    options.addOption(separation);
+    Option divisionFree = OptionBuilder
+        .withDescription("multiply assertions through by denominators of"
+            + " known sign, so that the solver sees fewer divisions")
+        .create("bDivisionFree");
+    options.addOption(divisionFree);
+    Option simplify = OptionBuilder
+        .withDescription("fold constants and flatten sums and products"
+            + " before writing the formula")
+        .create("bSimplify");
+    options.addOption(simplify);
+    Option prune = OptionBuilder
+        .withDescription("leave out repeated declarations and assertions,"
+            + " and declarations of variables nothing refers to")
+        .create("bPruneFormula");
+    options.addOption(prune);
+    Option ordering = OptionBuilder.withArgName("ordering")
+        .hasArg()
+        .withDescription("state assertions in " + AssertionOrdering.DEFAULT
+            + " order, by " + AssertionOrdering.CLUSTER + " of shared"
+            + " variables, by " + AssertionOrdering.TIGHTNESS + ", or in "
+            + AssertionOrdering.SCHEMATIC + " order")
+        .create("bOrdering");
+    options.addOption(ordering);
+    Option reduce = OptionBuilder
+        .withDescription("fold series chains of channels through crossings"
+            + " into single pressure/flow relations, and recover the"
+            + " folded pressures and flows after solving")
+        .create("bReducePressureFlow");
+    options.addOption(reduce);
+    Option loops = OptionBuilder
+        .withDescription("state pressure/flow relations over the independent"
+            + " loops of the channel network, where that takes fewer"
+            + " relations than one per channel")
+        .create("bLoopPressureFlow");
+    options.addOption(loops);
+    Option symmetry = OptionBuilder
+        .withDescription("rule out layouts that mirror or relabel other"
+            + " layouts")
+        .create("bBreakSymmetry");
+    options.addOption(symmetry);
+    Option scale = OptionBuilder
+        .withDescription("when solving, rescale every variable to values"
+            + " near 1, from the process parameters and the formula")
+        .create("bScaleVariables");
+    options.addOption(scale);
+    Option modelFile = OptionBuilder.withArgName("file")
+        .hasArg()
+        .withDescription("seed every solve with the model saved in the"
+            + " given file, and save each new model there")
+        .create("bModelFile");
+    options.addOption(modelFile);
+    Option cache = OptionBuilder.withArgName("directory")
+        .hasArg()
+        .withDescription("answer formulas solved before from the results"
+            + " kept in the given directory, and keep new results there")
+        .create("bResultCache");
+    options.addOption(cache);
+    Option initialPrecision = OptionBuilder.withArgName("delta")
+        .hasArg()
+        .withDescription("solve at this dReal precision first, and refine"
+            + " it toward the final precision only while models straddle"
+            + " a constraint")
+        .create("bInitialPrecision");
+    options.addOption(initialPrecision);
+    Option finalPrecision = OptionBuilder.withArgName("delta")
+        .hasArg()
+        .withDescription("the finest precision -bInitialPrecision refines"
+            + " to (default " + DEFAULT_FINAL_PRECISION + ")")
+        .create("bFinalPrecision");
+    options.addOption(finalPrecision);
+    Option grid = OptionBuilder
+        .withDescription("also write the placement rules on the process's"
+            + " placement grid as a linear integer formula")
+        .create("bGridPlacement");
+    options.addOption(grid);
   }
   
   private ProcessParameters processParams;
@@ -82,19 +293,223 @@ public class MicrofluidicsBackend implements Backend {
   @Override
   public void registerArguments(Options options) {
     createOptionProcessParameters(options);
+    createOptionOptimize(options);
+    createOptionPlacement(options);
   }
   
   private void collectOptions(CommandLine cmd) throws IOException {
     collectOptionProcessParameters(cmd);
   }
 
+  // the options that each do something instead of writing the formula
+  private static final String[] MODE_OPTIONS = new String[] {
+    "bProcessSweep", "bOptimize", "bQuery", "bBenchmarkOrdering",
+    "bCompactArea"
+  };
+
+  // the options that only generateFormula() and createSolver() apply;
+  // sweep points are translated and solved without them
+  private static final String[] SWEEP_UNSUPPORTED_OPTIONS = new String[] {
+    "bSimplify", "bPruneFormula", "bDivisionFree", "bOrdering",
+    "bBreakSymmetry", "bInitialPlacement", "bHierarchicalPlacement",
+    "bScaleVariables", "bModelFile", "bResultCache", "bInitialPrecision",
+    "bFinalPrecision"
+  };
+
+  // rejects options that would otherwise be ignored in favour of others
+  private void checkModeOptions(CommandLine cmd) {
+    String mode = null;
+    for (String option : MODE_OPTIONS) {
+      if (!cmd.hasOption(option)) {
+        continue;
+      }
+      if (mode != null) {
+        err("options '" + mode + "' and '" + option
+            + "' cannot be used together");
+      }
+      mode = option;
+    }
+    if (cmd.hasOption("bSweepThreads") && cmd.hasOption("bSweepWorkers")) {
+      err("options 'bSweepThreads' and 'bSweepWorkers' cannot be used"
+          + " together");
+    }
+    if ("bProcessSweep".equals(mode)) {
+      for (String option : SWEEP_UNSUPPORTED_OPTIONS) {
+        if (cmd.hasOption(option)) {
+          err("options 'bProcessSweep' and '" + option
+              + "' cannot be used together");
+        }
+      }
+    }
+    if (cmd.hasOption("bGridPlacement") && mode != null) {
+      err("options 'bGridPlacement' and '" + mode
+          + "' cannot be used together");
+    }
+    if (cmd.hasOption("bLazyConstraints") && !("bOptimize".equals(mode)
+        || "bQuery".equals(mode) || "bCompactArea".equals(mode))) {
+      err("option 'bLazyConstraints' requires 'bOptimize', 'bQuery'"
+          + " or 'bCompactArea'");
+    }
+  }
+
+  // the options that shape the formula
+  private void collectFormulaOptions(CommandLine cmd) {
+    checkModeOptions(cmd);
+    lazyPairwiseRules = cmd.hasOption("bLazyConstraints");
+    initialPlacement = cmd.hasOption("bInitialPlacement");
+    gridPlacement = cmd.hasOption("bGridPlacement");
+    divisionFree = cmd.hasOption("bDivisionFree");
+    simplify = cmd.hasOption("bSimplify");
+    pruneFormula = cmd.hasOption("bPruneFormula");
+    breakSymmetry = cmd.hasOption("bBreakSymmetry");
+    nodeSeparation = cmd.hasOption("bNodeSeparation");
+    reducePressureFlow = cmd.hasOption("bReducePressureFlow");
+    loopPressureFlow = cmd.hasOption("bLoopPressureFlow");
+    if (reducePressureFlow && loopPressureFlow) {
+      err("options 'bReducePressureFlow' and 'bLoopPressureFlow'"
+          + " cannot be used together");
+    }
+    String clusterSize = cmd.getOptionValue("bHierarchicalPlacement");
+    if (clusterSize != null) {
+      try {
+        hierarchicalClusterSize = Integer.parseInt(clusterSize);
+      } catch (NumberFormatException e) {
+        err("option 'bHierarchicalPlacement' must be an integer");
+      }
+    }
+    String rule = cmd.getOptionValue("bLengthRule");
+    if (rule != null) {
+      try {
+        setLengthRule(rule);
+      } catch (IllegalArgumentException e) {
+        err("option 'bLengthRule': " + e.getMessage());
+      }
+    }
+    String ordering = cmd.getOptionValue("bOrdering");
+    if (ordering != null) {
+      try {
+        setOrdering(ordering);
+      } catch (IllegalArgumentException e) {
+        err("option 'bOrdering': " + e.getMessage());
+      }
+    }
+  }
+
   @Override
   public void invokeBackend(Schematic schematic, CommandLine cmd)
       throws Exception {
+    collectFormulaOptions(cmd);
+    String sweepFile = cmd.getOptionValue("bProcessSweep");
+    if (sweepFile != null) {
+      ProcessParameterGrid grid = ProcessParameterGrid.loadFromFile(
+          sweepFile);
+      String farm = cmd.getOptionValue("bSweepWorkers");
+      if (farm != null) {
+        SweepCoordinator coordinator = new SweepCoordinator(schematic,
+            Paths.get(schematic.getName() + ".sweep"));
+        coordinator.useStrategyFactory(createStrategyFactory());
+        try {
+          coordinator.setWorkers(Integer.parseInt(farm));
+        } catch (NumberFormatException e) {
+          err("option 'bSweepWorkers' must be an integer");
+        }
+        log.info("sweeping " + grid.size() + " process parameter points");
+        writeSweepTable(schematic, coordinator.run(grid.getPoints()));
+        return;
+      }
+      ParameterSweep sweep = new ParameterSweep(schematic);
+      sweep.useStrategyFactory(createStrategyFactory());
+      String threads = cmd.getOptionValue("bSweepThreads");
+      if (threads != null) {
+        try {
+          sweep.setThreads(Integer.parseInt(threads));
+        } catch (NumberFormatException e) {
+          err("option 'bSweepThreads' must be an integer");
+        }
+      }
+      runSweep(schematic, sweep, grid);
+      return;
+    }
     collectOptions(cmd);
+    scaleVariables = cmd.hasOption("bScaleVariables");
+    String modelFile = cmd.getOptionValue("bModelFile");
+    if (modelFile != null) {
+      setModelFile(Paths.get(modelFile));
+    }
+    String cacheDirectory = cmd.getOptionValue("bResultCache");
+    if (cacheDirectory != null) {
+      setResultCache(Paths.get(cacheDirectory));
+    }
+    String initialPrecision = cmd.getOptionValue("bInitialPrecision");
+    if (initialPrecision != null) {
+      String finalPrecision = cmd.getOptionValue("bFinalPrecision");
+      try {
+        setPrecisionEscalation(Double.parseDouble(initialPrecision),
+            finalPrecision == null ? DEFAULT_FINAL_PRECISION
+                : Double.parseDouble(finalPrecision));
+      } catch (NumberFormatException e) {
+        err("options 'bInitialPrecision' and 'bFinalPrecision' must be"
+            + " numbers");
+      } catch (IllegalArgumentException e) {
+        err("option 'bInitialPrecision': " + e.getMessage());
+      }
+    } else if (cmd.hasOption("bFinalPrecision")) {
+      err("option 'bFinalPrecision' requires 'bInitialPrecision'");
+    }
+    String objective = cmd.getOptionValue("bOptimize");
+    if (objective != null) {
+      double tolerance = 1e-6;
+      String toleranceValue = cmd.getOptionValue("bOptimizeTolerance");
+      if (toleranceValue != null) {
+        try {
+          tolerance = Double.parseDouble(toleranceValue);
+        } catch (NumberFormatException e) {
+          err("option 'bOptimizeTolerance' must be a number");
+        }
+      }
+      optimize(schematic, objective, tolerance);
+      return;
+    }
+    String query = cmd.getOptionValue("bQuery");
+    if (query != null) {
+      List<Symbol> targets = new ArrayList<>();
+      for (String name : query.split(",")) {
+        try {
+          targets.add(new Symbol(name.trim()));
+        } catch (IllegalArgumentException e) {
+          err("option 'bQuery': " + e.getMessage());
+        }
+      }
+      query(schematic, targets);
+      return;
+    }
+    if (cmd.hasOption("bBenchmarkOrdering")) {
+      benchmarkOrdering(schematic);
+      return;
+    }
+    if (cmd.hasOption("bCompactArea")) {
+      assumeInfiniteArea = true;
+      compact(schematic);
+      return;
+    }
     run(schematic);
   }
 
+  // writes the results to "schematic-name.sweep.csv"
+  public void runSweep(Schematic schematic, ParameterSweep sweep,
+      ProcessParameterGrid grid) throws IOException, InterruptedException {
+    log.info("sweeping " + grid.size() + " process parameter points");
+    writeSweepTable(schematic, sweep.run(grid.getPoints()));
+  }
+
+  private void writeSweepTable(Schematic schematic,
+      List<ParameterSweep.PointResult> results) throws IOException {
+    String filename = schematic.getName() + ".sweep.csv";
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+      ParameterSweep.writeTable(results, writer);
+    }
+  }
+
   private PrimitiveTypeTable primitiveTypes = new PrimitiveTypeTable();
   public PrimitiveTypeTable getPrimitiveTypes() {
     return primitiveTypes;
@@ -163,7 +578,310 @@ public class MicrofluidicsBackend implements Backend {
   }
   
   public void run(Schematic schematic) throws IOException {
+    List<SExpression> exprs = generateFormula(schematic);
+    // write to "schematic-name.smt2"
+    writeFormula(exprs, schematic.getName() + ".smt2");
+    if (gridPlacement) {
+      // and to "schematic-name.grid.smt2"
+      writeFormula(generateGridFormula(schematic),
+          schematic.getName() + ".grid.smt2");
+    }
+  }
+
+  private void writeFormula(List<SExpression> exprs, String filename)
+      throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+      for (SExpression expr : exprs) {
+        expr.write(writer);
+        writer.newLine();
+      }
+    }
+  }
+
+  // if set, run() also writes the placement on the grid
+  // (see GridPlacementStrategySet)
+  private boolean gridPlacement = false;
+  public void setGridPlacement(boolean setting) {
+    this.gridPlacement = setting;
+  }
+
+  public List<SExpression> generateGridFormula(Schematic schematic) {
+    if (!(processParams.getPlacementPitch() > 0.0)) {
+      err("grid placement requires the process parameter"
+          + " 'placementPitch'");
+    }
+    primitiveTypes = constructTypeTable(schematic);
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.useQFLIA());
+    exprs.addAll(sortExprs(new GridPlacementStrategySet().translate(
+        schematic, processParams, primitiveTypes)));
+    exprs.add(new ParenList(new SExpression[] {
+      new Symbol("check-sat")
+    }));
+    exprs.add(new ParenList(new SExpression[] {
+      new Symbol("exit")
+    }));
+    return exprs;
+  }
+
+  // if set, generateFormula() leaves out the pairwise placement rules
+  // and optimize(), compact() and query() add them lazily
+  private boolean lazyPairwiseRules = false;
+  public void setLazyPairwiseRules(boolean setting) {
+    this.lazyPairwiseRules = setting;
+  }
+
+  // if set, generateFormula() first computes a heuristic layout
+  // (see ForceDirectedPlacement)
+  private boolean initialPlacement = false;
+  public void setInitialPlacement(boolean setting) {
+    this.initialPlacement = setting;
+  }
+
+  // if set, formulas are solved in scaled units (see ScalingSolver)
+  private boolean scaleVariables = false;
+  public void setScaleVariables(boolean setting) {
+    this.scaleVariables = setting;
+  }
+
+  // if set, every solve is warm-started from the model in this file
+  // (see WarmStartSolver)
+  private Path modelFile = null;
+  public void setModelFile(Path modelFile) {
+    this.modelFile = modelFile;
+  }
+
+  // the solver at the bottom of every solver createSolver() builds;
+  // dReal if not set
+  private DeltaSolver baseSolver = null;
+  public void useSolver(DeltaSolver solver) {
+    this.baseSolver = solver;
+  }
+
+  // dReal's own default precision (see PrecisionEscalationSolver)
+  public static final double DEFAULT_FINAL_PRECISION = 0.001;
+
+  // if positive, solves start at this precision and are refined to
+  // finalPrecision (see PrecisionEscalationSolver)
+  private double initialPrecision = 0.0;
+  private double finalPrecision = DEFAULT_FINAL_PRECISION;
+  public void setPrecisionEscalation(double initialPrecision,
+      double finalPrecision) {
+    if (!(finalPrecision > 0.0 && initialPrecision >= finalPrecision)) {
+      throw new IllegalArgumentException("precisions must satisfy"
+          + " initial >= final > 0");
+    }
+    this.initialPrecision = initialPrecision;
+    this.finalPrecision = finalPrecision;
+  }
+
+  // results kept in the result cache (see ResultCache)
+  private static final int RESULT_CACHE_ENTRIES = 1000;
+
+  // if set, solver results are cached in this directory
+  // (see CachingSolver)
+  private Path resultCache = null;
+  public void setResultCache(Path directory) {
+    this.resultCache = directory;
+  }
+
+  // if set, generateFormula() emits the reduced hydraulic network
+  // (see ReducedPressureFlowStrategy)
+  private boolean reducePressureFlow = false;
+  public void setReducePressureFlow(boolean setting) {
+    this.reducePressureFlow = setting;
+  }
+
+  // if set, generateFormula() emits loop equations where they are
+  // fewer (see LoopPressureFlowStrategy)
+  private boolean loopPressureFlow = false;
+  public void setLoopPressureFlow(boolean setting) {
+    this.loopPressureFlow = setting;
+  }
+
+  // the pressure/flow strategy of the last formula, if it leaves
+  // anything out of models
+  private PressureFlowStrategy partialPressureFlow = null;
+
+  // if set, generateFormula() adds symmetry-breaking constraints
+  // (see SymmetryBreaking)
+  private boolean breakSymmetry = false;
+  public void setBreakSymmetry(boolean setting) {
+    this.breakSymmetry = setting;
+  }
+
+  // if set, generateFormula() simplifies assertions (see Simplifier)
+  private boolean simplify = false;
+  public void setSimplify(boolean setting) {
+    this.simplify = setting;
+  }
+
+  // if set, generateFormula() removes redundant commands
+  // (see RedundancyElimination)
+  private boolean pruneFormula = false;
+  public void setPruneFormula(boolean setting) {
+    this.pruneFormula = setting;
+  }
+
+  // if set, generateFormula() clears denominators
+  // (see DenominatorClearing)
+  private boolean divisionFree = false;
+  public void setDivisionFree(boolean setting) {
+    this.divisionFree = setting;
+  }
+
+  // if positive, generateFormula() first solves the placement cluster
+  // by cluster (see HierarchicalPlacement)
+  private int hierarchicalClusterSize = 0;
+  public void setHierarchicalClusterSize(int clusterSize) {
+    this.hierarchicalClusterSize = clusterSize;
+  }
+
+  // if set, the placement keeps nearby nodes apart
+  // (see NodeSeparationStrategy)
+  private boolean nodeSeparation = false;
+  public void setNodeSeparation(boolean setting) {
+    this.nodeSeparation = setting;
+  }
+
+  // if set, generateFormula() leaves the chip size unbounded
+  // (see InfiniteChipAreaRuleStrategy)
+  private boolean assumeInfiniteArea = false;
+  public void setAssumeInfiniteArea(boolean setting) {
+    this.assumeInfiniteArea = setting;
+  }
+
+  public static final String LENGTH_EUCLIDEAN = "euclidean";
+  public static final String LENGTH_MANHATTAN = "manhattan";
+  public static final String LENGTH_OCTILINEAR = "octilinear";
+
+  // how generateFormula() relates channel lengths to node positions
+  private String lengthRule = LENGTH_EUCLIDEAN;
+  public void setLengthRule(String lengthRule) {
+    if (!lengthRule.equals(LENGTH_EUCLIDEAN)
+        && !lengthRule.equals(LENGTH_MANHATTAN)
+        && !lengthRule.equals(LENGTH_OCTILINEAR)) {
+      throw new IllegalArgumentException("unknown length rule '"
+          + lengthRule + "'; expected one of " + LENGTH_EUCLIDEAN + ", "
+          + LENGTH_MANHATTAN + ", " + LENGTH_OCTILINEAR);
+    }
+    this.lengthRule = lengthRule;
+  }
+
+  // the order in which generateFormula() states assertions
+  // (see AssertionOrdering)
+  private String ordering = AssertionOrdering.DEFAULT;
+  public void setOrdering(String ordering) {
+    // checks the name
+    new AssertionOrdering(ordering);
+    this.ordering = ordering;
+  }
+
+  private Map<NodeValue, double[]> referencePlacement = null;
+  public Map<NodeValue, double[]> getReferencePlacement() {
+    return referencePlacement;
+  }
+
+  private PlacementTranslationStrategySet createPlacementSet() {
+    PlacementTranslationStrategySet placeSet =
+        new PlacementTranslationStrategySet();
+    placeSet.setLazyPairwiseRules(lazyPairwiseRules);
+    placeSet.setAssumeInfiniteArea(assumeInfiniteArea);
+    placeSet.setSeparateNodes(nodeSeparation);
+    if (!lengthRule.equals(LENGTH_EUCLIDEAN)) {
+      ManhattanLengthRuleStrategy manhattan =
+          new ManhattanLengthRuleStrategy();
+      manhattan.setOctilinear(lengthRule.equals(LENGTH_OCTILINEAR));
+      placeSet.useLengthRuleStrategy(manhattan);
+    }
+    if (referencePlacement != null) {
+      placeSet.useReferencePlacement(referencePlacement);
+    }
+    return placeSet;
+  }
+
+  // the pressure/flow strategy the options ask for, or null for the
+  // default one
+  private PressureFlowStrategy createPressureFlowStrategy() {
+    if (reducePressureFlow) {
+      return new ReducedPressureFlowStrategy(false);
+    } else if (loopPressureFlow) {
+      return new LoopPressureFlowStrategy(false);
+    }
+    return null;
+  }
+
+  // translates sweep points under the options of this backend
+  public ParameterSweep.StrategyFactory createStrategyFactory() {
+    return new ParameterSweep.StrategyFactory() {
+      @Override
+      public PlacementTranslationStrategySet createPlacementSet() {
+        // each point is solved directly, so it needs every rule
+        PlacementTranslationStrategySet placeSet =
+            MicrofluidicsBackend.this.createPlacementSet();
+        placeSet.setLazyPairwiseRules(false);
+        return placeSet;
+      }
+
+      @Override
+      public PressureFlowStrategySet createPressureFlowSet() {
+        PressureFlowStrategySet set = new PressureFlowStrategySet();
+        PressureFlowStrategy strategy = createPressureFlowStrategy();
+        if (strategy != null) {
+          set.usePressureFlowStrategy(strategy);
+        }
+        return set;
+      }
+    };
+  }
+
+  public List<SExpression> generateFormula(Schematic schematic)
+      throws IOException {
+    return generateFormula(schematic, false);
+  }
+
+  private List<SExpression> generateFormula(Schematic schematic,
+      boolean anchored) throws IOException {
+    return generateFormula(schematic, anchored,
+        Collections.<Symbol>emptySet());
+  }
+
+  // anchored: the caller adds rules that see absolute positions, such
+  // as an objective measured from the origin, so that layouts cannot
+  // be mirrored freely; keep: symbols the caller reads or constrains
+  // later, whose declarations pruning must not remove
+  private List<SExpression> generateFormula(Schematic schematic,
+      boolean anchored, Set<Symbol> keep) throws IOException {
     primitiveTypes = constructTypeTable(schematic);
+    referencePlacement = null;
+    try {
+      if (initialPlacement) {
+        referencePlacement = new ForceDirectedPlacement().place(
+            schematic, processParams, primitiveTypes);
+      }
+      if (hierarchicalClusterSize > 0) {
+        HierarchicalPlacement hierarchy = new HierarchicalPlacement(
+            schematic, processParams);
+        hierarchy.setClusterSize(hierarchicalClusterSize);
+        hierarchy.useStrategyFactory(createStrategyFactory());
+        hierarchy.useSolverFactory(createSolverFactory());
+        if (baseSolver != null) {
+          // one solver solves one formula at a time
+          hierarchy.setThreads(1);
+        }
+        DRealSolver.Result placement = hierarchy.place();
+        if (placement.isSatisfiable()) {
+          referencePlacement = ReferencePlacement.fromModel(
+              schematic, placement);
+        } else {
+          log.warn("hierarchical placement found no layout;"
+              + " continuing without it");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err("interrupted while computing the initial placement");
+    }
     // translation step
     // for now: one pass
     List<SExpression> exprs = new LinkedList<>();
@@ -177,18 +895,72 @@ public class MicrofluidicsBackend implements Backend {
         SymbolNameGenerator.getsym_constant_pi(), 
         new Decimal(Math.PI)));
     
-    PlacementTranslationStrategySet placeSet = 
-        new PlacementTranslationStrategySet();
+    PlacementTranslationStrategySet placeSet = createPlacementSet();
     unsortedExprs.addAll(placeSet.translate(
         schematic, processParams, primitiveTypes));
     MultiPhaseStrategySet multiPhase = new MultiPhaseStrategySet();
     unsortedExprs.addAll(multiPhase.translate(
         schematic, processParams, primitiveTypes));
     PressureFlowStrategySet pressureFlow = new PressureFlowStrategySet();
+    partialPressureFlow = createPressureFlowStrategy();
+    if (partialPressureFlow != null) {
+      pressureFlow.usePressureFlowStrategy(partialPressureFlow);
+    }
     unsortedExprs.addAll(pressureFlow.translate(
         schematic, processParams, primitiveTypes));
+    if (partialPressureFlow instanceof ReducedPressureFlowStrategy) {
+      ReducedPressureFlowStrategy reduced =
+          (ReducedPressureFlowStrategy) partialPressureFlow;
+      log.debug("reduced " + reduced.getChannelCount()
+          + " channels to " + reduced.getElementCount()
+          + " hydraulic elements");
+    }
+    if (partialPressureFlow instanceof LoopPressureFlowStrategy) {
+      LoopPressureFlowStrategy loops =
+          (LoopPressureFlowStrategy) partialPressureFlow;
+      log.debug(loops.getLoopCount() + " independent loops; "
+          + (loops.isLoopFormulation() ? "using loop" : "using nodal")
+          + " pressure/flow relations");
+    }
+    if (breakSymmetry && !lazyPairwiseRules) {
+      // the pairwise rules have to be in the formula to check symmetries
+      SymmetryBreaking symmetry = new SymmetryBreaking();
+      symmetry.setBreakReflections(!anchored && !assumeInfiniteArea);
+      unsortedExprs.addAll(symmetry.translate(schematic, processParams,
+          primitiveTypes, unsortedExprs));
+      log.debug("found " + symmetry.getInterchangeableNodes().size()
+          + " classes of interchangeable nodes");
+    }
     
-    exprs.addAll(sortExprs(unsortedExprs));
+    List<SExpression> sortedExprs = sortExprs(unsortedExprs);
+    if (simplify) {
+      Simplifier simplifier = new Simplifier();
+      sortedExprs = simplifier.rewrite(sortedExprs);
+      log.debug("simplification saved " + simplifier.getRemovedTerms()
+          + " terms");
+    }
+    if (pruneFormula) {
+      RedundancyElimination elimination = new RedundancyElimination();
+      for (Symbol sym : keep) {
+        elimination.keep(sym);
+      }
+      sortedExprs = elimination.rewrite(sortedExprs);
+      log.debug("removed " + elimination.getDuplicates()
+          + " repeated commands and " + elimination.getDeadDeclarations()
+          + " unused declarations");
+    }
+    if (divisionFree) {
+      DenominatorClearing clearing = new DenominatorClearing();
+      sortedExprs = clearing.rewrite(sortedExprs);
+      log.debug("cleared " + clearing.getClearedDivisions()
+          + " divisions");
+    }
+    if (!ordering.equals(AssertionOrdering.DEFAULT)) {
+      AssertionOrdering order = new AssertionOrdering(ordering);
+      order.useSchematic(schematic);
+      sortedExprs = order.order(sortedExprs);
+    }
+    exprs.addAll(sortedExprs);
     
     // (check-sat) (exit)
     exprs.add(new ParenList(new SExpression[] {
@@ -197,14 +969,274 @@ public class MicrofluidicsBackend implements Backend {
     exprs.add(new ParenList(new SExpression[] {
       new Symbol("exit")
     }));
-    // write to "schematic-name.smt2"
-    String filename = schematic.getName() + ".smt2";
+    return exprs;
+  }
+
+  // the rules generateFormula() leaves out with lazyPairwiseRules
+  private List<SExpression> translatePairwiseRules(Schematic schematic) {
+    return createPlacementSet().translatePairwiseRules(schematic,
+        processParams, primitiveTypes);
+  }
+
+  // the configured solver behind the result cache, if one is enabled
+  private DeltaSolver createDeltaSolver(ResultCache cache) {
+    DeltaSolver delta = baseSolver != null ? baseSolver : new DRealSolver();
+    if (cache != null) {
+      delta = new CachingSolver(delta, cache);
+    }
+    return delta;
+  }
+
+  // creates solvers for formulas that are solved on the side, such as
+  // those of HierarchicalPlacement, which share one result cache
+  private ParameterSweep.SolverFactory createSolverFactory()
+      throws IOException {
+    final ResultCache cache = resultCache != null
+        ? new ResultCache(resultCache, RESULT_CACHE_ENTRIES) : null;
+    return new ParameterSweep.SolverFactory() {
+      @Override
+      public FormulaSolver createSolver() {
+        return createDeltaSolver(cache);
+      }
+    };
+  }
+
+  private FormulaSolver createSolver(Schematic schematic)
+      throws IOException {
+    List<SExpression> lazy = new ArrayList<>();
+    if (lazyPairwiseRules) {
+      lazy.addAll(translatePairwiseRules(schematic));
+    }
+    return createSolver(schematic, lazy);
+  }
+
+  // dReal behind the result cache, seen through the precision
+  // escalation, scaling and warm start that are enabled, with models
+  // completed for a reduced or loop pressure/flow formula, and the lazy
+  // rules and rules for crossings in the final layout added as needed
+  private FormulaSolver createSolver(Schematic schematic,
+      List<SExpression> lazy) throws IOException {
+    DeltaSolver delta = createDeltaSolver(resultCache != null
+        ? new ResultCache(resultCache, RESULT_CACHE_ENTRIES) : null);
+    FormulaSolver solver = delta;
+    if (initialPrecision > 0.0) {
+      PrecisionEscalationSolver escalation =
+          new PrecisionEscalationSolver(delta);
+      escalation.setInitialPrecision(initialPrecision);
+      escalation.setFinalPrecision(finalPrecision);
+      solver = escalation;
+    }
+    if (scaleVariables) {
+      ScalingSolver scaling = new ScalingSolver(solver);
+      scaling.useHints(ScalingSolver.placementHints(schematic,
+          processParams));
+      solver = scaling;
+    }
+    if (modelFile != null || referencePlacement != null) {
+      WarmStartSolver warmStart = new WarmStartSolver(solver,
+          modelFile != null ? modelFile
+              : WarmStartSolver.getModelPath(schematic));
+      if (referencePlacement != null) {
+        warmStart.usePriorModel(ReferencePlacement.toModel(
+            schematic, referencePlacement));
+      }
+      solver = warmStart;
+    }
+    if (partialPressureFlow != null) {
+      final FormulaSolver partial = solver;
+      final PressureFlowStrategy strategy = partialPressureFlow;
+      solver = new FormulaSolver() {
+        @Override
+        public DRealSolver.Result solve(List<SExpression> formula)
+            throws IOException {
+          DRealSolver.Result result = partial.solve(formula);
+          strategy.reconstruct(result);
+          return result;
+        }
+      };
+    }
+    if (!lazy.isEmpty()) {
+      solver = new LazyConstraintSolver(solver, lazy);
+    }
+    return new CrossingCheckSolver(solver, schematic, processParams,
+        new ChannelCrossingStrategy());
+  }
+
+  // writes the optimum and its model to "schematic-name.optimum.json"
+  public BisectionOptimizer.Optimum optimize(Schematic schematic,
+      String objectiveName, double tolerance) throws IOException {
+    Objective objective = Objective.byName(objectiveName, schematic,
+        constructTypeTable(schematic));
+    // the objective is defined over quantities of the design, which
+    // have to stay declared even if no rule of the formula uses them
+    Set<Symbol> read = new HashSet<>();
+    for (SExpression expr : objective.getDefinition()) {
+      read.addAll(SymbolCollector.collect(expr));
+    }
+    List<SExpression> formula = generateFormula(schematic, true, read);
+    FormulaSolver solver = createSolver(schematic);
+    BisectionOptimizer optimizer = new BisectionOptimizer(solver);
+    optimizer.setTolerance(tolerance);
+    BisectionOptimizer.Optimum optimum = optimizer.minimize(
+        formula, objective);
+    JsonObject out = new JsonObject();
+    out.addProperty("objective", objective.getName());
+    out.addProperty("feasible", optimum.isFeasible());
+    out.addProperty("steps", optimum.getSteps());
+    if (optimum.isFeasible()) {
+      log.info(objective.getName() + " is between "
+          + optimum.getLowerBound() + " and " + optimum.getUpperBound());
+      out.addProperty("lowerBound", optimum.getLowerBound());
+      out.addProperty("upperBound", optimum.getUpperBound());
+      out.add("model", toJson(optimum.getModel()));
+    } else {
+      log.warn("design is infeasible; nothing to optimize");
+    }
+    String filename = schematic.getName() + ".optimum.json";
     try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-      for (SExpression expr : exprs) {
-        expr.write(writer);
-        writer.newLine();
+      writer.write(out.toString());
+    }
+    return optimum;
+  }
+
+  // writes the slice of the formula for the targets to
+  // "schematic-name.query.smt2" and their ranges to
+  // "schematic-name.query.json"
+  public DRealSolver.Result query(Schematic schematic, List<Symbol> targets)
+      throws IOException {
+    List<SExpression> formula = generateFormula(schematic, false,
+        new HashSet<>(targets));
+    Set<Symbol> declared = new HashSet<>();
+    for (SExpression expr : formula) {
+      if (!(expr instanceof ParenList)) {
+        continue;
       }
+      List<SExpression> terms = ((ParenList) expr).getExprs();
+      if (terms.get(0).equals(new Symbol("declare-fun"))) {
+        declared.add((Symbol) terms.get(1));
+      }
+    }
+    ConeOfInfluence cone = new ConeOfInfluence();
+    for (Symbol target : targets) {
+      if (!declared.contains(target)) {
+        err("cannot query '" + target.getName()
+            + "', which the formula does not declare");
+      }
+      cone.addTarget(target);
+    }
+    // the cone grows across the lazy rules as it would across the same
+    // rules in the formula, but the ones it takes stay lazy
+    Set<SExpression> lazyRules = Collections.newSetFromMap(
+        new IdentityHashMap<SExpression, Boolean>());
+    if (lazyPairwiseRules) {
+      lazyRules.addAll(translatePairwiseRules(schematic));
     }
+    List<SExpression> slice = cone.slice(QFNRA.insertBeforeCheckSat(
+        formula, new ArrayList<>(lazyRules)));
+    log.info("query depends on " + cone.getCone().size() + " of "
+        + declared.size() + " variables");
+    writeFormula(slice, schematic.getName() + ".query.smt2");
+    List<SExpression> eager = new ArrayList<>();
+    List<SExpression> lazy = new ArrayList<>();
+    for (SExpression expr : slice) {
+      if (lazyRules.contains(expr)) {
+        lazy.add(expr);
+      } else {
+        eager.add(expr);
+      }
+    }
+    DRealSolver.Result result = createSolver(schematic, lazy).solve(eager);
+    JsonObject out = new JsonObject();
+    out.addProperty("feasible", result.isSatisfiable());
+    if (result.isSatisfiable()) {
+      JsonObject ranges = new JsonObject();
+      for (Symbol target : targets) {
+        DRealSolver.RealRange range = result.getRange(target);
+        if (range == null) {
+          continue;
+        }
+        JsonArray bounds = new JsonArray();
+        bounds.add(new JsonPrimitive(range.lowerBound));
+        bounds.add(new JsonPrimitive(range.upperBound));
+        ranges.add(target.getName(), bounds);
+      }
+      out.add("targets", ranges);
+    } else {
+      log.warn("the query's slice of the formula is infeasible");
+    }
+    String filename = schematic.getName() + ".query.json";
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+      writer.write(out.toString());
+    }
+    return result;
   }
-  
+
+  // times dReal on the formula under each assertion ordering, writing
+  // the times to "schematic-name.ordering.csv"; the formula is solved
+  // directly, without warm starts that would favour later orderings
+  public List<OrderingBenchmark.Timing> benchmarkOrdering(
+      Schematic schematic) throws IOException {
+    // start from the order the strategies emit, with every rule
+    String chosen = ordering;
+    boolean lazy = lazyPairwiseRules;
+    ordering = AssertionOrdering.DEFAULT;
+    lazyPairwiseRules = false;
+    List<SExpression> formula;
+    try {
+      formula = generateFormula(schematic);
+    } finally {
+      ordering = chosen;
+      lazyPairwiseRules = lazy;
+    }
+    OrderingBenchmark benchmark = new OrderingBenchmark(new DRealSolver());
+    List<OrderingBenchmark.Timing> timings = benchmark.run(formula,
+        schematic);
+    String filename = schematic.getName() + ".ordering.csv";
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+      OrderingBenchmark.writeTable(timings, writer);
+    }
+    return timings;
+  }
+
+  private static JsonObject toJson(DRealSolver.Result result) {
+    JsonObject model = new JsonObject();
+    for (Symbol sym : result.getSymbols()) {
+      DRealSolver.RealRange range = result.getRange(sym);
+      JsonArray bounds = new JsonArray();
+      bounds.add(new JsonPrimitive(range.lowerBound));
+      bounds.add(new JsonPrimitive(range.upperBound));
+      model.add(sym.getName(), bounds);
+    }
+    return model;
+  }
+
+  // shrinks the chip around a first layout, writing the smallest layout
+  // found to "schematic-name.compact.json"; the first layout is easiest
+  // to find with setAssumeInfiniteArea(true)
+  public AreaCompaction.Compaction compact(Schematic schematic)
+      throws IOException {
+    List<SExpression> formula = generateFormula(schematic, true);
+    FormulaSolver solver = createSolver(schematic);
+    AreaCompaction compaction = new AreaCompaction(solver, schematic);
+    AreaCompaction.Compaction result = compaction.compact(formula);
+    JsonObject out = new JsonObject();
+    out.addProperty("feasible", result.isFeasible());
+    out.addProperty("steps", result.getSteps());
+    if (result.isFeasible()) {
+      log.info("smallest layout found is " + result.getWidth() + " x "
+          + result.getHeight());
+      out.addProperty("width", result.getWidth());
+      out.addProperty("height", result.getHeight());
+      out.addProperty("area", result.getArea());
+      out.add("model", toJson(result.getModel()));
+    } else {
+      log.warn("design is infeasible even on an unbounded chip");
+    }
+    String filename = schematic.getName() + ".compact.json";
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+      writer.write(out.toString());
+    }
+    return result;
+  }
+
 }
@@ -0,0 +1,150 @@
+package org.manifold.compiler.back.microfluidics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// A set of process parameter points to qualify a design against,
+// e.g. several fabrication processes and their tolerance corners.
+//
+// It is read from a JSON file with the same keys as a process parameter
+// file. Each value is either a single number, an array of numbers,
+// or a range {"from": a, "to": b, "steps": n} of n evenly spaced values.
+// The points are all combinations of the values of every parameter.
+public class ProcessParameterGrid {
+
+  public static final String[] PARAMETER_NAMES = new String[] {
+    "minimumNodeDistance",
+    "minimumChannelLength",
+    "maximumChipSizeX",
+    "maximumChipSizeY",
+    "criticalCrossingAngle"
+  };
+
+  // values of each parameter, in the order of PARAMETER_NAMES
+  private final List<List<Double>> values;
+
+  public ProcessParameterGrid(List<List<Double>> values) {
+    if (values.size() != PARAMETER_NAMES.length) {
+      throw new IllegalArgumentException("expected values for "
+          + PARAMETER_NAMES.length + " process parameters");
+    }
+    for (int i = 0; i < values.size(); ++i) {
+      if (values.get(i).isEmpty()) {
+        throw new IllegalArgumentException("no values given for parameter '"
+            + PARAMETER_NAMES[i] + "'");
+      }
+    }
+    this.values = values;
+  }
+
+  public int size() {
+    int n = 1;
+    for (List<Double> v : values) {
+      n *= v.size();
+    }
+    return n;
+  }
+
+  /**
+   * @return every combination of parameter values, varying the last
+   * parameter fastest
+   */
+  public List<ProcessParameters> getPoints() {
+    List<ProcessParameters> points = new ArrayList<>(size());
+    int[] idx = new int[values.size()];
+    for (int p = 0; p < size(); ++p) {
+      points.add(new ProcessParameters(
+          values.get(0).get(idx[0]),
+          values.get(1).get(idx[1]),
+          values.get(2).get(idx[2]),
+          values.get(3).get(idx[3]),
+          values.get(4).get(idx[4])));
+      for (int k = idx.length - 1; k >= 0; --k) {
+        idx[k] += 1;
+        if (idx[k] < values.get(k).size()) {
+          break;
+        }
+        idx[k] = 0;
+      }
+    }
+    return points;
+  }
+
+  /**
+   * @return the values of all parameters of the given point,
+   * in the order of PARAMETER_NAMES
+   */
+  public static double[] getValues(ProcessParameters params) {
+    return new double[] {
+      params.getMinimumNodeDistance(),
+      params.getMinimumChannelLength(),
+      params.getMaximumChipSizeX(),
+      params.getMaximumChipSizeY(),
+      params.getCriticalCrossingAngle()
+    };
+  }
+
+  private static List<Double> readValues(JsonObject input, String key) {
+    JsonElement e = input.get(key);
+    if (e == null) {
+      throw new IllegalArgumentException("required parameter '" + key + "'"
+          + " not found in provided JSON file");
+    }
+    List<Double> result = new ArrayList<>();
+    try {
+      if (e.isJsonArray()) {
+        JsonArray array = e.getAsJsonArray();
+        for (JsonElement v : array) {
+          result.add(v.getAsDouble());
+        }
+      } else if (e.isJsonObject()) {
+        JsonObject range = e.getAsJsonObject();
+        double from = range.get("from").getAsDouble();
+        double to = range.get("to").getAsDouble();
+        int steps = range.get("steps").getAsInt();
+        if (steps < 1) {
+          throw new IllegalArgumentException("range for parameter '" + key
+              + "' must have at least one step");
+        }
+        for (int i = 0; i < steps; ++i) {
+          result.add(steps == 1 ? from
+              : from + (to - from) * i / (steps - 1));
+        }
+      } else {
+        result.add(e.getAsDouble());
+      }
+    } catch (ClassCastException | IllegalStateException
+        | NullPointerException ex) {
+      throw new IllegalArgumentException("parameter '" + key + "'"
+          + " must be a number, an array of numbers,"
+          + " or a range {\"from\", \"to\", \"steps\"}");
+    }
+    return result;
+  }
+
+  public static ProcessParameterGrid loadFromFile(String path)
+      throws IOException {
+    Path p = Paths.get(path);
+    Charset charset = Charset.forName("UTF-8");
+    try (BufferedReader reader = Files.newBufferedReader(p, charset)) {
+      JsonObject input = new JsonParser().parse(reader).getAsJsonObject();
+      List<List<Double>> values = new ArrayList<>();
+      for (String key : PARAMETER_NAMES) {
+        values.add(readValues(input, key));
+      }
+      return new ProcessParameterGrid(values);
+    }
+  }
+
+}
@@ -47,15 +47,44 @@ public class ProcessParameters {
     return criticalCrossingAngle;
   }
   
-  private ProcessParameters(
+  // Spacing of the placement grid that node positions must lie on
+  // (meters), or 0 if positions are not restricted to a grid
+  private final double placementPitch;
+  public double getPlacementPitch() {
+    return placementPitch;
+  }
+  
+  ProcessParameters(
       double minimumNodeDistance, double minimumChannelLength,
       double maximumChipSizeX, double maximumChipSizeY,
       double criticalCrossingAngle) {
+    this(minimumNodeDistance, minimumChannelLength,
+        maximumChipSizeX, maximumChipSizeY,
+        criticalCrossingAngle, 0.0);
+  }
+  
+  ProcessParameters(
+      double minimumNodeDistance, double minimumChannelLength,
+      double maximumChipSizeX, double maximumChipSizeY,
+      double criticalCrossingAngle, double placementPitch) {
+    if (placementPitch < 0.0) {
+      throw new IllegalArgumentException(
+          "placement pitch must not be negative");
+    }
     this.minimumNodeDistance = minimumNodeDistance;
     this.minimumChannelLength = minimumChannelLength;
     this.maximumChipSizeX = maximumChipSizeX;
     this.maximumChipSizeY = maximumChipSizeY;
     this.criticalCrossingAngle = criticalCrossingAngle;
+    this.placementPitch = placementPitch;
+  }
+  
+  /**
+   * @return the same parameters with the given placement pitch
+   */
+  public ProcessParameters withPlacementPitch(double pitch) {
+    return new ProcessParameters(minimumNodeDistance, minimumChannelLength,
+        maximumChipSizeX, maximumChipSizeY, criticalCrossingAngle, pitch);
   }
   
   public static ProcessParameters loadTestData() {
@@ -80,6 +109,22 @@ public class ProcessParameters {
     }
   }
   
+  private static double readOptionalJsonDouble(JsonObject input,
+      String key, double defaultValue) {
+    if (input.get(key) == null) {
+      return defaultValue;
+    }
+    return readJsonDouble(input, key);
+  }
+  
+  private static double readOptionalCLIDouble(CommandLine cli, String key,
+      double defaultValue) {
+    if (cli.getOptionValue(key) == null) {
+      return defaultValue;
+    }
+    return readCLIDouble(cli, key);
+  }
+  
   private static double readCLIDouble(CommandLine cli, String key) {
     String valString = cli.getOptionValue(key);
     if (valString == null) {
@@ -115,6 +160,8 @@ public class ProcessParameters {
         "chip dimension in Y-direction (meters)");
     createDoubleOption(opts, "bProcessCriticalCrossingAngle",
         "minimum crossing angle for channels (radians)");
+    createDoubleOption(opts, "bProcessPlacementPitch",
+        "spacing of the placement grid (meters), optional");
   }
   
   public static ProcessParameters loadFromFile(String path) throws IOException {
@@ -127,7 +174,8 @@ public class ProcessParameters {
         readJsonDouble(input, "minimumChannelLength"),
         readJsonDouble(input, "maximumChipSizeX"),
         readJsonDouble(input, "maximumChipSizeY"),
-        readJsonDouble(input, "criticalCrossingAngle")
+        readJsonDouble(input, "criticalCrossingAngle"),
+        readOptionalJsonDouble(input, "placementPitch", 0.0)
     );
   }
   
@@ -138,7 +186,8 @@ public class ProcessParameters {
         readCLIDouble(cli, "bProcessMinimumChannelLength"),
         readCLIDouble(cli, "bProcessMaximumChipSizeX"),
         readCLIDouble(cli, "bProcessMaximumChipSizeY"),
-        readCLIDouble(cli, "bProcessCriticalCrossingAngle")
+        readCLIDouble(cli, "bProcessCriticalCrossingAngle"),
+        readOptionalCLIDouble(cli, "bProcessPlacementPitch", 0.0)
     );
   }
 }
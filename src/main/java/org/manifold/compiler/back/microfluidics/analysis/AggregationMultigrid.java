@@ -0,0 +1,254 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Algebraic multigrid V-cycle built by plain (piecewise-constant)
+// aggregation, used as a preconditioner for conjugate gradient.
+// Each level pairs every unknown with its most strongly coupled free
+// neighbour, twice, so the number of unknowns drops by about four per
+// level. Coarse operators are the Galerkin products P^T A P, which for
+// piecewise-constant P is simply the sum of the entries between
+// aggregates. Symmetric Gauss-Seidel smoothing keeps the cycle symmetric.
+public class AggregationMultigrid {
+
+  // levels at or below this size are solved directly
+  private static final int COARSEST_SIZE = 400;
+
+  // If aggregation stalls above COARSEST_SIZE, the last level is only
+  // factored densely up to this size (n^2 doubles, 32 MB here); beyond
+  // it, a few symmetric Gauss-Seidel sweeps stand in for the direct
+  // solve, which keeps the preconditioner symmetric.
+  private static final int MAX_DIRECT_SIZE = 2000;
+  private static final int COARSEST_SWEEPS = 4;
+
+  // Piecewise-constant interpolation underestimates smooth errors, so the
+  // coarse correction is scaled up. A factor below 2 keeps the scaled
+  // coarse correction contractive; 1.8 cuts CG iterations roughly
+  // threefold on grid-like networks compared to no scaling.
+  private static final double OVER_CORRECTION = 1.8;
+
+  private static class Level {
+    CSRMatrix a;
+    double[] diag;
+    // fine unknown -> coarse unknown; null on the coarsest level
+    int[] aggregate;
+    int coarseSize;
+    // scratch vectors
+    double[] residual;
+  }
+
+  private final List<Level> levels = new ArrayList<>();
+  private double[] coarseFactor;
+  private int coarseN;
+
+  public AggregationMultigrid(CSRMatrix a) {
+    CSRMatrix current = a;
+    while (true) {
+      Level level = new Level();
+      level.a = current;
+      level.diag = current.getDiagonal();
+      level.residual = new double[current.getSize()];
+      levels.add(level);
+      if (current.getSize() <= COARSEST_SIZE) {
+        break;
+      }
+      int[] agg = aggregate(current);
+      int coarseSize = 0;
+      for (int i = 0; i < agg.length; ++i) {
+        coarseSize = Math.max(coarseSize, agg[i] + 1);
+      }
+      if (coarseSize >= current.getSize()) {
+        // no further coarsening possible
+        break;
+      }
+      level.aggregate = agg;
+      level.coarseSize = coarseSize;
+      current = galerkin(current, agg, coarseSize);
+    }
+    CSRMatrix coarsest = levels.get(levels.size() - 1).a;
+    if (coarsest.getSize() <= MAX_DIRECT_SIZE) {
+      factorCoarsest(coarsest);
+    }
+  }
+
+  public int getLevelSize(int level) {
+    return levels.get(level).a.getSize();
+  }
+
+  public int getLevelCount() {
+    return levels.size();
+  }
+
+  /**
+   * @return true if the coarsest level is solved exactly, false if it is
+   * too large and only smoothed
+   */
+  public boolean isCoarsestFactored() {
+    return coarseFactor != null;
+  }
+
+  // Two passes of strongest-neighbour pairwise matching.
+  private static int[] aggregate(CSRMatrix a) {
+    int[] first = pairwiseMatch(a);
+    int firstSize = 0;
+    for (int i = 0; i < first.length; ++i) {
+      firstSize = Math.max(firstSize, first[i] + 1);
+    }
+    CSRMatrix intermediate = galerkin(a, first, firstSize);
+    int[] second = pairwiseMatch(intermediate);
+    int[] combined = new int[first.length];
+    for (int i = 0; i < first.length; ++i) {
+      combined[i] = second[first[i]];
+    }
+    return combined;
+  }
+
+  private static int[] pairwiseMatch(CSRMatrix a) {
+    int n = a.getSize();
+    int[] agg = new int[n];
+    Arrays.fill(agg, -1);
+    int next = 0;
+    for (int i = 0; i < n; ++i) {
+      if (agg[i] >= 0) {
+        continue;
+      }
+      int best = -1;
+      double bestCoupling = 0.0;
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        int j = a.getColumn(k);
+        double coupling = -a.getValue(k);
+        if (j != i && agg[j] < 0 && coupling > bestCoupling) {
+          best = j;
+          bestCoupling = coupling;
+        }
+      }
+      agg[i] = next;
+      if (best >= 0) {
+        agg[best] = next;
+      }
+      ++next;
+    }
+    return agg;
+  }
+
+  private static CSRMatrix galerkin(CSRMatrix a, int[] agg, int coarseSize) {
+    CSRMatrix.Builder b = new CSRMatrix.Builder(coarseSize,
+        a.getNonZeroCount());
+    for (int i = 0; i < a.getSize(); ++i) {
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        b.add(agg[i], agg[a.getColumn(k)], a.getValue(k));
+      }
+    }
+    return b.build();
+  }
+
+  // dense Cholesky factorization of the coarsest operator
+  private void factorCoarsest(CSRMatrix a) {
+    int n = a.getSize();
+    coarseN = n;
+    double[] l = new double[n * n];
+    for (int i = 0; i < n; ++i) {
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        l[i * n + a.getColumn(k)] = a.getValue(k);
+      }
+    }
+    for (int j = 0; j < n; ++j) {
+      double d = l[j * n + j];
+      for (int k = 0; k < j; ++k) {
+        d -= l[j * n + k] * l[j * n + k];
+      }
+      if (d <= 0.0) {
+        throw new ArithmeticException(
+            "coarse multigrid operator is not positive-definite");
+      }
+      d = Math.sqrt(d);
+      l[j * n + j] = d;
+      for (int i = j + 1; i < n; ++i) {
+        double s = l[i * n + j];
+        for (int k = 0; k < j; ++k) {
+          s -= l[i * n + k] * l[j * n + k];
+        }
+        l[i * n + j] = s / d;
+      }
+    }
+    coarseFactor = l;
+  }
+
+  private void solveCoarsest(double[] r, double[] z) {
+    int n = coarseN;
+    double[] l = coarseFactor;
+    for (int i = 0; i < n; ++i) {
+      double s = r[i];
+      for (int k = 0; k < i; ++k) {
+        s -= l[i * n + k] * z[k];
+      }
+      z[i] = s / l[i * n + i];
+    }
+    for (int i = n - 1; i >= 0; --i) {
+      double s = z[i];
+      for (int k = i + 1; k < n; ++k) {
+        s -= l[k * n + i] * z[k];
+      }
+      z[i] = s / l[i * n + i];
+    }
+  }
+
+  /**
+   * Applies one V-cycle: z ~= A^-1 r.
+   */
+  public void apply(double[] r, double[] z) {
+    cycle(0, r, z);
+  }
+
+  private void cycle(int depth, double[] r, double[] z) {
+    Level level = levels.get(depth);
+    if (level.aggregate == null) {
+      if (coarseFactor != null) {
+        solveCoarsest(r, z);
+      } else {
+        Arrays.fill(z, 0, level.a.getSize(), 0.0);
+        for (int sweep = 0; sweep < COARSEST_SWEEPS; ++sweep) {
+          gaussSeidel(level.a, level.diag, r, z, true);
+          gaussSeidel(level.a, level.diag, r, z, false);
+        }
+      }
+      return;
+    }
+    CSRMatrix a = level.a;
+    int n = a.getSize();
+    Arrays.fill(z, 0, n, 0.0);
+    gaussSeidel(a, level.diag, r, z, true);
+    // restrict the residual onto the coarse level
+    double[] res = level.residual;
+    a.multiply(z, res);
+    double[] rc = new double[level.coarseSize];
+    for (int i = 0; i < n; ++i) {
+      rc[level.aggregate[i]] += r[i] - res[i];
+    }
+    double[] zc = new double[level.coarseSize];
+    cycle(depth + 1, rc, zc);
+    for (int i = 0; i < n; ++i) {
+      z[i] += OVER_CORRECTION * zc[level.aggregate[i]];
+    }
+    gaussSeidel(a, level.diag, r, z, false);
+  }
+
+  private static void gaussSeidel(CSRMatrix a, double[] diag, double[] r,
+      double[] z, boolean forward) {
+    int n = a.getSize();
+    for (int step = 0; step < n; ++step) {
+      int i = forward ? step : n - 1 - step;
+      double s = r[i];
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        int j = a.getColumn(k);
+        if (j != i) {
+          s -= a.getValue(k) * z[j];
+        }
+      }
+      z[i] = s / diag[i];
+    }
+  }
+
+}
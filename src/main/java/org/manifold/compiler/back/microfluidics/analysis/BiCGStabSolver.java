@@ -0,0 +1,146 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.Arrays;
+
+// Right-preconditioned BiCGSTAB for the nonsymmetric sparse systems
+// that appear in Newton steps on droplet-loaded networks.
+// The preconditioner is a multigrid cycle over a symmetric approximation
+// of the system, normally the conductance matrix of the linearized network.
+public class BiCGStabSolver {
+
+  private double tolerance = 1e-10;
+  public void setTolerance(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  // a non-positive value means "as many iterations as unknowns"
+  private int maximumIterations = 0;
+  public void setMaximumIterations(int maximumIterations) {
+    this.maximumIterations = maximumIterations;
+  }
+
+  private int iterations = 0;
+  public int getIterations() {
+    return iterations;
+  }
+
+  private double residualNorm = Double.NaN;
+  public double getResidualNorm() {
+    return residualNorm;
+  }
+
+  private boolean converged = false;
+  public boolean hasConverged() {
+    return converged;
+  }
+
+  /**
+   * Solves a * x = b, using one multigrid cycle on the given symmetric
+   * approximation of a as the preconditioner (or none, if it is null).
+   */
+  public double[] solve(CSRMatrix a, double[] b, CSRMatrix approximation) {
+    int n = a.getSize();
+    iterations = 0;
+    converged = false;
+    double[] x = new double[n];
+    if (n == 0) {
+      residualNorm = 0.0;
+      converged = true;
+      return x;
+    }
+    AggregationMultigrid m = null;
+    if (approximation != null) {
+      m = new AggregationMultigrid(approximation);
+    }
+    double[] r = Arrays.copyOf(b, n);
+    double[] rHat = Arrays.copyOf(b, n);
+    double bNorm = norm(b);
+    double threshold = tolerance * (bNorm > 0.0 ? bNorm : 1.0);
+    residualNorm = bNorm;
+    if (residualNorm <= threshold) {
+      converged = true;
+      return x;
+    }
+    double rho = 1.0;
+    double alpha = 1.0;
+    double omega = 1.0;
+    double[] v = new double[n];
+    double[] p = new double[n];
+    double[] pHat = new double[n];
+    double[] s = new double[n];
+    double[] sHat = new double[n];
+    double[] t = new double[n];
+    int maxIter = (maximumIterations > 0) ? maximumIterations : n;
+
+    while (iterations < maxIter) {
+      ++iterations;
+      double rhoNext = dot(rHat, r);
+      if (rhoNext == 0.0) {
+        // breakdown; caller sees a non-converged result
+        break;
+      }
+      if (iterations == 1) {
+        System.arraycopy(r, 0, p, 0, n);
+      } else {
+        double beta = (rhoNext / rho) * (alpha / omega);
+        for (int i = 0; i < n; ++i) {
+          p[i] = r[i] + beta * (p[i] - omega * v[i]);
+        }
+      }
+      rho = rhoNext;
+      precondition(m, p, pHat);
+      a.multiply(pHat, v);
+      alpha = rho / dot(rHat, v);
+      for (int i = 0; i < n; ++i) {
+        s[i] = r[i] - alpha * v[i];
+      }
+      if (norm(s) <= threshold) {
+        for (int i = 0; i < n; ++i) {
+          x[i] += alpha * pHat[i];
+        }
+        residualNorm = norm(s);
+        converged = true;
+        break;
+      }
+      precondition(m, s, sHat);
+      a.multiply(sHat, t);
+      double tt = dot(t, t);
+      omega = (tt > 0.0) ? dot(t, s) / tt : 0.0;
+      for (int i = 0; i < n; ++i) {
+        x[i] += alpha * pHat[i] + omega * sHat[i];
+        r[i] = s[i] - omega * t[i];
+      }
+      residualNorm = norm(r);
+      if (residualNorm <= threshold) {
+        converged = true;
+        break;
+      }
+      if (omega == 0.0) {
+        break;
+      }
+    }
+    return x;
+  }
+
+  private static void precondition(AggregationMultigrid m, double[] r,
+      double[] z) {
+    if (m == null) {
+      System.arraycopy(r, 0, z, 0, r.length);
+    } else {
+      m.apply(r, z);
+    }
+  }
+
+  private static double dot(double[] u, double[] v) {
+    double sum = 0.0;
+    for (int i = 0; i < u.length; ++i) {
+      sum += u[i] * v[i];
+    }
+    return sum;
+  }
+
+  private static double norm(double[] u) {
+    return Math.sqrt(dot(u, u));
+  }
+
+}
@@ -0,0 +1,175 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.Arrays;
+
+// Square sparse matrix in compressed sparse row (CSR) format.
+// Instances are immutable; use CSRMatrix.Builder to assemble one
+// from (row, column, value) triplets.
+public class CSRMatrix {
+
+  private final int size;
+  public int getSize() {
+    return size;
+  }
+
+  // rowStart[i] .. rowStart[i+1]-1 index the entries of row i
+  private final int[] rowStart;
+  private final int[] columns;
+  private final double[] values;
+
+  public int getNonZeroCount() {
+    return rowStart[size];
+  }
+
+  private CSRMatrix(int size, int[] rowStart, int[] columns,
+      double[] values) {
+    this.size = size;
+    this.rowStart = rowStart;
+    this.columns = columns;
+    this.values = values;
+  }
+
+  public int getRowStart(int row) {
+    return rowStart[row];
+  }
+
+  public int getRowEnd(int row) {
+    return rowStart[row + 1];
+  }
+
+  public int getColumn(int entry) {
+    return columns[entry];
+  }
+
+  public double getValue(int entry) {
+    return values[entry];
+  }
+
+  /**
+   * @return the entry at (row, col), or 0 if it is not stored
+   */
+  public double get(int row, int col) {
+    int idx = Arrays.binarySearch(columns, rowStart[row], rowStart[row + 1],
+        col);
+    if (idx < 0) {
+      return 0.0;
+    }
+    return values[idx];
+  }
+
+  public double[] getDiagonal() {
+    double[] diag = new double[size];
+    for (int i = 0; i < size; ++i) {
+      diag[i] = get(i, i);
+    }
+    return diag;
+  }
+
+  // y = A * x
+  public void multiply(double[] x, double[] y) {
+    for (int i = 0; i < size; ++i) {
+      double sum = 0.0;
+      for (int k = rowStart[i]; k < rowStart[i + 1]; ++k) {
+        sum += values[k] * x[columns[k]];
+      }
+      y[i] = sum;
+    }
+  }
+
+  // Accumulates triplets; duplicate (row, column) entries are summed.
+  public static class Builder {
+    private final int size;
+    private int count = 0;
+    private int[] rows;
+    private int[] cols;
+    private double[] vals;
+
+    public Builder(int size) {
+      this(size, 16);
+    }
+
+    public Builder(int size, int expectedEntries) {
+      this.size = size;
+      int capacity = Math.max(expectedEntries, 1);
+      rows = new int[capacity];
+      cols = new int[capacity];
+      vals = new double[capacity];
+    }
+
+    public void add(int row, int col, double value) {
+      if (row < 0 || row >= size || col < 0 || col >= size) {
+        throw new IndexOutOfBoundsException("entry (" + row + ", " + col
+            + ") is outside a matrix of size " + size);
+      }
+      if (count == rows.length) {
+        int capacity = rows.length * 2;
+        rows = Arrays.copyOf(rows, capacity);
+        cols = Arrays.copyOf(cols, capacity);
+        vals = Arrays.copyOf(vals, capacity);
+      }
+      rows[count] = row;
+      cols[count] = col;
+      vals[count] = value;
+      ++count;
+    }
+
+    public CSRMatrix build() {
+      // counting sort of the triplets by row
+      int[] rowStart = new int[size + 1];
+      for (int k = 0; k < count; ++k) {
+        rowStart[rows[k] + 1] += 1;
+      }
+      for (int i = 0; i < size; ++i) {
+        rowStart[i + 1] += rowStart[i];
+      }
+      int[] next = Arrays.copyOf(rowStart, size);
+      int[] sortedCols = new int[count];
+      double[] sortedVals = new double[count];
+      for (int k = 0; k < count; ++k) {
+        int dest = next[rows[k]]++;
+        sortedCols[dest] = cols[k];
+        sortedVals[dest] = vals[k];
+      }
+      // sort each row by column and merge duplicates in place
+      int[] compactStart = new int[size + 1];
+      int out = 0;
+      for (int i = 0; i < size; ++i) {
+        int begin = rowStart[i];
+        int end = rowStart[i + 1];
+        sortRow(sortedCols, sortedVals, begin, end);
+        compactStart[i] = out;
+        for (int k = begin; k < end; ++k) {
+          if (out > compactStart[i] && sortedCols[out - 1] == sortedCols[k]) {
+            sortedVals[out - 1] += sortedVals[k];
+          } else {
+            sortedCols[out] = sortedCols[k];
+            sortedVals[out] = sortedVals[k];
+            ++out;
+          }
+        }
+      }
+      compactStart[size] = out;
+      return new CSRMatrix(size, compactStart,
+          Arrays.copyOf(sortedCols, out), Arrays.copyOf(sortedVals, out));
+    }
+
+    // Rows of a hydraulic network matrix are short (one entry per
+    // incident channel), so insertion sort is the cheapest choice here.
+    private static void sortRow(int[] cols, double[] vals,
+        int begin, int end) {
+      for (int k = begin + 1; k < end; ++k) {
+        int c = cols[k];
+        double v = vals[k];
+        int j = k - 1;
+        while (j >= begin && cols[j] > c) {
+          cols[j + 1] = cols[j];
+          vals[j + 1] = vals[j];
+          --j;
+        }
+        cols[j + 1] = c;
+        vals[j + 1] = v;
+      }
+    }
+  }
+
+}
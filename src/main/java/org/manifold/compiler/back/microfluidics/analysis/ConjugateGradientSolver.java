@@ -0,0 +1,275 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.Arrays;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Preconditioned conjugate gradient solver for symmetric positive-definite
+// sparse systems, such as the nodal equations of a hydraulic network.
+public class ConjugateGradientSolver {
+
+  private static final Logger log =
+      LogManager.getLogger("ConjugateGradientSolver");
+
+  public enum Preconditioner {
+    NONE,
+    JACOBI,
+    // zero fill-in incomplete Cholesky factorization, IC(0)
+    INCOMPLETE_CHOLESKY,
+    // one aggregation multigrid V-cycle per iteration
+    MULTIGRID
+  }
+
+  private Preconditioner preconditioner = Preconditioner.MULTIGRID;
+  public void setPreconditioner(Preconditioner p) {
+    this.preconditioner = p;
+  }
+
+  // convergence is declared when ||b - Ax|| <= tolerance * ||b||
+  private double tolerance = 1e-10;
+  public void setTolerance(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  // a non-positive value means "as many iterations as unknowns"
+  private int maximumIterations = 0;
+  public void setMaximumIterations(int maximumIterations) {
+    this.maximumIterations = maximumIterations;
+  }
+
+  private int iterations = 0;
+  public int getIterations() {
+    return iterations;
+  }
+
+  private double residualNorm = Double.NaN;
+  public double getResidualNorm() {
+    return residualNorm;
+  }
+
+  private boolean converged = false;
+  public boolean hasConverged() {
+    return converged;
+  }
+
+  public double[] solve(CSRMatrix a, double[] b) {
+    return solve(a, b, new double[a.getSize()]);
+  }
+
+  public double[] solve(CSRMatrix a, double[] b, double[] initialGuess) {
+    int n = a.getSize();
+    if (b.length != n || initialGuess.length != n) {
+      throw new IllegalArgumentException("system of size " + n
+          + " does not match right-hand side or initial guess");
+    }
+    iterations = 0;
+    converged = false;
+    double[] x = Arrays.copyOf(initialGuess, n);
+    if (n == 0) {
+      residualNorm = 0.0;
+      converged = true;
+      return x;
+    }
+    Preconditioner m = createPreconditioner(a);
+
+    double[] r = new double[n];
+    double[] ap = new double[n];
+    a.multiply(x, ap);
+    for (int i = 0; i < n; ++i) {
+      r[i] = b[i] - ap[i];
+    }
+    double bNorm = norm(b);
+    double threshold = tolerance * (bNorm > 0.0 ? bNorm : 1.0);
+    residualNorm = norm(r);
+    if (residualNorm <= threshold) {
+      converged = true;
+      return x;
+    }
+    double[] z = new double[n];
+    applyPreconditioner(m, r, z);
+    double[] p = Arrays.copyOf(z, n);
+    double rz = dot(r, z);
+    int maxIter = (maximumIterations > 0) ? maximumIterations : n;
+
+    while (iterations < maxIter) {
+      ++iterations;
+      a.multiply(p, ap);
+      double pAp = dot(p, ap);
+      if (pAp <= 0.0) {
+        throw new ArithmeticException(
+            "system matrix is not positive-definite");
+      }
+      double alpha = rz / pAp;
+      for (int i = 0; i < n; ++i) {
+        x[i] += alpha * p[i];
+        r[i] -= alpha * ap[i];
+      }
+      residualNorm = norm(r);
+      if (residualNorm <= threshold) {
+        converged = true;
+        break;
+      }
+      applyPreconditioner(m, r, z);
+      double rzNext = dot(r, z);
+      double beta = rzNext / rz;
+      rz = rzNext;
+      for (int i = 0; i < n; ++i) {
+        p[i] = z[i] + beta * p[i];
+      }
+    }
+    return x;
+  }
+
+  // Preconditioner state for a single solve.
+  private double[] inverseDiagonal;
+  private int[] factorStart;
+  private int[] factorColumns;
+  private double[] factorValues;
+  private AggregationMultigrid multigrid;
+
+  private Preconditioner createPreconditioner(CSRMatrix a) {
+    inverseDiagonal = null;
+    factorStart = null;
+    factorColumns = null;
+    factorValues = null;
+    multigrid = null;
+    if (preconditioner == Preconditioner.MULTIGRID) {
+      multigrid = new AggregationMultigrid(a);
+      return Preconditioner.MULTIGRID;
+    }
+    if (preconditioner == Preconditioner.INCOMPLETE_CHOLESKY) {
+      if (factorIncompleteCholesky(a)) {
+        return Preconditioner.INCOMPLETE_CHOLESKY;
+      }
+      log.warn("incomplete Cholesky factorization broke down,"
+          + " falling back to Jacobi preconditioning");
+    }
+    if (preconditioner == Preconditioner.NONE) {
+      return Preconditioner.NONE;
+    }
+    double[] diag = a.getDiagonal();
+    inverseDiagonal = new double[diag.length];
+    for (int i = 0; i < diag.length; ++i) {
+      if (diag[i] == 0.0) {
+        throw new ArithmeticException("zero on diagonal of row " + i);
+      }
+      inverseDiagonal[i] = 1.0 / diag[i];
+    }
+    return Preconditioner.JACOBI;
+  }
+
+  // Computes the lower factor L of A ~= L*L^T, restricted to the
+  // sparsity pattern of the lower triangle of A. The diagonal entry
+  // is stored last in each row.
+  private boolean factorIncompleteCholesky(CSRMatrix a) {
+    int n = a.getSize();
+    int[] start = new int[n + 1];
+    for (int i = 0; i < n; ++i) {
+      int lower = 0;
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        if (a.getColumn(k) <= i) {
+          ++lower;
+        }
+      }
+      start[i + 1] = start[i] + lower;
+    }
+    int[] cols = new int[start[n]];
+    double[] vals = new double[start[n]];
+    for (int i = 0; i < n; ++i) {
+      int out = start[i];
+      for (int k = a.getRowStart(i); k < a.getRowEnd(i); ++k) {
+        if (a.getColumn(k) <= i) {
+          cols[out] = a.getColumn(k);
+          vals[out] = a.getValue(k);
+          ++out;
+        }
+      }
+      if (out == start[i] || cols[out - 1] != i) {
+        // missing diagonal entry
+        return false;
+      }
+    }
+    for (int i = 0; i < n; ++i) {
+      int diagIdx = start[i + 1] - 1;
+      for (int e = start[i]; e < diagIdx; ++e) {
+        int k = cols[e];
+        // subtract the dot product of rows i and k over columns < k
+        double sum = vals[e];
+        int pi = start[i];
+        int pk = start[k];
+        int endK = start[k + 1] - 1;
+        while (pi < e && pk < endK) {
+          if (cols[pi] == cols[pk]) {
+            sum -= vals[pi] * vals[pk];
+            ++pi;
+            ++pk;
+          } else if (cols[pi] < cols[pk]) {
+            ++pi;
+          } else {
+            ++pk;
+          }
+        }
+        vals[e] = sum / vals[endK];
+      }
+      double d = vals[diagIdx];
+      for (int e = start[i]; e < diagIdx; ++e) {
+        d -= vals[e] * vals[e];
+      }
+      if (d <= 0.0) {
+        return false;
+      }
+      vals[diagIdx] = Math.sqrt(d);
+    }
+    factorStart = start;
+    factorColumns = cols;
+    factorValues = vals;
+    return true;
+  }
+
+  // z = M^-1 * r
+  private void applyPreconditioner(Preconditioner m, double[] r,
+      double[] z) {
+    int n = r.length;
+    if (m == Preconditioner.NONE) {
+      System.arraycopy(r, 0, z, 0, n);
+    } else if (m == Preconditioner.JACOBI) {
+      for (int i = 0; i < n; ++i) {
+        z[i] = r[i] * inverseDiagonal[i];
+      }
+    } else if (m == Preconditioner.MULTIGRID) {
+      multigrid.apply(r, z);
+    } else {
+      // forward substitution: L y = r (y is stored in z)
+      for (int i = 0; i < n; ++i) {
+        double sum = r[i];
+        int diagIdx = factorStart[i + 1] - 1;
+        for (int e = factorStart[i]; e < diagIdx; ++e) {
+          sum -= factorValues[e] * z[factorColumns[e]];
+        }
+        z[i] = sum / factorValues[diagIdx];
+      }
+      // backward substitution: L^T z = y, visiting L by rows
+      for (int i = n - 1; i >= 0; --i) {
+        int diagIdx = factorStart[i + 1] - 1;
+        z[i] /= factorValues[diagIdx];
+        for (int e = factorStart[i]; e < diagIdx; ++e) {
+          z[factorColumns[e]] -= factorValues[e] * z[i];
+        }
+      }
+    }
+  }
+
+  private static double dot(double[] u, double[] v) {
+    double sum = 0.0;
+    for (int i = 0; i < u.length; ++i) {
+      sum += u[i] * v[i];
+    }
+    return sum;
+  }
+
+  private static double norm(double[] u) {
+    return Math.sqrt(dot(u, u));
+  }
+
+}
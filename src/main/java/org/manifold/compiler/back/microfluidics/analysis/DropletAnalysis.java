@@ -0,0 +1,226 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.UndeclaredIdentifierException;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.SchematicUtil;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.ExprEvalVisitor;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.multiphase.TJunctionDeviceStrategy;
+import org.manifold.compiler.middle.Schematic;
+
+// Worst-case droplet analysis of a schematic whose geometry is fixed.
+//
+// This evaluates the same physics as the worst-case formulas of
+// TJunctionDeviceStrategy and SimplePressureFlowStrategy: the output
+// channel of every T-junction holds n = L*w*h / V droplets, each adding
+// the droplet resistance, and the droplet volume V depends on the
+// dispersed/continuous flow ratio at the junction. Because n itself
+// depends on the loaded flows, the worst case is taken to be the
+// self-consistent steady state of the loaded network, found with
+// NewtonNetworkSolver, rather than n computed from the nominal flows.
+//
+// Besides the bindings HydraulicAnalysis needs, every T-junction needs
+// its epsilon and the viscosity of its dispersed channel, and the output
+// channel needs its length, width and height. A bound droplet resistance
+// is used as given; otherwise it is computed from the model constants.
+public class DropletAnalysis extends HydraulicAnalysis {
+
+  public DropletAnalysis(Schematic schematic, PrimitiveTypeTable typeTable) {
+    super(schematic, typeTable);
+  }
+
+  private int maximumIterations = 50;
+  public void setMaximumIterations(int maximumIterations) {
+    this.maximumIterations = maximumIterations;
+  }
+
+  private int newtonIterations = 0;
+  public int getNewtonIterations() {
+    return newtonIterations;
+  }
+
+  private Map<NodeValue, Double> volumeDrift = new HashMap<>();
+  /**
+   * @return for each T-junction, the relative change of droplet volume
+   * between the nominal and the worst-case operating point
+   */
+  public Map<NodeValue, Double> getVolumeDrift() {
+    return volumeDrift;
+  }
+
+  /**
+   * Solves the network with and without droplet loading. The results hold
+   * everything HydraulicAnalysis reports for the nominal case, plus the
+   * worst-case flow rate of every channel and the nominal and worst-case
+   * droplet volume, droplet resistance and droplet count of every
+   * T-junction output channel.
+   */
+  @Override
+  public Map<Symbol, Double> analyze() {
+    Schematic schematic = getSchematic();
+    HydraulicNetwork network = buildNetwork();
+    HydraulicNetwork.Solution nominal = solveNetwork();
+    Map<Symbol, Double> results = interpret(nominal);
+
+    NewtonNetworkSolver newton = new NewtonNetworkSolver(network);
+    newton.setMaximumIterations(maximumIterations);
+    List<NodeValue> junctions = new ArrayList<>();
+    List<NewtonNetworkSolver.DropletLoad> loads = new ArrayList<>();
+    for (NodeValue node : schematic.getNodes().values()) {
+      if (!node.getType().isSubtypeOf(
+          getTypeTable().getTJunctionNodeType())) {
+        continue;
+      }
+      NewtonNetworkSolver.DropletLoad load = createLoad(node, results);
+      newton.addDropletLoad(load);
+      junctions.add(node);
+      loads.add(load);
+    }
+
+    HydraulicNetwork.Solution worstCase = newton.solve();
+    newtonIterations = newton.getIterations();
+    if (!newton.hasConverged()) {
+      throw new ArithmeticException("worst-case droplet analysis did not"
+          + " converge after " + newtonIterations + " Newton iterations");
+    }
+
+    double[] nominalFlows = new double[network.getChannelCount()];
+    for (int c = 0; c < nominalFlows.length; ++c) {
+      nominalFlows[c] = nominal.getFlow(c);
+    }
+    for (ConnectionValue conn : schematic.getConnections().values()) {
+      results.put(SymbolNameGenerator.getsym_ChannelFlowRate_WorstCase(
+          schematic, conn), worstCase.getFlow(getChannelIndex(conn)));
+    }
+    volumeDrift = new HashMap<>();
+    for (int i = 0; i < junctions.size(); ++i) {
+      NewtonNetworkSolver.DropletLoad load = loads.get(i);
+      ConnectionValue output = outputChannel(junctions.get(i));
+      double vNominal = load.getDropletVolume(load.flowRatio(nominalFlows));
+      double ratio = newton.getFlowRatio(load);
+      double vWorstCase = load.getDropletVolume(ratio);
+      results.put(SymbolNameGenerator.getsym_ChannelDropletVolume(
+          schematic, output), vNominal);
+      results.put(SymbolNameGenerator.getsym_ChannelDropletVolume_WorstCase(
+          schematic, output), vWorstCase);
+      results.put(SymbolNameGenerator.getsym_ChannelMaxDroplets(
+          schematic, output), load.getDropletCount(ratio));
+      volumeDrift.put(junctions.get(i), vWorstCase / vNominal - 1.0);
+    }
+    return results;
+  }
+
+  private ConnectionValue outputChannel(NodeValue node) {
+    return SchematicUtil.getConnection(getSchematic(), port(node, "output"));
+  }
+
+  private PortValue port(NodeValue node, String portName) {
+    try {
+      return node.getPort(portName);
+    } catch (UndeclaredIdentifierException e) {
+      throw new CodeGenerationError("undeclared identifier '"
+          + e.getIdentifier() + "' when inspecting T-junction node '"
+          + getSchematic().getNodeName(node) + "'; "
+          + "possible schematic version mismatch");
+    }
+  }
+
+  // +1 if positive flow in the channel enters the node through this port
+  private static double inflowSign(ConnectionValue conn, PortValue port) {
+    return conn.getTo().equals(port) ? 1.0 : -1.0;
+  }
+
+  private NewtonNetworkSolver.DropletLoad createLoad(NodeValue node,
+      Map<Symbol, Double> results) {
+    Schematic schematic = getSchematic();
+    PortValue pContinuous = port(node, "continuous");
+    PortValue pDispersed = port(node, "dispersed");
+    ConnectionValue chContinuous = SchematicUtil.getConnection(
+        schematic, pContinuous);
+    ConnectionValue chDispersed = SchematicUtil.getConnection(
+        schematic, pDispersed);
+    ConnectionValue chOutput = outputChannel(node);
+
+    // droplet volume is affine in qD/qC; evaluate it at two flow ratios
+    Symbol h = SymbolNameGenerator.getsym_ChannelHeight(
+        schematic, chContinuous);
+    Symbol w = SymbolNameGenerator.getsym_ChannelWidth(
+        schematic, chContinuous);
+    Symbol wIn = SymbolNameGenerator.getsym_ChannelWidth(
+        schematic, chDispersed);
+    Symbol epsilon = SymbolNameGenerator.getsym_TJunctionEpsilon(
+        schematic, node);
+    ExprEvalVisitor eval = new ExprEvalVisitor();
+    eval.addBinding(h, requireBinding(h));
+    eval.addBinding(w, requireBinding(w));
+    eval.addBinding(wIn, requireBinding(wIn));
+    eval.addBinding(epsilon, requireBinding(epsilon));
+    eval.addBinding(SymbolNameGenerator.getsym_constant_pi(), Math.PI);
+    SExpression atZero = TJunctionDeviceStrategy.calculatedDropletVolume(
+        h, w, wIn, epsilon, new Decimal(0.0), new Decimal(1.0));
+    atZero.accept(eval);
+    double volumeIntercept = eval.getValue();
+    SExpression atOne = TJunctionDeviceStrategy.calculatedDropletVolume(
+        h, w, wIn, epsilon, new Decimal(1.0), new Decimal(1.0));
+    atOne.accept(eval);
+    double volumeSlope = eval.getValue() - volumeIntercept;
+
+    double length = requireBinding(
+        SymbolNameGenerator.getsym_ChannelLength(schematic, chOutput));
+    double width = requireBinding(
+        SymbolNameGenerator.getsym_ChannelWidth(schematic, chOutput));
+    double height = requireBinding(
+        SymbolNameGenerator.getsym_ChannelHeight(schematic, chOutput));
+    Symbol dropletResistanceSym = SymbolNameGenerator
+        .getsym_ChannelDropletResistance(schematic, chOutput);
+    Double dropletResistance = getBinding(dropletResistanceSym);
+    if (dropletResistance == null) {
+      Symbol muD = SymbolNameGenerator.getsym_ChannelViscosity(
+          schematic, chDispersed);
+      Symbol muC = SymbolNameGenerator.getsym_ChannelViscosity(
+          schematic, chOutput);
+      Symbol r1 = SymbolNameGenerator.getsym_ChannelResistance(
+          schematic, chOutput);
+      Symbol l = SymbolNameGenerator.getsym_ChannelLength(
+          schematic, chOutput);
+      Symbol wOut = SymbolNameGenerator.getsym_ChannelWidth(
+          schematic, chOutput);
+      Symbol hOut = SymbolNameGenerator.getsym_ChannelHeight(
+          schematic, chOutput);
+      ExprEvalVisitor rEval = new ExprEvalVisitor();
+      rEval.addBinding(muD, requireBinding(muD));
+      rEval.addBinding(muC, requireBinding(muC));
+      rEval.addBinding(r1, results.get(r1));
+      rEval.addBinding(l, length);
+      rEval.addBinding(wOut, width);
+      rEval.addBinding(hOut, height);
+      TJunctionDeviceStrategy.calculatedDropletResistance(r1,
+          new Decimal(TJunctionDeviceStrategy.DROPLET_RESISTANCE_ALPHA),
+          new Decimal(TJunctionDeviceStrategy.CAPILLARY_NUMBER),
+          new Decimal(TJunctionDeviceStrategy.INTERFACIAL_TENSION),
+          muD, muC, l, wOut, hOut).accept(rEval);
+      dropletResistance = rEval.getValue();
+    }
+    results.put(dropletResistanceSym, dropletResistance);
+
+    return new NewtonNetworkSolver.DropletLoad(getChannelIndex(chOutput),
+        getChannelIndex(chDispersed), inflowSign(chDispersed, pDispersed),
+        getChannelIndex(chContinuous),
+        inflowSign(chContinuous, pContinuous),
+        volumeIntercept, volumeSlope, length * width * height,
+        dropletResistance);
+  }
+
+}
@@ -0,0 +1,220 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.ChannelResistanceStrategy;
+import org.manifold.compiler.middle.Schematic;
+
+// Pressure/flow analysis of a schematic whose channel geometry is fixed.
+// With the geometry known, every channel is a linear resistor and the
+// circuit can be solved directly by nodal analysis instead of through
+// the SMT formula.
+//
+// Known quantities are supplied as bindings on the same symbols the
+// translation strategies use (see SymbolNameGenerator), so a model
+// returned by the solver can be fed back in directly.
+// A channel needs either a bound resistance, or a bound width, height,
+// length and viscosity. Pressures are fixed by binding port or node
+// pressure symbols.
+//
+// As in AnalyticalPressureFlowStrategy, channel crossings are looked
+// "through": the A ports and the B ports of a crossing form two
+// separate junctions. Every other node is a single junction.
+public class HydraulicAnalysis {
+
+  private final Schematic schematic;
+  private final PrimitiveTypeTable typeTable;
+
+  private Map<Symbol, Double> bindings = new HashMap<>();
+  public void addBinding(Symbol var, Double value) {
+    bindings.put(var, value);
+  }
+
+  Double getBinding(Symbol var) {
+    return bindings.get(var);
+  }
+
+  private ConjugateGradientSolver solver = new ConjugateGradientSolver();
+  public void useSolver(ConjugateGradientSolver solver) {
+    this.solver = solver;
+  }
+
+  ConjugateGradientSolver getSolver() {
+    return solver;
+  }
+
+  // if set, series chains and parallel bundles are folded before the
+  // network is solved (see NetworkReduction)
+  private boolean reduceNetwork = false;
+  public void setReduceNetwork(boolean setting) {
+    this.reduceNetwork = setting;
+  }
+
+  public HydraulicAnalysis(Schematic schematic, PrimitiveTypeTable typeTable) {
+    this.schematic = schematic;
+    this.typeTable = typeTable;
+  }
+
+  private HydraulicNetwork network;
+  public HydraulicNetwork getNetwork() {
+    return network;
+  }
+
+  Schematic getSchematic() {
+    return schematic;
+  }
+
+  PrimitiveTypeTable getTypeTable() {
+    return typeTable;
+  }
+
+  private Map<PortValue, Integer> portJunctions;
+  private List<ConnectionValue> channels;
+  private Map<ConnectionValue, Integer> channelIndices;
+
+  // index of the given channel in the network built by buildNetwork()
+  int getChannelIndex(ConnectionValue conn) {
+    return channelIndices.get(conn);
+  }
+
+  /**
+   * Builds the resistor network for the schematic from the current bindings.
+   */
+  public HydraulicNetwork buildNetwork() {
+    network = new HydraulicNetwork();
+    portJunctions = new HashMap<>();
+    channels = new ArrayList<>(schematic.getConnections().size());
+    channelIndices = new HashMap<>();
+
+    for (NodeValue node : schematic.getNodes().values()) {
+      if (node.getType().isSubtypeOf(
+          typeTable.getChannelCrossingNodeType())) {
+        int a = network.addJunction();
+        int b = network.addJunction();
+        for (Map.Entry<String, PortValue> entry
+            : node.getPorts().entrySet()) {
+          if (entry.getKey().startsWith("channelA")) {
+            portJunctions.put(entry.getValue(), a);
+          } else if (entry.getKey().startsWith("channelB")) {
+            portJunctions.put(entry.getValue(), b);
+          } else {
+            throw new CodeGenerationError("unexpected port '"
+                + entry.getKey() + "' on channel crossing '"
+                + schematic.getNodeName(node) + "'");
+          }
+        }
+      } else {
+        int j = network.addJunction();
+        for (PortValue port : node.getPorts().values()) {
+          portJunctions.put(port, j);
+        }
+        Double p = bindings.get(
+            SymbolNameGenerator.getSym_NodePressure(schematic, node));
+        if (p != null) {
+          network.fixPressure(j, p);
+        }
+      }
+      for (PortValue port : node.getPorts().values()) {
+        Double p = bindings.get(
+            SymbolNameGenerator.getSym_PortPressure(schematic, port));
+        if (p != null) {
+          network.fixPressure(portJunctions.get(port), p);
+        }
+      }
+    }
+
+    for (ConnectionValue conn : schematic.getConnections().values()) {
+      Integer from = portJunctions.get(conn.getFrom());
+      Integer to = portJunctions.get(conn.getTo());
+      if (from == null || to == null) {
+        throw new CodeGenerationError("channel '"
+            + schematic.getConnectionName(conn)
+            + "' is connected to a port outside the schematic");
+      }
+      int c = network.addChannel(from, to, channelResistance(conn));
+      channels.add(conn);
+      channelIndices.put(conn, c);
+    }
+    return network;
+  }
+
+  private double channelResistance(ConnectionValue conn) {
+    Double r = bindings.get(
+        SymbolNameGenerator.getsym_ChannelResistance(schematic, conn));
+    if (r != null) {
+      return r;
+    }
+    double mu = requireBinding(
+        SymbolNameGenerator.getsym_ChannelViscosity(schematic, conn));
+    double length = requireBinding(
+        SymbolNameGenerator.getsym_ChannelLength(schematic, conn));
+    double width = requireBinding(
+        SymbolNameGenerator.getsym_ChannelWidth(schematic, conn));
+    double height = requireBinding(
+        SymbolNameGenerator.getsym_ChannelHeight(schematic, conn));
+    return ChannelResistanceStrategy.calculateRectangularChannelResistance(
+        mu, length, width, height);
+  }
+
+  double requireBinding(Symbol sym) {
+    Double value = bindings.get(sym);
+    if (value == null) {
+      throw new CodeGenerationError("fixed-geometry analysis requires a"
+          + " value for '" + sym.getName() + "'");
+    }
+    return value;
+  }
+
+  /**
+   * Solves the network and returns the values of every port pressure,
+   * node pressure, channel resistance and channel flow rate symbol.
+   */
+  public Map<Symbol, Double> analyze() {
+    buildNetwork();
+    return interpret(solveNetwork());
+  }
+
+  // solves the network built last, reduced first if so configured
+  HydraulicNetwork.Solution solveNetwork() {
+    if (reduceNetwork) {
+      return new NetworkReduction(network).solve(solver);
+    }
+    return network.solve(solver);
+  }
+
+  Map<Symbol, Double> interpret(HydraulicNetwork.Solution solution) {
+    Map<Symbol, Double> results = new HashMap<>();
+    for (NodeValue node : schematic.getNodes().values()) {
+      for (PortValue port : node.getPorts().values()) {
+        results.put(SymbolNameGenerator.getSym_PortPressure(schematic, port),
+            solution.getPressure(portJunctions.get(port)));
+      }
+      if (!node.getType().isSubtypeOf(
+          typeTable.getChannelCrossingNodeType())
+          && !node.getPorts().isEmpty()) {
+        PortValue any = node.getPorts().values().iterator().next();
+        results.put(SymbolNameGenerator.getSym_NodePressure(schematic, node),
+            solution.getPressure(portJunctions.get(any)));
+      }
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      ConnectionValue conn = channels.get(c);
+      results.put(SymbolNameGenerator.getsym_ChannelResistance(
+          schematic, conn), network.getChannelResistance(c));
+      results.put(SymbolNameGenerator.getsym_ChannelFlowRate(
+          schematic, conn), solution.getFlow(c));
+    }
+    return results;
+  }
+
+}
@@ -0,0 +1,264 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.Arrays;
+
+// A linear resistor network of channels between junctions.
+// Junctions and channels are identified by consecutive integers.
+// Positive flow in a channel is from its first junction to its second,
+// matching the from/to convention used for schematic connections.
+public class HydraulicNetwork {
+
+  private int junctionCount = 0;
+  public int getJunctionCount() {
+    return junctionCount;
+  }
+
+  private int channelCount = 0;
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  private int[] channelFrom = new int[16];
+  private int[] channelTo = new int[16];
+  private double[] channelResistance = new double[16];
+
+  private boolean[] pressureFixed = new boolean[16];
+  private double[] fixedPressure = new double[16];
+  private double[] injectedFlow = new double[16];
+
+  public int addJunction() {
+    if (junctionCount == pressureFixed.length) {
+      int capacity = junctionCount * 2;
+      pressureFixed = Arrays.copyOf(pressureFixed, capacity);
+      fixedPressure = Arrays.copyOf(fixedPressure, capacity);
+      injectedFlow = Arrays.copyOf(injectedFlow, capacity);
+    }
+    return junctionCount++;
+  }
+
+  public int addChannel(int from, int to, double resistance) {
+    checkJunction(from);
+    checkJunction(to);
+    if (!(resistance > 0.0)) {
+      throw new IllegalArgumentException(
+          "channel resistance must be positive, got " + resistance);
+    }
+    if (channelCount == channelFrom.length) {
+      int capacity = channelCount * 2;
+      channelFrom = Arrays.copyOf(channelFrom, capacity);
+      channelTo = Arrays.copyOf(channelTo, capacity);
+      channelResistance = Arrays.copyOf(channelResistance, capacity);
+    }
+    channelFrom[channelCount] = from;
+    channelTo[channelCount] = to;
+    channelResistance[channelCount] = resistance;
+    return channelCount++;
+  }
+
+  public int getChannelFrom(int channel) {
+    return channelFrom[channel];
+  }
+
+  public int getChannelTo(int channel) {
+    return channelTo[channel];
+  }
+
+  public double getChannelResistance(int channel) {
+    return channelResistance[channel];
+  }
+
+  public void setChannelResistance(int channel, double resistance) {
+    if (!(resistance > 0.0)) {
+      throw new IllegalArgumentException(
+          "channel resistance must be positive, got " + resistance);
+    }
+    channelResistance[channel] = resistance;
+  }
+
+  // Dirichlet boundary condition: the pressure at this junction is known.
+  public void fixPressure(int junction, double pressure) {
+    checkJunction(junction);
+    pressureFixed[junction] = true;
+    fixedPressure[junction] = pressure;
+  }
+
+  public boolean isPressureFixed(int junction) {
+    return pressureFixed[junction];
+  }
+
+  public double getFixedPressure(int junction) {
+    return fixedPressure[junction];
+  }
+
+  // Neumann boundary condition: a known flow enters the network here.
+  public void injectFlow(int junction, double flow) {
+    checkJunction(junction);
+    injectedFlow[junction] += flow;
+  }
+
+  public double getInjectedFlow(int junction) {
+    return injectedFlow[junction];
+  }
+
+  private void checkJunction(int junction) {
+    if (junction < 0 || junction >= junctionCount) {
+      throw new IndexOutOfBoundsException("no junction " + junction);
+    }
+  }
+
+  /**
+   * Maps each junction onto its row in the nodal system,
+   * or -1 if its pressure is fixed.
+   */
+  int[] numberUnknowns() {
+    int[] row = new int[junctionCount];
+    int next = 0;
+    for (int j = 0; j < junctionCount; ++j) {
+      row[j] = pressureFixed[j] ? -1 : next++;
+    }
+    return row;
+  }
+
+  /**
+   * Checks that every connected component of the network has at least one
+   * junction with a fixed pressure; otherwise the pressures are only
+   * determined up to a constant and the nodal system is singular.
+   */
+  void checkPressureReference() {
+    int[] parent = new int[junctionCount];
+    for (int j = 0; j < junctionCount; ++j) {
+      parent[j] = j;
+    }
+    for (int c = 0; c < channelCount; ++c) {
+      int a = find(parent, channelFrom[c]);
+      int b = find(parent, channelTo[c]);
+      if (a != b) {
+        parent[a] = b;
+      }
+    }
+    boolean[] referenced = new boolean[junctionCount];
+    for (int j = 0; j < junctionCount; ++j) {
+      if (pressureFixed[j]) {
+        referenced[find(parent, j)] = true;
+      }
+    }
+    for (int j = 0; j < junctionCount; ++j) {
+      if (!referenced[find(parent, j)]) {
+        throw new IllegalStateException("junction " + j
+            + " is not connected to any junction with a fixed pressure");
+      }
+    }
+  }
+
+  private static int find(int[] parent, int j) {
+    while (parent[j] != j) {
+      parent[j] = parent[parent[j]];
+      j = parent[j];
+    }
+    return j;
+  }
+
+  /**
+   * Assembles the nodal (modified nodal analysis) system G * p = q
+   * over the junctions whose pressure is not fixed.
+   * The right-hand side is written into rhs, which must have one entry
+   * per unknown.
+   */
+  CSRMatrix assemble(int[] row, double[] rhs, double[] conductance) {
+    int unknowns = rhs.length;
+    CSRMatrix.Builder g = new CSRMatrix.Builder(unknowns,
+        unknowns + 4 * channelCount);
+    for (int j = 0; j < junctionCount; ++j) {
+      if (row[j] >= 0) {
+        rhs[row[j]] = injectedFlow[j];
+        // keep the diagonal present even for isolated junctions
+        g.add(row[j], row[j], 0.0);
+      }
+    }
+    for (int c = 0; c < channelCount; ++c) {
+      double gc = conductance[c];
+      int a = row[channelFrom[c]];
+      int b = row[channelTo[c]];
+      if (a >= 0) {
+        g.add(a, a, gc);
+        if (b >= 0) {
+          g.add(a, b, -gc);
+        } else {
+          rhs[a] += gc * fixedPressure[channelTo[c]];
+        }
+      }
+      if (b >= 0) {
+        g.add(b, b, gc);
+        if (a >= 0) {
+          g.add(b, a, -gc);
+        } else {
+          rhs[b] += gc * fixedPressure[channelFrom[c]];
+        }
+      }
+    }
+    return g.build();
+  }
+
+  /**
+   * Solves for all junction pressures and channel flow rates.
+   */
+  public Solution solve(ConjugateGradientSolver solver) {
+    checkPressureReference();
+    int[] row = numberUnknowns();
+    int unknowns = 0;
+    for (int j = 0; j < junctionCount; ++j) {
+      if (row[j] >= 0) {
+        ++unknowns;
+      }
+    }
+    double[] conductance = new double[channelCount];
+    for (int c = 0; c < channelCount; ++c) {
+      conductance[c] = 1.0 / channelResistance[c];
+    }
+    double[] rhs = new double[unknowns];
+    CSRMatrix g = assemble(row, rhs, conductance);
+    double[] p = solver.solve(g, rhs);
+    if (!solver.hasConverged()) {
+      throw new ArithmeticException("hydraulic solve did not converge after "
+          + solver.getIterations() + " iterations (residual "
+          + solver.getResidualNorm() + ")");
+    }
+    double[] pressures = new double[junctionCount];
+    for (int j = 0; j < junctionCount; ++j) {
+      pressures[j] = (row[j] >= 0) ? p[row[j]] : fixedPressure[j];
+    }
+    return new Solution(pressures, computeFlows(pressures));
+  }
+
+  public Solution solve() {
+    return solve(new ConjugateGradientSolver());
+  }
+
+  double[] computeFlows(double[] pressures) {
+    double[] flows = new double[channelCount];
+    for (int c = 0; c < channelCount; ++c) {
+      flows[c] = (pressures[channelFrom[c]] - pressures[channelTo[c]])
+          / channelResistance[c];
+    }
+    return flows;
+  }
+
+  public static class Solution {
+    private final double[] pressures;
+    private final double[] flows;
+
+    public Solution(double[] pressures, double[] flows) {
+      this.pressures = pressures;
+      this.flows = flows;
+    }
+
+    public double getPressure(int junction) {
+      return pressures[junction];
+    }
+
+    public double getFlow(int channel) {
+      return flows[channel];
+    }
+  }
+
+}
@@ -0,0 +1,389 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Folds series chains and parallel bundles of a resistor network into
+// single equivalent elements, so that only the junctions that matter
+// are left to solve for.
+//
+// A junction is kept if its pressure is fixed, flow is injected there,
+// or keep() is called for it; every other junction with exactly two
+// channels is a series point and disappears, and channels between the
+// same two junctions are combined in parallel. Both steps repeat until
+// neither applies. Dead ends and loops that start and end at one
+// junction are left as they are.
+//
+// Once the reduced network is solved, reconstruct() walks each element
+// back down to recover the pressure at every junction that was folded
+// away; the flow in every original channel then follows from Ohm's law.
+public class NetworkReduction {
+
+  // An element of the reduced network: a channel of the original
+  // network, or elements joined in series or in parallel. Positive flow
+  // in an element is from its first junction to its second.
+  public static class Element {
+    private final int from;
+    private final int to;
+    private final int channel;
+    private final boolean parallel;
+    private final List<Element> parts;
+    // for a series element, the junctions from the first one to the
+    // second; parts.get(i) joins path[i] and path[i + 1] in either
+    // direction
+    private final int[] path;
+
+    private Element(int from, int to, int channel, boolean parallel,
+        List<Element> parts, int[] path) {
+      this.from = from;
+      this.to = to;
+      this.channel = channel;
+      this.parallel = parallel;
+      this.parts = parts;
+      this.path = path;
+    }
+
+    public int getFrom() {
+      return from;
+    }
+
+    public int getTo() {
+      return to;
+    }
+
+    public boolean isChannel() {
+      return parts == null;
+    }
+
+    public boolean isSeries() {
+      return parts != null && !parallel;
+    }
+
+    public boolean isParallel() {
+      return parallel;
+    }
+
+    /**
+     * @return the original channel, if this element is a channel
+     */
+    public int getChannel() {
+      return channel;
+    }
+
+    public List<Element> getParts() {
+      return parts;
+    }
+
+    /**
+     * @return for a series element, the junctions it passes through,
+     * starting with its first junction and ending with its second
+     */
+    public int[] getPath() {
+      return path;
+    }
+
+    /**
+     * @return true if the part runs against this series element, i.e.
+     * from path[i + 1] to path[i]
+     */
+    public boolean isReversed(int i) {
+      return parts.get(i).from != path[i];
+    }
+
+    public double getResistance(HydraulicNetwork network) {
+      if (isChannel()) {
+        return network.getChannelResistance(channel);
+      } else if (parallel) {
+        double conductance = 0.0;
+        for (Element part : parts) {
+          conductance += 1.0 / part.getResistance(network);
+        }
+        return 1.0 / conductance;
+      } else {
+        double resistance = 0.0;
+        for (Element part : parts) {
+          resistance += part.getResistance(network);
+        }
+        return resistance;
+      }
+    }
+
+    // the same element with its junctions swapped
+    private Element reverse() {
+      if (!isSeries()) {
+        // a channel or bundle is read either way by its own from/to
+        return this;
+      }
+      List<Element> reversedParts = new ArrayList<>(parts);
+      Collections.reverse(reversedParts);
+      int[] reversedPath = new int[path.length];
+      for (int i = 0; i < path.length; ++i) {
+        reversedPath[i] = path[path.length - 1 - i];
+      }
+      return new Element(to, from, -1, false, reversedParts, reversedPath);
+    }
+
+    // the element oriented from the given junction
+    private Element from(int junction) {
+      return from == junction ? this : reverse();
+    }
+
+    // the series parts and junctions of this element, as one link of a
+    // longer chain
+    private void appendTo(List<Element> chainParts, List<Integer> chainPath) {
+      if (isSeries()) {
+        chainParts.addAll(parts);
+        for (int i = 1; i < path.length; ++i) {
+          chainPath.add(path[i]);
+        }
+      } else {
+        chainParts.add(this);
+        chainPath.add(to == chainPath.get(chainPath.size() - 1) ? from : to);
+      }
+    }
+  }
+
+  private final HydraulicNetwork network;
+  private final boolean[] kept;
+
+  public NetworkReduction(HydraulicNetwork network) {
+    this.network = network;
+    this.kept = new boolean[network.getJunctionCount()];
+    for (int j = 0; j < kept.length; ++j) {
+      kept[j] = network.isPressureFixed(j)
+          || network.getInjectedFlow(j) != 0.0;
+    }
+  }
+
+  // keeps a junction whose pressure is needed directly
+  public void keep(int junction) {
+    kept[junction] = true;
+  }
+
+  private List<Element> elements;
+  /**
+   * @return the elements of the last reduction, in the order of the
+   * channels of the reduced network
+   */
+  public List<Element> getElements() {
+    return elements;
+  }
+
+  private int[] reducedJunction;
+  /**
+   * @return the junction of the reduced network standing for the given
+   * junction, or -1 if it was folded away
+   */
+  public int getReducedJunction(int junction) {
+    return reducedJunction[junction];
+  }
+
+  /**
+   * Reduces the network as far as it goes.
+   * @return the reduced network, with one channel per element
+   */
+  public HydraulicNetwork reduce() {
+    int junctions = network.getJunctionCount();
+    List<List<Element>> incident = new ArrayList<>(junctions);
+    for (int j = 0; j < junctions; ++j) {
+      incident.add(new ArrayList<Element>());
+    }
+    for (int c = 0; c < network.getChannelCount(); ++c) {
+      Element e = new Element(network.getChannelFrom(c),
+          network.getChannelTo(c), c, false, null, null);
+      incident.get(e.from).add(e);
+      if (e.to != e.from) {
+        incident.get(e.to).add(e);
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int j = 0; j < junctions; ++j) {
+        if (mergeParallel(j, incident)) {
+          changed = true;
+        }
+      }
+      for (int j = 0; j < junctions; ++j) {
+        if (!kept[j] && mergeSeries(j, incident)) {
+          changed = true;
+        }
+      }
+    }
+
+    HydraulicNetwork reduced = new HydraulicNetwork();
+    reducedJunction = new int[junctions];
+    for (int j = 0; j < junctions; ++j) {
+      reducedJunction[j] = -1;
+    }
+    elements = new ArrayList<>();
+    // a junction with no channels at all never took part in a merge
+    boolean[] connected = new boolean[junctions];
+    for (int c = 0; c < network.getChannelCount(); ++c) {
+      connected[network.getChannelFrom(c)] = true;
+      connected[network.getChannelTo(c)] = true;
+    }
+    for (int j = 0; j < junctions; ++j) {
+      if (kept[j] || !incident.get(j).isEmpty() || !connected[j]) {
+        reducedJunction[j] = reduced.addJunction();
+        if (network.isPressureFixed(j)) {
+          reduced.fixPressure(reducedJunction[j],
+              network.getFixedPressure(j));
+        }
+        if (network.getInjectedFlow(j) != 0.0) {
+          reduced.injectFlow(reducedJunction[j],
+              network.getInjectedFlow(j));
+        }
+      }
+    }
+    for (int j = 0; j < junctions; ++j) {
+      for (Element e : incident.get(j)) {
+        // each element once, at its first junction
+        if (e.from == j) {
+          elements.add(e);
+          reduced.addChannel(reducedJunction[e.from],
+              reducedJunction[e.to], e.getResistance(network));
+        }
+      }
+    }
+    return reduced;
+  }
+
+  private boolean mergeParallel(int j, List<List<Element>> incident) {
+    // elements from j, grouped by the junction at their other end
+    Map<Integer, List<Element>> bundles = new HashMap<>();
+    for (Element e : incident.get(j)) {
+      if (e.from != j || e.to == j) {
+        continue;
+      }
+      List<Element> bundle = bundles.get(e.to);
+      if (bundle == null) {
+        bundle = new ArrayList<>();
+        bundles.put(e.to, bundle);
+      }
+      bundle.add(e);
+    }
+    for (Element e : incident.get(j)) {
+      if (e.to == j && e.from != j && bundles.containsKey(e.from)) {
+        bundles.get(e.from).add(e);
+      }
+    }
+    boolean merged = false;
+    for (Map.Entry<Integer, List<Element>> entry : bundles.entrySet()) {
+      List<Element> bundle = entry.getValue();
+      if (bundle.size() < 2) {
+        continue;
+      }
+      List<Element> parts = new ArrayList<>();
+      for (Element e : bundle) {
+        // flatten bundles of bundles
+        if (e.isParallel()) {
+          parts.addAll(e.parts);
+        } else {
+          parts.add(e);
+        }
+      }
+      int other = entry.getKey();
+      Element combined = new Element(j, other, -1, true, parts, null);
+      incident.get(j).removeAll(bundle);
+      incident.get(other).removeAll(bundle);
+      incident.get(j).add(combined);
+      incident.get(other).add(combined);
+      merged = true;
+    }
+    return merged;
+  }
+
+  private boolean mergeSeries(int j, List<List<Element>> incident) {
+    List<Element> at = incident.get(j);
+    if (at.size() != 2) {
+      return false;
+    }
+    Element first = at.get(0);
+    Element second = at.get(1);
+    int a = first.from == j ? first.to : first.from;
+    int b = second.from == j ? second.to : second.from;
+    if (a == j || b == j || a == b) {
+      // a loop, or a bundle the parallel step has yet to see
+      return false;
+    }
+    List<Element> parts = new ArrayList<>();
+    List<Integer> path = new ArrayList<>();
+    path.add(a);
+    first.from(a).appendTo(parts, path);
+    second.from(j).appendTo(parts, path);
+    int[] junctions = new int[path.size()];
+    for (int i = 0; i < junctions.length; ++i) {
+      junctions[i] = path.get(i);
+    }
+    Element chain = new Element(a, b, -1, false, parts, junctions);
+    at.clear();
+    incident.get(a).remove(first);
+    incident.get(b).remove(second);
+    incident.get(a).add(chain);
+    incident.get(b).add(chain);
+    return true;
+  }
+
+  /**
+   * Recovers the pressure at every junction of the original network
+   * from the pressures of the reduced network.
+   */
+  public double[] reconstruct(double[] reducedPressures) {
+    double[] pressures = new double[network.getJunctionCount()];
+    for (int j = 0; j < pressures.length; ++j) {
+      if (reducedJunction[j] >= 0) {
+        pressures[j] = reducedPressures[reducedJunction[j]];
+      }
+    }
+    for (Element e : elements) {
+      fillIn(e, pressures);
+    }
+    return pressures;
+  }
+
+  // given the pressures at both ends of the element, finds the ones
+  // inside it
+  private void fillIn(Element e, double[] pressures) {
+    if (e.isChannel()) {
+      return;
+    }
+    if (e.isParallel()) {
+      for (Element part : e.parts) {
+        fillIn(part, pressures);
+      }
+      return;
+    }
+    double flow = (pressures[e.from] - pressures[e.to])
+        / e.getResistance(network);
+    for (int i = 0; i < e.parts.size(); ++i) {
+      Element part = e.parts.get(i);
+      if (i + 1 < e.path.length - 1) {
+        pressures[e.path[i + 1]] = pressures[e.path[i]]
+            - flow * part.getResistance(network);
+      }
+      fillIn(part, pressures);
+    }
+  }
+
+  /**
+   * Reduces the network, solves the reduced network and reconstructs
+   * the solution of the original one.
+   */
+  public HydraulicNetwork.Solution solve(ConjugateGradientSolver solver) {
+    HydraulicNetwork reduced = reduce();
+    HydraulicNetwork.Solution solution = reduced.solve(solver);
+    double[] reducedPressures = new double[reduced.getJunctionCount()];
+    for (int j = 0; j < reducedPressures.length; ++j) {
+      reducedPressures[j] = solution.getPressure(j);
+    }
+    double[] pressures = reconstruct(reducedPressures);
+    return new HydraulicNetwork.Solution(pressures,
+        network.computeFlows(pressures));
+  }
+
+}
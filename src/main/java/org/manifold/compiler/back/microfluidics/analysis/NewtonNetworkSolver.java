@@ -0,0 +1,416 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Damped Newton-Raphson solver for hydraulic networks in which the
+// resistance of some channels depends on the flow through other channels.
+//
+// The only such dependency modelled so far is droplet loading: the output
+// channel of a T-junction carries n droplets, each adding a fixed
+// resistance, and n depends on the droplet volume, which in turn depends
+// on the ratio of dispersed to continuous flow at the junction.
+// The unknowns are the free junction pressures; the residual is the net
+// flow into each junction (Kirchhoff's current law).
+public class NewtonNetworkSolver {
+
+  // A channel whose resistance is R + n * dropletResistance, where
+  // n = occupiedVolume / V and V = volumeIntercept + volumeSlope * (qD/qC)
+  // is the volume of the droplets it carries.
+  public static class DropletLoad {
+    private final int channel;
+    private final int dispersedChannel;
+    private final double dispersedSign;
+    private final int continuousChannel;
+    private final double continuousSign;
+    private final double volumeIntercept;
+    private final double volumeSlope;
+    private final double occupiedVolume;
+    private final double dropletResistance;
+
+    /**
+     * The signs orient the dispersed and continuous channel flows so that
+     * flow into the junction is positive.
+     */
+    public DropletLoad(int channel,
+        int dispersedChannel, double dispersedSign,
+        int continuousChannel, double continuousSign,
+        double volumeIntercept, double volumeSlope,
+        double occupiedVolume, double dropletResistance) {
+      this.channel = channel;
+      this.dispersedChannel = dispersedChannel;
+      this.dispersedSign = dispersedSign;
+      this.continuousChannel = continuousChannel;
+      this.continuousSign = continuousSign;
+      this.volumeIntercept = volumeIntercept;
+      this.volumeSlope = volumeSlope;
+      this.occupiedVolume = occupiedVolume;
+      this.dropletResistance = dropletResistance;
+    }
+
+    public int getChannel() {
+      return channel;
+    }
+
+    public double getDropletVolume(double flowRatio) {
+      return volumeIntercept + volumeSlope * flowRatio;
+    }
+
+    public double getDropletCount(double flowRatio) {
+      return occupiedVolume / getDropletVolume(flowRatio);
+    }
+
+    double flowRatio(double[] flows) {
+      double qC = continuousSign * flows[continuousChannel];
+      if (qC == 0.0) {
+        throw new ArithmeticException("no continuous-phase flow into"
+            + " the junction feeding channel " + channel);
+      }
+      return dispersedSign * flows[dispersedChannel] / qC;
+    }
+
+    double extraResistance(double flowRatio) {
+      double v = getDropletVolume(flowRatio);
+      if (!(v > 0.0)) {
+        throw new ArithmeticException("non-physical droplet volume " + v
+            + " in channel " + channel);
+      }
+      return dropletResistance * occupiedVolume / v;
+    }
+
+    double extraResistanceDerivative(double flowRatio) {
+      double v = getDropletVolume(flowRatio);
+      return -dropletResistance * occupiedVolume * volumeSlope / (v * v);
+    }
+  }
+
+  private final HydraulicNetwork network;
+  private final Map<Integer, DropletLoad> loads = new HashMap<>();
+
+  public NewtonNetworkSolver(HydraulicNetwork network) {
+    this.network = network;
+  }
+
+  public void addDropletLoad(DropletLoad load) {
+    loads.put(load.getChannel(), load);
+  }
+
+  // convergence is declared when the largest flow imbalance at any junction
+  // is at most tolerance times the largest channel flow
+  private double tolerance = 1e-10;
+  public void setTolerance(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  private int maximumIterations = 50;
+  public void setMaximumIterations(int maximumIterations) {
+    this.maximumIterations = maximumIterations;
+  }
+
+  private int iterations = 0;
+  public int getIterations() {
+    return iterations;
+  }
+
+  private boolean converged = false;
+  public boolean hasConverged() {
+    return converged;
+  }
+
+  private double[] resistance;
+  public double getEffectiveResistance(int channel) {
+    return resistance[channel];
+  }
+
+  private double[] flows;
+  /**
+   * @return the ratio of dispersed to continuous flow that determines
+   * the droplets carried by the given load, at the last solution
+   */
+  public double getFlowRatio(DropletLoad load) {
+    return load.flowRatio(flows);
+  }
+
+  // Sparse gradient of a channel flow with respect to the unknowns.
+  private static class Gradient {
+    int[] index = new int[4];
+    double[] value = new double[4];
+    int size = 0;
+
+    void add(int idx, double v) {
+      for (int k = 0; k < size; ++k) {
+        if (index[k] == idx) {
+          value[k] += v;
+          return;
+        }
+      }
+      if (size == index.length) {
+        index = Arrays.copyOf(index, size * 2);
+        value = Arrays.copyOf(value, size * 2);
+      }
+      index[size] = idx;
+      value[size] = v;
+      ++size;
+    }
+
+    void addScaled(Gradient other, double factor) {
+      for (int k = 0; k < other.size; ++k) {
+        add(other.index[k], factor * other.value[k]);
+      }
+    }
+  }
+
+  private int[] row;
+  private List<DropletLoad> loadOrder;
+  private Gradient[] loadGradients;
+
+  /**
+   * Orders the loaded channels so that every channel is evaluated after
+   * the channels whose flows determine its load.
+   */
+  private List<DropletLoad> orderLoads() {
+    Map<Integer, List<DropletLoad>> dependents = new HashMap<>();
+    Map<Integer, Integer> pending = new HashMap<>();
+    Deque<DropletLoad> ready = new ArrayDeque<>();
+    for (DropletLoad load : loads.values()) {
+      int deps = 0;
+      for (int driver : new int[] {
+        load.dispersedChannel, load.continuousChannel
+      }) {
+        if (loads.containsKey(driver)) {
+          ++deps;
+          if (!dependents.containsKey(driver)) {
+            dependents.put(driver, new ArrayList<DropletLoad>());
+          }
+          dependents.get(driver).add(load);
+        }
+      }
+      pending.put(load.getChannel(), deps);
+      if (deps == 0) {
+        ready.add(load);
+      }
+    }
+    List<DropletLoad> order = new ArrayList<>();
+    while (!ready.isEmpty()) {
+      DropletLoad load = ready.poll();
+      order.add(load);
+      List<DropletLoad> next = dependents.get(load.getChannel());
+      if (next == null) {
+        continue;
+      }
+      for (DropletLoad dep : next) {
+        int remaining = pending.get(dep.getChannel()) - 1;
+        pending.put(dep.getChannel(), remaining);
+        if (remaining == 0) {
+          ready.add(dep);
+        }
+      }
+    }
+    if (order.size() != loads.size()) {
+      throw new IllegalStateException(
+          "droplet loads depend on each other cyclically");
+    }
+    return order;
+  }
+
+  // Computes flows and effective resistances at the given pressures,
+  // and (if wanted) the gradients of the loaded channel flows.
+  private void evaluate(double[] pressures, boolean wantGradients) {
+    int channels = network.getChannelCount();
+    for (int c = 0; c < channels; ++c) {
+      resistance[c] = network.getChannelResistance(c);
+      flows[c] = (pressures[network.getChannelFrom(c)]
+          - pressures[network.getChannelTo(c)]) / resistance[c];
+    }
+    for (DropletLoad load : loadOrder) {
+      int c = load.getChannel();
+      double ratio = load.flowRatio(flows);
+      double rt = network.getChannelResistance(c)
+          + load.extraResistance(ratio);
+      resistance[c] = rt;
+      flows[c] = (pressures[network.getChannelFrom(c)]
+          - pressures[network.getChannelTo(c)]) / rt;
+      if (wantGradients) {
+        Gradient g = pressureDropGradient(c, 1.0 / rt);
+        double qD = load.dispersedSign * flows[load.dispersedChannel];
+        double qC = load.continuousSign * flows[load.continuousChannel];
+        // d(q)/d(ratio) = -q/Rt * dRt/d(ratio)
+        double dqdRatio = -flows[c] / rt
+            * load.extraResistanceDerivative(ratio);
+        g.addScaled(gradient(load.dispersedChannel),
+            dqdRatio * load.dispersedSign / qC);
+        g.addScaled(gradient(load.continuousChannel),
+            -dqdRatio * load.continuousSign * qD / (qC * qC));
+        loadGradients[c] = g;
+      }
+    }
+  }
+
+  private Gradient pressureDropGradient(int c, double scale) {
+    Gradient g = new Gradient();
+    int a = row[network.getChannelFrom(c)];
+    int b = row[network.getChannelTo(c)];
+    if (a >= 0) {
+      g.add(a, scale);
+    }
+    if (b >= 0) {
+      g.add(b, -scale);
+    }
+    return g;
+  }
+
+  private Gradient gradient(int c) {
+    if (loadGradients[c] != null) {
+      return loadGradients[c];
+    }
+    return pressureDropGradient(c, 1.0 / resistance[c]);
+  }
+
+  // Net flow into each free junction; zero at the solution.
+  private double[] residual(int unknowns) {
+    double[] f = new double[unknowns];
+    for (int j = 0; j < network.getJunctionCount(); ++j) {
+      if (row[j] >= 0) {
+        f[row[j]] = network.getInjectedFlow(j);
+      }
+    }
+    for (int c = 0; c < network.getChannelCount(); ++c) {
+      int a = row[network.getChannelFrom(c)];
+      int b = row[network.getChannelTo(c)];
+      if (a >= 0) {
+        f[a] -= flows[c];
+      }
+      if (b >= 0) {
+        f[b] += flows[c];
+      }
+    }
+    return f;
+  }
+
+  // The negated Jacobian of the residual with respect to the unknowns.
+  private CSRMatrix negatedJacobian(int unknowns) {
+    CSRMatrix.Builder k = new CSRMatrix.Builder(unknowns,
+        unknowns + 4 * network.getChannelCount());
+    for (int i = 0; i < unknowns; ++i) {
+      k.add(i, i, 0.0);
+    }
+    for (int c = 0; c < network.getChannelCount(); ++c) {
+      int a = row[network.getChannelFrom(c)];
+      int b = row[network.getChannelTo(c)];
+      if (a < 0 && b < 0) {
+        continue;
+      }
+      Gradient g = gradient(c);
+      for (int e = 0; e < g.size; ++e) {
+        if (a >= 0) {
+          k.add(a, g.index[e], g.value[e]);
+        }
+        if (b >= 0) {
+          k.add(b, g.index[e], -g.value[e]);
+        }
+      }
+    }
+    return k.build();
+  }
+
+  private static double maxAbs(double[] v) {
+    double m = 0.0;
+    for (double x : v) {
+      m = Math.max(m, Math.abs(x));
+    }
+    return m;
+  }
+
+  public HydraulicNetwork.Solution solve() {
+    network.checkPressureReference();
+    loadOrder = orderLoads();
+    row = network.numberUnknowns();
+    int unknowns = 0;
+    for (int j = 0; j < network.getJunctionCount(); ++j) {
+      if (row[j] >= 0) {
+        ++unknowns;
+      }
+    }
+    int channels = network.getChannelCount();
+    resistance = new double[channels];
+    flows = new double[channels];
+    iterations = 0;
+    converged = false;
+
+    // start from the droplet-free operating point
+    double[] pressures = new double[network.getJunctionCount()];
+    HydraulicNetwork.Solution linear = network.solve();
+    for (int j = 0; j < pressures.length; ++j) {
+      pressures[j] = linear.getPressure(j);
+    }
+
+    BiCGStabSolver linearSolver = new BiCGStabSolver();
+    linearSolver.setTolerance(tolerance * 1e-2);
+    while (true) {
+      loadGradients = new Gradient[channels];
+      evaluate(pressures, true);
+      double[] f = residual(unknowns);
+      double fNorm = maxAbs(f);
+      double scale = Math.max(maxAbs(flows), Double.MIN_NORMAL);
+      if (fNorm <= tolerance * scale) {
+        converged = true;
+        break;
+      }
+      if (iterations >= maximumIterations) {
+        break;
+      }
+      ++iterations;
+
+      CSRMatrix k = negatedJacobian(unknowns);
+      double[] conductance = new double[channels];
+      for (int c = 0; c < channels; ++c) {
+        conductance[c] = 1.0 / resistance[c];
+      }
+      CSRMatrix approximation = network.assemble(row, new double[unknowns],
+          conductance);
+      double[] step = linearSolver.solve(k, f, approximation);
+
+      // damping: halve the step until the imbalance decreases
+      double lambda = 1.0;
+      double[] trial = new double[pressures.length];
+      boolean feasible = true;
+      while (true) {
+        for (int j = 0; j < pressures.length; ++j) {
+          trial[j] = (row[j] >= 0)
+              ? pressures[j] + lambda * step[row[j]] : pressures[j];
+        }
+        double trialNorm;
+        try {
+          evaluate(trial, false);
+          trialNorm = maxAbs(residual(unknowns));
+        } catch (ArithmeticException e) {
+          // stepped outside the physical region
+          trialNorm = Double.POSITIVE_INFINITY;
+        }
+        if (trialNorm <= (1.0 - 1e-4 * lambda) * fNorm) {
+          break;
+        }
+        if (lambda < 1.0 / 1024.0) {
+          // accept a small step that makes no progress, but never one
+          // that leaves the physical region
+          feasible = trialNorm < Double.POSITIVE_INFINITY;
+          break;
+        }
+        lambda /= 2.0;
+      }
+      if (!feasible) {
+        evaluate(pressures, false);
+        break;
+      }
+      System.arraycopy(trial, 0, pressures, 0, pressures.length);
+    }
+    return new HydraulicNetwork.Solution(pressures,
+        Arrays.copyOf(flows, channels));
+  }
+
+}
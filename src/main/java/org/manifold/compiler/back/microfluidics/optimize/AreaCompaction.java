@@ -0,0 +1,258 @@
+package org.manifold.compiler.back.microfluidics.optimize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Shrinks the chip around a placement found without an area bound
+// (see InfiniteChipAreaRuleStrategy).
+//
+// The first query is the formula as given. Each later step asks for a
+// layout inside a box a fraction smaller than the extent of the last
+// layout, first anchored near that layout scaled into the new box, which
+// the solver usually answers quickly, and, if that is unsat, once more
+// without the anchors. When shrinking both sides fails, each side is
+// tried alone, and the fraction is halved for a side that cannot shrink
+// by it. The compaction stops when both fractions get too small or the
+// step limit is reached.
+//
+// Like BisectionOptimizer, this only finds a small area, not a proof
+// that no smaller one exists; unlike it, each query only adds constant
+// bounds to the formula, no objective with a product in it.
+public class AreaCompaction {
+
+  private static final Logger log = LogManager.getLogger("AreaCompaction");
+
+  public static class Compaction {
+    private final boolean feasible;
+    private final double width;
+    private final double height;
+    private final DRealSolver.Result model;
+    private final int steps;
+
+    Compaction(boolean feasible, double width, double height,
+        DRealSolver.Result model, int steps) {
+      this.feasible = feasible;
+      this.width = width;
+      this.height = height;
+      this.model = model;
+      this.steps = steps;
+    }
+
+    /**
+     * @return false if even the unbounded formula has no solution
+     */
+    public boolean isFeasible() {
+      return feasible;
+    }
+
+    /**
+     * @return the extent in x of the smallest layout found,
+     * measured from the origin
+     */
+    public double getWidth() {
+      return width;
+    }
+
+    public double getHeight() {
+      return height;
+    }
+
+    public double getArea() {
+      return width * height;
+    }
+
+    /**
+     * @return the smallest layout found, or null if infeasible
+     */
+    public DRealSolver.Result getModel() {
+      return model;
+    }
+
+    /**
+     * @return the number of solver queries
+     */
+    public int getSteps() {
+      return steps;
+    }
+  }
+
+  private final FormulaSolver solver;
+  private final Schematic schematic;
+
+  public AreaCompaction(FormulaSolver solver, Schematic schematic) {
+    this.solver = solver;
+    this.schematic = schematic;
+  }
+
+  // each step tries a box this fraction smaller in both directions
+  private double shrink = 0.2;
+  public void setShrink(double shrink) {
+    if (!(shrink > 0.0 && shrink < 1.0)) {
+      throw new IllegalArgumentException("shrink must be in (0, 1)");
+    }
+    this.shrink = shrink;
+  }
+
+  // the compaction stops once a step would shrink by less than this
+  private double minimumShrink = 0.01;
+  public void setMinimumShrink(double minimumShrink) {
+    this.minimumShrink = minimumShrink;
+  }
+
+  // anchors allow each node to move this fraction of the box around
+  // its scaled previous position
+  private double anchorMargin = 0.05;
+  public void setAnchorMargin(double anchorMargin) {
+    this.anchorMargin = anchorMargin;
+  }
+
+  private int maximumSteps = 32;
+  public void setMaximumSteps(int maximumSteps) {
+    this.maximumSteps = maximumSteps;
+  }
+
+  /**
+   * @return the largest upper bound of the given coordinate over all
+   * nodes, i.e. the extent of the layout from the origin
+   */
+  private double extent(DRealSolver.Result model, boolean y) {
+    double extent = 0.0;
+    for (NodeValue n : schematic.getNodes().values()) {
+      Symbol sym = y ? SymbolNameGenerator.getsym_NodeY(schematic, n)
+          : SymbolNameGenerator.getsym_NodeX(schematic, n);
+      DRealSolver.RealRange range = model.getRange(sym);
+      if (range == null || Double.isNaN(range.upperBound)) {
+        throw new IllegalStateException("solver returned no value for "
+            + sym);
+      }
+      extent = Math.max(extent, range.upperBound);
+    }
+    return extent;
+  }
+
+  private List<SExpression> box(double width, double height) {
+    List<SExpression> exprs = new ArrayList<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      exprs.add(QFNRA.assertLessThanEqual(
+          SymbolNameGenerator.getsym_NodeX(schematic, n),
+          Decimal.plain(width)));
+      exprs.add(QFNRA.assertLessThanEqual(
+          SymbolNameGenerator.getsym_NodeY(schematic, n),
+          Decimal.plain(height)));
+    }
+    return exprs;
+  }
+
+  // keeps each coordinate near its previous value times the scale
+  private void anchor(List<SExpression> exprs, Symbol sym,
+      DRealSolver.Result previous, double scale, double margin) {
+    DRealSolver.RealRange range = previous.getRange(sym);
+    double center = scale * (range.lowerBound + range.upperBound) / 2.0;
+    // no node lies left of or below the origin
+    exprs.add(QFNRA.assertGreaterEqual(sym,
+        Decimal.plain(Math.max(0.0, center - margin))));
+    exprs.add(QFNRA.assertLessThanEqual(sym,
+        Decimal.plain(center + margin)));
+  }
+
+  private List<SExpression> anchors(DRealSolver.Result previous,
+      double scaleX, double scaleY, double width, double height) {
+    List<SExpression> exprs = new ArrayList<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      anchor(exprs, SymbolNameGenerator.getsym_NodeX(schematic, n),
+          previous, scaleX, anchorMargin * width);
+      anchor(exprs, SymbolNameGenerator.getsym_NodeY(schematic, n),
+          previous, scaleY, anchorMargin * height);
+    }
+    return exprs;
+  }
+
+  private List<SExpression> formula;
+  private DRealSolver.Result best;
+  private double width;
+  private double height;
+  private int steps;
+
+  /**
+   * Looks for a layout in the box of the best layout scaled by the given
+   * factors, first near the best layout and then anywhere.
+   * @return true if one was found, which is then the best layout
+   */
+  private boolean tryScale(double scaleX, double scaleY) throws IOException {
+    double targetWidth = width * scaleX;
+    double targetHeight = height * scaleY;
+    List<SExpression> bounded = QFNRA.insertBeforeCheckSat(formula,
+        box(targetWidth, targetHeight));
+    ++steps;
+    DRealSolver.Result result = solver.solve(QFNRA.insertBeforeCheckSat(
+        bounded, anchors(best, scaleX, scaleY, targetWidth, targetHeight)));
+    if (!result.isSatisfiable() && steps < maximumSteps) {
+      ++steps;
+      result = solver.solve(bounded);
+    }
+    if (!result.isSatisfiable()) {
+      return false;
+    }
+    best = result;
+    width = Math.min(targetWidth, extent(result, false));
+    height = Math.min(targetHeight, extent(result, true));
+    log.debug("compacted to " + width + " x " + height);
+    return true;
+  }
+
+  public Compaction compact(List<SExpression> formula) throws IOException {
+    this.formula = formula;
+    steps = 1;
+    best = solver.solve(formula);
+    if (!best.isSatisfiable()) {
+      return new Compaction(false, Double.POSITIVE_INFINITY,
+          Double.POSITIVE_INFINITY, null, steps);
+    }
+    width = extent(best, false);
+    height = extent(best, true);
+    log.debug("unbounded layout is " + width + " x " + height);
+    // shrink both sides together while that works, and find out which
+    // side is in the way when it does not
+    double stepX = shrink;
+    double stepY = shrink;
+    while ((stepX >= minimumShrink || stepY >= minimumShrink)
+        && steps < maximumSteps) {
+      double scaleX = stepX >= minimumShrink ? 1.0 - stepX : 1.0;
+      double scaleY = stepY >= minimumShrink ? 1.0 - stepY : 1.0;
+      if (tryScale(scaleX, scaleY)) {
+        continue;
+      }
+      if (scaleX < 1.0 && scaleY < 1.0) {
+        if (steps < maximumSteps && !tryScale(scaleX, 1.0)) {
+          stepX /= 2.0;
+        }
+        if (steps < maximumSteps && !tryScale(1.0, scaleY)) {
+          stepY /= 2.0;
+        }
+      } else if (scaleX < 1.0) {
+        stepX /= 2.0;
+      } else {
+        stepY /= 2.0;
+      }
+    }
+    Compaction compaction = new Compaction(true, width, height, best,
+        steps);
+    this.formula = null;
+    best = null;
+    return compaction;
+  }
+
+}
@@ -0,0 +1,160 @@
+package org.manifold.compiler.back.microfluidics.optimize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+
+// Minimizes an objective over the solutions of a formula by bisecting
+// on an upper bound for it.
+//
+// Each step asks whether the formula has a solution with the objective
+// in [lower, mid]. A sat answer moves the upper bound down to mid, or
+// further to the top of the objective's range in the model if that is
+// lower; an unsat answer proves that no solution lies below mid and
+// moves the lower bound up. Both bounds are asserted in every later
+// query, so what earlier steps learned prunes the search of the next.
+// The search stops once the bounds are within the tolerance.
+//
+// Since sat answers are delta-sat, the upper bound is only as good as
+// the solver's precision; the lower bound is exact.
+public class BisectionOptimizer {
+
+  private static final Logger log =
+      LogManager.getLogger("BisectionOptimizer");
+
+  public static class Optimum {
+    private final boolean feasible;
+    private final double lowerBound;
+    private final double upperBound;
+    private final DRealSolver.Result model;
+    private final int steps;
+
+    Optimum(boolean feasible, double lowerBound, double upperBound,
+        DRealSolver.Result model, int steps) {
+      this.feasible = feasible;
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+      this.model = model;
+      this.steps = steps;
+    }
+
+    /**
+     * @return false if the formula has no solution at all
+     */
+    public boolean isFeasible() {
+      return feasible;
+    }
+
+    /**
+     * @return a value the objective provably cannot go below
+     */
+    public double getLowerBound() {
+      return lowerBound;
+    }
+
+    /**
+     * @return the best value of the objective that was reached
+     */
+    public double getUpperBound() {
+      return upperBound;
+    }
+
+    /**
+     * @return the solution reaching the upper bound, or null if infeasible
+     */
+    public DRealSolver.Result getModel() {
+      return model;
+    }
+
+    public int getSteps() {
+      return steps;
+    }
+  }
+
+  private final FormulaSolver solver;
+
+  public BisectionOptimizer(FormulaSolver solver) {
+    this.solver = solver;
+  }
+
+  private double tolerance = 1e-6;
+  public void setTolerance(double tolerance) {
+    if (!(tolerance > 0.0)) {
+      throw new IllegalArgumentException("tolerance must be positive");
+    }
+    this.tolerance = tolerance;
+  }
+
+  // all objectives provided by Objective are non-negative
+  private double lowerBound = 0.0;
+  public void setLowerBound(double lowerBound) {
+    this.lowerBound = lowerBound;
+  }
+
+  private int maximumSteps = 64;
+  public void setMaximumSteps(int maximumSteps) {
+    this.maximumSteps = maximumSteps;
+  }
+
+  private DRealSolver.Result solveWithin(List<SExpression> formula,
+      Objective objective, double lower, double upper) throws IOException {
+    List<SExpression> extra = new ArrayList<>(objective.getDefinition());
+    extra.add(QFNRA.assertGreaterEqual(objective.getSymbol(),
+        Decimal.plain(lower)));
+    if (!Double.isInfinite(upper)) {
+      extra.add(QFNRA.assertLessThanEqual(objective.getSymbol(),
+          Decimal.plain(upper)));
+    }
+    return solver.solve(QFNRA.insertBeforeCheckSat(formula, extra));
+  }
+
+  // the best bound on the objective the model proves, at most bound
+  private static double tighten(DRealSolver.Result model,
+      Objective objective, double bound) {
+    DRealSolver.RealRange range = model.getRange(objective.getSymbol());
+    if (range == null || Double.isNaN(range.upperBound)) {
+      return bound;
+    }
+    return Math.min(bound, range.upperBound);
+  }
+
+  public Optimum minimize(List<SExpression> formula, Objective objective)
+      throws IOException {
+    double lower = lowerBound;
+    int steps = 1;
+    DRealSolver.Result best = solveWithin(formula, objective, lower,
+        Double.POSITIVE_INFINITY);
+    if (!best.isSatisfiable()) {
+      return new Optimum(false, lower, Double.POSITIVE_INFINITY, null,
+          steps);
+    }
+    double upper = tighten(best, objective, Double.POSITIVE_INFINITY);
+    if (Double.isInfinite(upper)) {
+      throw new IllegalStateException("solver returned no value for "
+          + objective.getSymbol());
+    }
+    while (upper - lower > tolerance && steps < maximumSteps) {
+      double mid = lower + (upper - lower) / 2.0;
+      ++steps;
+      DRealSolver.Result result = solveWithin(formula, objective, lower,
+          mid);
+      if (result.isSatisfiable()) {
+        best = result;
+        upper = tighten(result, objective, mid);
+      } else {
+        lower = mid;
+      }
+      log.debug(objective.getName() + " in [" + lower + ", " + upper + "]");
+    }
+    return new Optimum(true, lower, upper, best, steps);
+  }
+
+}
@@ -0,0 +1,152 @@
+package org.manifold.compiler.back.microfluidics.optimize;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.UndeclaredIdentifierException;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// A quantity to be minimized over the solutions of a formula.
+//
+// The objective is a fresh symbol plus the assertions that tie it to the
+// symbols of the design. These only need to bound the objective from
+// below by the quantity of interest: the optimizer pushes the objective
+// down, so at the optimum it equals that quantity.
+public class Objective {
+
+  private final String name;
+  private final Symbol symbol;
+  private final List<SExpression> definition;
+
+  public Objective(String name, Symbol symbol, List<SExpression> definition) {
+    this.name = name;
+    this.symbol = symbol;
+    this.definition = new ArrayList<>(definition);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Symbol getSymbol() {
+    return symbol;
+  }
+
+  /**
+   * @return the declarations and assertions that define the objective
+   */
+  public List<SExpression> getDefinition() {
+    return Collections.unmodifiableList(definition);
+  }
+
+  public static final String CHIP_AREA = "chipArea";
+  public static final String CHANNEL_LENGTH = "channelLength";
+  public static final String INLET_PRESSURE = "inletPressure";
+
+  /**
+   * @return the objective with the given name, one of CHIP_AREA,
+   * CHANNEL_LENGTH and INLET_PRESSURE
+   */
+  public static Objective byName(String name, Schematic schematic,
+      PrimitiveTypeTable typeTable) {
+    if (name.equals(CHIP_AREA)) {
+      return chipArea(schematic);
+    } else if (name.equals(CHANNEL_LENGTH)) {
+      return totalChannelLength(schematic);
+    } else if (name.equals(INLET_PRESSURE)) {
+      return maximumInletPressure(schematic, typeTable);
+    }
+    throw new IllegalArgumentException("unknown objective '" + name
+        + "'; expected one of " + CHIP_AREA + ", " + CHANNEL_LENGTH
+        + ", " + INLET_PRESSURE);
+  }
+
+  /**
+   * The area of the smallest chip, anchored at the origin,
+   * that contains every node.
+   */
+  public static Objective chipArea(Schematic schematic) {
+    Symbol objective = SymbolNameGenerator.getsym_Objective();
+    Symbol width = SymbolNameGenerator.getsym_ChipWidth();
+    Symbol height = SymbolNameGenerator.getsym_ChipHeight();
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.declareRealVariable(objective));
+    exprs.add(QFNRA.declareRealVariable(width));
+    exprs.add(QFNRA.declareRealVariable(height));
+    for (NodeValue n : schematic.getNodes().values()) {
+      exprs.add(QFNRA.assertLessThanEqual(
+          SymbolNameGenerator.getsym_NodeX(schematic, n), width));
+      exprs.add(QFNRA.assertLessThanEqual(
+          SymbolNameGenerator.getsym_NodeY(schematic, n), height));
+    }
+    exprs.add(QFNRA.assertGreaterEqual(width, new Decimal(0.0)));
+    exprs.add(QFNRA.assertGreaterEqual(height, new Decimal(0.0)));
+    exprs.add(QFNRA.assertEqual(objective, QFNRA.multiply(width, height)));
+    return new Objective(CHIP_AREA, objective, exprs);
+  }
+
+  /**
+   * The sum of the lengths of all channels.
+   */
+  public static Objective totalChannelLength(Schematic schematic) {
+    Symbol objective = SymbolNameGenerator.getsym_Objective();
+    List<SExpression> lengths = new LinkedList<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      lengths.add(SymbolNameGenerator.getsym_ChannelLength(schematic, ch));
+    }
+    if (lengths.isEmpty()) {
+      throw new CodeGenerationError(
+          "cannot minimize channel length of a schematic without channels");
+    }
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.declareRealVariable(objective));
+    SExpression sum = lengths.size() == 1 ? lengths.get(0)
+        : QFNRA.add(lengths);
+    exprs.add(QFNRA.assertEqual(objective, sum));
+    return new Objective(CHANNEL_LENGTH, objective, exprs);
+  }
+
+  /**
+   * The highest pressure at any fluid entry.
+   */
+  public static Objective maximumInletPressure(Schematic schematic,
+      PrimitiveTypeTable typeTable) {
+    Symbol objective = SymbolNameGenerator.getsym_Objective();
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.declareRealVariable(objective));
+    int inlets = 0;
+    for (NodeValue n : schematic.getNodes().values()) {
+      if (!n.getType().isSubtypeOf(typeTable.getFluidEntryNodeType())) {
+        continue;
+      }
+      try {
+        exprs.add(QFNRA.assertGreaterEqual(objective,
+            SymbolNameGenerator.getSym_PortPressure(schematic,
+                n.getPort("output"))));
+      } catch (UndeclaredIdentifierException e) {
+        throw new CodeGenerationError("undeclared identifier '"
+            + e.getIdentifier() + "' when inspecting fluid entry node '"
+            + schematic.getNodeName(n) + "'; "
+            + "possible schematic version mismatch");
+      }
+      ++inlets;
+    }
+    if (inlets == 0) {
+      throw new CodeGenerationError(
+          "cannot minimize inlet pressure of a schematic without inlets");
+    }
+    return new Objective(INLET_PRESSURE, objective, exprs);
+  }
+
+}
@@ -0,0 +1,661 @@
+package org.manifold.compiler.back.microfluidics.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Splits the vertices of a graph into a number of parts of nearly equal
+// size, cutting few edges, and gives each part its own rectangle of a
+// given area.
+//
+// Parts come from recursive bisection. Each bisection is multilevel:
+// the graph is coarsened by repeatedly merging vertices joined by heavy
+// edges, the small coarsest graph is split by growing one side from a
+// seed vertex, and the split is then carried back through the finer
+// graphs and improved at each level with Fiduccia-Mattheyses passes,
+// which move boundary vertices to the other side to cut fewer edges.
+// The area is split alongside the graph, across its longer side and in
+// proportion to the number of parts on each side.
+public class GraphPartitioner {
+
+  // An undirected graph with vertex and edge weights. The neighbours of
+  // vertex v are adjacency[start[v] ... start[v + 1] - 1].
+  private static class Graph {
+    final int n;
+    final int[] start;
+    final int[] adjacency;
+    final int[] edgeWeight;
+    final int[] weight;
+    final int totalWeight;
+
+    Graph(int[] start, int[] adjacency, int[] edgeWeight, int[] weight) {
+      this.n = weight.length;
+      this.start = start;
+      this.adjacency = adjacency;
+      this.edgeWeight = edgeWeight;
+      this.weight = weight;
+      int total = 0;
+      for (int w : weight) {
+        total += w;
+      }
+      this.totalWeight = total;
+    }
+  }
+
+  public static class Partition {
+    private final int[] part;
+    private final double[][] regions;
+    private final int cutEdges;
+
+    Partition(int[] part, double[][] regions, int cutEdges) {
+      this.part = part;
+      this.regions = regions;
+      this.cutEdges = cutEdges;
+    }
+
+    public int getParts() {
+      return regions.length;
+    }
+
+    public int getPart(int vertex) {
+      return part[vertex];
+    }
+
+    /**
+     * @return the rectangle {x0, y0, x1, y1} reserved for a part
+     */
+    public double[] getRegion(int p) {
+      return regions[p];
+    }
+
+    /**
+     * @return how many of the given edges join different parts
+     */
+    public int getCutEdges() {
+      return cutEdges;
+    }
+  }
+
+  // how far the size of a part may stray from the average, as a
+  // fraction of it; each bisection gets its share of this
+  private double imbalance = 0.05;
+  public void setImbalance(double imbalance) {
+    this.imbalance = imbalance;
+  }
+
+  // coarsening stops at this many vertices
+  private int coarsestSize = 64;
+  public void setCoarsestSize(int coarsestSize) {
+    this.coarsestSize = coarsestSize;
+  }
+
+  private int refinementPasses = 4;
+  public void setRefinementPasses(int refinementPasses) {
+    this.refinementPasses = refinementPasses;
+  }
+
+  private long seed = 0;
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  private Random random;
+  private int[] result;
+  // index of each vertex within the subgraph being split, or -1
+  private int[] local;
+  private double[][] regions;
+  // bisections from the whole graph to a part
+  private int depth;
+
+  /**
+   * @param edges pairs {u, v} of vertices in [0, n); repeated edges
+   * count as heavier edges
+   * @param area the rectangle {x0, y0, x1, y1} to divide between parts
+   */
+  public Partition partition(int n, List<int[]> edges, int parts,
+      double[] area) {
+    if (parts < 1) {
+      throw new IllegalArgumentException("need at least one part");
+    }
+    random = new Random(seed);
+    result = new int[n];
+    local = new int[n];
+    Arrays.fill(local, -1);
+    regions = new double[parts][];
+    depth = 1;
+    while ((1 << depth) < parts) {
+      depth += 1;
+    }
+    int[] vertices = new int[n];
+    for (int v = 0; v < n; ++v) {
+      vertices[v] = v;
+    }
+    split(vertices, edges, parts, 0, area);
+    int cut = 0;
+    for (int[] e : edges) {
+      if (result[e[0]] != result[e[1]]) {
+        cut += 1;
+      }
+    }
+    return new Partition(result, regions, cut);
+  }
+
+  private void split(int[] vertices, List<int[]> edges, int parts,
+      int firstPart, double[] area) {
+    if (parts == 1) {
+      for (int v : vertices) {
+        result[v] = firstPart;
+      }
+      regions[firstPart] = area;
+      return;
+    }
+    int parts0 = parts / 2;
+    double fraction = (double) parts0 / parts;
+    // the subgraph induced by these vertices
+    for (int i = 0; i < vertices.length; ++i) {
+      local[vertices[i]] = i;
+    }
+    List<int[]> subEdges = new ArrayList<>();
+    for (int[] e : edges) {
+      if (local[e[0]] >= 0 && local[e[1]] >= 0 && e[0] != e[1]) {
+        subEdges.add(new int[] {local[e[0]], local[e[1]]});
+      }
+    }
+    for (int v : vertices) {
+      local[v] = -1;
+    }
+    double tolerance = imbalance * Math.min(fraction, 1.0 - fraction)
+        * vertices.length / depth;
+    int[] side = bisect(buildGraph(vertices.length, subEdges), fraction,
+        Math.max(tolerance, 1.0));
+
+    int count0 = 0;
+    for (int s : side) {
+      if (s == 0) {
+        count0 += 1;
+      }
+    }
+    int[] vertices0 = new int[count0];
+    int[] vertices1 = new int[vertices.length - count0];
+    List<int[]> edges0 = new ArrayList<>();
+    List<int[]> edges1 = new ArrayList<>();
+    int i0 = 0;
+    int i1 = 0;
+    for (int i = 0; i < vertices.length; ++i) {
+      if (side[i] == 0) {
+        vertices0[i0++] = vertices[i];
+      } else {
+        vertices1[i1++] = vertices[i];
+      }
+    }
+    for (int[] e : subEdges) {
+      if (side[e[0]] == 0 && side[e[1]] == 0) {
+        edges0.add(new int[] {vertices[e[0]], vertices[e[1]]});
+      } else if (side[e[0]] == 1 && side[e[1]] == 1) {
+        edges1.add(new int[] {vertices[e[0]], vertices[e[1]]});
+      }
+    }
+
+    double[] area0;
+    double[] area1;
+    if (area[2] - area[0] >= area[3] - area[1]) {
+      double cut = area[0] + fraction * (area[2] - area[0]);
+      area0 = new double[] {area[0], area[1], cut, area[3]};
+      area1 = new double[] {cut, area[1], area[2], area[3]};
+    } else {
+      double cut = area[1] + fraction * (area[3] - area[1]);
+      area0 = new double[] {area[0], area[1], area[2], cut};
+      area1 = new double[] {area[0], cut, area[2], area[3]};
+    }
+    split(vertices0, edges0, parts0, firstPart, area0);
+    split(vertices1, edges1, parts - parts0, firstPart + parts0, area1);
+  }
+
+  private static Graph buildGraph(int n, List<int[]> edges) {
+    int[] weight = new int[n];
+    Arrays.fill(weight, 1);
+    int[] start = new int[n + 1];
+    for (int[] e : edges) {
+      start[e[0] + 1] += 1;
+      start[e[1] + 1] += 1;
+    }
+    for (int v = 0; v < n; ++v) {
+      start[v + 1] += start[v];
+    }
+    int[] adjacency = new int[start[n]];
+    int[] edgeWeight = new int[start[n]];
+    int[] fill = Arrays.copyOf(start, n);
+    for (int[] e : edges) {
+      adjacency[fill[e[0]]] = e[1];
+      edgeWeight[fill[e[0]]++] = 1;
+      adjacency[fill[e[1]]] = e[0];
+      edgeWeight[fill[e[1]]++] = 1;
+    }
+    return new Graph(start, adjacency, edgeWeight, weight);
+  }
+
+  /**
+   * @return for each vertex, 0 or 1, with about fraction of the weight
+   * on side 0
+   */
+  private int[] bisect(Graph graph, double fraction, double tolerance) {
+    List<Graph> levels = new ArrayList<>();
+    List<int[]> maps = new ArrayList<>();
+    levels.add(graph);
+    Graph g = graph;
+    while (g.n > coarsestSize) {
+      int[] map = new int[g.n];
+      Graph coarse = coarsen(g, map);
+      if (coarse.n == g.n) {
+        break;
+      }
+      maps.add(map);
+      levels.add(coarse);
+      g = coarse;
+    }
+    int[] side = grow(g, fraction, tolerance);
+    refine(g, side, fraction, tolerance);
+    for (int level = levels.size() - 2; level >= 0; --level) {
+      Graph fine = levels.get(level);
+      int[] map = maps.get(level);
+      int[] fineSide = new int[fine.n];
+      for (int v = 0; v < fine.n; ++v) {
+        fineSide[v] = side[map[v]];
+      }
+      side = fineSide;
+      refine(fine, side, fraction, tolerance);
+    }
+    return side;
+  }
+
+  /**
+   * Merges pairs of vertices, preferring heavy edges.
+   * @param map filled with the coarse vertex of each vertex
+   */
+  private Graph coarsen(Graph g, int[] map) {
+    int maxWeight = Math.max(2,
+        (int) (1.5 * g.totalWeight / coarsestSize));
+    int[] match = new int[g.n];
+    Arrays.fill(match, -1);
+    int[] order = new int[g.n];
+    for (int v = 0; v < g.n; ++v) {
+      order[v] = v;
+    }
+    for (int i = g.n - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      int t = order[i];
+      order[i] = order[j];
+      order[j] = t;
+    }
+    List<Integer> unmatched = new ArrayList<>();
+    for (int v : order) {
+      if (match[v] >= 0) {
+        continue;
+      }
+      int best = -1;
+      int bestWeight = 0;
+      // start at a random neighbour, so that ties between equally heavy
+      // edges do not all go the same way
+      int degree = g.start[v + 1] - g.start[v];
+      int offset = degree == 0 ? 0 : random.nextInt(degree);
+      for (int k = 0; k < degree; ++k) {
+        int a = g.start[v] + (k + offset) % degree;
+        int u = g.adjacency[a];
+        if (u != v && match[u] < 0 && g.edgeWeight[a] > bestWeight
+            && g.weight[u] + g.weight[v] <= maxWeight) {
+          best = u;
+          bestWeight = g.edgeWeight[a];
+        }
+      }
+      if (best >= 0) {
+        match[v] = best;
+        match[best] = v;
+      } else {
+        unmatched.add(v);
+      }
+    }
+    if (unmatched.size() < g.n / 4) {
+      unmatched.clear();
+    }
+    // if many vertices are left over (e.g. the leaves of a star), they
+    // are paired with one another, in the order of their first
+    // neighbour, so that the graph keeps shrinking
+    final Graph graph = g;
+    Collections.sort(unmatched, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(firstNeighbour(graph, a),
+            firstNeighbour(graph, b));
+      }
+    });
+    for (int i = 0; i + 1 < unmatched.size(); ++i) {
+      int v = unmatched.get(i);
+      int u = unmatched.get(i + 1);
+      if (g.weight[u] + g.weight[v] <= maxWeight) {
+        match[v] = u;
+        match[u] = v;
+        i += 1;
+      }
+    }
+
+    int coarseN = 0;
+    for (int v = 0; v < g.n; ++v) {
+      if (match[v] < 0 || match[v] > v) {
+        map[v] = coarseN++;
+      } else {
+        map[v] = map[match[v]];
+      }
+    }
+    int[] weight = new int[coarseN];
+    int[][] members = new int[coarseN][];
+    for (int v = 0; v < g.n; ++v) {
+      weight[map[v]] += g.weight[v];
+      if (members[map[v]] == null) {
+        members[map[v]] = match[v] < 0 ? new int[] {v}
+            : new int[] {v, match[v]};
+      }
+    }
+    // merge parallel edges; position[c] is where the edge to c went in
+    // the current vertex's list, if it is there yet
+    int[] position = new int[coarseN];
+    Arrays.fill(position, -1);
+    int[] start = new int[coarseN + 1];
+    int[] adjacency = new int[g.adjacency.length];
+    int[] edgeWeight = new int[g.adjacency.length];
+    int size = 0;
+    for (int c = 0; c < coarseN; ++c) {
+      start[c] = size;
+      for (int v : members[c]) {
+        for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+          int cu = map[g.adjacency[a]];
+          if (cu == c) {
+            continue;
+          }
+          if (position[cu] < 0) {
+            position[cu] = size;
+            adjacency[size] = cu;
+            edgeWeight[size] = 0;
+            size += 1;
+          }
+          edgeWeight[position[cu]] += g.edgeWeight[a];
+        }
+      }
+      for (int a = start[c]; a < size; ++a) {
+        position[adjacency[a]] = -1;
+      }
+    }
+    start[coarseN] = size;
+    return new Graph(start, Arrays.copyOf(adjacency, size),
+        Arrays.copyOf(edgeWeight, size), weight);
+  }
+
+  private static int firstNeighbour(Graph g, int v) {
+    int first = Integer.MAX_VALUE;
+    for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+      first = Math.min(first, g.adjacency[a]);
+    }
+    return first;
+  }
+
+  /**
+   * Splits a small graph by growing side 0 from a few seed vertices,
+   * the first one peripheral,
+   * always adding the vertex with the most edges into the side, and
+   * keeps the split that cuts the least.
+   */
+  private int[] grow(Graph g, double fraction, double tolerance) {
+    double target = fraction * g.totalWeight;
+    int[] best = null;
+    int bestCut = Integer.MAX_VALUE;
+    int tries = Math.min(8, Math.max(1, g.n));
+    for (int t = 0; t < tries; ++t) {
+      int[] side = new int[g.n];
+      Arrays.fill(side, 1);
+      // edges into side 0 minus edges out of it, for vertices on side 1
+      int[] pull = new int[g.n];
+      // when each vertex on side 1 was first reached, or 0; ties in
+      // pull go to the earliest, so that the side grows outwards
+      // from the seed instead of in the order of vertex numbers
+      int[] reached = new int[g.n];
+      int clock = 0;
+      int weight0 = 0;
+      int next = g.n == 0 ? -1 : random.nextInt(g.n);
+      if (t == 0 && next >= 0) {
+        // a vertex at the far end of the graph, from which the side
+        // grows into a band rather than a ball
+        next = farthest(g, farthest(g, next));
+      }
+      while (next >= 0 && weight0 < target) {
+        if (weight0 + g.weight[next] - target > target - weight0
+            && weight0 > 0) {
+          break;
+        }
+        side[next] = 0;
+        weight0 += g.weight[next];
+        for (int a = g.start[next]; a < g.start[next + 1]; ++a) {
+          int u = g.adjacency[a];
+          if (side[u] == 1) {
+            pull[u] += g.edgeWeight[a];
+            if (reached[u] == 0) {
+              reached[u] = ++clock;
+            }
+          }
+        }
+        next = -1;
+        for (int u = 0; u < g.n; ++u) {
+          if (side[u] == 1 && reached[u] > 0 && (next < 0
+              || pull[u] > pull[next]
+              || (pull[u] == pull[next] && reached[u] < reached[next]))) {
+            next = u;
+          }
+        }
+        if (next < 0) {
+          // side 0 is a whole component; start on another one
+          for (int u = 0; u < g.n; ++u) {
+            if (side[u] == 1) {
+              next = u;
+              break;
+            }
+          }
+        }
+      }
+      refine(g, side, fraction, tolerance);
+      int cut = cutWeight(g, side);
+      if (cut < bestCut) {
+        best = side;
+        bestCut = cut;
+      }
+    }
+    return best;
+  }
+
+  // the last vertex reached by a breadth-first search from v
+  private static int farthest(Graph g, int v) {
+    boolean[] seen = new boolean[g.n];
+    int[] queue = new int[g.n];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = v;
+    seen[v] = true;
+    while (head < tail) {
+      int u = queue[head++];
+      for (int a = g.start[u]; a < g.start[u + 1]; ++a) {
+        int w = g.adjacency[a];
+        if (!seen[w]) {
+          seen[w] = true;
+          queue[tail++] = w;
+        }
+      }
+    }
+    return queue[tail - 1];
+  }
+
+  private static int cutWeight(Graph g, int[] side) {
+    int cut = 0;
+    for (int v = 0; v < g.n; ++v) {
+      for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+        if (side[g.adjacency[a]] != side[v]) {
+          cut += g.edgeWeight[a];
+        }
+      }
+    }
+    return cut / 2;
+  }
+
+  // weight of edges to the other side minus weight of edges to this side
+  private static int gain(Graph g, int[] side, int v) {
+    int gain = 0;
+    for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+      gain += side[g.adjacency[a]] != side[v] ? g.edgeWeight[a]
+          : -g.edgeWeight[a];
+    }
+    return gain;
+  }
+
+  /**
+   * First restores balance, then runs passes of improve() while they
+   * reduce the cut.
+   */
+  private void refine(final Graph g, final int[] side, double fraction,
+      double finestTolerance) {
+    double target = fraction * g.totalWeight;
+    // coarse graphs cannot be balanced more finely than their heaviest
+    // vertex
+    double tolerance = finestTolerance;
+    for (int w : g.weight) {
+      tolerance = Math.max(tolerance, w);
+    }
+    int weight0 = 0;
+    for (int v = 0; v < g.n; ++v) {
+      if (side[v] == 0) {
+        weight0 += g.weight[v];
+      }
+    }
+
+    if (Math.abs(weight0 - target) > tolerance) {
+      final int from = weight0 > target ? 0 : 1;
+      List<Integer> candidates = new ArrayList<>();
+      for (int v = 0; v < g.n; ++v) {
+        if (side[v] == from) {
+          candidates.add(v);
+        }
+      }
+      sortByGain(g, side, candidates);
+      for (int v : candidates) {
+        if (Math.abs(weight0 - target) <= tolerance) {
+          break;
+        }
+        int moved = from == 0 ? weight0 - g.weight[v]
+            : weight0 + g.weight[v];
+        if (Math.abs(moved - target) >= Math.abs(weight0 - target)) {
+          continue;
+        }
+        side[v] = 1 - from;
+        weight0 = moved;
+      }
+    }
+
+    for (int pass = 0; pass < refinementPasses; ++pass) {
+      if (!improve(g, side, target, tolerance, weight0)) {
+        break;
+      }
+      weight0 = 0;
+      for (int v = 0; v < g.n; ++v) {
+        if (side[v] == 0) {
+          weight0 += g.weight[v];
+        }
+      }
+    }
+  }
+
+  /**
+   * One Fiduccia-Mattheyses pass: moves boundary vertices one at a time,
+   * best gain first and each at most once, even when that makes the cut
+   * worse for a while, then undoes the moves after the point where the
+   * cut was smallest.
+   * @return true if the cut got smaller
+   */
+  private static boolean improve(Graph g, int[] side, double target,
+      double tolerance, int weight0) {
+    int[] gain = new int[g.n];
+    // entries are (gain, vertex), largest gain first; an entry whose
+    // gain is out of date is skipped
+    PriorityQueue<long[]> queue = new PriorityQueue<>(11,
+        new Comparator<long[]>() {
+          @Override
+          public int compare(long[] a, long[] b) {
+            return Long.compare(b[0], a[0]);
+          }
+        });
+    for (int v = 0; v < g.n; ++v) {
+      gain[v] = gain(g, side, v);
+      for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+        if (side[g.adjacency[a]] != side[v]) {
+          queue.add(new long[] {gain[v], v});
+          break;
+        }
+      }
+    }
+    boolean[] locked = new boolean[g.n];
+    List<Integer> moves = new ArrayList<>();
+    int change = 0;
+    int bestChange = 0;
+    int bestMoves = 0;
+    // give up once this many moves have not found a smaller cut
+    int patience = Math.max(50, g.n / 100);
+    while (!queue.isEmpty() && moves.size() - bestMoves < patience) {
+      long[] entry = queue.poll();
+      int v = (int) entry[1];
+      if (locked[v] || entry[0] != gain[v]) {
+        continue;
+      }
+      int after = side[v] == 0 ? weight0 - g.weight[v]
+          : weight0 + g.weight[v];
+      if (Math.abs(after - target) > tolerance) {
+        continue;
+      }
+      side[v] = 1 - side[v];
+      locked[v] = true;
+      weight0 = after;
+      change -= gain[v];
+      moves.add(v);
+      gain[v] = -gain[v];
+      for (int a = g.start[v]; a < g.start[v + 1]; ++a) {
+        int u = g.adjacency[a];
+        gain[u] += side[u] == side[v] ? -2 * g.edgeWeight[a]
+            : 2 * g.edgeWeight[a];
+        if (!locked[u]) {
+          queue.add(new long[] {gain[u], u});
+        }
+      }
+      if (change < bestChange) {
+        bestChange = change;
+        bestMoves = moves.size();
+      }
+    }
+    for (int i = moves.size() - 1; i >= bestMoves; --i) {
+      int v = moves.get(i);
+      side[v] = 1 - side[v];
+    }
+    return bestChange < 0;
+  }
+
+  private static void sortByGain(final Graph g, final int[] side,
+      List<Integer> vertices) {
+    final int[] gains = new int[g.n];
+    for (int v : vertices) {
+      gains[v] = gain(g, side, v);
+    }
+    Collections.sort(vertices, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(gains[b], gains[a]);
+      }
+    });
+  }
+
+}
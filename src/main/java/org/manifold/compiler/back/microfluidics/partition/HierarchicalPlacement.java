@@ -0,0 +1,358 @@
+package org.manifold.compiler.back.microfluidics.partition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolCollector;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.PlacementTranslationStrategySet;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ReferencePlacement;
+import org.manifold.compiler.back.microfluidics.sweep.ParameterSweep;
+import org.manifold.compiler.middle.Schematic;
+
+// Solves the placement of a large schematic cluster by cluster, instead
+// of as one formula in which the length and angle rules couple every
+// node to every other.
+//
+// The nodes are split into clusters of about clusterSize nodes, with few
+// channels between clusters (see GraphPartitioner), and each cluster is
+// given its own rectangle of the chip. Every placement assertion that
+// only refers to the nodes and channels of one cluster goes into that
+// cluster's formula, with bounds that keep its nodes in its rectangle;
+// the cluster formulas are solved concurrently. The remaining assertions
+// (channels between clusters, and rules over nodes of several clusters)
+// are then solved together in one last formula. In it, the nodes those
+// assertions mention may move anywhere in their cluster's rectangle, and
+// the cluster assertions that mention them are checked again, while all
+// other nodes keep the ranges their cluster's model gave them.
+//
+// Reserving rectangles in advance can rule out layouts, so an unsat
+// answer only means that no layout was found this way.
+public class HierarchicalPlacement {
+
+  private static final Logger log =
+      LogManager.getLogger("HierarchicalPlacement");
+
+  private final Schematic schematic;
+  private final ProcessParameters processParams;
+  private final PrimitiveTypeTable typeTable;
+
+  public HierarchicalPlacement(Schematic schematic,
+      ProcessParameters processParams) {
+    this.schematic = schematic;
+    this.processParams = processParams;
+    this.typeTable = MicrofluidicsBackend.constructTypeTable(schematic);
+  }
+
+  private int clusterSize = 64;
+  public void setClusterSize(int clusterSize) {
+    if (clusterSize < 1) {
+      throw new IllegalArgumentException(
+          "clusters need at least one node");
+    }
+    this.clusterSize = clusterSize;
+  }
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+          "at least one thread is required");
+    }
+    this.threads = threads;
+  }
+
+  private ParameterSweep.SolverFactory solverFactory =
+      new ParameterSweep.DRealSolverFactory();
+  public void useSolverFactory(ParameterSweep.SolverFactory factory) {
+    this.solverFactory = factory;
+  }
+
+  // translates the placement rules, so that clusters are placed under
+  // the same options as the whole schematic; its rules must not be lazy
+  private ParameterSweep.StrategyFactory strategies =
+      new ParameterSweep.DefaultStrategyFactory();
+  public void useStrategyFactory(ParameterSweep.StrategyFactory factory) {
+    this.strategies = factory;
+  }
+
+  private GraphPartitioner.Partition lastPartition = null;
+  public GraphPartitioner.Partition getLastPartition() {
+    return lastPartition;
+  }
+
+  private int lastFinalAssertions = 0;
+  /**
+   * @return how many assertions the last formula over all clusters had,
+   * including the cluster assertions checked again
+   */
+  public int getLastFinalAssertions() {
+    return lastFinalAssertions;
+  }
+
+  public DRealSolver.Result place() throws IOException,
+      InterruptedException {
+    List<NodeValue> nodes = new ArrayList<>(schematic.getNodes().values());
+    Map<NodeValue, Integer> index = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.size(); ++i) {
+      index.put(nodes.get(i), i);
+    }
+    List<int[]> edges = new ArrayList<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      edges.add(new int[] {index.get(ch.getFrom().getParent()),
+        index.get(ch.getTo().getParent())});
+    }
+    int clusters = Math.max(1,
+        (nodes.size() + clusterSize - 1) / clusterSize);
+    GraphPartitioner partitioner = new GraphPartitioner();
+    GraphPartitioner.Partition partition = partitioner.partition(
+        nodes.size(), edges, clusters, new double[] {0.0, 0.0,
+          processParams.getMaximumChipSizeX(),
+          processParams.getMaximumChipSizeY()});
+    lastPartition = partition;
+    log.info("placing " + nodes.size() + " nodes in " + clusters
+        + " clusters, " + partition.getCutEdges() + " channels between"
+        + " clusters");
+
+    // which cluster each position and channel length (or extent) belongs
+    // to, or -1 for those of channels between clusters
+    Map<Symbol, Integer> owner = new HashMap<>();
+    Map<Symbol, NodeValue> nodeOf = new HashMap<>();
+    for (int i = 0; i < nodes.size(); ++i) {
+      NodeValue n = nodes.get(i);
+      Symbol x = SymbolNameGenerator.getsym_NodeX(schematic, n);
+      Symbol y = SymbolNameGenerator.getsym_NodeY(schematic, n);
+      owner.put(x, partition.getPart(i));
+      owner.put(y, partition.getPart(i));
+      nodeOf.put(x, n);
+      nodeOf.put(y, n);
+    }
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      int from = partition.getPart(index.get(ch.getFrom().getParent()));
+      int to = partition.getPart(index.get(ch.getTo().getParent()));
+      int part = from == to ? from : -1;
+      owner.put(SymbolNameGenerator.getsym_ChannelLength(schematic, ch),
+          part);
+      owner.put(SymbolNameGenerator.getsym_ChannelExtentX(schematic, ch),
+          part);
+      owner.put(SymbolNameGenerator.getsym_ChannelExtentY(schematic, ch),
+          part);
+    }
+
+    PlacementTranslationStrategySet placeSet =
+        strategies.createPlacementSet();
+    List<List<SExpression>> local = new ArrayList<>();
+    for (int p = 0; p < clusters; ++p) {
+      local.add(new ArrayList<SExpression>());
+    }
+    List<SExpression> shared = new ArrayList<>();
+    List<SExpression> global = new ArrayList<>();
+    for (SExpression expr : placeSet.translate(
+        schematic, processParams, typeTable)) {
+      if (!QFNRA.hasHead(expr, "assert")) {
+        continue;
+      }
+      Set<Integer> parts = new HashSet<>();
+      for (Symbol sym : SymbolCollector.collect(expr)) {
+        Integer part = owner.get(sym);
+        if (part != null) {
+          parts.add(part);
+        }
+      }
+      if (parts.isEmpty()) {
+        // refers to no cluster; needed everywhere
+        shared.add(expr);
+      } else if (parts.size() == 1 && !parts.contains(-1)) {
+        local.get(parts.iterator().next()).add(expr);
+      } else {
+        global.add(expr);
+      }
+    }
+
+    Map<NodeValue, double[]> pins = ReferencePlacement.pinnedPositions(
+        schematic, typeTable);
+    List<double[]> regions = new ArrayList<>();
+    for (int p = 0; p < clusters; ++p) {
+      regions.add(partition.getRegion(p).clone());
+    }
+    for (Map.Entry<NodeValue, double[]> pin : pins.entrySet()) {
+      // a pinned node stretches its cluster's rectangle if need be
+      double[] region = regions.get(partition.getPart(
+          index.get(pin.getKey())));
+      double[] at = pin.getValue();
+      region[0] = Math.min(region[0], at[0]);
+      region[1] = Math.min(region[1], at[1]);
+      region[2] = Math.max(region[2], at[0]);
+      region[3] = Math.max(region[3], at[1]);
+    }
+
+    List<List<SExpression>> clusterFormulas = new ArrayList<>();
+    for (int p = 0; p < clusters; ++p) {
+      List<SExpression> assertions = new ArrayList<>(shared);
+      assertions.addAll(local.get(p));
+      for (int i = 0; i < nodes.size(); ++i) {
+        if (partition.getPart(i) == p) {
+          addRegionBounds(nodes.get(i), regions.get(p), assertions);
+        }
+      }
+      clusterFormulas.add(assemble(assertions));
+    }
+    List<DRealSolver.Result> models = solveAll(clusterFormulas);
+    DRealSolver.Result combined = new DRealSolver.Result(true);
+    for (int p = 0; p < clusters; ++p) {
+      DRealSolver.Result model = models.get(p);
+      if (!model.isSatisfiable()) {
+        log.warn("cluster " + p + " has no placement in its region");
+        return new DRealSolver.Result(false);
+      }
+      for (Symbol sym : model.getSymbols()) {
+        combined.addRange(sym, model.getRange(sym));
+      }
+    }
+    lastFinalAssertions = 0;
+    if (global.isEmpty()) {
+      return combined;
+    }
+
+    // nodes that the assertions between clusters refer to move freely
+    // within their rectangles; the other nodes stay where they are
+    Set<NodeValue> free = new HashSet<>();
+    for (SExpression expr : global) {
+      for (Symbol sym : SymbolCollector.collect(expr)) {
+        if (nodeOf.containsKey(sym)) {
+          free.add(nodeOf.get(sym));
+        }
+      }
+    }
+    List<SExpression> assertions = new ArrayList<>(shared);
+    assertions.addAll(global);
+    for (List<SExpression> exprs : local) {
+      for (SExpression expr : exprs) {
+        for (Symbol sym : SymbolCollector.collect(expr)) {
+          if (free.contains(nodeOf.get(sym))) {
+            assertions.add(expr);
+            break;
+          }
+        }
+      }
+    }
+    lastFinalAssertions = assertions.size();
+    Set<Symbol> held = new LinkedHashSet<>();
+    for (SExpression expr : assertions) {
+      for (Symbol sym : SymbolCollector.collect(expr)) {
+        NodeValue n = nodeOf.get(sym);
+        if (n != null && !free.contains(n)) {
+          held.add(sym);
+        }
+      }
+    }
+    for (NodeValue n : free) {
+      addRegionBounds(n, regions.get(partition.getPart(index.get(n))),
+          assertions);
+    }
+    for (Symbol sym : held) {
+      DRealSolver.RealRange range = combined.getRange(sym);
+      if (range == null) {
+        continue;
+      }
+      // a model may stray just below 0, within the solver's precision
+      assertions.add(QFNRA.assertGreaterEqual(sym,
+          QFNRA.constant(range.lowerBound)));
+      assertions.add(QFNRA.assertLessThanEqual(sym,
+          QFNRA.constant(range.upperBound)));
+    }
+    List<List<SExpression>> last = new ArrayList<>();
+    last.add(assemble(assertions));
+    DRealSolver.Result model = solveAll(last).get(0);
+    if (!model.isSatisfiable()) {
+      log.warn("no placement of the channels between clusters");
+      return model;
+    }
+    for (Symbol sym : model.getSymbols()) {
+      combined.addRange(sym, model.getRange(sym));
+    }
+    return combined;
+  }
+
+  private void addRegionBounds(NodeValue n, double[] region,
+      List<SExpression> assertions) {
+    Symbol x = SymbolNameGenerator.getsym_NodeX(schematic, n);
+    Symbol y = SymbolNameGenerator.getsym_NodeY(schematic, n);
+    assertions.add(QFNRA.assertGreaterEqual(x, Decimal.plain(region[0])));
+    assertions.add(QFNRA.assertGreaterEqual(y, Decimal.plain(region[1])));
+    assertions.add(QFNRA.assertLessThanEqual(x, Decimal.plain(region[2])));
+    assertions.add(QFNRA.assertLessThanEqual(y, Decimal.plain(region[3])));
+  }
+
+  // declares every variable the assertions refer to
+  private static List<SExpression> assemble(List<SExpression> assertions) {
+    Set<Symbol> symbols = new LinkedHashSet<>();
+    for (SExpression expr : assertions) {
+      symbols.addAll(SymbolCollector.collect(expr));
+    }
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    for (Symbol sym : symbols) {
+      formula.add(QFNRA.declareRealVariable(sym));
+    }
+    formula.addAll(assertions);
+    return formula;
+  }
+
+  private List<DRealSolver.Result> solveAll(
+      List<List<SExpression>> formulas)
+      throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.min(threads, formulas.size()));
+    try {
+      List<Future<DRealSolver.Result>> futures = new ArrayList<>();
+      for (final List<SExpression> formula : formulas) {
+        futures.add(pool.submit(new Callable<DRealSolver.Result>() {
+          @Override
+          public DRealSolver.Result call() throws IOException {
+            return solverFactory.createSolver().solve(formula);
+          }
+        }));
+      }
+      List<DRealSolver.Result> results = new ArrayList<>();
+      for (Future<DRealSolver.Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      return results;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+}
@@ -58,7 +58,15 @@ public class AssertionChecker {
         return true;
       }
     }
-    SExpression term = ((ParenList) expr).getExprs().get(1);
+    return verifyTerm(((ParenList) expr).getExprs().get(1));
+  }
+  
+  // evaluates a comparison, or an "and" or "or" of terms
+  private boolean verifyTerm(SExpression term) {
+    if (!(term instanceof ParenList)) {
+      // malformed
+      return false;
+    }
     if (((ParenList) term).getExprs().size() != 3) {
       // malformed
       return false;
@@ -71,6 +79,11 @@ public class AssertionChecker {
     SExpression eLeft = ((ParenList) term).getExprs().get(1);
     double valLeft, valRight;
     SExpression eRight = ((ParenList) term).getExprs().get(2);
+    if (booleanSym.equals(new Symbol("and"))) {
+      return verifyTerm(eLeft) && verifyTerm(eRight);
+    } else if (booleanSym.equals(new Symbol("or"))) {
+      return verifyTerm(eLeft) || verifyTerm(eRight);
+    }
     try {
       eLeft.accept(evaluator);
       valLeft = evaluator.getValue();
@@ -0,0 +1,377 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.middle.Schematic;
+
+// Reorders the assertions of a formula, and its declarations to match,
+// so that constraints on the same variables are stated together.
+// Branch-and-prune solvers propagate constraints roughly in the order
+// they are given, so the order can change solve times a lot without
+// changing the answer.
+//
+// - "default" leaves everything as the strategies emitted it;
+// - "cluster" walks from assertion to assertion through shared
+//   variables, so that each connected part of the formula is stated in
+//   one piece;
+// - "tightness" states the assertions that narrow variables most first:
+//   constant definitions, then bounds on one variable, then equalities,
+//   then inequalities, then disjunctions;
+// - "schematic" walks the schematic breadth-first and states each
+//   assertion once every node and channel it refers to is reached.
+//
+// Declarations follow the first use of their variable. Commands other
+// than declarations and assertions stay before or after them, as they
+// were.
+public class AssertionOrdering {
+
+  public static final String DEFAULT = "default";
+  public static final String CLUSTER = "cluster";
+  public static final String TIGHTNESS = "tightness";
+  public static final String SCHEMATIC = "schematic";
+
+  public static final String[] NAMES = new String[] {
+    DEFAULT, CLUSTER, TIGHTNESS, SCHEMATIC
+  };
+
+  private static final Symbol ASSERT = new Symbol("assert");
+  private static final Symbol DECLARE_FUN = new Symbol("declare-fun");
+  private static final Symbol EQUAL = new Symbol("=");
+
+  private final String name;
+
+  public AssertionOrdering(String name) {
+    boolean known = false;
+    for (String n : NAMES) {
+      if (n.equals(name)) {
+        known = true;
+      }
+    }
+    if (!known) {
+      throw new IllegalArgumentException("unknown ordering '" + name
+          + "'; expected one of " + DEFAULT + ", " + CLUSTER + ", "
+          + TIGHTNESS + ", " + SCHEMATIC);
+    }
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  // the schematic the formula was translated from; needed for the
+  // "schematic" ordering
+  private Schematic schematic = null;
+  public void useSchematic(Schematic schematic) {
+    this.schematic = schematic;
+  }
+
+  public List<SExpression> order(List<SExpression> formula) {
+    if (name.equals(DEFAULT)) {
+      return new ArrayList<>(formula);
+    }
+    List<SExpression> leading = new ArrayList<>();
+    List<SExpression> declarations = new ArrayList<>();
+    List<SExpression> assertions = new ArrayList<>();
+    List<SExpression> trailing = new ArrayList<>();
+    for (SExpression expr : formula) {
+      if (isCommand(expr, DECLARE_FUN, 4)) {
+        declarations.add(expr);
+      } else if (isCommand(expr, ASSERT, 2)) {
+        assertions.add(expr);
+      } else if (declarations.isEmpty() && assertions.isEmpty()) {
+        leading.add(expr);
+      } else {
+        trailing.add(expr);
+      }
+    }
+    List<Set<Symbol>> variables = new ArrayList<>(assertions.size());
+    for (SExpression expr : assertions) {
+      variables.add(SymbolCollector.collect(body(expr)));
+    }
+
+    List<Integer> permutation;
+    if (name.equals(CLUSTER)) {
+      permutation = clusterOrder(assertions, variables);
+    } else if (name.equals(TIGHTNESS)) {
+      permutation = tightnessOrder(assertions, variables);
+    } else {
+      if (schematic == null) {
+        throw new IllegalStateException(
+            "the schematic ordering needs a schematic");
+      }
+      permutation = schematicOrder(variables);
+    }
+
+    List<SExpression> orderedAssertions = new ArrayList<>(assertions.size());
+    for (int i : permutation) {
+      orderedAssertions.add(assertions.get(i));
+    }
+    // declarations in order of first use; unused ones last
+    Map<Symbol, Integer> firstUse = new HashMap<>();
+    for (int k = 0; k < permutation.size(); ++k) {
+      for (Symbol sym : variables.get(permutation.get(k))) {
+        if (!firstUse.containsKey(sym)) {
+          firstUse.put(sym, k);
+        }
+      }
+    }
+    List<SExpression> orderedDeclarations = new ArrayList<>(declarations);
+    final Map<Symbol, Integer> use = firstUse;
+    final int unused = permutation.size();
+    Collections.sort(orderedDeclarations, new Comparator<SExpression>() {
+      @Override
+      public int compare(SExpression a, SExpression b) {
+        return Integer.compare(rank(a), rank(b));
+      }
+      private int rank(SExpression decl) {
+        Integer k = use.get(((ParenList) decl).getExprs().get(1));
+        return k == null ? unused : k;
+      }
+    });
+
+    List<SExpression> result = new ArrayList<>(formula.size());
+    result.addAll(leading);
+    result.addAll(orderedDeclarations);
+    result.addAll(orderedAssertions);
+    result.addAll(trailing);
+    return result;
+  }
+
+  // breadth-first through shared variables, starting each new part of
+  // the formula from its earliest assertion; variables fixed to a
+  // constant connect nothing
+  private List<Integer> clusterOrder(List<SExpression> assertions,
+      List<Set<Symbol>> variables) {
+    Set<Symbol> fixed = new HashSet<>();
+    for (SExpression expr : assertions) {
+      Symbol constant = definedConstant(body(expr));
+      if (constant != null) {
+        fixed.add(constant);
+      }
+    }
+    Map<Symbol, List<Integer>> occurrences = new HashMap<>();
+    for (int i = 0; i < variables.size(); ++i) {
+      for (Symbol sym : variables.get(i)) {
+        if (fixed.contains(sym)) {
+          continue;
+        }
+        List<Integer> at = occurrences.get(sym);
+        if (at == null) {
+          at = new ArrayList<>();
+          occurrences.put(sym, at);
+        }
+        at.add(i);
+      }
+    }
+    List<Integer> permutation = new ArrayList<>(assertions.size());
+    boolean[] taken = new boolean[assertions.size()];
+    Set<Symbol> reached = new HashSet<>();
+    for (int start = 0; start < assertions.size(); ++start) {
+      if (taken[start]) {
+        continue;
+      }
+      Deque<Integer> queue = new ArrayDeque<>();
+      taken[start] = true;
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        int i = queue.poll();
+        permutation.add(i);
+        for (Symbol sym : variables.get(i)) {
+          List<Integer> at = occurrences.get(sym);
+          if (at == null || !reached.add(sym)) {
+            continue;
+          }
+          for (int j : at) {
+            if (!taken[j]) {
+              taken[j] = true;
+              queue.add(j);
+            }
+          }
+        }
+      }
+    }
+    return permutation;
+  }
+
+  private List<Integer> tightnessOrder(List<SExpression> assertions,
+      List<Set<Symbol>> variables) {
+    final int[] score = new int[assertions.size()];
+    final int[] width = new int[assertions.size()];
+    List<Integer> permutation = new ArrayList<>(assertions.size());
+    for (int i = 0; i < assertions.size(); ++i) {
+      score[i] = tightness(body(assertions.get(i)), variables.get(i));
+      width[i] = variables.get(i).size();
+      permutation.add(i);
+    }
+    // stable, so equally tight assertions keep their order
+    Collections.sort(permutation, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if (score[a] != score[b]) {
+          return Integer.compare(score[a], score[b]);
+        }
+        return Integer.compare(width[a], width[b]);
+      }
+    });
+    return permutation;
+  }
+
+  /**
+   * @return 0 for a constant definition, 1 for a bound on one variable,
+   * 2 for an equality, 3 for an inequality, and 4 for anything else
+   */
+  private static int tightness(SExpression term, Set<Symbol> variables) {
+    if (definedConstant(term) != null) {
+      return 0;
+    }
+    if (!(term instanceof ParenList)) {
+      return 4;
+    }
+    List<SExpression> terms = ((ParenList) term).getExprs();
+    if (terms.size() != 3 || !(terms.get(0) instanceof Symbol)) {
+      return 4;
+    }
+    String op = ((Symbol) terms.get(0)).getName();
+    boolean equality = op.equals("=");
+    boolean inequality = op.equals("<") || op.equals("<=")
+        || op.equals(">") || op.equals(">=");
+    if (!equality && !inequality) {
+      return 4;
+    }
+    if (variables.size() <= 1) {
+      return 1;
+    }
+    return equality ? 2 : 3;
+  }
+
+  // each node and channel is ranked by when a breadth-first walk of
+  // the schematic reaches it; an assertion comes at the rank of the
+  // last owner of its variables, and assertions on no schematic
+  // element (such as the definition of pi) come first
+  private List<Integer> schematicOrder(List<Set<Symbol>> variables) {
+    final Map<String, Integer> rank = schematicRanks();
+    final int[] at = new int[variables.size()];
+    List<Integer> permutation = new ArrayList<>(variables.size());
+    for (int i = 0; i < variables.size(); ++i) {
+      int last = -1;
+      for (Symbol sym : variables.get(i)) {
+        Integer r = owner(sym.getName(), rank);
+        if (r != null && r > last) {
+          last = r;
+        }
+      }
+      at[i] = last;
+      permutation.add(i);
+    }
+    Collections.sort(permutation, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(at[a], at[b]);
+      }
+    });
+    return permutation;
+  }
+
+  private Map<String, Integer> schematicRanks() {
+    // sorted by name, so that the walk does not depend on hashing
+    Map<String, NodeValue> nodes = new TreeMap<>(schematic.getNodes());
+    Map<NodeValue, List<ConnectionValue>> incident = new HashMap<>();
+    for (NodeValue node : nodes.values()) {
+      incident.put(node, new ArrayList<ConnectionValue>());
+    }
+    for (ConnectionValue c : new TreeMap<>(
+        schematic.getConnections()).values()) {
+      incident.get(c.getFrom().getParent()).add(c);
+      incident.get(c.getTo().getParent()).add(c);
+    }
+    Map<String, Integer> rank = new HashMap<>();
+    Set<NodeValue> reached = new HashSet<>();
+    for (NodeValue start : nodes.values()) {
+      if (!reached.add(start)) {
+        continue;
+      }
+      Deque<NodeValue> queue = new ArrayDeque<>();
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        NodeValue node = queue.poll();
+        rank.put(schematic.getNodeName(node), rank.size());
+        for (ConnectionValue c : incident.get(node)) {
+          String channel = schematic.getConnectionName(c);
+          if (!rank.containsKey(channel)) {
+            rank.put(channel, rank.size());
+          }
+          NodeValue other = c.getFrom().getParent() == node
+              ? c.getTo().getParent() : c.getFrom().getParent();
+          if (reached.add(other)) {
+            queue.add(other);
+          }
+        }
+      }
+    }
+    return rank;
+  }
+
+  // variables are named "<element>_<quantity>"; the owner is the element
+  // named by the longest prefix ending before an underscore
+  private static Integer owner(String symbol, Map<String, Integer> rank) {
+    for (int i = symbol.lastIndexOf('_'); i > 0;
+        i = symbol.lastIndexOf('_', i - 1)) {
+      Integer r = rank.get(symbol.substring(0, i));
+      if (r != null) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  private static SExpression body(SExpression assertion) {
+    return ((ParenList) assertion).getExprs().get(1);
+  }
+
+  private static boolean isCommand(SExpression expr, Symbol command,
+      int size) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == size && terms.get(0).equals(command);
+  }
+
+  private static boolean isConstant(SExpression expr) {
+    return expr instanceof Decimal || expr instanceof Numeral;
+  }
+
+  /**
+   * @return x if the term is (= x c) or (= c x) for a constant c,
+   * otherwise null
+   */
+  private static Symbol definedConstant(SExpression term) {
+    if (!(term instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) term).getExprs();
+    if (terms.size() != 3 || !terms.get(0).equals(EQUAL)) {
+      return null;
+    }
+    if (terms.get(1) instanceof Symbol && isConstant(terms.get(2))) {
+      return (Symbol) terms.get(1);
+    } else if (terms.get(2) instanceof Symbol && isConstant(terms.get(1))) {
+      return (Symbol) terms.get(2);
+    }
+    return null;
+  }
+
+}
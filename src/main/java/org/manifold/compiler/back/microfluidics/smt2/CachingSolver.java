@@ -0,0 +1,78 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Answers formulas from a ResultCache when possible, and otherwise asks
+// the underlying solver and remembers its answer.
+// Formulas are matched up to renaming of variables and reordering of
+// declarations and assertions, so results are stored with canonical
+// variable names and renamed on the way out. The underlying solver's
+// precision is part of the key, so the cache can sit below a solver
+// that changes it, such as PrecisionEscalationSolver.
+public class CachingSolver implements DeltaSolver {
+
+  private final FormulaSolver solver;
+  private final ResultCache cache;
+
+  public CachingSolver(FormulaSolver solver, ResultCache cache) {
+    this.solver = solver;
+    this.cache = cache;
+  }
+
+  private final AtomicLong hits = new AtomicLong();
+  public long getHits() {
+    return hits.get();
+  }
+
+  private final AtomicLong misses = new AtomicLong();
+  public long getMisses() {
+    return misses.get();
+  }
+
+  // the precision last set through this solver, if any
+  private double precision = Double.NaN;
+
+  @Override
+  public void setPrecision(double precision) {
+    if (!(solver instanceof DeltaSolver)) {
+      throw new UnsupportedOperationException(
+          "the cached solver has no adjustable precision");
+    }
+    ((DeltaSolver) solver).setPrecision(precision);
+    this.precision = precision;
+  }
+
+  /**
+   * @return a description of the settings of the underlying solver that
+   * can change its answers
+   */
+  String describeSolver() {
+    StringBuilder options = new StringBuilder(solver.getClass().getName());
+    if (solver instanceof DRealSolver) {
+      options.append(" --precision ")
+          .append(((DRealSolver) solver).getPrecision());
+    } else if (!Double.isNaN(precision)) {
+      options.append(" --precision ").append(precision);
+    }
+    return options.toString();
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    FormulaFingerprint fingerprint = new FormulaFingerprint(formula,
+        describeSolver());
+    DRealSolver.Result cached = cache.get(fingerprint.getHash());
+    if (cached != null) {
+      hits.incrementAndGet();
+      return fingerprint.fromCanonical(cached);
+    }
+    misses.incrementAndGet();
+    DRealSolver.Result result = solver.solve(formula);
+    cache.put(fingerprint.getHash(), fingerprint.toCanonical(result));
+    return result;
+  }
+
+}
@@ -0,0 +1,154 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Cuts a formula down to the part that can influence a few variables.
+//
+// Starting from the targets, every assertion that mentions a variable in
+// the cone is taken, and the other variables of that assertion join the
+// cone, until nothing changes. Variables the formula fixes to a constant
+// at the top level, like PI, carry no information from one assertion to
+// another, so their definitions are taken but the cone does not grow
+// through them; otherwise nearly every formula would be one cone.
+//
+// The slice is a subset of the formula's assertions. It is satisfiable
+// whenever the formula is, and the ranges it allows for the targets
+// contain the ones the whole formula allows; it says nothing about
+// constraints outside the cone.
+public class ConeOfInfluence {
+
+  private static final Symbol ASSERT = new Symbol("assert");
+  private static final Symbol DECLARE_FUN = new Symbol("declare-fun");
+  private static final Symbol EQUAL = new Symbol("=");
+
+  private final Set<Symbol> targets = new LinkedHashSet<>();
+  public void addTarget(Symbol sym) {
+    targets.add(sym);
+  }
+
+  private Set<Symbol> cone = new HashSet<>();
+  /**
+   * @return the variables of the last slice
+   */
+  public Set<Symbol> getCone() {
+    return Collections.unmodifiableSet(cone);
+  }
+
+  public List<SExpression> slice(List<SExpression> formula) {
+    // the variables of each assertion, and the assertions of each
+    // variable
+    List<Set<Symbol>> variables = new ArrayList<>(formula.size());
+    Map<Symbol, List<Integer>> occurrences = new HashMap<>();
+    Set<Symbol> fixed = new HashSet<>();
+    for (int i = 0; i < formula.size(); ++i) {
+      SExpression expr = formula.get(i);
+      if (!isCommand(expr, ASSERT, 2)) {
+        variables.add(Collections.<Symbol>emptySet());
+        continue;
+      }
+      SExpression term = ((ParenList) expr).getExprs().get(1);
+      Set<Symbol> syms = SymbolCollector.collect(term);
+      variables.add(syms);
+      for (Symbol sym : syms) {
+        List<Integer> at = occurrences.get(sym);
+        if (at == null) {
+          at = new ArrayList<>();
+          occurrences.put(sym, at);
+        }
+        at.add(i);
+      }
+      Symbol constant = definedConstant(term);
+      if (constant != null) {
+        fixed.add(constant);
+      }
+    }
+
+    cone = new HashSet<>(targets);
+    Set<Integer> taken = new HashSet<>();
+    Deque<Symbol> queue = new ArrayDeque<>(targets);
+    while (!queue.isEmpty()) {
+      Symbol sym = queue.poll();
+      List<Integer> at = occurrences.get(sym);
+      if (at == null) {
+        continue;
+      }
+      for (int i : at) {
+        if (taken.contains(i)) {
+          continue;
+        }
+        boolean definition = definedConstant(
+            ((ParenList) formula.get(i)).getExprs().get(1)) != null;
+        if (fixed.contains(sym) && !targets.contains(sym) && !definition) {
+          // only the value of a fixed variable matters
+          continue;
+        }
+        taken.add(i);
+        for (Symbol other : variables.get(i)) {
+          if (cone.add(other)) {
+            queue.add(other);
+          }
+        }
+      }
+    }
+
+    List<SExpression> slice = new ArrayList<>();
+    for (int i = 0; i < formula.size(); ++i) {
+      SExpression expr = formula.get(i);
+      if (isCommand(expr, ASSERT, 2)) {
+        if (taken.contains(i)) {
+          slice.add(expr);
+        }
+      } else if (isCommand(expr, DECLARE_FUN, 4)) {
+        if (cone.contains(((ParenList) expr).getExprs().get(1))) {
+          slice.add(expr);
+        }
+      } else {
+        slice.add(expr);
+      }
+    }
+    return slice;
+  }
+
+  private static boolean isCommand(SExpression expr, Symbol command,
+      int size) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == size && terms.get(0).equals(command);
+  }
+
+  private static boolean isConstant(SExpression expr) {
+    return expr instanceof Decimal || expr instanceof Numeral;
+  }
+
+  /**
+   * @return x if the term is (= x c) or (= c x) for a constant c,
+   * otherwise null
+   */
+  private static Symbol definedConstant(SExpression term) {
+    if (!(term instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) term).getExprs();
+    if (terms.size() != 3 || !terms.get(0).equals(EQUAL)) {
+      return null;
+    }
+    if (terms.get(1) instanceof Symbol && isConstant(terms.get(2))) {
+      return (Symbol) terms.get(1);
+    } else if (terms.get(2) instanceof Symbol && isConstant(terms.get(1))) {
+      return (Symbol) terms.get(2);
+    }
+    return null;
+  }
+
+}
@@ -8,14 +8,16 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class DRealSolver implements AutoCloseable {
+public class DRealSolver implements AutoCloseable, DeltaSolver {
 
-  class RealRange {
+  public static class RealRange {
     public final double lowerBound;
     public final double upperBound;
     
@@ -25,7 +27,7 @@ public class DRealSolver implements AutoCloseable {
     }
   }
   
-  class Result {
+  public static class Result {
     private final boolean satisfiable;
     public boolean isSatisfiable() {
       return this.satisfiable;
@@ -35,6 +37,12 @@ public class DRealSolver implements AutoCloseable {
     public RealRange getRange(Symbol sym) {
       return ranges.get(sym);
     }
+    public Set<Symbol> getSymbols() {
+      return Collections.unmodifiableSet(ranges.keySet());
+    }
+    public void addRange(Symbol sym, RealRange range) {
+      ranges.put(sym, range);
+    }
     public void addResult(String symbolName, 
         String lowerBound, String upperBound) {
       Symbol sym = new Symbol(symbolName);
@@ -80,6 +88,17 @@ public class DRealSolver implements AutoCloseable {
     }
   }
  
+  // the delta of dReal's delta-satisfiability;
+  // a non-positive value leaves dReal's default in place
+  private double precision = 0.0;
+  @Override
+  public void setPrecision(double precision) {
+    this.precision = precision;
+  }
+  public double getPrecision() {
+    return precision;
+  }
+  
   private Process dRealProcess = null;
   private BufferedWriter writer;
   private BufferedReader reader;
@@ -89,6 +108,10 @@ public class DRealSolver implements AutoCloseable {
     command.add(pathToDReal);
     command.add("--in");
     command.add("--model");
+    if (precision > 0.0) {
+      command.add("--precision");
+      command.add(Double.toString(precision));
+    }
     ProcessBuilder builder = new ProcessBuilder(command);
     builder.redirectErrorStream(true);
     dRealProcess = builder.start();
@@ -180,6 +203,39 @@ public class DRealSolver implements AutoCloseable {
     }
   }
   
+  /**
+   * Runs a complete session on the given formula. Any set-logic,
+   * check-sat and exit commands in the formula are ignored, since the
+   * session issues its own.
+   */
+  @Override
+  public Result solve(List<SExpression> formula) throws IOException {
+    try {
+      open();
+      for (SExpression expr : formula) {
+        if (!isSessionCommand(expr)) {
+          write(expr);
+        }
+      }
+      return solve();
+    } finally {
+      close();
+    }
+  }
+  
+  private static boolean isSessionCommand(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    if (terms.isEmpty() || !(terms.get(0) instanceof Symbol)) {
+      return false;
+    }
+    String head = ((Symbol) terms.get(0)).getName();
+    return head.equals("set-logic") || head.equals("check-sat")
+        || head.equals("exit");
+  }
+  
   @Override
   public void close() {
     if (dRealProcess != null) {
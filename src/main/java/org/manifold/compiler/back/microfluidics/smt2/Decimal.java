@@ -2,6 +2,8 @@ package org.manifold.compiler.back.microfluidics.smt2;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 
 public class Decimal extends SExpression {
 
@@ -34,7 +36,7 @@ public class Decimal extends SExpression {
     }
     String integerPart = repr.substring(0, decimalIdx);
     try {
-      Integer.parseInt(integerPart);
+      new BigInteger(integerPart);
     } catch (NumberFormatException e) {
       throw new IllegalArgumentException(
           "malformed decimal representation '" + repr + "'");
@@ -61,6 +63,17 @@ public class Decimal extends SExpression {
     this.repr = Double.toString(value);
   }
   
+  // a decimal without an exponent, which SMT-LIB does not allow and
+  // Double.toString() produces for very large and very small values
+  public static Decimal plain(double value) {
+    return plain(BigDecimal.valueOf(value));
+  }
+
+  public static Decimal plain(BigDecimal value) {
+    String repr = value.stripTrailingZeros().toPlainString();
+    return new Decimal(repr.indexOf('.') == -1 ? repr + ".0" : repr);
+  }
+  
   @Override
   public void write(Writer writer) throws IOException {
     writer.write(getRepresentation());
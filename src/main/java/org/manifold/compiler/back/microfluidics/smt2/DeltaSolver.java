@@ -0,0 +1,10 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+// A solver that decides delta-satisfiability for an adjustable delta.
+// An unsat answer is exact at every precision; a sat answer only means
+// that the formula, weakened by delta, is satisfiable.
+public interface DeltaSolver extends FormulaSolver {
+
+  void setPrecision(double precision);
+
+}
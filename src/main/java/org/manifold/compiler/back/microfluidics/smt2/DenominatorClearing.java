@@ -0,0 +1,373 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites assertions so that the solver sees fewer divisions by
+// variables, which widen interval contraction badly.
+//
+// Both sides of each comparison are brought into the form num / den,
+// where den is a product of denominators known to be positive, and the
+// comparison is multiplied through by both dens: a / d < c becomes
+// a < c * d if d > 0. Signs come from the formula's own top-level
+// assertions such as (> w 0.0), and from the shape of a term: products,
+// sums and quotients of positive terms are positive, squares and sums of
+// squares are non-negative. A denominator that is only known to be
+// non-negative is cleared at the top level of an assertion, where a
+// positivity side condition (> den 0) is always added for it, bare
+// variable or not; this only rules out the solutions where the original
+// division was by zero. Every other cleared denominator that is not a
+// bare variable gets such a side condition too, which helps the solver
+// contract.
+//
+// Divisions whose denominator has an unknown sign are kept, but their
+// numerator and denominator are still cleared of nested divisions.
+public class DenominatorClearing {
+
+  private enum Sign { POSITIVE, NONNEGATIVE, UNKNOWN }
+
+  // a term as num / den, where a null den stands for 1
+  private static final class Fraction {
+    final SExpression num;
+    final SExpression den;
+
+    Fraction(SExpression num, SExpression den) {
+      this.num = num;
+      this.den = den;
+    }
+  }
+
+  private static final Symbol ASSERT = new Symbol("assert");
+  private static final Symbol DIVIDE = new Symbol("/");
+
+  // the sign of terms asserted at the top level, keyed by their text
+  private final Map<String, Sign> known = new HashMap<>();
+  private final Set<String> conditioned = new HashSet<>();
+  private List<SExpression> sideConditions = new ArrayList<>();
+
+  private int clearedDivisions = 0;
+  /**
+   * @return how many divisions the last rewrite removed
+   */
+  public int getClearedDivisions() {
+    return clearedDivisions;
+  }
+
+  public static List<SExpression> clear(List<SExpression> formula) {
+    return new DenominatorClearing().rewrite(formula);
+  }
+
+  public List<SExpression> rewrite(List<SExpression> formula) {
+    known.clear();
+    conditioned.clear();
+    clearedDivisions = 0;
+    collectSigns(formula);
+    List<SExpression> result = new ArrayList<>(formula.size());
+    for (SExpression expr : formula) {
+      if (!isAssertion(expr) || !containsDivision(expr)) {
+        result.add(expr);
+        continue;
+      }
+      sideConditions = new ArrayList<>();
+      SExpression term = ((ParenList) expr).getExprs().get(1);
+      result.add(QFNRA.assertThat(rewriteCondition(term, true)));
+      result.addAll(sideConditions);
+    }
+    return result;
+  }
+
+  private static boolean isAssertion(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == 2 && terms.get(0).equals(ASSERT);
+  }
+
+  private static boolean containsDivision(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    if (!terms.isEmpty() && terms.get(0).equals(DIVIDE)) {
+      return true;
+    }
+    for (SExpression term : terms) {
+      if (containsDivision(term)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String head(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    if (terms.isEmpty() || !(terms.get(0) instanceof Symbol)) {
+      return null;
+    }
+    return ((Symbol) terms.get(0)).getName();
+  }
+
+  private static List<SExpression> args(SExpression expr) {
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.subList(1, terms.size());
+  }
+
+  /**
+   * @return the value of a constant, or NaN if the term is not one
+   */
+  private static double constant(SExpression expr) {
+    if (expr instanceof Decimal) {
+      return ((Decimal) expr).getValue();
+    } else if (expr instanceof Numeral) {
+      return ((Numeral) expr).getValue();
+    }
+    return Double.NaN;
+  }
+
+  // the more informative of two signs
+  private static Sign stronger(Sign a, Sign b) {
+    return a.ordinal() < b.ordinal() ? a : b;
+  }
+
+  /**
+   * @return true if this is news
+   */
+  private boolean learn(SExpression term, Sign sign) {
+    String key = term.toString();
+    Sign old = known.get(key);
+    Sign now = old == null ? sign : stronger(old, sign);
+    known.put(key, now);
+    return now != old;
+  }
+
+  // reads signs off (> t c), (>= t c), (= t c) and their mirror images,
+  // for constants c and for terms c whose sign is known
+  private void collectSigns(List<SExpression> formula) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (SExpression expr : formula) {
+        if (!isAssertion(expr)) {
+          continue;
+        }
+        SExpression term = ((ParenList) expr).getExprs().get(1);
+        String op = head(term);
+        if (op == null || args(term).size() != 2) {
+          continue;
+        }
+        SExpression a = args(term).get(0);
+        SExpression b = args(term).get(1);
+        if (op.equals(">") || op.equals(">=") || op.equals("=")) {
+          changed |= learnFrom(a, b, op.equals(">"));
+        }
+        if (op.equals("<") || op.equals("<=") || op.equals("=")) {
+          changed |= learnFrom(b, a, op.equals("<"));
+        }
+      }
+    }
+  }
+
+  // learns from "big > small" (strict) or "big >= small"
+  private boolean learnFrom(SExpression big, SExpression small,
+      boolean strict) {
+    Sign smallSign = sign(small);
+    if (smallSign == Sign.POSITIVE
+        || (strict && smallSign == Sign.NONNEGATIVE)) {
+      return learn(big, Sign.POSITIVE);
+    } else if (smallSign == Sign.NONNEGATIVE) {
+      return learn(big, Sign.NONNEGATIVE);
+    }
+    return false;
+  }
+
+  private Sign sign(SExpression expr) {
+    double c = constant(expr);
+    if (!Double.isNaN(c)) {
+      return c > 0.0 ? Sign.POSITIVE
+          : c == 0.0 ? Sign.NONNEGATIVE : Sign.UNKNOWN;
+    }
+    Sign sign = Sign.UNKNOWN;
+    Sign learned = known.get(expr.toString());
+    if (learned != null) {
+      sign = learned;
+    }
+    String op = head(expr);
+    if (op == null || sign == Sign.POSITIVE) {
+      return sign;
+    }
+    List<SExpression> args = args(expr);
+    if (op.equals("*") || op.equals("/")) {
+      if (args.size() == 2 && op.equals("*")
+          && args.get(0).toString().equals(args.get(1).toString())) {
+        // a square
+        return stronger(sign, stronger(Sign.NONNEGATIVE, sign(args.get(0))));
+      }
+      if (op.equals("/") && (args.size() != 2
+          || sign(args.get(1)) != Sign.POSITIVE)) {
+        return sign;
+      }
+      Sign all = Sign.POSITIVE;
+      for (SExpression arg : args) {
+        Sign s = sign(arg);
+        all = s == Sign.UNKNOWN ? Sign.UNKNOWN
+            : all == Sign.POSITIVE ? s : all;
+      }
+      return stronger(sign, all);
+    } else if (op.equals("+")) {
+      Sign all = Sign.NONNEGATIVE;
+      boolean anyPositive = false;
+      for (SExpression arg : args) {
+        Sign s = sign(arg);
+        if (s == Sign.UNKNOWN) {
+          all = Sign.UNKNOWN;
+        }
+        anyPositive |= s == Sign.POSITIVE;
+      }
+      if (all != Sign.UNKNOWN && anyPositive) {
+        all = Sign.POSITIVE;
+      }
+      return stronger(sign, all);
+    } else if (op.equals("^") && args.size() == 2) {
+      Sign base = sign(args.get(0));
+      double k = constant(args.get(1));
+      if (base == Sign.POSITIVE) {
+        return Sign.POSITIVE;
+      }
+      if (k == Math.rint(k) && Math.rint(k) % 2 == 0) {
+        return stronger(sign, Sign.NONNEGATIVE);
+      }
+      if (base == Sign.NONNEGATIVE) {
+        return stronger(sign, Sign.NONNEGATIVE);
+      }
+    }
+    return sign;
+  }
+
+  private static SExpression multiply(SExpression a, SExpression b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    return QFNRA.multiply(a, b);
+  }
+
+  private static boolean sameDenominator(Fraction a, Fraction b) {
+    if (a.den == null || b.den == null) {
+      return a.den == b.den;
+    }
+    return a.den.toString().equals(b.den.toString());
+  }
+
+  private static Fraction addOrSubtract(Fraction a, Fraction b, String op) {
+    if (sameDenominator(a, b)) {
+      return new Fraction(new ParenList(new SExpression[] {
+        new Symbol(op), a.num, b.num
+      }), a.den);
+    }
+    return new Fraction(new ParenList(new SExpression[] {
+      new Symbol(op), multiply(a.num, b.den), multiply(b.num, a.den)
+    }), multiply(a.den, b.den));
+  }
+
+  private Fraction divide(Fraction a, Fraction b, boolean topLevel) {
+    SExpression num = multiply(a.num, b.den);
+    SExpression den = multiply(a.den, b.num);
+    Sign s = sign(b.num);
+    if (s == Sign.POSITIVE || (s == Sign.NONNEGATIVE && topLevel)) {
+      ++clearedDivisions;
+      // without the condition, a non-negative denominator could be zero
+      boolean needed = s == Sign.NONNEGATIVE;
+      boolean helps = !(b.num instanceof Symbol)
+          && Double.isNaN(constant(b.num));
+      if ((needed || helps) && conditioned.add(b.num.toString())) {
+        sideConditions.add(QFNRA.assertGreater(b.num, new Decimal(0.0)));
+        learn(b.num, Sign.POSITIVE);
+      }
+      return new Fraction(num, den);
+    }
+    // a / b = (a.num * b.den) / (a.den * b.num), still a division
+    return new Fraction(QFNRA.divide(num, den), null);
+  }
+
+  private Fraction rewriteTerm(SExpression expr, boolean topLevel) {
+    String op = head(expr);
+    if (op == null || !containsDivision(expr)) {
+      return new Fraction(expr, null);
+    }
+    List<SExpression> args = args(expr);
+    if (args.isEmpty()) {
+      return new Fraction(expr, null);
+    }
+    if (op.equals("+") || op.equals("-") || op.equals("*")) {
+      Fraction result = rewriteTerm(args.get(0), topLevel);
+      if (args.size() == 1) {
+        if (op.equals("-")) {
+          return new Fraction(new ParenList(new SExpression[] {
+            new Symbol("-"), result.num
+          }), result.den);
+        }
+        return result;
+      }
+      for (int i = 1; i < args.size(); ++i) {
+        Fraction next = rewriteTerm(args.get(i), topLevel);
+        if (op.equals("*")) {
+          result = new Fraction(multiply(result.num, next.num),
+              multiply(result.den, next.den));
+        } else {
+          result = addOrSubtract(result, next, op);
+        }
+      }
+      return result;
+    } else if (op.equals("/") && args.size() == 2) {
+      return divide(rewriteTerm(args.get(0), topLevel),
+          rewriteTerm(args.get(1), topLevel), topLevel);
+    } else if (op.equals("^") && args.size() == 2) {
+      double k = constant(args.get(1));
+      if (k == Math.rint(k) && k >= 0.0) {
+        Fraction base = rewriteTerm(args.get(0), topLevel);
+        return new Fraction(QFNRA.pow(base.num, args.get(1)),
+            base.den == null ? null : QFNRA.pow(base.den, args.get(1)));
+      }
+    }
+    // a function we cannot see through
+    return new Fraction(expr, null);
+  }
+
+  private SExpression rewriteCondition(SExpression term, boolean topLevel) {
+    String op = head(term);
+    if (op == null) {
+      return term;
+    }
+    List<SExpression> args = args(term);
+    if (op.equals("and") || op.equals("or") || op.equals("not")) {
+      List<SExpression> terms = new ArrayList<>();
+      terms.add(new Symbol(op));
+      for (SExpression arg : args) {
+        terms.add(rewriteCondition(arg, false));
+      }
+      return new ParenList(terms);
+    }
+    if (args.size() != 2 || !(op.equals("=") || op.equals("<")
+        || op.equals("<=") || op.equals(">") || op.equals(">="))) {
+      return term;
+    }
+    Fraction left = rewriteTerm(args.get(0), topLevel);
+    Fraction right = rewriteTerm(args.get(1), topLevel);
+    return new ParenList(new SExpression[] {
+      new Symbol(op),
+      multiply(left.num, right.den),
+      multiply(right.num, left.den)
+    });
+  }
+
+}
@@ -55,6 +55,11 @@ public class ExprEvalVisitor implements SExpressionVisitor {
         // try binary expressions first
         if (evalBinaryExpr(func, l)) {
           return;
+        } else if (l.getExprs().size() == 2
+            && func.equals(new Symbol("-"))) {
+          // a negated constant, as QFNRA.constant() writes it
+          l.getExprs().get(1).accept(this);
+          value = -value;
         } else {
           throw new ArithmeticException ("cannot evaluate unknown function '"
               + func + "' in expression " + l.toString());
@@ -80,6 +85,9 @@ public class ExprEvalVisitor implements SExpressionVisitor {
     } else if (func.equals(new Symbol("*"))) {
       value = vLeft * vRight;
       return true;
+    } else if (func.equals(new Symbol("/"))) {
+      value = vLeft / vRight;
+      return true;
     } else if (func.equals(new Symbol("^"))) {
       value = Math.pow(vLeft, vRight);
       return true;
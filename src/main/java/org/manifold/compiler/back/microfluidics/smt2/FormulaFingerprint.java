@@ -0,0 +1,233 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+// A canonical form of a formula, and a 128-bit hash of it, that does not
+// depend on the order of declarations and assertions or on the names
+// of the declared variables.
+//
+// Variables are renamed v0, v1, ... in an order derived from how they are
+// used, by a few rounds of colour refinement: each variable starts with
+// the same colour, and in each round its new colour is a hash of the
+// assertions it occurs in (written with every variable replaced by its
+// current colour) and its positions within them. Variables that still
+// share a colour afterwards are ordered by declaration. Two formulas
+// with the same canonical text are therefore always equal up to renaming
+// and reordering; some formulas that are equal up to renaming may still
+// get different canonical texts, which only costs a cache miss.
+//
+// The sort of every declaration, the logic and other solver commands,
+// and a description of the solver's settings, such as its precision,
+// are part of the canonical text, since each of them can change the
+// answer.
+public class FormulaFingerprint {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  // rounds of colour refinement
+  private static final int REFINEMENT_ROUNDS = 3;
+
+  private final String canonicalText;
+  private final String hash;
+  private final Map<Symbol, Symbol> toCanonical = new HashMap<>();
+  private final Map<Symbol, Symbol> fromCanonical = new HashMap<>();
+
+  public FormulaFingerprint(List<SExpression> formula) {
+    this(formula, "");
+  }
+
+  /**
+   * @param solverOptions the settings of the solver that will answer the
+   * formula, in any form that differs whenever the answer could
+   */
+  public FormulaFingerprint(List<SExpression> formula,
+      String solverOptions) {
+    // declared variables, in declaration order, and their declarations
+    Map<Symbol, Integer> declared = new LinkedHashMap<>();
+    Map<Symbol, SExpression> declarations = new HashMap<>();
+    // set-logic, set-option and set-info, in their order
+    StringBuilder header = new StringBuilder();
+    List<SExpression> body = new ArrayList<>();
+    Map<Symbol, String> none = new HashMap<>();
+    for (SExpression expr : formula) {
+      String head = headOf(expr);
+      if ("declare-fun".equals(head)) {
+        Symbol var = (Symbol) ((ParenList) expr).getExprs().get(1);
+        if (!declared.containsKey(var)) {
+          declared.put(var, declared.size());
+          declarations.put(var, expr);
+        }
+      } else if ("set-logic".equals(head) || "set-option".equals(head)
+          || "set-info".equals(head)) {
+        render(expr, none, "", header, new ArrayList<Symbol>());
+        header.append('\n');
+      } else if (!"check-sat".equals(head) && !"exit".equals(head)) {
+        body.add(expr);
+      }
+    }
+    if (!solverOptions.isEmpty()) {
+      header.append("; solver ").append(solverOptions).append('\n');
+    }
+
+    // variables of different sorts start out with different colours
+    final Map<Symbol, String> colour = new HashMap<>();
+    for (Symbol var : declared.keySet()) {
+      Map<Symbol, String> self = new HashMap<>();
+      self.put(var, "");
+      StringBuilder sort = new StringBuilder();
+      render(declarations.get(var), self, "?", sort,
+          new ArrayList<Symbol>());
+      colour.put(var, sort.toString());
+    }
+    for (int round = 0; round < REFINEMENT_ROUNDS; ++round) {
+      Map<Symbol, List<String>> uses = new HashMap<>();
+      for (Symbol var : declared.keySet()) {
+        uses.put(var, new ArrayList<String>());
+      }
+      for (SExpression expr : body) {
+        StringBuilder text = new StringBuilder();
+        List<Symbol> occurrences = new ArrayList<>();
+        render(expr, colour, "?", text, occurrences);
+        for (int k = 0; k < occurrences.size(); ++k) {
+          uses.get(occurrences.get(k)).add(k + "@" + text);
+        }
+      }
+      Map<Symbol, String> refined = new HashMap<>();
+      for (Map.Entry<Symbol, List<String>> entry : uses.entrySet()) {
+        List<String> signature = entry.getValue();
+        Collections.sort(signature);
+        StringBuilder s = new StringBuilder(colour.get(entry.getKey()));
+        for (String use : signature) {
+          s.append('\n').append(use);
+        }
+        refined.put(entry.getKey(),
+            HASH.hashString(s, CHARSET).toString());
+      }
+      colour.putAll(refined);
+    }
+
+    List<Symbol> order = new ArrayList<>(declared.keySet());
+    final Map<Symbol, Integer> declarationIndex = declared;
+    Collections.sort(order, new Comparator<Symbol>() {
+      @Override
+      public int compare(Symbol a, Symbol b) {
+        int c = colour.get(a).compareTo(colour.get(b));
+        if (c != 0) {
+          return c;
+        }
+        return declarationIndex.get(a) - declarationIndex.get(b);
+      }
+    });
+    Map<Symbol, String> names = new HashMap<>();
+    StringBuilder text = new StringBuilder(header);
+    for (int i = 0; i < order.size(); ++i) {
+      Symbol canonical = new Symbol("v" + i);
+      toCanonical.put(order.get(i), canonical);
+      fromCanonical.put(canonical, order.get(i));
+      names.put(order.get(i), canonical.getName());
+    }
+    for (Symbol var : order) {
+      render(declarations.get(var), names, "", text,
+          new ArrayList<Symbol>());
+      text.append('\n');
+    }
+    List<String> assertions = new ArrayList<>(body.size());
+    for (SExpression expr : body) {
+      StringBuilder s = new StringBuilder();
+      render(expr, names, "", s, new ArrayList<Symbol>());
+      assertions.add(s.toString());
+    }
+    Collections.sort(assertions);
+    for (String assertion : assertions) {
+      text.append(assertion).append('\n');
+    }
+    canonicalText = text.toString();
+    hash = HASH.hashString(canonicalText, CHARSET).toString();
+  }
+
+  private static String headOf(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    if (terms.isEmpty() || !(terms.get(0) instanceof Symbol)) {
+      return null;
+    }
+    return ((Symbol) terms.get(0)).getName();
+  }
+
+  // Writes expr with every variable in names replaced by prefix + name,
+  // recording the variables in the order they occur.
+  private static void render(SExpression expr, Map<Symbol, String> names,
+      String prefix, StringBuilder out, List<Symbol> occurrences) {
+    if (expr instanceof ParenList) {
+      out.append('(');
+      boolean first = true;
+      for (SExpression e : ((ParenList) expr).getExprs()) {
+        if (!first) {
+          out.append(' ');
+        }
+        first = false;
+        render(e, names, prefix, out, occurrences);
+      }
+      out.append(')');
+    } else if (expr instanceof Symbol && names.containsKey(expr)) {
+      out.append(prefix).append(names.get(expr));
+      occurrences.add((Symbol) expr);
+    } else {
+      out.append(expr.toString());
+    }
+  }
+
+  public String getCanonicalText() {
+    return canonicalText;
+  }
+
+  /**
+   * @return the 128-bit hash of the canonical text, in hexadecimal
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Renames the variables of a result for this formula to canonical names;
+   * variables the formula does not declare are dropped.
+   */
+  public DRealSolver.Result toCanonical(DRealSolver.Result result) {
+    return rename(result, toCanonical);
+  }
+
+  /**
+   * Renames the variables of a result in canonical names back to the
+   * names used by this formula.
+   */
+  public DRealSolver.Result fromCanonical(DRealSolver.Result result) {
+    return rename(result, fromCanonical);
+  }
+
+  private static DRealSolver.Result rename(DRealSolver.Result result,
+      Map<Symbol, Symbol> renaming) {
+    DRealSolver.Result renamed = new DRealSolver.Result(
+        result.isSatisfiable());
+    for (Symbol sym : result.getSymbols()) {
+      Symbol target = renaming.get(sym);
+      if (target != null) {
+        renamed.addRange(target, result.getRange(sym));
+      }
+    }
+    return renamed;
+  }
+
+}
@@ -0,0 +1,13 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.util.List;
+
+// Anything that can decide a complete QF_NRA formula.
+// DRealSolver is the base implementation; other implementations wrap it
+// to change how or whether the query reaches dReal.
+public interface FormulaSolver {
+
+  DRealSolver.Result solve(List<SExpression> formula) throws IOException;
+
+}
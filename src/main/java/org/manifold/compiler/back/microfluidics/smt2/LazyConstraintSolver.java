@@ -0,0 +1,129 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Solves a formula together with a large set of lazy assertions, without
+// sending most of the lazy assertions to the solver.
+//
+// The formula is first solved on its own. The midpoints of the model's
+// ranges are then checked against every lazy assertion, and only the
+// ones they violate are added to the formula for the next round. This
+// repeats until the model satisfies all lazy assertions. An unsat answer
+// on a subset of the assertions is an unsat answer for all of them, so
+// both answers are sound. After maximumRounds rounds, all remaining lazy
+// assertions are added at once, so the loop always ends.
+public class LazyConstraintSolver implements FormulaSolver {
+
+  private static final Logger log =
+      LogManager.getLogger("LazyConstraintSolver");
+
+  private final FormulaSolver solver;
+  private final List<SExpression> lazy;
+
+  /**
+   * @param lazy assertions that refer only to symbols declared
+   * in the formulas this solver is given
+   */
+  public LazyConstraintSolver(FormulaSolver solver,
+      List<SExpression> lazy) {
+    this.solver = solver;
+    this.lazy = new ArrayList<>(lazy);
+  }
+
+  private int maximumRounds = 20;
+  public void setMaximumRounds(int maximumRounds) {
+    if (maximumRounds < 1) {
+      throw new IllegalArgumentException("need at least one round");
+    }
+    this.maximumRounds = maximumRounds;
+  }
+
+  // tolerance for lazy equalities, as for AssertionChecker
+  private double delta = 0.000001;
+  public void setDelta(double delta) {
+    this.delta = delta;
+  }
+
+  private int lastRounds = 0;
+  public int getLastRounds() {
+    return lastRounds;
+  }
+
+  private int lastActive = 0;
+  /**
+   * @return how many lazy assertions the last solve had to add
+   */
+  public int getLastActive() {
+    return lastActive;
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    List<SExpression> active = new ArrayList<>();
+    List<SExpression> inactive = new ArrayList<>(lazy);
+    lastRounds = 0;
+    while (true) {
+      ++lastRounds;
+      if (lastRounds >= maximumRounds && !inactive.isEmpty()) {
+        log.debug("giving up on lazy assertions after " + lastRounds
+            + " rounds, adding the remaining " + inactive.size());
+        active.addAll(inactive);
+        inactive.clear();
+      }
+      lastActive = active.size();
+      DRealSolver.Result result = solver.solve(
+          QFNRA.insertBeforeCheckSat(formula, active));
+      if (!result.isSatisfiable() || inactive.isEmpty()) {
+        return result;
+      }
+      Set<SExpression> violated = violated(result, inactive);
+      if (violated.isEmpty()) {
+        return result;
+      }
+      log.debug("round " + lastRounds + ": adding " + violated.size()
+          + " of " + inactive.size() + " lazy assertions");
+      // one pass, in the order the assertions were given
+      List<SExpression> remaining = new ArrayList<>(inactive.size());
+      for (SExpression expr : inactive) {
+        if (violated.contains(expr)) {
+          active.add(expr);
+        } else {
+          remaining.add(expr);
+        }
+      }
+      inactive = remaining;
+    }
+  }
+
+  /**
+   * @return the candidates the model violates, by identity
+   */
+  private Set<SExpression> violated(DRealSolver.Result model,
+      List<SExpression> candidates) {
+    AssertionChecker checker = new AssertionChecker();
+    checker.setDelta(delta);
+    for (Symbol sym : model.getSymbols()) {
+      DRealSolver.RealRange range = model.getRange(sym);
+      checker.addBinding(sym, (range.lowerBound + range.upperBound) / 2.0);
+    }
+    Set<SExpression> violated = Collections.newSetFromMap(
+        new IdentityHashMap<SExpression, Boolean>());
+    for (SExpression expr : candidates) {
+      // an assertion that cannot be evaluated counts as violated
+      if (!checker.verify(expr)) {
+        violated.add(expr);
+      }
+    }
+    return violated;
+  }
+
+}
@@ -0,0 +1,105 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.middle.Schematic;
+
+// Times a solver on one formula under each assertion ordering
+// (see AssertionOrdering), to find the ordering that suits a design.
+//
+// Each ordering is solved a few times and the median time is reported,
+// so that one slow start of the solver does not decide the result.
+// Orderings are timed one after another, never concurrently, and every
+// ordering should reach the same answer.
+public class OrderingBenchmark {
+
+  private static final Logger log =
+      LogManager.getLogger("OrderingBenchmark");
+
+  // the seconds are the median time of the runs
+  public static class Timing extends TimedResult {
+    private final String ordering;
+
+    Timing(String ordering, DRealSolver.Result result, String error,
+        double seconds) {
+      super(result, error, seconds);
+      this.ordering = ordering;
+    }
+
+    public String getOrdering() {
+      return ordering;
+    }
+
+    @Override
+    protected List<String> getKeys() {
+      return Collections.singletonList(ordering);
+    }
+  }
+
+  private final FormulaSolver solver;
+
+  public OrderingBenchmark(FormulaSolver solver) {
+    this.solver = solver;
+  }
+
+  private int repetitions = 3;
+  public void setRepetitions(int repetitions) {
+    if (repetitions < 1) {
+      throw new IllegalArgumentException(
+          "benchmark needs at least one repetition");
+    }
+    this.repetitions = repetitions;
+  }
+
+  /**
+   * Times every ordering in AssertionOrdering.NAMES on the formula,
+   * which was translated from the given schematic.
+   */
+  public List<Timing> run(List<SExpression> formula, Schematic schematic) {
+    List<Timing> timings = new ArrayList<>();
+    for (String name : AssertionOrdering.NAMES) {
+      AssertionOrdering ordering = new AssertionOrdering(name);
+      ordering.useSchematic(schematic);
+      timings.add(time(name, ordering.order(formula)));
+    }
+    return timings;
+  }
+
+  private Timing time(String name, List<SExpression> formula) {
+    double[] seconds = new double[repetitions];
+    DRealSolver.Result result = null;
+    for (int i = 0; i < repetitions; ++i) {
+      long start = System.nanoTime();
+      try {
+        result = solver.solve(formula);
+      } catch (IOException | RuntimeException e) {
+        log.warn("ordering '" + name + "' failed: " + e.getMessage());
+        return new Timing(name, null, e.toString(),
+            (System.nanoTime() - start) / 1e9);
+      }
+      seconds[i] = (System.nanoTime() - start) / 1e9;
+    }
+    Arrays.sort(seconds);
+    log.info("ordering '" + name + "' took " + seconds[repetitions / 2]
+        + " s");
+    return new Timing(name, result, null, seconds[repetitions / 2]);
+  }
+
+  /**
+   * Writes one comma-separated line per ordering: its name, the solver
+   * status and the median time taken.
+   */
+  public static void writeTable(List<Timing> timings, Writer writer)
+      throws IOException {
+    TimedResult.writeTable(Collections.singletonList("ordering"), timings,
+        writer);
+  }
+
+}
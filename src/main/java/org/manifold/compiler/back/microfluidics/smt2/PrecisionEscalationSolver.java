@@ -0,0 +1,99 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Solves at a coarse precision first and tightens it only when needed.
+//
+// An unsat answer is exact at any precision and is returned at once.
+// A delta-sat answer is accepted early only if the midpoint of every
+// returned range satisfies every assertion of the formula, with
+// equalities checked to within the final precision. A model whose boxes
+// straddle a constraint boundary fails this check, and the query is
+// repeated with the precision reduced by refinementFactor, down to
+// finalPrecision. The answer at finalPrecision is always accepted, so no
+// answer is weaker than a direct query at finalPrecision would give.
+public class PrecisionEscalationSolver implements FormulaSolver {
+
+  private static final Logger log =
+      LogManager.getLogger("PrecisionEscalationSolver");
+
+  private final DeltaSolver solver;
+
+  public PrecisionEscalationSolver(DeltaSolver solver) {
+    this.solver = solver;
+  }
+
+  private double initialPrecision = 0.1;
+  public void setInitialPrecision(double initialPrecision) {
+    this.initialPrecision = initialPrecision;
+  }
+
+  // dReal's own default
+  private double finalPrecision = 0.001;
+  public void setFinalPrecision(double finalPrecision) {
+    this.finalPrecision = finalPrecision;
+  }
+
+  private double refinementFactor = 0.1;
+  public void setRefinementFactor(double refinementFactor) {
+    if (!(refinementFactor > 0.0 && refinementFactor < 1.0)) {
+      throw new IllegalArgumentException(
+          "refinement factor must be between 0 and 1");
+    }
+    this.refinementFactor = refinementFactor;
+  }
+
+  private double lastPrecision = Double.NaN;
+  /**
+   * @return the precision at which the last answer was obtained
+   */
+  public double getLastPrecision() {
+    return lastPrecision;
+  }
+
+  private int lastAttempts = 0;
+  public int getLastAttempts() {
+    return lastAttempts;
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    double precision = Math.max(initialPrecision, finalPrecision);
+    lastAttempts = 0;
+    while (true) {
+      ++lastAttempts;
+      solver.setPrecision(precision);
+      DRealSolver.Result result = solver.solve(formula);
+      lastPrecision = precision;
+      if (!result.isSatisfiable() || precision <= finalPrecision
+          || isConfirmed(formula, result)) {
+        return result;
+      }
+      log.debug("model at precision " + precision
+          + " straddles a constraint, refining");
+      precision *= refinementFactor;
+      // don't let rounding leave a step a hair above the final precision
+      if (precision < finalPrecision * (1.0 + 1e-9)) {
+        precision = finalPrecision;
+      }
+    }
+  }
+
+  private boolean isConfirmed(List<SExpression> formula,
+      DRealSolver.Result result) {
+    AssertionChecker checker = new AssertionChecker();
+    checker.setDelta(finalPrecision);
+    for (Symbol sym : result.getSymbols()) {
+      DRealSolver.RealRange range = result.getRange(sym);
+      checker.addBinding(sym, (range.lowerBound + range.upperBound) / 2.0);
+    }
+    // assertions that cannot be evaluated count as unconfirmed
+    return checker.verify(formula);
+  }
+
+}
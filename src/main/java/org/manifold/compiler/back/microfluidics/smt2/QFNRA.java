@@ -1,5 +1,6 @@
 package org.manifold.compiler.back.microfluidics.smt2;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -23,6 +24,25 @@ public class QFNRA {
     return new ParenList(exprs);
   }
   
+  // for formulas over integers only, see GridPlacementStrategySet
+  public static SExpression useQFLIA() {
+    SExpression exprs[] = new SExpression[] {
+      new Symbol("set-logic"),
+      new Symbol("QF_LIA")
+    };
+    return new ParenList(exprs);
+  }
+  
+  public static SExpression declareIntegerVariable(Symbol var) {
+    SExpression exprs[] = new SExpression[] {
+      new Symbol("declare-fun"),
+      var,
+      new ParenList(),
+      new Symbol("Int")
+    };
+    return new ParenList(exprs);
+  }
+  
   public static SExpression declareRealVariable(Symbol var) {
     SExpression exprs[] = new SExpression[] {
       new Symbol("declare-fun"),
@@ -47,6 +67,17 @@ public class QFNRA {
   public static SExpression subtract(SExpression e1, SExpression e2) {
     return infix(e1, "-", e2);
   }
+
+  // a constant for any double: an SMT-LIB decimal has neither an
+  // exponent nor a sign, so a negative value is written as (- x)
+  public static SExpression constant(double value) {
+    if (value < 0.0) {
+      return new ParenList(new SExpression[] {
+        new Symbol("-"), Decimal.plain(-value)
+      });
+    }
+    return Decimal.plain(value);
+  }
   
   public static SExpression multiply(SExpression e1, SExpression e2) {
     return infix(e1, "*", e2);
@@ -108,6 +139,14 @@ public class QFNRA {
     return new ParenList(exprs);
   }
   
+  public static SExpression or(SExpression e1, SExpression e2) {
+    return infix(e1, "or", e2);
+  }
+  
+  public static SExpression and(SExpression e1, SExpression e2) {
+    return infix(e1, "and", e2);
+  }
+  
   public static SExpression equal(SExpression e1, SExpression e2) {
     return infix(e1, "=", e2);
   }
@@ -128,4 +167,38 @@ public class QFNRA {
     return (infix(e1, ">=", e2));
   }
   
+  /**
+   * @return true if expr is a list whose first term is the symbol name,
+   * e.g. (check-sat) for "check-sat"
+   */
+  public static boolean hasHead(SExpression expr, String name) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return !terms.isEmpty() && terms.get(0).equals(new Symbol(name));
+  }
+  
+  /**
+   * @return the formula with the extra expressions just before (check-sat)
+   * if there is one, or at the end otherwise
+   */
+  public static List<SExpression> insertBeforeCheckSat(
+      List<SExpression> formula, List<SExpression> extra) {
+    List<SExpression> result = new ArrayList<>(formula.size()
+        + extra.size());
+    boolean inserted = false;
+    for (SExpression expr : formula) {
+      if (!inserted && hasHead(expr, "check-sat")) {
+        result.addAll(extra);
+        inserted = true;
+      }
+      result.add(expr);
+    }
+    if (!inserted) {
+      result.addAll(extra);
+    }
+    return result;
+  }
+  
 }
@@ -0,0 +1,99 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Removes what the solver does not need to see: repeated declarations,
+// repeated assertions, and declarations of variables that no assertion
+// refers to, such as quantities of analyses that are switched off.
+//
+// Repeats are found by hashing the text of each command, so the pass
+// takes time linear in the size of the formula. Everything else,
+// including the order of what is kept, is left alone.
+public class RedundancyElimination {
+
+  private static final Symbol ASSERT = new Symbol("assert");
+  private static final Symbol DECLARE_FUN = new Symbol("declare-fun");
+
+  // variables whose declarations are kept even if nothing uses them,
+  // e.g. because assertions about them are added later
+  private final Set<Symbol> live = new HashSet<>();
+  public void keep(Symbol sym) {
+    live.add(sym);
+  }
+
+  private int duplicates = 0;
+  /**
+   * @return how many repeated commands the last rewrite removed
+   */
+  public int getDuplicates() {
+    return duplicates;
+  }
+
+  private int deadDeclarations = 0;
+  /**
+   * @return how many declarations of unused variables the last rewrite
+   * removed
+   */
+  public int getDeadDeclarations() {
+    return deadDeclarations;
+  }
+
+  public static List<SExpression> eliminate(List<SExpression> formula) {
+    return new RedundancyElimination().rewrite(formula);
+  }
+
+  public List<SExpression> rewrite(List<SExpression> formula) {
+    duplicates = 0;
+    deadDeclarations = 0;
+    Set<String> seen = new HashSet<>();
+    Set<Symbol> used = new HashSet<>(live);
+    List<SExpression> unique = new ArrayList<>(formula.size());
+    for (SExpression expr : formula) {
+      boolean assertion = isCommand(expr, ASSERT, 2);
+      if ((assertion || isCommand(expr, DECLARE_FUN, 4))
+          && !seen.add(expr.toString())) {
+        ++duplicates;
+        continue;
+      }
+      if (assertion) {
+        collect(expr, used);
+      }
+      unique.add(expr);
+    }
+    List<SExpression> result = new ArrayList<>(unique.size());
+    for (SExpression expr : unique) {
+      if (isCommand(expr, DECLARE_FUN, 4)
+          && !used.contains(((ParenList) expr).getExprs().get(1))) {
+        ++deadDeclarations;
+        continue;
+      }
+      result.add(expr);
+    }
+    return result;
+  }
+
+  private static boolean isCommand(SExpression expr, Symbol command,
+      int size) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == size && terms.get(0).equals(command);
+  }
+
+  // every symbol, including the heads of lists, in case a declared
+  // function is applied
+  private static void collect(SExpression expr, Set<Symbol> symbols) {
+    if (expr instanceof Symbol) {
+      symbols.add((Symbol) expr);
+    } else if (expr instanceof ParenList) {
+      for (SExpression term : ((ParenList) expr).getExprs()) {
+        collect(term, symbols);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+// Solver results keyed by formula fingerprint (see FormulaFingerprint).
+//
+// Recently used results are kept in memory; every result is also written
+// to its own file in the cache directory, so the cache is shared between
+// compiler runs and between processes. Both levels hold at most
+// maximumEntries results and evict the least recently used one first.
+// On disk, recency is the file modification time, which is refreshed on
+// every hit. Files are written to a temporary name and then moved into
+// place, so concurrent readers and writers never see partial results.
+public class ResultCache {
+
+  private static final Logger log = LogManager.getLogger("ResultCache");
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String SUFFIX = ".result.json";
+
+  private final Path directory;
+  private final int maximumEntries;
+  private final Map<String, DRealSolver.Result> memory;
+
+  public ResultCache(Path directory, final int maximumEntries)
+      throws IOException {
+    if (maximumEntries < 1) {
+      throw new IllegalArgumentException(
+          "result cache must hold at least one entry");
+    }
+    this.directory = directory;
+    this.maximumEntries = maximumEntries;
+    Files.createDirectories(directory);
+    this.memory = new LinkedHashMap<String, DRealSolver.Result>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, DRealSolver.Result> eldest) {
+        return size() > maximumEntries;
+      }
+    };
+  }
+
+  private Path pathOf(String fingerprint) {
+    return directory.resolve(fingerprint + SUFFIX);
+  }
+
+  /**
+   * @return the cached result, with canonical variable names, or null
+   */
+  public DRealSolver.Result get(String fingerprint) {
+    synchronized (memory) {
+      DRealSolver.Result result = memory.get(fingerprint);
+      if (result != null) {
+        return result;
+      }
+    }
+    DRealSolver.Result result = load(pathOf(fingerprint));
+    if (result != null) {
+      synchronized (memory) {
+        memory.put(fingerprint, result);
+      }
+    }
+    return result;
+  }
+
+  public void put(String fingerprint, DRealSolver.Result result)
+      throws IOException {
+    synchronized (memory) {
+      memory.put(fingerprint, result);
+    }
+    Path path = pathOf(fingerprint);
+    Path temp = Files.createTempFile(directory, fingerprint, ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, CHARSET)) {
+      writer.write(toJson(result).toString());
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    evict(path);
+  }
+
+  private DRealSolver.Result load(Path path) {
+    if (!Files.isRegularFile(path)) {
+      return null;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(path, CHARSET)) {
+      DRealSolver.Result result = fromJson(
+          new JsonParser().parse(reader).getAsJsonObject());
+      Files.setLastModifiedTime(path,
+          FileTime.fromMillis(System.currentTimeMillis()));
+      return result;
+    } catch (IOException | RuntimeException e) {
+      // evicted by another process in the meantime, or damaged
+      log.debug("could not read cached result '" + path + "': "
+          + e.getMessage());
+      return null;
+    }
+  }
+
+  // removes the least recently used files beyond the size budget,
+  // except the one just written, which may share its timestamp with
+  // older files on a file system with coarse modification times
+  void evict(Path keep) throws IOException {
+    final Map<Path, Long> files = new LinkedHashMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        "*" + SUFFIX)) {
+      for (Path file : stream) {
+        try {
+          files.put(file, Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException e) {
+          // removed concurrently
+        }
+      }
+    }
+    if (files.size() <= maximumEntries) {
+      return;
+    }
+    // the kept file, if another process has not removed it already,
+    // takes up one entry of the budget
+    int budget = maximumEntries;
+    if (files.remove(keep) != null) {
+      --budget;
+    }
+    List<Path> byAge = new ArrayList<>(files.keySet());
+    Collections.sort(byAge, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(files.get(a), files.get(b));
+      }
+    });
+    for (int i = 0; i < byAge.size() - budget; ++i) {
+      Files.deleteIfExists(byAge.get(i));
+    }
+  }
+
+  private static JsonObject toJson(DRealSolver.Result result) {
+    JsonObject json = new JsonObject();
+    json.addProperty("satisfiable", result.isSatisfiable());
+    JsonObject ranges = new JsonObject();
+    for (Symbol sym : result.getSymbols()) {
+      DRealSolver.RealRange range = result.getRange(sym);
+      JsonArray bounds = new JsonArray();
+      bounds.add(new JsonPrimitive(Double.toString(range.lowerBound)));
+      bounds.add(new JsonPrimitive(Double.toString(range.upperBound)));
+      ranges.add(sym.getName(), bounds);
+    }
+    json.add("ranges", ranges);
+    return json;
+  }
+
+  private static DRealSolver.Result fromJson(JsonObject json) {
+    DRealSolver.Result result = new DRealSolver.Result(
+        json.get("satisfiable").getAsBoolean());
+    for (Map.Entry<String, JsonElement> entry
+        : json.getAsJsonObject("ranges").entrySet()) {
+      JsonArray bounds = entry.getValue().getAsJsonArray();
+      result.addRange(new Symbol(entry.getKey()), new DRealSolver.RealRange(
+          bounds.get(0).getAsDouble(), bounds.get(1).getAsDouble()));
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,72 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Reads back s-expressions in the form written by SExpression.write().
+// Integers become Numerals, other numbers Decimals and everything else
+// Symbols; comments (';' to end of line) are skipped.
+public class SExpressionParser {
+
+  public static List<SExpression> parse(String text) {
+    List<SExpression> top = new ArrayList<>();
+    Deque<List<SExpression>> open = new ArrayDeque<>();
+    int i = 0;
+    int n = text.length();
+    while (i < n) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) {
+        ++i;
+      } else if (c == ';') {
+        while (i < n && text.charAt(i) != '\n') {
+          ++i;
+        }
+      } else if (c == '(') {
+        open.push(new ArrayList<SExpression>());
+        ++i;
+      } else if (c == ')') {
+        if (open.isEmpty()) {
+          throw new IllegalArgumentException(
+              "unbalanced ')' at offset " + i);
+        }
+        SExpression list = new ParenList(open.pop());
+        (open.isEmpty() ? top : open.peek()).add(list);
+        ++i;
+      } else {
+        int start = i;
+        while (i < n && !Character.isWhitespace(text.charAt(i))
+            && text.charAt(i) != '(' && text.charAt(i) != ')') {
+          ++i;
+        }
+        SExpression atom = atom(text.substring(start, i));
+        (open.isEmpty() ? top : open.peek()).add(atom);
+      }
+    }
+    if (!open.isEmpty()) {
+      throw new IllegalArgumentException("unbalanced '(' at end of input");
+    }
+    return top;
+  }
+
+  private static SExpression atom(String token) {
+    char first = token.charAt(0);
+    if (Character.isDigit(first)
+        || (first == '-' && token.length() > 1
+            && Character.isDigit(token.charAt(1)))) {
+      try {
+        return new Numeral(Long.parseLong(token));
+      } catch (NumberFormatException e) {
+        // not an integer
+      }
+      try {
+        return new Decimal(Double.parseDouble(token));
+      } catch (NumberFormatException e) {
+        // not a number at all
+      }
+    }
+    return new Symbol(token);
+  }
+
+}
@@ -0,0 +1,297 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.middle.Schematic;
+
+// Solves a formula in well-conditioned units.
+//
+// Every variable x gets a scale s, a power of ten, and is replaced by
+// s * x in the query, so that the solver works with values near 1; a
+// comparison of a variable with a constant becomes one with the constant
+// divided by s instead. The ranges of the answer are multiplied by s on
+// the way out, so callers see the original units.
+//
+// Scales come from hints, e.g. the chip size for positions (see
+// placementHints()), and otherwise from the formula: the largest
+// constant a variable is compared or equated with at the top level, or
+// the magnitude of a term the variable is defined equal to, evaluated
+// at the magnitudes of its variables. Variables with no such evidence
+// keep scale 1.
+public class ScalingSolver implements FormulaSolver {
+
+  private static final Logger log = LogManager.getLogger("ScalingSolver");
+
+  private static final Symbol ASSERT = new Symbol("assert");
+
+  private final FormulaSolver solver;
+
+  public ScalingSolver(FormulaSolver solver) {
+    this.solver = solver;
+  }
+
+  // typical magnitudes of variables, which take precedence over what
+  // the formula suggests
+  private final Map<Symbol, Double> hints = new HashMap<>();
+  public void useHints(Map<Symbol, Double> magnitudes) {
+    hints.putAll(magnitudes);
+  }
+
+  private Map<Symbol, Double> lastScales = new HashMap<>();
+  /**
+   * @return the scale of every variable of the last query that has one
+   * other than 1
+   */
+  public Map<Symbol, Double> getLastScales() {
+    return lastScales;
+  }
+
+  /**
+   * @return the chip size as the magnitude of node positions and channel
+   * lengths
+   */
+  public static Map<Symbol, Double> placementHints(Schematic schematic,
+      ProcessParameters processParams) {
+    double size = Math.max(processParams.getMaximumChipSizeX(),
+        processParams.getMaximumChipSizeY());
+    Map<Symbol, Double> magnitudes = new HashMap<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      magnitudes.put(SymbolNameGenerator.getsym_NodeX(schematic, n), size);
+      magnitudes.put(SymbolNameGenerator.getsym_NodeY(schematic, n), size);
+    }
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      magnitudes.put(SymbolNameGenerator.getsym_ChannelLength(schematic, ch),
+          size);
+      magnitudes.put(SymbolNameGenerator.getsym_ChannelExtentX(
+          schematic, ch), size);
+      magnitudes.put(SymbolNameGenerator.getsym_ChannelExtentY(
+          schematic, ch), size);
+    }
+    return magnitudes;
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    Map<Symbol, Double> scales = chooseScales(formula);
+    lastScales = scales;
+    if (scales.isEmpty()) {
+      return solver.solve(formula);
+    }
+    log.debug("scaling " + scales.size() + " variables");
+    DRealSolver.Result scaled = solver.solve(scale(formula, scales));
+    if (!scaled.isSatisfiable()) {
+      return scaled;
+    }
+    DRealSolver.Result result = new DRealSolver.Result(true);
+    for (Symbol sym : scaled.getSymbols()) {
+      DRealSolver.RealRange range = scaled.getRange(sym);
+      Double s = scales.get(sym);
+      if (s == null) {
+        result.addRange(sym, range);
+      } else {
+        result.addRange(sym, new DRealSolver.RealRange(
+            range.lowerBound * s, range.upperBound * s));
+      }
+    }
+    return result;
+  }
+
+  private static boolean isAssertion(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == 2 && terms.get(0).equals(ASSERT);
+  }
+
+  /**
+   * @return the value of a constant, or NaN if the term is not one
+   */
+  private static double constant(SExpression expr) {
+    if (expr instanceof Decimal) {
+      return ((Decimal) expr).getValue();
+    } else if (expr instanceof Numeral) {
+      return ((Numeral) expr).getValue();
+    }
+    return Double.NaN;
+  }
+
+  private static boolean isComparison(Symbol op) {
+    String name = op.getName();
+    return name.equals("=") || name.equals("<") || name.equals("<=")
+        || name.equals(">") || name.equals(">=");
+  }
+
+  /**
+   * @return the terms of a top-level comparison, or null
+   */
+  private static List<SExpression> comparison(SExpression expr) {
+    if (!isAssertion(expr)) {
+      return null;
+    }
+    SExpression term = ((ParenList) expr).getExprs().get(1);
+    if (!(term instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) term).getExprs();
+    if (terms.size() != 3 || !(terms.get(0) instanceof Symbol)
+        || !isComparison((Symbol) terms.get(0))) {
+      return null;
+    }
+    return terms;
+  }
+
+  private static void widen(Map<Symbol, Double> magnitudes, Symbol sym,
+      double magnitude) {
+    Double old = magnitudes.get(sym);
+    if (old == null || magnitude > old) {
+      magnitudes.put(sym, magnitude);
+    }
+  }
+
+  Map<Symbol, Double> chooseScales(List<SExpression> formula) {
+    // the largest non-zero constant each variable is compared with
+    Map<Symbol, Double> bounds = new HashMap<>();
+    List<List<SExpression>> definitions = new ArrayList<>();
+    for (SExpression expr : formula) {
+      List<SExpression> terms = comparison(expr);
+      if (terms == null) {
+        continue;
+      }
+      for (int i = 1; i <= 2; ++i) {
+        SExpression self = terms.get(i);
+        SExpression other = terms.get(3 - i);
+        if (!(self instanceof Symbol)) {
+          continue;
+        }
+        double c = Math.abs(constant(other));
+        if (c > 0.0 && !Double.isInfinite(c)) {
+          widen(bounds, (Symbol) self, c);
+        } else if (Double.isNaN(c)
+            && terms.get(0).equals(new Symbol("="))) {
+          definitions.add(terms);
+        }
+      }
+    }
+    Map<Symbol, Double> magnitudes = new HashMap<>(bounds);
+    magnitudes.putAll(hints);
+    // variables defined equal to a term take its magnitude, which may
+    // in turn define others
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (List<SExpression> terms : definitions) {
+        for (int i = 1; i <= 2; ++i) {
+          if (!(terms.get(i) instanceof Symbol)
+              || magnitudes.containsKey(terms.get(i))) {
+            continue;
+          }
+          double value = magnitude(terms.get(3 - i), magnitudes);
+          if (value > 0.0 && !Double.isInfinite(value)) {
+            magnitudes.put((Symbol) terms.get(i), value);
+            changed = true;
+          }
+        }
+      }
+    }
+    Map<Symbol, Double> scales = new HashMap<>();
+    for (Map.Entry<Symbol, Double> entry : magnitudes.entrySet()) {
+      long exponent = Math.round(Math.log10(entry.getValue()));
+      if (exponent != 0) {
+        scales.put(entry.getKey(), Math.pow(10.0, exponent));
+      }
+    }
+    return scales;
+  }
+
+  /**
+   * @return the absolute value of the term at the given magnitudes of
+   * its variables, or NaN if it cannot be evaluated
+   */
+  private static double magnitude(SExpression term,
+      Map<Symbol, Double> magnitudes) {
+    ExprEvalVisitor eval = new ExprEvalVisitor();
+    for (Symbol sym : SymbolCollector.collect(term)) {
+      Double m = magnitudes.get(sym);
+      if (m == null) {
+        return Double.NaN;
+      }
+      eval.addBinding(sym, m);
+    }
+    try {
+      term.accept(eval);
+    } catch (ArithmeticException e) {
+      return Double.NaN;
+    }
+    return Math.abs(eval.getValue());
+  }
+
+  List<SExpression> scale(List<SExpression> formula,
+      Map<Symbol, Double> scales) {
+    List<SExpression> result = new ArrayList<>(formula.size());
+    for (SExpression expr : formula) {
+      if (!isAssertion(expr)) {
+        result.add(expr);
+        continue;
+      }
+      SExpression folded = foldBound(expr, scales);
+      result.add(folded != null ? folded : substitute(expr, scales));
+    }
+    return result;
+  }
+
+  /**
+   * @return the assertion x op c as x op c / s, or null if it is not a
+   * comparison of a scaled variable with a constant
+   */
+  private static SExpression foldBound(SExpression expr,
+      Map<Symbol, Double> scales) {
+    List<SExpression> terms = comparison(expr);
+    if (terms == null) {
+      return null;
+    }
+    for (int i = 1; i <= 2; ++i) {
+      Double s = scales.get(terms.get(i));
+      double c = constant(terms.get(3 - i));
+      if (s != null && !Double.isNaN(c)) {
+        SExpression[] scaled = terms.toArray(new SExpression[3]);
+        scaled[3 - i] = Decimal.plain(c / s);
+        return QFNRA.assertThat(new ParenList(scaled));
+      }
+    }
+    return null;
+  }
+
+  private static SExpression substitute(SExpression expr,
+      Map<Symbol, Double> scales) {
+    if (expr instanceof Symbol) {
+      Double s = scales.get(expr);
+      if (s == null) {
+        return expr;
+      }
+      return QFNRA.multiply(Decimal.plain(s), expr);
+    }
+    if (!(expr instanceof ParenList)) {
+      return expr;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    List<SExpression> substituted = new ArrayList<>(terms.size());
+    for (int i = 0; i < terms.size(); ++i) {
+      // leave operators alone
+      substituted.add(i == 0 ? terms.get(i)
+          : substitute(terms.get(i), scales));
+    }
+    return new ParenList(substituted);
+  }
+
+}
@@ -0,0 +1,447 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites assertions into smaller, equivalent ones before they are
+// written out.
+//
+// Terms are simplified bottom-up: operations on constants are folded,
+// nested +, *, and and or have their constants combined, neutral
+// elements are dropped, powers get integer exponents and lose trivial
+// ones, and comparisons put a constant on the right. Constants are
+// folded in exact decimal arithmetic, and only where the result is a
+// terminating decimal, so (/ 1 3) stays as it is. Every operator is
+// written back with two arguments, as AssertionChecker and
+// ExprEvalVisitor expect. A variable that the formula defines equal to a
+// constant at the top level, like PI, is replaced by that constant
+// everywhere but in its definition, which may in turn make other
+// variables constant. Assertions that simplify to true are left out.
+public class Simplifier {
+
+  private static final Symbol ASSERT = new Symbol("assert");
+  private static final Symbol TRUE = new Symbol("true");
+  private static final Symbol FALSE = new Symbol("false");
+
+  // variables known to equal a constant, and where that was asserted
+  private final Map<Symbol, SExpression> constants = new HashMap<>();
+  private final Set<Integer> definitions = new HashSet<>();
+
+  private int removedTerms = 0;
+  /**
+   * @return how many terms the last simplification saved, counting
+   * every symbol, constant and list
+   */
+  public int getRemovedTerms() {
+    return removedTerms;
+  }
+
+  public static List<SExpression> simplify(List<SExpression> formula) {
+    return new Simplifier().rewrite(formula);
+  }
+
+  public List<SExpression> rewrite(List<SExpression> formula) {
+    constants.clear();
+    definitions.clear();
+    List<SExpression> simplified = new ArrayList<>(formula);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < formula.size(); ++i) {
+        if (!isAssertion(formula.get(i))
+            || definitions.contains(i)) {
+          continue;
+        }
+        SExpression term = simplifyTerm(
+            ((ParenList) formula.get(i)).getExprs().get(1));
+        simplified.set(i, term);
+        if (learnConstant(term, i)) {
+          changed = true;
+        }
+      }
+    }
+    List<SExpression> result = new ArrayList<>(formula.size());
+    for (int i = 0; i < formula.size(); ++i) {
+      SExpression expr = formula.get(i);
+      if (!isAssertion(expr) || definitions.contains(i)) {
+        result.add(expr);
+      } else if (!simplified.get(i).equals(TRUE)) {
+        result.add(QFNRA.assertThat(simplified.get(i)));
+      }
+    }
+    removedTerms = size(formula) - size(result);
+    return result;
+  }
+
+  // remembers (= x c) so that x can be replaced by c elsewhere
+  private boolean learnConstant(SExpression term, int index) {
+    if (!"=".equals(head(term)) || args(term).size() != 2) {
+      return false;
+    }
+    for (int i = 0; i < 2; ++i) {
+      SExpression self = args(term).get(i);
+      SExpression other = args(term).get(1 - i);
+      if (self instanceof Symbol && !constants.containsKey(self)
+          && value(other) != null) {
+        constants.put((Symbol) self, other);
+        definitions.add(index);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int size(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return 1;
+    }
+    return 1 + size(((ParenList) expr).getExprs());
+  }
+
+  private static int size(List<SExpression> exprs) {
+    int size = 0;
+    for (SExpression expr : exprs) {
+      size += size(expr);
+    }
+    return size;
+  }
+
+  private static boolean isAssertion(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == 2 && terms.get(0).equals(ASSERT);
+  }
+
+  private static String head(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return null;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    if (terms.isEmpty() || !(terms.get(0) instanceof Symbol)) {
+      return null;
+    }
+    return ((Symbol) terms.get(0)).getName();
+  }
+
+  private static List<SExpression> args(SExpression expr) {
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.subList(1, terms.size());
+  }
+
+  /**
+   * @return the exact value of a constant, including a negated one, or
+   * null if the term is not one
+   */
+  private static BigDecimal value(SExpression expr) {
+    if (expr instanceof Decimal) {
+      return new BigDecimal(((Decimal) expr).getRepresentation());
+    } else if (expr instanceof Numeral) {
+      return BigDecimal.valueOf(((Numeral) expr).getValue());
+    } else if ("-".equals(head(expr)) && args(expr).size() == 1) {
+      BigDecimal v = value(args(expr).get(0));
+      return v == null ? null : v.negate();
+    }
+    return null;
+  }
+
+  private static boolean is(BigDecimal value, long expected) {
+    return value != null
+        && value.compareTo(BigDecimal.valueOf(expected)) == 0;
+  }
+
+  private static boolean isNumeral(SExpression expr) {
+    if ("-".equals(head(expr)) && args(expr).size() == 1) {
+      return isNumeral(args(expr).get(0));
+    }
+    return expr instanceof Numeral;
+  }
+
+  // a numeral if the value is an integer computed from numerals only,
+  // so that integer terms stay integer terms
+  private static SExpression literal(BigDecimal value, boolean numeral) {
+    if (numeral) {
+      try {
+        return new Numeral(value.longValueExact());
+      } catch (ArithmeticException e) {
+        // not an integer, or too large for a numeral
+      }
+    }
+    return Decimal.plain(value);
+  }
+
+  private static SExpression bool(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  private static SExpression apply(String op, List<SExpression> args) {
+    List<SExpression> terms = new ArrayList<>(args.size() + 1);
+    terms.add(new Symbol(op));
+    terms.addAll(args);
+    return new ParenList(terms);
+  }
+
+  // (op (op a b) c) for the terms a, b, c of an associative op
+  private static SExpression binary(String op, List<SExpression> terms) {
+    SExpression result = terms.get(0);
+    for (int i = 1; i < terms.size(); ++i) {
+      List<SExpression> pair = new ArrayList<>(2);
+      pair.add(result);
+      pair.add(terms.get(i));
+      result = apply(op, pair);
+    }
+    return result;
+  }
+
+  private static boolean same(SExpression a, SExpression b) {
+    return a.toString().equals(b.toString());
+  }
+
+  public SExpression simplifyTerm(SExpression expr) {
+    if (expr instanceof Symbol) {
+      SExpression c = constants.get(expr);
+      return c == null ? expr : c;
+    }
+    String op = head(expr);
+    if (op == null) {
+      return expr;
+    }
+    List<SExpression> args = new ArrayList<>();
+    for (SExpression arg : args(expr)) {
+      args.add(simplifyTerm(arg));
+    }
+    if (op.equals("+")) {
+      return sum(args);
+    } else if (op.equals("*")) {
+      return product(args);
+    } else if (op.equals("-")) {
+      return difference(args);
+    } else if (op.equals("/")) {
+      return quotient(args);
+    } else if (op.equals("^")) {
+      return power(args);
+    } else if (isComparison(op)) {
+      return comparison(op, args);
+    } else if (op.equals("and")) {
+      return connective(op, args, TRUE, FALSE);
+    } else if (op.equals("or")) {
+      return connective(op, args, FALSE, TRUE);
+    } else if (op.equals("not") && args.size() == 1
+        && (args.get(0).equals(TRUE) || args.get(0).equals(FALSE))) {
+      return bool(args.get(0).equals(FALSE));
+    } else if (op.equals("ite") && args.size() == 3
+        && (args.get(0).equals(TRUE) || args.get(0).equals(FALSE))) {
+      return args.get(0).equals(TRUE) ? args.get(1) : args.get(2);
+    }
+    return apply(op, args);
+  }
+
+  // the arguments of nested applications of op, as arguments of one
+  private static List<SExpression> flatten(String op,
+      List<SExpression> args) {
+    List<SExpression> flat = new ArrayList<>();
+    for (SExpression arg : args) {
+      if (op.equals(head(arg))) {
+        flat.addAll(flatten(op, args(arg)));
+      } else {
+        flat.add(arg);
+      }
+    }
+    return flat;
+  }
+
+  private static SExpression sum(List<SExpression> args) {
+    BigDecimal total = BigDecimal.ZERO;
+    boolean numeral = true;
+    List<SExpression> terms = new ArrayList<>();
+    for (SExpression arg : flatten("+", args)) {
+      BigDecimal v = value(arg);
+      if (v == null) {
+        terms.add(arg);
+      } else {
+        total = total.add(v);
+        numeral &= isNumeral(arg);
+      }
+    }
+    if (total.signum() != 0 || terms.isEmpty()) {
+      terms.add(literal(total, numeral));
+    }
+    return binary("+", terms);
+  }
+
+  private static SExpression product(List<SExpression> args) {
+    BigDecimal total = BigDecimal.ONE;
+    boolean numeral = true;
+    List<SExpression> terms = new ArrayList<>();
+    for (SExpression arg : flatten("*", args)) {
+      BigDecimal v = value(arg);
+      if (v == null) {
+        terms.add(arg);
+      } else {
+        total = total.multiply(v);
+        numeral &= isNumeral(arg);
+      }
+    }
+    if (total.signum() == 0) {
+      return literal(BigDecimal.ZERO, numeral);
+    }
+    if (!is(total, 1) || terms.isEmpty()) {
+      terms.add(0, literal(total, numeral));
+    }
+    return binary("*", terms);
+  }
+
+  private static SExpression difference(List<SExpression> args) {
+    if (args.size() == 1) {
+      SExpression arg = args.get(0);
+      BigDecimal v = value(arg);
+      if (v != null) {
+        return literal(v.negate(), isNumeral(arg));
+      }
+      if ("-".equals(head(arg)) && args(arg).size() == 1) {
+        return args(arg).get(0);
+      }
+    } else if (args.size() == 2) {
+      BigDecimal a = value(args.get(0));
+      BigDecimal b = value(args.get(1));
+      if (a != null && b != null) {
+        return literal(a.subtract(b),
+            isNumeral(args.get(0)) && isNumeral(args.get(1)));
+      }
+      if (is(b, 0)) {
+        return args.get(0);
+      }
+      if (same(args.get(0), args.get(1))) {
+        return literal(BigDecimal.ZERO, false);
+      }
+    }
+    return apply("-", args);
+  }
+
+  private static SExpression quotient(List<SExpression> args) {
+    if (args.size() != 2) {
+      return apply("/", args);
+    }
+    BigDecimal a = value(args.get(0));
+    BigDecimal b = value(args.get(1));
+    if (is(b, 1)) {
+      return args.get(0);
+    }
+    if (a != null && b != null && b.signum() != 0) {
+      try {
+        return literal(a.divide(b), false);
+      } catch (ArithmeticException e) {
+        // no terminating decimal, e.g. 1/3
+      }
+    }
+    return apply("/", args);
+  }
+
+  private static SExpression power(List<SExpression> args) {
+    if (args.size() != 2) {
+      return apply("^", args);
+    }
+    SExpression base = args.get(0);
+    BigDecimal b = value(base);
+    BigDecimal e = value(args.get(1));
+    if (e == null) {
+      return apply("^", args);
+    }
+    int n;
+    try {
+      n = e.intValueExact();
+    } catch (ArithmeticException ex) {
+      // only integer exponents are folded or rewritten
+      return apply("^", args);
+    }
+    if (b != null && Math.abs(n) <= 64) {
+      try {
+        if (n >= 0) {
+          return literal(b.pow(n), isNumeral(base)
+              && isNumeral(args.get(1)));
+        } else if (b.signum() != 0) {
+          return literal(BigDecimal.ONE.divide(b.pow(-n)), false);
+        }
+      } catch (ArithmeticException ex) {
+        // no terminating decimal
+      }
+    }
+    if (n == 1) {
+      return base;
+    }
+    // integer exponents as numerals, which solvers expand into products
+    return QFNRA.pow(base, new Numeral(n));
+  }
+
+  private static boolean isComparison(String op) {
+    return op.equals("=") || op.equals("<") || op.equals("<=")
+        || op.equals(">") || op.equals(">=");
+  }
+
+  private static String mirror(String op) {
+    if (op.startsWith("<")) {
+      return ">" + op.substring(1);
+    } else if (op.startsWith(">")) {
+      return "<" + op.substring(1);
+    }
+    return op;
+  }
+
+  private static SExpression comparison(String op, List<SExpression> args) {
+    if (args.size() != 2) {
+      return apply(op, args);
+    }
+    BigDecimal a = value(args.get(0));
+    BigDecimal b = value(args.get(1));
+    if (a != null && b != null) {
+      int c = a.compareTo(b);
+      if (op.equals("=")) {
+        return bool(c == 0);
+      } else if (op.equals("<")) {
+        return bool(c < 0);
+      } else if (op.equals("<=")) {
+        return bool(c <= 0);
+      } else if (op.equals(">")) {
+        return bool(c > 0);
+      }
+      return bool(c >= 0);
+    }
+    if (same(args.get(0), args.get(1))) {
+      return bool(!op.equals("<") && !op.equals(">"));
+    }
+    if (a != null) {
+      // the constant on the right
+      List<SExpression> swapped = new ArrayList<>();
+      swapped.add(args.get(1));
+      swapped.add(args.get(0));
+      return apply(mirror(op), swapped);
+    }
+    return apply(op, args);
+  }
+
+  // and/or, with the element that can be dropped and the one that
+  // decides the whole
+  private static SExpression connective(String op, List<SExpression> args,
+      SExpression neutral, SExpression absorbing) {
+    List<SExpression> terms = new ArrayList<>();
+    for (SExpression arg : flatten(op, args)) {
+      if (arg.equals(absorbing)) {
+        return absorbing;
+      }
+      if (!arg.equals(neutral)) {
+        terms.add(arg);
+      }
+    }
+    if (terms.isEmpty()) {
+      return neutral;
+    }
+    return binary(op, terms);
+  }
+
+}
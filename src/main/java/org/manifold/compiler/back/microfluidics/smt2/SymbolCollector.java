@@ -0,0 +1,50 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Collects the variables an expression refers to, i.e. every symbol that
+// is not the head of a list (an operator or a command).
+public class SymbolCollector implements SExpressionVisitor {
+
+  private final Set<Symbol> symbols = new LinkedHashSet<>();
+  /**
+   * @return the symbols found so far, in order of first occurrence
+   */
+  public Set<Symbol> getSymbols() {
+    return symbols;
+  }
+
+  public static Set<Symbol> collect(SExpression expr) {
+    SymbolCollector collector = new SymbolCollector();
+    expr.accept(collector);
+    return collector.getSymbols();
+  }
+
+  @Override
+  public void visit(Symbol s) {
+    symbols.add(s);
+  }
+
+  @Override
+  public void visit(Numeral n) {
+  }
+
+  @Override
+  public void visit(Decimal d) {
+  }
+
+  @Override
+  public void visit(ParenList l) {
+    List<SExpression> exprs = l.getExprs();
+    for (int i = 0; i < exprs.size(); ++i) {
+      SExpression e = exprs.get(i);
+      if (i == 0 && e instanceof Symbol) {
+        continue;
+      }
+      e.accept(this);
+    }
+  }
+
+}
@@ -19,6 +19,25 @@ public class SymbolNameGenerator {
     return new Symbol("PI");
   }
   
+  /**
+   * Retrieves the symbol whose value is being minimized in optimization mode.
+   */
+  public static Symbol getsym_Objective() {
+    return new Symbol("objective");
+  }
+  
+  /**
+   * Retrieves the symbols that bound the x- and y-coordinates of all nodes,
+   * i.e. the extent of the chip.
+   */
+  public static Symbol getsym_ChipWidth() {
+    return new Symbol("chip_width");
+  }
+  
+  public static Symbol getsym_ChipHeight() {
+    return new Symbol("chip_height");
+  }
+  
   /**
    * Retrieves the symbol that defines the x-coordinate of a node's position.
    */
@@ -35,6 +54,20 @@ public class SymbolNameGenerator {
     return new Symbol(nodeName.concat("_pos_y"));
   }
   
+  /**
+   * Retrieves the symbols that define a node's position on the placement
+   * grid, as integer multiples of the pitch.
+   */
+  public static Symbol getsym_NodeGridX(Schematic schematic, NodeValue node) {
+    String nodeName = schematic.getNodeName(node);
+    return new Symbol(nodeName.concat("_grid_x"));
+  }
+  
+  public static Symbol getsym_NodeGridY(Schematic schematic, NodeValue node) {
+    String nodeName = schematic.getNodeName(node);
+    return new Symbol(nodeName.concat("_grid_y"));
+  }
+  
   /**
    * Retrieves the symbol that defines the pressure at a node
    * (throughout the entire node, i.e. at every port).
@@ -76,6 +109,44 @@ public class SymbolNameGenerator {
     return new Symbol(chName.concat("_length"));
   }
   
+  /**
+   * Retrieves the symbols that define how far apart the ends of a channel
+   * are along the x- and y-axis, i.e. the absolute coordinate differences.
+   */
+  public static Symbol getsym_ChannelExtentX(Schematic schematic,
+      ConnectionValue ch) {
+    String chName = schematic.getConnectionName(ch);
+    return new Symbol(chName.concat("_extent_x"));
+  }
+
+  public static Symbol getsym_ChannelExtentY(Schematic schematic,
+      ConnectionValue ch) {
+    String chName = schematic.getConnectionName(ch);
+    return new Symbol(chName.concat("_extent_y"));
+  }
+  
+  /**
+   * Retrieves the symbols that define the extents and the length of a
+   * channel on the placement grid, in multiples of the pitch.
+   */
+  public static Symbol getsym_ChannelGridExtentX(Schematic schematic,
+      ConnectionValue ch) {
+    String chName = schematic.getConnectionName(ch);
+    return new Symbol(chName.concat("_grid_extent_x"));
+  }
+
+  public static Symbol getsym_ChannelGridExtentY(Schematic schematic,
+      ConnectionValue ch) {
+    String chName = schematic.getConnectionName(ch);
+    return new Symbol(chName.concat("_grid_extent_y"));
+  }
+
+  public static Symbol getsym_ChannelGridLength(Schematic schematic,
+      ConnectionValue ch) {
+    String chName = schematic.getConnectionName(ch);
+    return new Symbol(chName.concat("_grid_length"));
+  }
+  
   /**
    * Retrieves the symbol that defines the flow rate through a channel.
    * Positive flow is in the direction into the "from" connection
@@ -0,0 +1,79 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+// The outcome of one timed solver query, as a line of a comma-separated
+// table: the columns that identify the query, then the solver status,
+// the time taken and the error, if any.
+public abstract class TimedResult {
+  private final DRealSolver.Result result;
+  private final String error;
+  private final double seconds;
+
+  protected TimedResult(DRealSolver.Result result, String error,
+      double seconds) {
+    this.result = result;
+    this.error = error;
+    this.seconds = seconds;
+  }
+
+  /**
+   * @return the solver result, or null if the query failed
+   */
+  public DRealSolver.Result getResult() {
+    return result;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public double getSeconds() {
+    return seconds;
+  }
+
+  public String getStatus() {
+    if (result == null) {
+      return "error";
+    }
+    return result.isSatisfiable() ? "sat" : "unsat";
+  }
+
+  /**
+   * @return the values of the columns that identify the query
+   */
+  protected abstract List<String> getKeys();
+
+  /**
+   * Writes a header of the given key column names followed by
+   * "status,seconds,error", then one line per result.
+   */
+  public static void writeTable(List<String> keyNames,
+      List<? extends TimedResult> results, Writer writer)
+      throws IOException {
+    StringBuilder header = new StringBuilder();
+    for (String name : keyNames) {
+      header.append(name).append(',');
+    }
+    header.append("status,seconds,error\n");
+    writer.write(header.toString());
+    for (TimedResult r : results) {
+      StringBuilder line = new StringBuilder();
+      for (String key : r.getKeys()) {
+        line.append(key).append(',');
+      }
+      line.append(r.getStatus()).append(',').append(r.getSeconds())
+          .append(',');
+      if (r.getError() != null) {
+        // keep the table one line per result
+        line.append('"').append(r.getError().replace('"', '\'')
+            .replace('\n', ' ')).append('"');
+      }
+      line.append('\n');
+      writer.write(line.toString());
+    }
+  }
+
+}
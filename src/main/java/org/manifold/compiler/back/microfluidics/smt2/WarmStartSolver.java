@@ -0,0 +1,207 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.middle.Schematic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+// Seeds each query with the model found by the previous one.
+//
+// After every satisfiable solve the model is saved to a file, normally
+// one per schematic. The next solve first bounds every variable that
+// appears in both the formula and the saved model to a box around its
+// previous range, widened by a relative and an absolute margin. Since
+// the seeded query only adds constraints, a sat answer is also an answer
+// to the original query. An unsat answer only means the solution moved
+// outside the box, so the query is then repeated without the seed.
+public class WarmStartSolver implements FormulaSolver {
+
+  private static final Logger log = LogManager.getLogger("WarmStartSolver");
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final FormulaSolver solver;
+  private final Path modelPath;
+
+  public WarmStartSolver(FormulaSolver solver, Path modelPath) {
+    this.solver = solver;
+    this.modelPath = modelPath;
+  }
+
+  // where the model for a schematic is kept, next to "schematic-name.smt2"
+  public static Path getModelPath(Schematic schematic) {
+    return Paths.get(schematic.getName() + ".model.json");
+  }
+
+  // the seed box is widened on each side by this fraction of the
+  // magnitude of the previous value...
+  private double relativeMargin = 0.1;
+  public void setRelativeMargin(double relativeMargin) {
+    this.relativeMargin = relativeMargin;
+  }
+
+  // ...plus this amount, so that values near zero can still move
+  private double absoluteMargin = 1e-6;
+  public void setAbsoluteMargin(double absoluteMargin) {
+    this.absoluteMargin = absoluteMargin;
+  }
+
+  // used as the seed while no model has been saved yet, e.g. a
+  // heuristic placement
+  private DRealSolver.Result priorModel = null;
+  public void usePriorModel(DRealSolver.Result model) {
+    this.priorModel = model;
+  }
+
+  private boolean lastSolveSeeded = false;
+  /**
+   * @return true if the last result came from the seeded query, false if
+   * there was no usable model or the seeded query was unsat
+   */
+  public boolean wasLastSolveSeeded() {
+    return lastSolveSeeded;
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    lastSolveSeeded = false;
+    DRealSolver.Result prior = loadModel();
+    if (prior == null) {
+      prior = priorModel;
+    }
+    if (prior != null) {
+      List<SExpression> seeded = seed(formula, prior);
+      if (seeded != null) {
+        DRealSolver.Result result = solver.solve(seeded);
+        if (result.isSatisfiable()) {
+          lastSolveSeeded = true;
+          saveModel(result);
+          return result;
+        }
+        log.info("seeded query is unsat, retrying without previous model");
+      }
+    }
+    DRealSolver.Result result = solver.solve(formula);
+    if (result.isSatisfiable()) {
+      saveModel(result);
+    }
+    return result;
+  }
+
+  /**
+   * Adds bounds around the prior model to the formula, just before
+   * (check-sat) if there is one.
+   * @return the seeded formula, or null if no variable could be bounded
+   */
+  List<SExpression> seed(List<SExpression> formula,
+      DRealSolver.Result prior) {
+    Set<Symbol> declared = new HashSet<>();
+    for (SExpression expr : formula) {
+      if (QFNRA.hasHead(expr, "declare-fun")) {
+        declared.add((Symbol) ((ParenList) expr).getExprs().get(1));
+      }
+    }
+    List<SExpression> bounds = new ArrayList<>();
+    for (Symbol sym : prior.getSymbols()) {
+      if (!declared.contains(sym)) {
+        continue;
+      }
+      DRealSolver.RealRange range = prior.getRange(sym);
+      double lower = range.lowerBound;
+      double upper = range.upperBound;
+      if (Double.isInfinite(lower) || Double.isInfinite(upper)
+          || Double.isNaN(lower) || Double.isNaN(upper)) {
+        continue;
+      }
+      double margin = relativeMargin
+          * Math.max(Math.abs(lower), Math.abs(upper)) + absoluteMargin;
+      bounds.add(QFNRA.assertGreaterEqual(sym,
+          QFNRA.constant(lower - margin)));
+      bounds.add(QFNRA.assertLessThanEqual(sym,
+          QFNRA.constant(upper + margin)));
+    }
+    if (bounds.isEmpty()) {
+      return null;
+    }
+    return QFNRA.insertBeforeCheckSat(formula, bounds);
+  }
+
+  /**
+   * @return the saved model, or null if there is none or it is unreadable
+   */
+  DRealSolver.Result loadModel() {
+    if (!Files.isRegularFile(modelPath)) {
+      return null;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(modelPath,
+        CHARSET)) {
+      JsonObject ranges = new JsonParser().parse(reader).getAsJsonObject();
+      DRealSolver.Result model = new DRealSolver.Result(true);
+      for (Map.Entry<String, JsonElement> entry : ranges.entrySet()) {
+        JsonArray range = entry.getValue().getAsJsonArray();
+        model.addRange(new Symbol(entry.getKey()), new DRealSolver.RealRange(
+            range.get(0).getAsDouble(), range.get(1).getAsDouble()));
+      }
+      return model;
+    } catch (IOException | RuntimeException e) {
+      // a stale or damaged model only costs us the warm start
+      log.warn("ignoring unreadable model '" + modelPath + "': "
+          + e.getMessage());
+      return null;
+    }
+  }
+
+  void saveModel(DRealSolver.Result model) throws IOException {
+    JsonObject ranges = new JsonObject();
+    for (Symbol sym : model.getSymbols()) {
+      DRealSolver.RealRange range = model.getRange(sym);
+      JsonArray bounds = new JsonArray();
+      bounds.add(toJson(range.lowerBound));
+      bounds.add(toJson(range.upperBound));
+      ranges.add(sym.getName(), bounds);
+    }
+    // write a fresh file next to the model and rename it into place, so
+    // that a concurrent reader never sees a partial model and concurrent
+    // writers never share a temporary file
+    Path absolute = modelPath.toAbsolutePath();
+    Path temp = Files.createTempFile(absolute.getParent(),
+        absolute.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, CHARSET)) {
+        writer.write(ranges.toString());
+      }
+      Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static JsonElement toJson(double value) {
+    // JSON has no infinities; keep them as strings, which gson parses back
+    if (Double.isInfinite(value) || Double.isNaN(value)) {
+      return new JsonPrimitive(Double.toString(value));
+    }
+    return new JsonPrimitive(value);
+  }
+
+}
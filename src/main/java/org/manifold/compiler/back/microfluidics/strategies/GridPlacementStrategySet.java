@@ -0,0 +1,183 @@
+package org.manifold.compiler.back.microfluidics.strategies;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.TranslationStrategy;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Numeral;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ReferencePlacement;
+import org.manifold.compiler.middle.Schematic;
+
+// The placement rules restated for positions on the process's placement
+// grid, as a linear integer formula (QF_LIA) that an integer solver can
+// take instead of dReal.
+//
+// Every node has integer grid coordinates, in multiples of the pitch.
+// The chip area and control point placement rules bound and fix them,
+// and every channel has a grid length equal to the Manhattan distance
+// between its ends (as in ManhattanLengthRuleStrategy) of at least the
+// minimum channel length. The formula is self-contained, with its own
+// declarations; toPlacement() turns a solution into node positions,
+// e.g. to use as a reference placement.
+public class GridPlacementStrategySet extends TranslationStrategy {
+
+  // how far off the grid a pinned position may be before it is an error,
+  // as a fraction of the pitch
+  private static final double GRID_TOLERANCE = 1e-6;
+
+  private static double pitch(ProcessParameters processParams) {
+    double pitch = processParams.getPlacementPitch();
+    if (!(pitch > 0.0)) {
+      throw new CodeGenerationError(
+          "grid placement requires a positive placement pitch");
+    }
+    return pitch;
+  }
+
+  /**
+   * @return the largest number of pitches strictly below the size
+   */
+  static long cellsBelow(double size, double pitch) {
+    double cells = size / pitch;
+    long nearest = Math.round(cells);
+    if (Math.abs(cells - nearest) <= GRID_TOLERANCE * Math.max(1.0, cells)) {
+      return nearest - 1;
+    }
+    return (long) Math.floor(cells);
+  }
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams,
+      PrimitiveTypeTable typeTable) {
+    double pitch = pitch(processParams);
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.addAll(translateChipArea(schematic, processParams, pitch));
+    exprs.addAll(translateControlPoints(schematic, typeTable, pitch));
+    exprs.addAll(translateLengths(schematic, processParams, pitch));
+    return exprs;
+  }
+
+  private List<SExpression> translateChipArea(Schematic schematic,
+      ProcessParameters processParams, double pitch) {
+    long cellsX = cellsBelow(processParams.getMaximumChipSizeX(), pitch);
+    long cellsY = cellsBelow(processParams.getMaximumChipSizeY(), pitch);
+    List<SExpression> exprs = new LinkedList<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      Symbol gridX = SymbolNameGenerator.getsym_NodeGridX(schematic, n);
+      Symbol gridY = SymbolNameGenerator.getsym_NodeGridY(schematic, n);
+      exprs.add(QFNRA.declareIntegerVariable(gridX));
+      exprs.add(QFNRA.declareIntegerVariable(gridY));
+      exprs.add(QFNRA.assertGreaterEqual(gridX, new Numeral(1)));
+      exprs.add(QFNRA.assertGreaterEqual(gridY, new Numeral(1)));
+      exprs.add(QFNRA.assertLessThanEqual(gridX, new Numeral(cellsX)));
+      exprs.add(QFNRA.assertLessThanEqual(gridY, new Numeral(cellsY)));
+    }
+    return exprs;
+  }
+
+  private static long toGrid(Schematic schematic, NodeValue node,
+      double position, double pitch) {
+    double cells = position / pitch;
+    long nearest = Math.round(cells);
+    if (Math.abs(cells - nearest) > GRID_TOLERANCE * Math.max(1.0, cells)) {
+      throw new CodeGenerationError("control point placement of node '"
+          + schematic.getNodeName(node) + "' at " + position
+          + " is not on the placement grid of pitch " + pitch);
+    }
+    return nearest;
+  }
+
+  private List<SExpression> translateControlPoints(Schematic schematic,
+      PrimitiveTypeTable typeTable, double pitch) {
+    List<SExpression> exprs = new LinkedList<>();
+    for (Map.Entry<NodeValue, double[]> pin : ReferencePlacement
+        .pinnedPositions(schematic, typeTable).entrySet()) {
+      NodeValue node = pin.getKey();
+      exprs.add(QFNRA.assertEqual(
+          SymbolNameGenerator.getsym_NodeGridX(schematic, node),
+          new Numeral(toGrid(schematic, node, pin.getValue()[0], pitch))));
+      exprs.add(QFNRA.assertEqual(
+          SymbolNameGenerator.getsym_NodeGridY(schematic, node),
+          new Numeral(toGrid(schematic, node, pin.getValue()[1], pitch))));
+    }
+    return exprs;
+  }
+
+  // ext >= 0 and ext = a - b or ext = b - a, so ext = |a - b|
+  private static void addAbsoluteDifference(List<SExpression> exprs,
+      Symbol ext, Symbol a, Symbol b) {
+    exprs.add(QFNRA.declareIntegerVariable(ext));
+    exprs.add(QFNRA.assertGreaterEqual(ext, new Numeral(0)));
+    exprs.add(QFNRA.assertThat(QFNRA.or(
+        QFNRA.equal(ext, QFNRA.subtract(a, b)),
+        QFNRA.equal(ext, QFNRA.subtract(b, a)))));
+  }
+
+  private List<SExpression> translateLengths(Schematic schematic,
+      ProcessParameters processParams, double pitch) {
+    // a channel spans at least one pitch, so that its ends are distinct
+    long minimumCells = Math.max(1L, (long) Math.ceil(
+        processParams.getMinimumChannelLength() / pitch - GRID_TOLERANCE));
+    List<SExpression> exprs = new LinkedList<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      NodeValue n1 = ch.getFrom().getParent();
+      NodeValue n2 = ch.getTo().getParent();
+      if (n1 == n2) {
+        continue;
+      }
+      Symbol extX = SymbolNameGenerator.getsym_ChannelGridExtentX(
+          schematic, ch);
+      Symbol extY = SymbolNameGenerator.getsym_ChannelGridExtentY(
+          schematic, ch);
+      Symbol length = SymbolNameGenerator.getsym_ChannelGridLength(
+          schematic, ch);
+      addAbsoluteDifference(exprs, extX,
+          SymbolNameGenerator.getsym_NodeGridX(schematic, n1),
+          SymbolNameGenerator.getsym_NodeGridX(schematic, n2));
+      addAbsoluteDifference(exprs, extY,
+          SymbolNameGenerator.getsym_NodeGridY(schematic, n1),
+          SymbolNameGenerator.getsym_NodeGridY(schematic, n2));
+      exprs.add(QFNRA.declareIntegerVariable(length));
+      exprs.add(QFNRA.assertEqual(length, QFNRA.add(extX, extY)));
+      exprs.add(QFNRA.assertGreaterEqual(length, new Numeral(minimumCells)));
+    }
+    return exprs;
+  }
+
+  /**
+   * @return the position of each node that the solution of a grid
+   * formula places
+   */
+  public static Map<NodeValue, double[]> toPlacement(Schematic schematic,
+      ProcessParameters processParams, DRealSolver.Result model) {
+    double pitch = pitch(processParams);
+    Map<NodeValue, double[]> placement = new HashMap<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      DRealSolver.RealRange x = model.getRange(
+          SymbolNameGenerator.getsym_NodeGridX(schematic, n));
+      DRealSolver.RealRange y = model.getRange(
+          SymbolNameGenerator.getsym_NodeGridY(schematic, n));
+      if (x != null && y != null) {
+        placement.put(n, new double[] {
+          pitch * Math.round((x.lowerBound + x.upperBound) / 2.0),
+          pitch * Math.round((y.lowerBound + y.upperBound) / 2.0)
+        });
+      }
+    }
+    return placement;
+  }
+
+}
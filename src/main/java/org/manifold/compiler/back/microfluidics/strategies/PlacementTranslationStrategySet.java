@@ -2,19 +2,24 @@ package org.manifold.compiler.back.microfluidics.strategies;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
+import org.manifold.compiler.NodeValue;
 import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
 import org.manifold.compiler.back.microfluidics.ProcessParameters;
 import org.manifold.compiler.back.microfluidics.TranslationStrategy;
 import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.strategies.placement.ChannelCrossingStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.ChannelPlacementConstraintStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.ChipAreaRuleStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.ControlPointPlacementConstraintStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.CosineLawCriticalAngleStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.CriticalAngleStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.FiniteChipAreaRuleStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.placement.InfiniteChipAreaRuleStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.LengthRuleStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.MinimumChannelLengthStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.placement.NodeSeparationStrategy;
 import org.manifold.compiler.back.microfluidics.strategies.placement.PythagoreanLengthRuleStrategy;
 import org.manifold.compiler.middle.Schematic;
 
@@ -31,6 +36,8 @@ public class PlacementTranslationStrategySet extends TranslationStrategy {
   private CriticalAngleStrategy criticalAngleStrategy;
   private LengthRuleStrategy lengthRuleStrategy;
   private MinimumChannelLengthStrategy minimumChannelLengthStrategy;
+  private NodeSeparationStrategy nodeSeparationStrategy;
+  private ChannelCrossingStrategy channelCrossingStrategy;
   
   public void useChannelPlacementStrategy(
       ChannelPlacementConstraintStrategy cps) {
@@ -40,7 +47,7 @@ public class PlacementTranslationStrategySet extends TranslationStrategy {
   public void setAssumeInfiniteArea(boolean setting) {
     this.assumeInfiniteArea = setting;
     if (this.assumeInfiniteArea) {
-       // TODO infinite chip area rule strategy
+      this.chipAreaRuleStrategy = new InfiniteChipAreaRuleStrategy();
     } else {
       this.chipAreaRuleStrategy = new FiniteChipAreaRuleStrategy();
     }
@@ -64,6 +71,39 @@ public class PlacementTranslationStrategySet extends TranslationStrategy {
     this.minimumChannelLengthStrategy = mls;
   }
   
+  // if set, rules over tuples of elements are left out of the translation
+  // and only produced by translatePairwiseRules(), so that a solver can
+  // add them lazily (see LazyConstraintSolver)
+  private boolean lazyPairwiseRules = false;
+  public void setLazyPairwiseRules(boolean setting) {
+    this.lazyPairwiseRules = setting;
+  }
+  public boolean getLazyPairwiseRules() {
+    return this.lazyPairwiseRules;
+  }
+  
+  public void useNodeSeparationStrategy(NodeSeparationStrategy nss) {
+    this.nodeSeparationStrategy = nss;
+  }
+  
+  // if set, the pairwise rules keep nearby nodes the minimum node
+  // distance apart (see NodeSeparationStrategy)
+  private boolean separateNodes = false;
+  public void setSeparateNodes(boolean setting) {
+    this.separateNodes = setting;
+  }
+  
+  public void useChannelCrossingStrategy(ChannelCrossingStrategy ccs) {
+    this.channelCrossingStrategy = ccs;
+  }
+  
+  // hands approximate node positions to the strategies that use them
+  // to decide which pairwise rules to emit
+  public void useReferencePlacement(Map<NodeValue, double[]> placement) {
+    nodeSeparationStrategy.useReferencePlacement(placement);
+    channelCrossingStrategy.useReferencePlacement(placement);
+  }
+  
   public PlacementTranslationStrategySet() {
     // initialize default strategies
     channelPlacementStrategy = new ChannelPlacementConstraintStrategy();
@@ -73,6 +113,8 @@ public class PlacementTranslationStrategySet extends TranslationStrategy {
     criticalAngleStrategy = new CosineLawCriticalAngleStrategy();
     lengthRuleStrategy = new PythagoreanLengthRuleStrategy();
     minimumChannelLengthStrategy = new MinimumChannelLengthStrategy();
+    nodeSeparationStrategy = new NodeSeparationStrategy();
+    channelCrossingStrategy = new ChannelCrossingStrategy();
   }
   
   @Override
@@ -80,19 +122,59 @@ public class PlacementTranslationStrategySet extends TranslationStrategy {
       ProcessParameters processParams,
       PrimitiveTypeTable typeTable) {
     List<SExpression> exprs = new LinkedList<>();
-    exprs.addAll(channelPlacementStrategy.translate(
+    exprs.addAll(translateProcessIndependent(
         schematic, processParams, typeTable));
-    exprs.addAll(chipAreaRuleStrategy.translate(
+    exprs.addAll(translateProcessDependent(
         schematic, processParams, typeTable));
-    exprs.addAll(controlPointPlacementStrategy.translate(
+    return exprs;
+  }
+  
+  // The part of the translation that does not read process parameters,
+  // which can be shared between translations for different processes.
+  public List<SExpression> translateProcessIndependent(Schematic schematic,
+      ProcessParameters processParams,
+      PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.addAll(channelPlacementStrategy.translate(
         schematic, processParams, typeTable));
-    exprs.addAll(criticalAngleStrategy.translate(
+    exprs.addAll(controlPointPlacementStrategy.translate(
         schematic, processParams, typeTable));
     exprs.addAll(lengthRuleStrategy.translate(
         schematic, processParams, typeTable));
+    return exprs;
+  }
+  
+  // The part of the translation that reads process parameters.
+  public List<SExpression> translateProcessDependent(Schematic schematic,
+      ProcessParameters processParams,
+      PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.addAll(chipAreaRuleStrategy.translate(
+        schematic, processParams, typeTable));
+    if (!lazyPairwiseRules) {
+      exprs.addAll(translatePairwiseRules(
+          schematic, processParams, typeTable));
+    }
     exprs.addAll(minimumChannelLengthStrategy.translate(
         schematic, processParams, typeTable));
     return exprs;
   }
   
+  // The rules over pairs and triples of elements, which are numerous
+  // but rarely tight. They need no declarations of their own.
+  public List<SExpression> translatePairwiseRules(Schematic schematic,
+      ProcessParameters processParams,
+      PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.addAll(criticalAngleStrategy.translate(
+        schematic, processParams, typeTable));
+    if (separateNodes) {
+      exprs.addAll(nodeSeparationStrategy.translate(
+          schematic, processParams, typeTable));
+    }
+    exprs.addAll(channelCrossingStrategy.translate(
+        schematic, processParams, typeTable));
+    return exprs;
+  }
+  
 }
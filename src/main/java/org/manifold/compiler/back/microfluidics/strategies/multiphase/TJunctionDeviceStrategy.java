@@ -26,6 +26,11 @@ public class TJunctionDeviceStrategy extends TranslationStrategy {
 
   private static boolean calculateDropletDerivedQuantities = false;
   
+  // experimentally-determined constants of the droplet resistance model
+  public static final double DROPLET_RESISTANCE_ALPHA = 1.0;
+  public static final double CAPILLARY_NUMBER = 0.0036;
+  public static final double INTERFACIAL_TENSION = 0.042;
+  
   private final boolean performWorstCaseAnalysis;
   
   public TJunctionDeviceStrategy(boolean performWorstCaseAnalysis) {
@@ -96,7 +101,8 @@ public class TJunctionDeviceStrategy extends TranslationStrategy {
     }
   }
   
-  private SExpression calculatedDropletVolume(SExpression h, SExpression w,
+  public static SExpression calculatedDropletVolume(
+      SExpression h, SExpression w,
       SExpression wIn, SExpression epsilon, SExpression qD, SExpression qC) {
     /* Predictive model for the size of bubbles and droplets 
      * created in microfluidic T-junctions.
@@ -222,7 +228,7 @@ public class TJunctionDeviceStrategy extends TranslationStrategy {
   // muD: viscosity of dispersed medium
   // muC: viscosity of continuous medium
   // L, w, h: channel length/width/height
-  private SExpression calculatedDropletResistance(
+  public static SExpression calculatedDropletResistance(
       SExpression r1, SExpression alpha, SExpression ca,
       SExpression sigma,
       SExpression muD, SExpression muC,
@@ -345,7 +351,8 @@ public class TJunctionDeviceStrategy extends TranslationStrategy {
       // TODO figure out what this is a property of
       Symbol interfacialTension = new Symbol("interfacialTension");
       exprs.add(QFNRA.declareRealVariable(interfacialTension));
-      exprs.add(QFNRA.assertEqual(interfacialTension, new Decimal(0.042)));
+      exprs.add(QFNRA.assertEqual(interfacialTension,
+          new Decimal(INTERFACIAL_TENSION)));
       
       // constraint: calculate droplet resistance
       Symbol dropletResistance = SymbolNameGenerator
@@ -355,8 +362,8 @@ public class TJunctionDeviceStrategy extends TranslationStrategy {
           calculatedDropletResistance(
               SymbolNameGenerator.getsym_ChannelResistance(
                   schematic, chOutput),
-              new Decimal(1.0), // alpha
-              new Decimal(0.0036), // Ca 
+              new Decimal(DROPLET_RESISTANCE_ALPHA),
+              new Decimal(CAPILLARY_NUMBER),
               interfacialTension, 
               dispersedViscosity, continuousViscosity,
               SymbolNameGenerator.getsym_ChannelLength(schematic, chOutput),
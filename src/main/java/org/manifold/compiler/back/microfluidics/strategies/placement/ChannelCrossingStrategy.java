@@ -0,0 +1,171 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.TranslationStrategy;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Keep channels that do not share a node from crossing each other, or,
+// if crossings are allowed, make them cross at no less than the critical
+// crossing angle defined by process parameters.
+//
+// A rule for every pair of channels would be quadratic in the number of
+// channels. Only pairs that cross in a reference placement are given a
+// rule; they are found with a sweep over the channels' segments (see
+// SegmentSweep). Channels that cross only in the final layout are found
+// by findCrossings() on the model, at the same cost, and are given a
+// rule in another round (see CrossingCheckSolver).
+public class ChannelCrossingStrategy extends TranslationStrategy {
+
+  private Map<NodeValue, double[]> referencePlacement = null;
+  public void useReferencePlacement(Map<NodeValue, double[]> placement) {
+    this.referencePlacement = placement;
+  }
+
+  public void useReferencePlacement(Schematic schematic,
+      DRealSolver.Result model) {
+    this.referencePlacement = ReferencePlacement.fromModel(schematic, model);
+  }
+
+  // if false, channels may not cross at all
+  private boolean allowCrossings = false;
+  public void setAllowCrossings(boolean allowCrossings) {
+    this.allowCrossings = allowCrossings;
+  }
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    if (referencePlacement == null) {
+      return exprs;
+    }
+    exprs.addAll(translateCrossings(schematic, processParams,
+        findCrossings(schematic, referencePlacement)));
+    return exprs;
+  }
+
+  /**
+   * @return the rules for the given pairs of channels
+   */
+  public List<SExpression> translateCrossings(Schematic schematic,
+      ProcessParameters processParams, List<ConnectionValue[]> pairs) {
+    List<SExpression> exprs = new ArrayList<>(pairs.size());
+    for (ConnectionValue[] pair : pairs) {
+      exprs.add(generateCrossingAssertion(schematic, processParams,
+          pair[0], pair[1]));
+    }
+    return exprs;
+  }
+
+  /**
+   * @return every pair of channels without a common node whose straight
+   * segments intersect in the given placement
+   */
+  public static List<ConnectionValue[]> findCrossings(Schematic schematic,
+      Map<NodeValue, double[]> placement) {
+    List<ConnectionValue> channels = new ArrayList<>();
+    List<double[]> segments = new ArrayList<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      double[] segment = ReferencePlacement.segmentOf(ch, placement);
+      if (segment != null) {
+        channels.add(ch);
+        segments.add(segment);
+      }
+    }
+    List<ConnectionValue[]> crossings = new ArrayList<>();
+    for (int[] pair : SegmentSweep.findIntersections(segments)) {
+      ConnectionValue a = channels.get(pair[0]);
+      ConnectionValue b = channels.get(pair[1]);
+      if (!shareNode(a, b)) {
+        crossings.add(new ConnectionValue[] {a, b});
+      }
+    }
+    return crossings;
+  }
+
+  /**
+   * Checks a final model: the channel pairs that cross in it.
+   */
+  public static List<ConnectionValue[]> findCrossings(Schematic schematic,
+      DRealSolver.Result model) {
+    return findCrossings(schematic,
+        ReferencePlacement.fromModel(schematic, model));
+  }
+
+  static boolean shareNode(ConnectionValue a, ConnectionValue b) {
+    NodeValue a1 = a.getFrom().getParent();
+    NodeValue a2 = a.getTo().getParent();
+    NodeValue b1 = b.getFrom().getParent();
+    NodeValue b2 = b.getTo().getParent();
+    return a1 == b1 || a1 == b2 || a2 == b1 || a2 == b2;
+  }
+
+  // (bx - ax) * (cy - ay) - (by - ay) * (cx - ax)
+  private static SExpression orientation(Symbol ax, Symbol ay,
+      Symbol bx, Symbol by, Symbol cx, Symbol cy) {
+    return QFNRA.subtract(
+        QFNRA.multiply(QFNRA.subtract(bx, ax), QFNRA.subtract(cy, ay)),
+        QFNRA.multiply(QFNRA.subtract(by, ay), QFNRA.subtract(cx, ax)));
+  }
+
+  private SExpression generateCrossingAssertion(Schematic schematic,
+      ProcessParameters processParams,
+      ConnectionValue channel1, ConnectionValue channel2) {
+    NodeValue a = channel1.getFrom().getParent();
+    NodeValue b = channel1.getTo().getParent();
+    NodeValue c = channel2.getFrom().getParent();
+    NodeValue d = channel2.getTo().getParent();
+    Symbol ax = SymbolNameGenerator.getsym_NodeX(schematic, a);
+    Symbol ay = SymbolNameGenerator.getsym_NodeY(schematic, a);
+    Symbol bx = SymbolNameGenerator.getsym_NodeX(schematic, b);
+    Symbol by = SymbolNameGenerator.getsym_NodeY(schematic, b);
+    Symbol cx = SymbolNameGenerator.getsym_NodeX(schematic, c);
+    Symbol cy = SymbolNameGenerator.getsym_NodeY(schematic, c);
+    Symbol dx = SymbolNameGenerator.getsym_NodeX(schematic, d);
+    Symbol dy = SymbolNameGenerator.getsym_NodeY(schematic, d);
+    Decimal zero = new Decimal(0.0);
+    // the segments are apart if both ends of one lie strictly
+    // on the same side of the line through the other
+    SExpression cdSameSide = QFNRA.greater(QFNRA.multiply(
+        orientation(ax, ay, bx, by, cx, cy),
+        orientation(ax, ay, bx, by, dx, dy)), zero);
+    SExpression abSameSide = QFNRA.greater(QFNRA.multiply(
+        orientation(cx, cy, dx, dy, ax, ay),
+        orientation(cx, cy, dx, dy, bx, by)), zero);
+    SExpression apart = QFNRA.or(cdSameSide, abSameSide);
+    if (!allowCrossings) {
+      return QFNRA.assertThat(apart);
+    }
+    // as in CosineLawCriticalAngleStrategy:
+    // (u dot v)^2 <= cos^2(thetaC) * ||u||^2 * ||v||^2
+    SExpression ux = QFNRA.subtract(bx, ax);
+    SExpression uy = QFNRA.subtract(by, ay);
+    SExpression vx = QFNRA.subtract(dx, cx);
+    SExpression vy = QFNRA.subtract(dy, cy);
+    SExpression dot = QFNRA.add(QFNRA.multiply(ux, vx),
+        QFNRA.multiply(uy, vy));
+    SExpression norms = QFNRA.multiply(
+        QFNRA.add(QFNRA.multiply(ux, ux), QFNRA.multiply(uy, uy)),
+        QFNRA.add(QFNRA.multiply(vx, vx), QFNRA.multiply(vy, vy)));
+    SExpression steep = QFNRA.lessThanEqual(QFNRA.multiply(dot, dot),
+        QFNRA.multiply(Decimal.plain(Math.pow(
+            Math.cos(processParams.getCriticalCrossingAngle()), 2.0)),
+            norms));
+    return QFNRA.assertThat(QFNRA.or(apart, steep));
+  }
+
+}
@@ -0,0 +1,136 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.middle.Schematic;
+
+// Solves a formula whose crossing rules come from a reference placement,
+// and makes sure the final layout has no crossings those rules missed.
+//
+// Each model is checked with ChannelCrossingStrategy.findCrossings().
+// Rules for the pairs of channels that cross in it are added just before
+// (check-sat), and the formula is solved again, until a model has no
+// crossing that has not been given a rule. An unsat answer is final, as
+// the rules only rule out layouts the formula should not allow anyway.
+// After maximumRounds rounds, every pair of channels is given a rule at
+// once, so the loop always ends.
+public class CrossingCheckSolver implements FormulaSolver {
+
+  private static final Logger log =
+      LogManager.getLogger("CrossingCheckSolver");
+
+  private final FormulaSolver solver;
+  private final Schematic schematic;
+  private final ProcessParameters processParams;
+  private final ChannelCrossingStrategy strategy;
+
+  public CrossingCheckSolver(FormulaSolver solver, Schematic schematic,
+      ProcessParameters processParams, ChannelCrossingStrategy strategy) {
+    this.solver = solver;
+    this.schematic = schematic;
+    this.processParams = processParams;
+    this.strategy = strategy;
+  }
+
+  private int maximumRounds = 20;
+  public void setMaximumRounds(int maximumRounds) {
+    if (maximumRounds < 1) {
+      throw new IllegalArgumentException("need at least one round");
+    }
+    this.maximumRounds = maximumRounds;
+  }
+
+  private int lastRounds = 0;
+  public int getLastRounds() {
+    return lastRounds;
+  }
+
+  private int lastAdded = 0;
+  /**
+   * @return how many crossing rules the last solve had to add
+   */
+  public int getLastAdded() {
+    return lastAdded;
+  }
+
+  @Override
+  public DRealSolver.Result solve(List<SExpression> formula)
+      throws IOException {
+    Map<ConnectionValue, Integer> index = new IdentityHashMap<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      index.put(ch, index.size());
+    }
+    Set<Long> ruled = new HashSet<>();
+    List<SExpression> rules = new ArrayList<>();
+    lastRounds = 0;
+    while (true) {
+      ++lastRounds;
+      lastAdded = rules.size();
+      DRealSolver.Result result = solver.solve(
+          QFNRA.insertBeforeCheckSat(formula, rules));
+      if (!result.isSatisfiable()) {
+        return result;
+      }
+      List<ConnectionValue[]> found = new ArrayList<>();
+      for (ConnectionValue[] pair
+          : ChannelCrossingStrategy.findCrossings(schematic, result)) {
+        if (ruled.add(pairKey(index, pair))) {
+          found.add(pair);
+        }
+      }
+      if (found.isEmpty()) {
+        return result;
+      }
+      if (lastRounds >= maximumRounds) {
+        log.debug("giving up on crossings after " + lastRounds
+            + " rounds, adding rules for every pair of channels");
+        found.addAll(remainingPairs(index, ruled));
+      }
+      log.debug("round " + lastRounds + ": adding " + found.size()
+          + " crossing rules");
+      rules.addAll(strategy.translateCrossings(schematic, processParams,
+          found));
+    }
+  }
+
+  private static long pairKey(Map<ConnectionValue, Integer> index,
+      ConnectionValue[] pair) {
+    long i = index.get(pair[0]);
+    long j = index.get(pair[1]);
+    return i < j ? i * index.size() + j : j * index.size() + i;
+  }
+
+  // every pair without a rule yet, marking them as ruled
+  private static List<ConnectionValue[]> remainingPairs(
+      Map<ConnectionValue, Integer> index, Set<Long> ruled) {
+    List<ConnectionValue> channels = new ArrayList<>(index.keySet());
+    List<ConnectionValue[]> pairs = new ArrayList<>();
+    for (int i = 0; i < channels.size(); ++i) {
+      for (int j = i + 1; j < channels.size(); ++j) {
+        ConnectionValue[] pair = new ConnectionValue[] {
+          channels.get(i), channels.get(j)
+        };
+        if (!ChannelCrossingStrategy.shareNode(pair[0], pair[1])
+            && ruled.add(pairKey(index, pair))) {
+          pairs.add(pair);
+        }
+      }
+    }
+    return pairs;
+  }
+
+}
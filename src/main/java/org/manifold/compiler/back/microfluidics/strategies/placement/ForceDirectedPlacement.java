@@ -0,0 +1,498 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.ConstraintType;
+import org.manifold.compiler.ConstraintValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.RealValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.middle.Schematic;
+
+// Computes an approximate layout of the schematic before any solving,
+// to be used as a reference placement (see ReferencePlacement) and as
+// a seed for the solver (see WarmStartSolver).
+//
+// This is a Fruchterman-Reingold spring embedding: channels pull their
+// nodes together, all nodes push each other apart, and the step size
+// cools over a fixed number of iterations. The repulsion between all
+// pairs is approximated with a Barnes-Hut quadtree, so that an
+// iteration takes O(n log n) time instead of O(n^2); the forces on
+// different nodes are computed concurrently. Since each node's force
+// only reads the positions of the previous iteration, the layout does
+// not depend on the number of threads.
+//
+// Nodes with a control point placement constraint are pinned where the
+// constraint puts them. A channel placement constraint pulls both ends
+// of its channel towards the waypoint. Every other node is kept inside
+// the chip area.
+public class ForceDirectedPlacement {
+
+  private static final Logger log =
+      LogManager.getLogger("ForceDirectedPlacement");
+
+  // quadtree cells deeper than this hold all their nodes together
+  private static final int MAX_DEPTH = 40;
+
+  private static final int EMPTY = -1;
+  private static final int AGGREGATE = -2;
+  private static final int INTERNAL = -3;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+          "at least one thread is required");
+    }
+    this.threads = threads;
+  }
+
+  private int iterations = 100;
+  public void setIterations(int iterations) {
+    this.iterations = iterations;
+  }
+
+  // a cell of the quadtree is treated as a single body if its width
+  // over its distance is below this; 0 computes all pairs exactly
+  private double theta = 1.0;
+  public void setTheta(double theta) {
+    this.theta = theta;
+  }
+
+  // strength of the pull towards the centre of the chip; at 1, the
+  // pull at the edge of the chip roughly balances the repulsion of all
+  // the other nodes, which would otherwise pile nodes up on the edges
+  private double gravity = 1.0;
+  public void setGravity(double gravity) {
+    this.gravity = gravity;
+  }
+
+  // for the initial positions of unpinned nodes
+  private long seed = 0;
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  private int n;
+  private double[] x;
+  private double[] y;
+  private double[] dispX;
+  private double[] dispY;
+  private boolean[] pinned;
+  // neighbours of node i are adjacency[adjacencyStart[i] ...
+  // adjacencyStart[i + 1] - 1]; waypoints likewise
+  private int[] adjacencyStart;
+  private int[] adjacency;
+  private int[] waypointStart;
+  private double[] waypointX;
+  private double[] waypointY;
+  private double k;
+  private double centreX;
+  private double centreY;
+  private double stiffness;
+
+  // the quadtree, as parallel arrays indexed by cell; cellSumX and
+  // cellSumY hold the centre of mass once the tree is built
+  private int cells;
+  private double[] cellX;
+  private double[] cellY;
+  private double[] cellSize;
+  private double[] cellMass;
+  private double[] cellSumX;
+  private double[] cellSumY;
+  private int[] cellBody;
+  private int[] cellChild;
+  // the nodes in Z-order of their positions, so that consecutive nodes
+  // walk mostly the same cells
+  private int[] order;
+
+  /**
+   * @return a position {x, y} for every node of the schematic
+   */
+  public Map<NodeValue, double[]> place(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable)
+      throws InterruptedException {
+    List<NodeValue> nodes = new ArrayList<>(schematic.getNodes().values());
+    Map<NodeValue, Integer> index = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.size(); ++i) {
+      index.put(nodes.get(i), i);
+    }
+    n = nodes.size();
+    x = new double[n];
+    y = new double[n];
+    dispX = new double[n];
+    dispY = new double[n];
+    pinned = new boolean[n];
+    order = null;
+    cellX = null;
+    double width = processParams.getMaximumChipSizeX();
+    double height = processParams.getMaximumChipSizeY();
+    k = 0.5 * Math.sqrt(width * height / Math.max(n, 1));
+    centreX = width / 2;
+    centreY = height / 2;
+    double radius = Math.min(width, height) / 2;
+    stiffness = gravity * n * k * k / (radius * radius);
+
+    readPins(schematic, typeTable, index);
+    buildAdjacency(schematic, typeTable, index);
+    Random random = new Random(seed);
+    for (int i = 0; i < n; ++i) {
+      if (!pinned[i]) {
+        x[i] = width * random.nextDouble();
+        y[i] = height * random.nextDouble();
+      }
+    }
+
+    // keep unpinned nodes strictly inside the chip area
+    double inset = 1e-3 * Math.min(width, height);
+    double temperature = 0.1 * Math.max(width, height);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int iteration = 0; iteration < iterations; ++iteration) {
+        buildTree();
+        computeForces(pool);
+        double step = temperature * (1.0 - (double) iteration / iterations);
+        for (int i = 0; i < n; ++i) {
+          if (pinned[i]) {
+            continue;
+          }
+          double d = Math.hypot(dispX[i], dispY[i]);
+          if (d > 0.0) {
+            double move = Math.min(d, step) / d;
+            x[i] += dispX[i] * move;
+            y[i] += dispY[i] * move;
+          }
+          x[i] = Math.min(width - inset, Math.max(inset, x[i]));
+          y[i] = Math.min(height - inset, Math.max(inset, y[i]));
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    log.debug("placed " + n + " nodes in " + iterations + " iterations");
+
+    Map<NodeValue, double[]> placement = new HashMap<>();
+    for (int i = 0; i < n; ++i) {
+      placement.put(nodes.get(i), new double[] {x[i], y[i]});
+    }
+    return placement;
+  }
+
+  private void readPins(Schematic schematic, PrimitiveTypeTable typeTable,
+      Map<NodeValue, Integer> index) {
+    for (Map.Entry<NodeValue, double[]> pin
+        : ReferencePlacement.pinnedPositions(schematic, typeTable)
+        .entrySet()) {
+      int i = index.get(pin.getKey());
+      x[i] = pin.getValue()[0];
+      y[i] = pin.getValue()[1];
+      pinned[i] = true;
+    }
+  }
+
+  private void buildAdjacency(Schematic schematic,
+      PrimitiveTypeTable typeTable, Map<NodeValue, Integer> index) {
+    List<int[]> edges = new ArrayList<>();
+    for (ConnectionValue ch : schematic.getConnections().values()) {
+      int a = index.get(ch.getFrom().getParent());
+      int b = index.get(ch.getTo().getParent());
+      if (a != b) {
+        edges.add(new int[] {a, b});
+      }
+    }
+    adjacencyStart = new int[n + 1];
+    for (int[] e : edges) {
+      adjacencyStart[e[0] + 1] += 1;
+      adjacencyStart[e[1] + 1] += 1;
+    }
+    for (int i = 0; i < n; ++i) {
+      adjacencyStart[i + 1] += adjacencyStart[i];
+    }
+    adjacency = new int[adjacencyStart[n]];
+    int[] fill = Arrays.copyOf(adjacencyStart, n);
+    for (int[] e : edges) {
+      adjacency[fill[e[0]]++] = e[1];
+      adjacency[fill[e[1]]++] = e[0];
+    }
+
+    ConstraintType cxtTarget = typeTable.getChannelPlacementConstraintType();
+    List<double[]> waypoints = new ArrayList<>();
+    for (ConstraintValue cxt : schematic.getConstraints().values()) {
+      if (!(cxt.getType().isSubtypeOf(cxtTarget))) {
+        continue;
+      }
+      try {
+        ConnectionValue channel = (ConnectionValue) cxt.getAttribute(
+            "channel");
+        double px = ((RealValue) cxt.getAttribute("x")).toDouble();
+        double py = ((RealValue) cxt.getAttribute("y")).toDouble();
+        waypoints.add(new double[] {
+          index.get(channel.getFrom().getParent()), px, py});
+        waypoints.add(new double[] {
+          index.get(channel.getTo().getParent()), px, py});
+      } catch (ClassCastException|UndeclaredAttributeException e) {
+        throw new CodeGenerationError(
+            "instance of channelPlacementConstraint"
+            + " has values with wrong types");
+      }
+    }
+    waypointStart = new int[n + 1];
+    for (double[] w : waypoints) {
+      waypointStart[(int) w[0] + 1] += 1;
+    }
+    for (int i = 0; i < n; ++i) {
+      waypointStart[i + 1] += waypointStart[i];
+    }
+    waypointX = new double[waypoints.size()];
+    waypointY = new double[waypoints.size()];
+    fill = Arrays.copyOf(waypointStart, n);
+    for (double[] w : waypoints) {
+      int slot = fill[(int) w[0]]++;
+      waypointX[slot] = w[1];
+      waypointY[slot] = w[2];
+    }
+  }
+
+  private int newCell(double cx, double cy, double size) {
+    if (cells == cellX.length) {
+      int capacity = 2 * cells;
+      cellX = Arrays.copyOf(cellX, capacity);
+      cellY = Arrays.copyOf(cellY, capacity);
+      cellSize = Arrays.copyOf(cellSize, capacity);
+      cellMass = Arrays.copyOf(cellMass, capacity);
+      cellSumX = Arrays.copyOf(cellSumX, capacity);
+      cellSumY = Arrays.copyOf(cellSumY, capacity);
+      cellBody = Arrays.copyOf(cellBody, capacity);
+      cellChild = Arrays.copyOf(cellChild, 4 * capacity);
+    }
+    int c = cells++;
+    cellX[c] = cx;
+    cellY[c] = cy;
+    cellSize[c] = size;
+    cellMass[c] = 0.0;
+    cellSumX[c] = 0.0;
+    cellSumY[c] = 0.0;
+    cellBody[c] = EMPTY;
+    Arrays.fill(cellChild, 4 * c, 4 * c + 4, -1);
+    return c;
+  }
+
+  // the child of cell c in the quadrant of (px, py), created if needed
+  private int childFor(int c, double px, double py) {
+    int q = (px < cellX[c] + cellSize[c] / 2 ? 0 : 1)
+        + (py < cellY[c] + cellSize[c] / 2 ? 0 : 2);
+    int child = cellChild[4 * c + q];
+    if (child < 0) {
+      double half = cellSize[c] / 2;
+      child = newCell(cellX[c] + (q % 2) * half, cellY[c] + (q / 2) * half,
+          half);
+      cellChild[4 * c + q] = child;
+    }
+    return child;
+  }
+
+  private void addMass(int c, int i) {
+    cellMass[c] += 1.0;
+    cellSumX[c] += x[i];
+    cellSumY[c] += y[i];
+  }
+
+  private void buildTree() {
+    if (cellX == null) {
+      int capacity = Math.max(16, 2 * n);
+      cellX = new double[capacity];
+      cellY = new double[capacity];
+      cellSize = new double[capacity];
+      cellMass = new double[capacity];
+      cellSumX = new double[capacity];
+      cellSumY = new double[capacity];
+      cellBody = new int[capacity];
+      cellChild = new int[4 * capacity];
+    }
+    cells = 0;
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; ++i) {
+      minX = Math.min(minX, x[i]);
+      minY = Math.min(minY, y[i]);
+      maxX = Math.max(maxX, x[i]);
+      maxY = Math.max(maxY, y[i]);
+    }
+    double size = Math.max(maxX - minX, maxY - minY);
+    // widen a little so that the largest coordinates fall inside
+    size = size * (1.0 + 1e-9) + Double.MIN_NORMAL;
+    newCell(minX, minY, size);
+    sortByZOrder(minX, minY, size);
+    for (int i : order) {
+      insert(i);
+    }
+    for (int c = 0; c < cells; ++c) {
+      cellSumX[c] /= cellMass[c];
+      cellSumY[c] /= cellMass[c];
+    }
+  }
+
+  // interleaves the bits of a 16-bit x and y
+  private static long interleave(int qx, int qy) {
+    long key = 0;
+    for (int b = 15; b >= 0; --b) {
+      key = (key << 2) | (((qy >> b) & 1) << 1) | ((qx >> b) & 1);
+    }
+    return key;
+  }
+
+  private void sortByZOrder(double minX, double minY, double size) {
+    long[] keys = new long[n];
+    double scale = 65535.0 / size;
+    for (int i = 0; i < n; ++i) {
+      int qx = (int) ((x[i] - minX) * scale);
+      int qy = (int) ((y[i] - minY) * scale);
+      keys[i] = (interleave(qx, qy) << 31) | i;
+    }
+    Arrays.sort(keys);
+    if (order == null) {
+      order = new int[n];
+    }
+    for (int i = 0; i < n; ++i) {
+      order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+    }
+  }
+
+  private void insert(int i) {
+    int c = 0;
+    for (int depth = 0; ; ++depth) {
+      addMass(c, i);
+      int body = cellBody[c];
+      if (body == EMPTY) {
+        cellBody[c] = i;
+        return;
+      } else if (body == AGGREGATE) {
+        return;
+      } else if (body >= 0) {
+        if (depth >= MAX_DEPTH) {
+          cellBody[c] = AGGREGATE;
+          return;
+        }
+        // move the single body down a level
+        cellBody[c] = INTERNAL;
+        int child = childFor(c, x[body], y[body]);
+        addMass(child, body);
+        cellBody[child] = body;
+      }
+      c = childFor(c, x[i], y[i]);
+    }
+  }
+
+  private void computeForces(ExecutorService pool)
+      throws InterruptedException {
+    int chunks = threads == 1 ? 1 : 4 * threads;
+    int chunkSize = (n + chunks - 1) / chunks;
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int start = 0; start < n; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(n, start + chunkSize);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          int[] stack = new int[4 * (MAX_DEPTH + 2)];
+          for (int i = from; i < to; ++i) {
+            computeForce(order[i], stack);
+          }
+          return null;
+        }
+      });
+    }
+    for (Future<Void> result : pool.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  private boolean contains(int c, int i) {
+    return x[i] >= cellX[c] && x[i] < cellX[c] + cellSize[c]
+        && y[i] >= cellY[c] && y[i] < cellY[c] + cellSize[c];
+  }
+
+  private void computeForce(int i, int[] stack) {
+    double fx = 0.0;
+    double fy = 0.0;
+    if (!pinned[i]) {
+      double k2 = k * k;
+      // repulsion k^2 / d from every other node, by cells
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0) {
+        int c = stack[--top];
+        if (cellBody[c] == i) {
+          continue;
+        }
+        double dx = x[i] - cellSumX[c];
+        double dy = y[i] - cellSumY[c];
+        double d2 = dx * dx + dy * dy;
+        if (cellBody[c] == INTERNAL && (contains(c, i)
+            || cellSize[c] * cellSize[c] >= theta * theta * d2)) {
+          for (int q = 0; q < 4; ++q) {
+            int child = cellChild[4 * c + q];
+            if (child >= 0) {
+              stack[top++] = child;
+            }
+          }
+          continue;
+        }
+        if (d2 == 0.0) {
+          // coincident with this node; nudge apart in a fixed direction
+          dx = k * 1e-3 * ((i % 7) - 3 + 0.5);
+          dy = k * 1e-3 * ((i % 5) - 2 + 0.5);
+          d2 = dx * dx + dy * dy;
+        }
+        // (k^2 / d) along the unit vector (dx, dy) / d
+        double f = cellMass[c] * k2 / d2;
+        fx += dx * f;
+        fy += dy * f;
+      }
+      fx += stiffness * (centreX - x[i]);
+      fy += stiffness * (centreY - y[i]);
+      // attraction d^2 / k towards every neighbour and waypoint
+      for (int a = adjacencyStart[i]; a < adjacencyStart[i + 1]; ++a) {
+        int j = adjacency[a];
+        double dx = x[j] - x[i];
+        double dy = y[j] - y[i];
+        double d = Math.hypot(dx, dy);
+        fx += dx * d / k;
+        fy += dy * d / k;
+      }
+      for (int w = waypointStart[i]; w < waypointStart[i + 1]; ++w) {
+        double dx = waypointX[w] - x[i];
+        double dy = waypointY[w] - y[i];
+        double d = Math.hypot(dx, dy);
+        fx += dx * d / k;
+        fy += dy * d / k;
+      }
+    }
+    dispX[i] = fx;
+    dispY[i] = fy;
+  }
+
+}
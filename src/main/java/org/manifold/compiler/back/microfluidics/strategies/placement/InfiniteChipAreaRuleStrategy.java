@@ -0,0 +1,35 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Keeps every node in the positive quadrant, without bounding the chip
+// from above. The maximum chip size is left to a later step, e.g. an
+// AreaCompaction, which is much easier on the solver than a tight bound
+// from the start.
+public class InfiniteChipAreaRuleStrategy extends ChipAreaRuleStrategy {
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      Symbol nodeX = SymbolNameGenerator.getsym_NodeX(schematic, n);
+      Symbol nodeY = SymbolNameGenerator.getsym_NodeY(schematic, n);
+      exprs.add(QFNRA.assertGreater(nodeX, new Decimal(0.0)));
+      exprs.add(QFNRA.assertGreater(nodeY, new Decimal(0.0)));
+    }
+    return exprs;
+  }
+
+}
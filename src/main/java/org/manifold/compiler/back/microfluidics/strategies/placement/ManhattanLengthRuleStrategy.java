@@ -0,0 +1,92 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Takes the length of a channel to be that of the shortest rectilinear
+// path between its ends, i.e. |dx| + |dy|, or, if octilinear, of the
+// shortest path using 45-degree segments too, i.e.
+// max(|dx|, |dy|) + (sqrt(2) - 1) * min(|dx|, |dy|).
+//
+// Each absolute difference is an auxiliary variable that is
+// non-negative and equal to either the difference or its negation; the
+// choice between the two is a sign that the solver's case splitting
+// decides. Unlike PythagoreanLengthRuleStrategy, every constraint is
+// linear.
+public class ManhattanLengthRuleStrategy extends LengthRuleStrategy {
+
+  private static final double DIAGONAL_EXTRA = Math.sqrt(2.0) - 1.0;
+
+  // if set, channels may also run diagonally
+  private boolean octilinear = false;
+  public void setOctilinear(boolean setting) {
+    this.octilinear = setting;
+  }
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams,
+      PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    for (ConnectionValue channel : schematic.getConnections().values()) {
+      NodeValue n1 = channel.getFrom().getParent();
+      NodeValue n2 = channel.getTo().getParent();
+      if (n1 == n2) {
+        continue;
+      }
+      exprs.addAll(generateLengthAssertions(schematic, n1, n2, channel));
+    }
+    return exprs;
+  }
+
+  // ext >= 0 and ext = a - b or ext = b - a, so ext = |a - b|
+  private void addAbsoluteDifference(List<SExpression> exprs, Symbol ext,
+      Symbol a, Symbol b) {
+    exprs.add(QFNRA.declareRealVariable(ext));
+    exprs.add(QFNRA.assertGreaterEqual(ext, new Decimal(0.0)));
+    exprs.add(QFNRA.assertThat(QFNRA.or(
+        QFNRA.equal(ext, QFNRA.subtract(a, b)),
+        QFNRA.equal(ext, QFNRA.subtract(b, a)))));
+  }
+
+  private List<SExpression> generateLengthAssertions(Schematic schematic,
+      NodeValue n1, NodeValue n2, ConnectionValue channel) {
+    List<SExpression> exprs = new LinkedList<>();
+    Symbol extX = SymbolNameGenerator.getsym_ChannelExtentX(
+        schematic, channel);
+    Symbol extY = SymbolNameGenerator.getsym_ChannelExtentY(
+        schematic, channel);
+    addAbsoluteDifference(exprs, extX,
+        SymbolNameGenerator.getsym_NodeX(schematic, n1),
+        SymbolNameGenerator.getsym_NodeX(schematic, n2));
+    addAbsoluteDifference(exprs, extY,
+        SymbolNameGenerator.getsym_NodeY(schematic, n1),
+        SymbolNameGenerator.getsym_NodeY(schematic, n2));
+    Symbol chLen = SymbolNameGenerator.getsym_ChannelLength(schematic, channel);
+    if (!octilinear) {
+      exprs.add(QFNRA.assertEqual(chLen, QFNRA.add(extX, extY)));
+      return exprs;
+    }
+    // the diagonal part is as long as the shorter side, at sqrt(2) times
+    // its length, and the straight part makes up the rest of the longer
+    Decimal extra = new Decimal(DIAGONAL_EXTRA);
+    exprs.add(QFNRA.assertThat(QFNRA.or(
+        QFNRA.and(QFNRA.greaterEqual(extX, extY), QFNRA.equal(chLen,
+            QFNRA.add(extX, QFNRA.multiply(extra, extY)))),
+        QFNRA.and(QFNRA.lessThanEqual(extX, extY), QFNRA.equal(chLen,
+            QFNRA.add(extY, QFNRA.multiply(extra, extX)))))));
+    return exprs;
+  }
+
+}
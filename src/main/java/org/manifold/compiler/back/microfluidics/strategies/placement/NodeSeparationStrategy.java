@@ -0,0 +1,240 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.TranslationStrategy;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.Numeral;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Keep every pair of nodes that could come close at least the minimum
+// node distance apart, as defined by process parameters.
+//
+// Asserting this for all pairs would take a quadratic number of
+// nonlinear assertions, almost all of them slack. Instead, only two
+// kinds of pairs are constrained:
+//  - nodes within a few channels of each other, which the length rules
+//    tend to pull together, and
+//  - nodes that are close in a reference placement (a previous model or
+//    a heuristic layout), found with a uniform grid whose cells are as
+//    wide as the search radius.
+// A node with d channels has d * (d - 1) / 2 pairs of neighbours two
+// channels apart, so the search does not pass through nodes with more
+// than maximumHubDegree channels; a hub's neighbours are then only
+// constrained if they are close in the reference placement. With that
+// bound both sets grow linearly with the number of nodes.
+//
+// Pairs in neither set can still collide in the final layout. The lazy
+// constraint mode (see LazyConstraintSolver) is handed these same pairs,
+// so it does not catch such collisions either.
+public class NodeSeparationStrategy extends TranslationStrategy {
+
+  // nodes at most this many channels apart are always constrained
+  private int topologicalRadius = 2;
+  public void setTopologicalRadius(int topologicalRadius) {
+    this.topologicalRadius = topologicalRadius;
+  }
+
+  // the search for nearby nodes stops at nodes with more channels
+  private int maximumHubDegree = 8;
+  public void setMaximumHubDegree(int maximumHubDegree) {
+    this.maximumHubDegree = maximumHubDegree;
+  }
+
+  // positions (x, y) of some or all nodes, by node
+  private Map<NodeValue, double[]> referencePlacement = null;
+  public void useReferencePlacement(Map<NodeValue, double[]> placement) {
+    this.referencePlacement = placement;
+  }
+
+  /**
+   * Uses the node positions of a previous model as the reference
+   * placement.
+   */
+  public void useReferencePlacement(Schematic schematic,
+      DRealSolver.Result model) {
+    this.referencePlacement = ReferencePlacement.fromModel(schematic, model);
+  }
+
+  // pairs closer than this in the reference placement are constrained;
+  // a non-positive value means searchFactor * minimum node distance
+  private double searchRadius = 0.0;
+  public void setSearchRadius(double searchRadius) {
+    this.searchRadius = searchRadius;
+  }
+
+  private double searchFactor = 4.0;
+  public void setSearchFactor(double searchFactor) {
+    this.searchFactor = searchFactor;
+  }
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable) {
+    List<SExpression> exprs = new LinkedList<>();
+    double distance = processParams.getMinimumNodeDistance();
+    if (!(distance > 0.0)) {
+      return exprs;
+    }
+    List<NodeValue> nodes = new ArrayList<>(schematic.getNodes().values());
+    Map<NodeValue, Integer> index = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.size(); ++i) {
+      index.put(nodes.get(i), i);
+    }
+    Set<Long> pairs = new HashSet<>();
+    addTopologicalPairs(schematic, nodes, index, pairs);
+    if (referencePlacement != null) {
+      double radius = searchRadius > 0.0 ? searchRadius
+          : searchFactor * distance;
+      addNearbyPairs(nodes, radius, pairs);
+    }
+    List<Long> sorted = new ArrayList<>(pairs);
+    Collections.sort(sorted);
+    for (long pair : sorted) {
+      NodeValue n1 = nodes.get((int) (pair / nodes.size()));
+      NodeValue n2 = nodes.get((int) (pair % nodes.size()));
+      exprs.add(generateSeparationAssertion(schematic, n1, n2, distance));
+    }
+    return exprs;
+  }
+
+  private static long pairKey(int i, int j, int n) {
+    return i < j ? (long) i * n + j : (long) j * n + i;
+  }
+
+  private void addTopologicalPairs(Schematic schematic,
+      List<NodeValue> nodes, Map<NodeValue, Integer> index,
+      Set<Long> pairs) {
+    int n = nodes.size();
+    List<List<Integer>> neighbours = new ArrayList<>(n);
+    for (int i = 0; i < n; ++i) {
+      neighbours.add(new ArrayList<Integer>());
+    }
+    for (ConnectionValue c : schematic.getConnections().values()) {
+      Integer from = index.get(c.getFrom().getParent());
+      Integer to = index.get(c.getTo().getParent());
+      if (from == null || to == null || from.equals(to)) {
+        continue;
+      }
+      neighbours.get(from).add(to);
+      neighbours.get(to).add(from);
+    }
+    // breadth-first search to the topological radius from every node
+    int[] depth = new int[n];
+    Arrays.fill(depth, -1);
+    Deque<Integer> queue = new ArrayDeque<>();
+    List<Integer> visited = new ArrayList<>();
+    for (int s = 0; s < n; ++s) {
+      depth[s] = 0;
+      queue.add(s);
+      visited.add(s);
+      while (!queue.isEmpty()) {
+        int u = queue.poll();
+        if (depth[u] >= topologicalRadius || (depth[u] > 0
+            && neighbours.get(u).size() > maximumHubDegree)) {
+          continue;
+        }
+        for (int v : neighbours.get(u)) {
+          if (depth[v] < 0) {
+            depth[v] = depth[u] + 1;
+            queue.add(v);
+            visited.add(v);
+            if (v > s) {
+              pairs.add(pairKey(s, v, n));
+            }
+          }
+        }
+      }
+      for (int v : visited) {
+        depth[v] = -1;
+      }
+      visited.clear();
+    }
+  }
+
+  private void addNearbyPairs(List<NodeValue> nodes, double radius,
+      Set<Long> pairs) {
+    int n = nodes.size();
+    Map<Long, List<Integer>> grid = new HashMap<>();
+    for (int i = 0; i < n; ++i) {
+      double[] p = referencePlacement.get(nodes.get(i));
+      if (p == null) {
+        continue;
+      }
+      long key = cellKey((long) Math.floor(p[0] / radius),
+          (long) Math.floor(p[1] / radius));
+      List<Integer> cell = grid.get(key);
+      if (cell == null) {
+        cell = new ArrayList<>();
+        grid.put(key, cell);
+      }
+      cell.add(i);
+    }
+    double radiusSquared = radius * radius;
+    for (int i = 0; i < n; ++i) {
+      double[] p = referencePlacement.get(nodes.get(i));
+      if (p == null) {
+        continue;
+      }
+      long cx = (long) Math.floor(p[0] / radius);
+      long cy = (long) Math.floor(p[1] / radius);
+      for (long dx = -1; dx <= 1; ++dx) {
+        for (long dy = -1; dy <= 1; ++dy) {
+          List<Integer> cell = grid.get(cellKey(cx + dx, cy + dy));
+          if (cell == null) {
+            continue;
+          }
+          for (int j : cell) {
+            if (j <= i) {
+              continue;
+            }
+            double[] q = referencePlacement.get(nodes.get(j));
+            double ex = p[0] - q[0];
+            double ey = p[1] - q[1];
+            if (ex * ex + ey * ey <= radiusSquared) {
+              pairs.add(pairKey(i, j, n));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static long cellKey(long cx, long cy) {
+    return (cx << 32) ^ (cy & 0xffffffffL);
+  }
+
+  private SExpression generateSeparationAssertion(Schematic schematic,
+      NodeValue n1, NodeValue n2, double distance) {
+    // (n1.x - n2.x)^2 + (n1.y - n2.y)^2 >= distance^2
+    Symbol n1x = SymbolNameGenerator.getsym_NodeX(schematic, n1);
+    Symbol n1y = SymbolNameGenerator.getsym_NodeY(schematic, n1);
+    Symbol n2x = SymbolNameGenerator.getsym_NodeX(schematic, n2);
+    Symbol n2y = SymbolNameGenerator.getsym_NodeY(schematic, n2);
+    SExpression dx = QFNRA.pow(QFNRA.subtract(n1x, n2x), new Numeral(2));
+    SExpression dy = QFNRA.pow(QFNRA.subtract(n1y, n2y), new Numeral(2));
+    return QFNRA.assertGreaterEqual(QFNRA.add(dx, dy),
+        Decimal.plain(distance * distance));
+  }
+
+}
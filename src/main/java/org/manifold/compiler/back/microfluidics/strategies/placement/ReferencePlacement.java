@@ -0,0 +1,102 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.ConstraintType;
+import org.manifold.compiler.ConstraintValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.RealValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Helpers for the approximate node positions (x, y) that some placement
+// strategies use to decide which rules are worth emitting.
+public class ReferencePlacement {
+
+  /**
+   * @return the midpoint of each node's position range in the model,
+   * for every node the model places
+   */
+  public static Map<NodeValue, double[]> fromModel(Schematic schematic,
+      DRealSolver.Result model) {
+    Map<NodeValue, double[]> placement = new HashMap<>();
+    for (NodeValue n : schematic.getNodes().values()) {
+      DRealSolver.RealRange x = model.getRange(
+          SymbolNameGenerator.getsym_NodeX(schematic, n));
+      DRealSolver.RealRange y = model.getRange(
+          SymbolNameGenerator.getsym_NodeY(schematic, n));
+      if (x != null && y != null) {
+        placement.put(n, new double[] {
+          (x.lowerBound + x.upperBound) / 2.0,
+          (y.lowerBound + y.upperBound) / 2.0
+        });
+      }
+    }
+    return placement;
+  }
+
+  /**
+   * @return the position of every node that a control point placement
+   * constraint pins down
+   */
+  public static Map<NodeValue, double[]> pinnedPositions(
+      Schematic schematic, PrimitiveTypeTable typeTable) {
+    Map<NodeValue, double[]> pins = new HashMap<>();
+    ConstraintType cxtTarget = typeTable
+        .getControlPointPlacementConstraintType();
+    for (ConstraintValue cxt : schematic.getConstraints().values()) {
+      if (!(cxt.getType().isSubtypeOf(cxtTarget))) {
+        continue;
+      }
+      try {
+        NodeValue node = (NodeValue) cxt.getAttribute("node");
+        RealValue x = (RealValue) cxt.getAttribute("x");
+        RealValue y = (RealValue) cxt.getAttribute("y");
+        pins.put(node, new double[] {x.toDouble(), y.toDouble()});
+      } catch (ClassCastException|UndeclaredAttributeException e) {
+        throw new CodeGenerationError(
+            "instance of controlPointPlacementConstraint"
+            + " has values with wrong types");
+      }
+    }
+    return pins;
+  }
+
+  /**
+   * @return a model placing each node exactly at its position, e.g. to
+   * seed a solver with (see WarmStartSolver)
+   */
+  public static DRealSolver.Result toModel(Schematic schematic,
+      Map<NodeValue, double[]> placement) {
+    DRealSolver.Result model = new DRealSolver.Result(true);
+    for (Map.Entry<NodeValue, double[]> entry : placement.entrySet()) {
+      double[] p = entry.getValue();
+      model.addRange(SymbolNameGenerator.getsym_NodeX(schematic,
+          entry.getKey()), new DRealSolver.RealRange(p[0], p[0]));
+      model.addRange(SymbolNameGenerator.getsym_NodeY(schematic,
+          entry.getKey()), new DRealSolver.RealRange(p[1], p[1]));
+    }
+    return model;
+  }
+
+  /**
+   * @return the straight segment {x1, y1, x2, y2} between the nodes at the
+   * ends of a channel, or null if either node has no position
+   */
+  public static double[] segmentOf(ConnectionValue channel,
+      Map<NodeValue, double[]> placement) {
+    double[] from = placement.get(channel.getFrom().getParent());
+    double[] to = placement.get(channel.getTo().getParent());
+    if (from == null || to == null) {
+      return null;
+    }
+    return new double[] {from[0], from[1], to[0], to[1]};
+  }
+
+}
@@ -0,0 +1,329 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Finds all intersecting pairs among a set of line segments with a
+// Bentley-Ottmann sweep, in O((n + k) log n) time for n segments and k
+// intersections.
+//
+// The sweep line moves left to right. The segments it currently cuts are
+// kept ordered by height in a balanced tree, and only segments that
+// become neighbours in this order are tested against each other; two
+// segments that cross are neighbours just before they do. An endpoint
+// on the other segment counts as an intersection, but a shared endpoint
+// does not, since channels at a common node always share one.
+//
+// Vertical segments are avoided by rotating the input by a fixed odd
+// angle. Should floating-point degeneracies (e.g. three segments through
+// one point) still upset the order of the tree, the sweep notices and
+// falls back to testing all pairs.
+public class SegmentSweep {
+
+  // rotation that makes vertical input segments very unlikely
+  private static final double ANGLE = 0.5381;
+
+  private static final int CROSS = 0;
+  private static final int END = 1;
+  private static final int START = 2;
+
+  private static class Event {
+    final double x;
+    final double y;
+    final int type;
+    final int a;
+    final int b;
+
+    Event(double x, double y, int type, int a, int b) {
+      this.x = x;
+      this.y = y;
+      this.type = type;
+      this.a = a;
+      this.b = b;
+    }
+  }
+
+  // left and right endpoints of each segment, after rotation
+  private final double[] x1;
+  private final double[] y1;
+  private final double[] x2;
+  private final double[] y2;
+  private final double eps;
+
+  private double sweepX;
+  // whether ties at sweepX are ordered as just before or just after it
+  private boolean before;
+
+  private final Comparator<Integer> order = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) {
+      if (a.intValue() == b.intValue()) {
+        return 0;
+      }
+      double ya = yAt(a, sweepX);
+      double yb = yAt(b, sweepX);
+      if (ya < yb - eps) {
+        return -1;
+      } else if (ya > yb + eps) {
+        return 1;
+      }
+      // equal height: order by slope, which tells which one is
+      // lower just after sweepX (and the reverse just before)
+      int bySlope = Double.compare(slope(a), slope(b));
+      if (bySlope != 0) {
+        return before ? -bySlope : bySlope;
+      }
+      return Integer.compare(a, b);
+    }
+  };
+
+  private final TreeSet<Integer> status = new TreeSet<>(order);
+  private final PriorityQueue<Event> events = new PriorityQueue<>(11,
+      new Comparator<Event>() {
+        @Override
+        public int compare(Event e, Event f) {
+          int c = Double.compare(e.x, f.x);
+          if (c != 0) {
+            return c;
+          }
+          // all removals at a point come before all insertions there
+          c = Integer.compare(e.type, f.type);
+          if (c != 0) {
+            return c;
+          }
+          return Double.compare(e.y, f.y);
+        }
+      });
+  private final boolean[] active;
+  private final Set<Long> found = new HashSet<>();
+  private final Set<Long> scheduled = new HashSet<>();
+  private boolean degenerate = false;
+
+  private SegmentSweep(List<double[]> segments) {
+    int n = segments.size();
+    x1 = new double[n];
+    y1 = new double[n];
+    x2 = new double[n];
+    y2 = new double[n];
+    active = new boolean[n];
+    double cos = Math.cos(ANGLE);
+    double sin = Math.sin(ANGLE);
+    double scale = 0.0;
+    for (int i = 0; i < n; ++i) {
+      double[] s = segments.get(i);
+      double ax = cos * s[0] - sin * s[1];
+      double ay = sin * s[0] + cos * s[1];
+      double bx = cos * s[2] - sin * s[3];
+      double by = sin * s[2] + cos * s[3];
+      if (ax < bx || (ax == bx && ay <= by)) {
+        x1[i] = ax;
+        y1[i] = ay;
+        x2[i] = bx;
+        y2[i] = by;
+      } else {
+        x1[i] = bx;
+        y1[i] = by;
+        x2[i] = ax;
+        y2[i] = ay;
+      }
+      scale = Math.max(scale, Math.max(
+          Math.max(Math.abs(ax), Math.abs(ay)),
+          Math.max(Math.abs(bx), Math.abs(by))));
+    }
+    eps = Math.max(scale, Double.MIN_NORMAL) * 1e-12;
+  }
+
+  /**
+   * @param segments each given as {x1, y1, x2, y2}
+   * @return the index pairs {i, j}, i < j, of all intersecting segments,
+   * in ascending order
+   */
+  public static List<int[]> findIntersections(List<double[]> segments) {
+    SegmentSweep sweep = new SegmentSweep(segments);
+    if (!sweep.run()) {
+      return bruteForce(segments);
+    }
+    return sweep.sortedPairs();
+  }
+
+  /**
+   * Tests every pair of segments; for checking the sweep.
+   */
+  static List<int[]> bruteForce(List<double[]> segments) {
+    SegmentSweep sweep = new SegmentSweep(segments);
+    int n = segments.size();
+    for (int i = 0; i < n; ++i) {
+      for (int j = i + 1; j < n; ++j) {
+        if (sweep.intersection(i, j) != null) {
+          sweep.found.add(sweep.key(i, j));
+        }
+      }
+    }
+    return sweep.sortedPairs();
+  }
+
+  private long key(int i, int j) {
+    int n = x1.length;
+    return i < j ? (long) i * n + j : (long) j * n + i;
+  }
+
+  private List<int[]> sortedPairs() {
+    List<Long> keys = new ArrayList<>(found);
+    Collections.sort(keys);
+    List<int[]> pairs = new ArrayList<>(keys.size());
+    int n = x1.length;
+    for (long k : keys) {
+      pairs.add(new int[] {(int) (k / n), (int) (k % n)});
+    }
+    return pairs;
+  }
+
+  private double slope(int s) {
+    return (y2[s] - y1[s]) / (x2[s] - x1[s]);
+  }
+
+  private double yAt(int s, double x) {
+    if (x2[s] == x1[s]) {
+      return y1[s];
+    }
+    if (x <= x1[s]) {
+      return y1[s];
+    }
+    if (x >= x2[s]) {
+      return y2[s];
+    }
+    return y1[s] + (y2[s] - y1[s]) * (x - x1[s]) / (x2[s] - x1[s]);
+  }
+
+  private double orient(double ax, double ay, double bx, double by,
+      double cx, double cy) {
+    return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+  }
+
+  private boolean samePoint(double ax, double ay, double bx, double by) {
+    return Math.abs(ax - bx) <= eps && Math.abs(ay - by) <= eps;
+  }
+
+  private boolean sameEnd(int a, int b) {
+    return samePoint(x1[a], y1[a], x1[b], y1[b])
+        || samePoint(x1[a], y1[a], x2[b], y2[b])
+        || samePoint(x2[a], y2[a], x1[b], y1[b])
+        || samePoint(x2[a], y2[a], x2[b], y2[b]);
+  }
+
+  /**
+   * @return where segments a and b meet, NaNs if they overlap along a
+   * line, or null if they do not meet
+   */
+  private double[] intersection(int a, int b) {
+    double scaleA = Math.hypot(x2[a] - x1[a], y2[a] - y1[a]);
+    double scaleB = Math.hypot(x2[b] - x1[b], y2[b] - y1[b]);
+    double tolA = eps * Math.max(scaleA, 1e-300);
+    double tolB = eps * Math.max(scaleB, 1e-300);
+    double d1 = orient(x1[a], y1[a], x2[a], y2[a], x1[b], y1[b]);
+    double d2 = orient(x1[a], y1[a], x2[a], y2[a], x2[b], y2[b]);
+    double d3 = orient(x1[b], y1[b], x2[b], y2[b], x1[a], y1[a]);
+    double d4 = orient(x1[b], y1[b], x2[b], y2[b], x2[a], y2[a]);
+    if (((d1 > tolA && d2 > tolA) || (d1 < -tolA && d2 < -tolA))
+        || ((d3 > tolB && d4 > tolB) || (d3 < -tolB && d4 < -tolB))) {
+      return null;
+    }
+    if (Math.abs(d1) <= tolA && Math.abs(d2) <= tolA) {
+      // collinear: they meet if their extents overlap by more than a
+      // shared endpoint
+      if (Math.min(x2[a], x2[b]) - Math.max(x1[a], x1[b]) <= eps) {
+        return null;
+      }
+      return new double[] {Double.NaN, Double.NaN};
+    }
+    if (sameEnd(a, b)) {
+      // two lines that are not collinear meet at most once
+      return null;
+    }
+    double t = d1 / (d1 - d2);
+    return new double[] {
+      x1[b] + t * (x2[b] - x1[b]),
+      y1[b] + t * (y2[b] - y1[b])
+    };
+  }
+
+  private void check(Integer a, Integer b) {
+    if (a == null || b == null) {
+      return;
+    }
+    double[] p = intersection(a, b);
+    if (p == null) {
+      return;
+    }
+    long k = key(a, b);
+    found.add(k);
+    // the pair only needs to swap places if it crosses ahead of the
+    // sweep line and before either segment ends
+    if (Double.isNaN(p[0]) || p[0] <= sweepX + eps
+        || p[0] >= Math.min(x2[a], x2[b]) - eps) {
+      return;
+    }
+    if (scheduled.add(k)) {
+      events.add(new Event(p[0], p[1], CROSS, a, b));
+    }
+  }
+
+  private boolean remove(int s) {
+    active[s] = false;
+    if (!status.remove(s)) {
+      degenerate = true;
+      return false;
+    }
+    return true;
+  }
+
+  private boolean run() {
+    for (int i = 0; i < x1.length; ++i) {
+      events.add(new Event(x1[i], y1[i], START, i, -1));
+      events.add(new Event(x2[i], y2[i], END, i, -1));
+    }
+    while (!events.isEmpty() && !degenerate) {
+      Event e = events.poll();
+      sweepX = e.x;
+      if (e.type == START) {
+        before = false;
+        active[e.a] = true;
+        status.add(e.a);
+        check(status.lower(e.a), e.a);
+        check(e.a, status.higher(e.a));
+      } else if (e.type == END) {
+        before = true;
+        Integer below = status.lower(e.a);
+        Integer above = status.higher(e.a);
+        if (remove(e.a)) {
+          check(below, above);
+        }
+      } else {
+        if (!active[e.a] || !active[e.b]) {
+          continue;
+        }
+        before = true;
+        if (!remove(e.a) || !remove(e.b)) {
+          break;
+        }
+        before = false;
+        active[e.a] = true;
+        active[e.b] = true;
+        status.add(e.a);
+        status.add(e.b);
+        int lo = order.compare(e.a, e.b) < 0 ? e.a : e.b;
+        int hi = lo == e.a ? e.b : e.a;
+        check(status.lower(lo), lo);
+        check(hi, status.higher(hi));
+      }
+    }
+    return !degenerate;
+  }
+
+}
@@ -0,0 +1,380 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.ConstraintType;
+import org.manifold.compiler.ConstraintValue;
+import org.manifold.compiler.NodeTypeValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.UndeclaredAttributeException;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.Numeral;
+import org.manifold.compiler.back.microfluidics.smt2.ParenList;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Adds constraints that rule out layouts which are mirror images or
+// relabelings of other layouts, so the solver does not search both.
+//
+// Two kinds of symmetry are broken:
+//  - Interchangeable nodes: unpinned nodes of the same type whose ports
+//    lead to the same neighbours. Swapping two of them, along with their
+//    channels and the neighbours' ports at the far ends, is checked to
+//    map the formula onto itself by renaming symbols, up to the order
+//    of operands of commutative operators; each class of such nodes is
+//    then ordered by x, which any layout can be brought into by
+//    relabeling.
+//  - Reflections of the chip: with nothing pinned and a finite chip, the
+//    placement rules only depend on distances and angles, so mirroring
+//    along either axis, and swapping the axes of a square chip, maps
+//    layouts to layouts. One anchor node that is not interchangeable
+//    with another is kept in the lower left quarter of the chip.
+// The rules that see absolute positions, like pins or an objective
+// anchored at the origin, are not symmetric under reflection; the
+// caller has to turn reflections off if it adds any of those.
+public class SymmetryBreaking {
+
+  // whether reflections of the chip may be broken
+  private boolean breakReflections = true;
+  public void setBreakReflections(boolean setting) {
+    this.breakReflections = setting;
+  }
+
+  private List<List<NodeValue>> interchangeable = new ArrayList<>();
+  /**
+   * @return the classes of interchangeable nodes found by the last
+   * translation, each in the order it is constrained to
+   */
+  public List<List<NodeValue>> getInterchangeableNodes() {
+    return interchangeable;
+  }
+
+  private NodeValue anchor = null;
+  /**
+   * @return the node whose position broke the reflections in the last
+   * translation, or null if they were not broken
+   */
+  public NodeValue getAnchor() {
+    return anchor;
+  }
+
+  /**
+   * @return the symmetry-breaking assertions for a formula that places
+   * the schematic
+   */
+  public List<SExpression> translate(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable,
+      List<SExpression> formula) {
+    List<SExpression> exprs = new LinkedList<>();
+    Set<NodeValue> fixed = fixedNodes(schematic, typeTable);
+    Map<PortValue, ConnectionValue> channels = new IdentityHashMap<>();
+    Map<NodeValue, Integer> degree = new IdentityHashMap<>();
+    for (ConnectionValue c : schematic.getConnections().values()) {
+      channels.put(c.getFrom(), c);
+      channels.put(c.getTo(), c);
+      increment(degree, c.getFrom().getParent());
+      increment(degree, c.getTo().getParent());
+    }
+
+    Set<String> assertions = new HashSet<>();
+    for (SExpression expr : formula) {
+      assertions.add(canonical(expr).toString());
+    }
+    interchangeable = new ArrayList<>();
+    Set<NodeValue> inClass = new HashSet<>();
+    for (List<NodeValue> candidates
+        : candidateClasses(schematic, fixed, channels)) {
+      List<NodeValue> run = new ArrayList<>();
+      run.add(candidates.get(0));
+      for (int i = 1; i <= candidates.size(); ++i) {
+        if (i < candidates.size() && isSymmetry(schematic, channels,
+            candidates.get(i - 1), candidates.get(i), formula, assertions)) {
+          run.add(candidates.get(i));
+          continue;
+        }
+        if (run.size() > 1) {
+          interchangeable.add(run);
+          inClass.addAll(run);
+        }
+        if (i < candidates.size()) {
+          run = new ArrayList<>();
+          run.add(candidates.get(i));
+        }
+      }
+    }
+    for (List<NodeValue> nodes : interchangeable) {
+      for (int i = 1; i < nodes.size(); ++i) {
+        exprs.add(QFNRA.assertLessThanEqual(
+            SymbolNameGenerator.getsym_NodeX(schematic, nodes.get(i - 1)),
+            SymbolNameGenerator.getsym_NodeX(schematic, nodes.get(i))));
+      }
+    }
+
+    anchor = null;
+    double width = processParams.getMaximumChipSizeX();
+    double height = processParams.getMaximumChipSizeY();
+    if (!breakReflections || !fixed.isEmpty()
+        || !(width > 0.0 && height > 0.0)) {
+      return exprs;
+    }
+    // the busiest node, which the most rules refer to
+    int best = -1;
+    for (Map.Entry<String, NodeValue> entry
+        : new TreeMap<>(schematic.getNodes()).entrySet()) {
+      NodeValue n = entry.getValue();
+      Integer d = degree.get(n);
+      int nodeDegree = d == null ? 0 : d;
+      if (!inClass.contains(n) && nodeDegree > best) {
+        anchor = n;
+        best = nodeDegree;
+      }
+    }
+    if (anchor == null) {
+      return exprs;
+    }
+    Symbol x = SymbolNameGenerator.getsym_NodeX(schematic, anchor);
+    Symbol y = SymbolNameGenerator.getsym_NodeY(schematic, anchor);
+    exprs.add(QFNRA.assertLessThanEqual(x, Decimal.plain(width / 2.0)));
+    exprs.add(QFNRA.assertLessThanEqual(y, Decimal.plain(height / 2.0)));
+    if (width == height) {
+      exprs.add(QFNRA.assertLessThanEqual(x, y));
+    }
+    return exprs;
+  }
+
+  private static void increment(Map<NodeValue, Integer> counts,
+      NodeValue n) {
+    Integer count = counts.get(n);
+    counts.put(n, count == null ? 1 : count + 1);
+  }
+
+  // nodes that are pinned, or that a channel placement constraint ties
+  // to a point
+  private static Set<NodeValue> fixedNodes(Schematic schematic,
+      PrimitiveTypeTable typeTable) {
+    Set<NodeValue> fixed = new HashSet<>(
+        ReferencePlacement.pinnedPositions(schematic, typeTable).keySet());
+    ConstraintType channelPlacement =
+        typeTable.getChannelPlacementConstraintType();
+    for (ConstraintValue cxt : schematic.getConstraints().values()) {
+      if (!cxt.getType().isSubtypeOf(channelPlacement)) {
+        continue;
+      }
+      try {
+        ConnectionValue channel =
+            (ConnectionValue) cxt.getAttribute("channel");
+        fixed.add(channel.getFrom().getParent());
+        fixed.add(channel.getTo().getParent());
+      } catch (ClassCastException|UndeclaredAttributeException e) {
+        throw new CodeGenerationError(
+            "instance of channelPlacementConstraint"
+            + " has values with wrong types");
+      }
+    }
+    return fixed;
+  }
+
+  /**
+   * @return the name of the port on its node
+   */
+  private static String portKey(Schematic schematic, PortValue port) {
+    NodeValue node = port.getParent();
+    for (Map.Entry<String, PortValue> entry : node.getPorts().entrySet()) {
+      if (entry.getValue() == port) {
+        return entry.getKey();
+      }
+    }
+    throw new CodeGenerationError("could not map port to name for node '"
+        + schematic.getNodeName(node) + "'");
+  }
+
+  private static PortValue farEnd(ConnectionValue c, PortValue port) {
+    return c.getFrom() == port ? c.getTo() : c.getFrom();
+  }
+
+  // unfixed nodes grouped by type and by the neighbour each of their
+  // ports leads to, each group sorted by name
+  private static List<List<NodeValue>> candidateClasses(Schematic schematic,
+      Set<NodeValue> fixed, Map<PortValue, ConnectionValue> channels) {
+    Map<NodeTypeValue, Map<String, List<NodeValue>>> groups =
+        new IdentityHashMap<>();
+    for (Map.Entry<String, NodeValue> entry
+        : new TreeMap<>(schematic.getNodes()).entrySet()) {
+      NodeValue n = entry.getValue();
+      if (fixed.contains(n)) {
+        continue;
+      }
+      StringBuilder signature = new StringBuilder();
+      for (Map.Entry<String, PortValue> port
+          : new TreeMap<>(n.getPorts()).entrySet()) {
+        ConnectionValue c = channels.get(port.getValue());
+        signature.append(port.getKey()).append(':');
+        if (c != null) {
+          signature.append(schematic.getNodeName(
+              farEnd(c, port.getValue()).getParent()));
+        }
+        signature.append(';');
+      }
+      Map<String, List<NodeValue>> byType = groups.get(n.getType());
+      if (byType == null) {
+        byType = new HashMap<>();
+        groups.put(n.getType(), byType);
+      }
+      List<NodeValue> group = byType.get(signature.toString());
+      if (group == null) {
+        group = new ArrayList<>();
+        byType.put(signature.toString(), group);
+      }
+      group.add(n);
+    }
+    List<List<NodeValue>> classes = new ArrayList<>();
+    for (Map<String, List<NodeValue>> byType : groups.values()) {
+      for (List<NodeValue> group : byType.values()) {
+        if (group.size() > 1) {
+          classes.add(group);
+        }
+      }
+    }
+    return classes;
+  }
+
+  private static void swap(Map<String, String> swap, String a, String b) {
+    if (!a.equals(b)) {
+      swap.put(a, b);
+      swap.put(b, a);
+    }
+  }
+
+  // whether swapping two nodes, their channels, and the neighbouring
+  // ports these lead to maps the formula onto itself
+  private static boolean isSymmetry(Schematic schematic,
+      Map<PortValue, ConnectionValue> channels, NodeValue u, NodeValue v,
+      List<SExpression> formula, Set<String> assertions) {
+    Map<String, String> swap = new HashMap<>();
+    swap(swap, schematic.getNodeName(u), schematic.getNodeName(v));
+    for (Map.Entry<String, PortValue> port : u.getPorts().entrySet()) {
+      ConnectionValue cu = channels.get(port.getValue());
+      ConnectionValue cv = channels.get(v.getPorts().get(port.getKey()));
+      if (cu == null || cv == null) {
+        continue;
+      }
+      swap(swap, schematic.getConnectionName(cu),
+          schematic.getConnectionName(cv));
+      PortValue farU = farEnd(cu, port.getValue());
+      PortValue farV = farEnd(cv, v.getPorts().get(port.getKey()));
+      String neighbour = schematic.getNodeName(farU.getParent());
+      swap(swap, neighbour + "_" + portKey(schematic, farU),
+          neighbour + "_" + portKey(schematic, farV));
+    }
+    for (SExpression expr : formula) {
+      SExpression renamed = rename(expr, swap);
+      // the renaming has to undo itself to be a bijection
+      if (!assertions.contains(canonical(renamed).toString())
+          || !rename(renamed, swap).toString().equals(expr.toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isEven(SExpression expr) {
+    return expr instanceof Numeral && ((Numeral) expr).getValue() % 2 == 0;
+  }
+
+  private static boolean isDifference(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return false;
+    }
+    List<SExpression> terms = ((ParenList) expr).getExprs();
+    return terms.size() == 3 && terms.get(0).equals(new Symbol("-"));
+  }
+
+  private static final Set<String> COMMUTATIVE = new HashSet<>(
+      Arrays.asList("+", "*", "=", "and", "or"));
+
+  // the same term for rules that only differ in the order of operands,
+  // as the rules over pairs and triples of elements do
+  private static SExpression canonical(SExpression expr) {
+    if (!(expr instanceof ParenList)) {
+      return expr;
+    }
+    List<SExpression> terms = new ArrayList<>();
+    for (SExpression term : ((ParenList) expr).getExprs()) {
+      terms.add(canonical(term));
+    }
+    if (terms.isEmpty() || !(terms.get(0) instanceof Symbol)) {
+      return new ParenList(terms);
+    }
+    String op = ((Symbol) terms.get(0)).getName();
+    if (op.equals("^") && terms.size() == 3 && isEven(terms.get(2))
+        && isDifference(terms.get(1))) {
+      // (a - b)^2 as (b - a)^2
+      List<SExpression> difference = ((ParenList) terms.get(1)).getExprs();
+      if (difference.get(1).toString().compareTo(
+          difference.get(2).toString()) > 0) {
+        terms.set(1, QFNRA.subtract(difference.get(2), difference.get(1)));
+      }
+    } else if (terms.size() == 3 && (op.equals("<") || op.equals("<="))) {
+      // a < b as b > a
+      terms = Arrays.asList(new Symbol(">" + op.substring(1)),
+          terms.get(2), terms.get(1));
+    } else if (COMMUTATIVE.contains(op)) {
+      List<SExpression> operands = new ArrayList<>(
+          terms.subList(1, terms.size()));
+      Collections.sort(operands, new Comparator<SExpression>() {
+        @Override
+        public int compare(SExpression a, SExpression b) {
+          return a.toString().compareTo(b.toString());
+        }
+      });
+      operands.add(0, terms.get(0));
+      terms = operands;
+    }
+    return new ParenList(terms);
+  }
+
+  // replaces the longest prefix of each symbol, up to an underscore,
+  // that names a swapped element
+  private static SExpression rename(SExpression expr,
+      Map<String, String> swap) {
+    if (expr instanceof Symbol) {
+      String name = ((Symbol) expr).getName();
+      for (int end = name.length(); end > 0;
+          end = name.lastIndexOf('_', end - 1)) {
+        String other = swap.get(name.substring(0, end));
+        if (other != null) {
+          return new Symbol(other + name.substring(end));
+        }
+      }
+      return expr;
+    }
+    if (!(expr instanceof ParenList)) {
+      return expr;
+    }
+    List<SExpression> terms = new ArrayList<>();
+    for (SExpression term : ((ParenList) expr).getExprs()) {
+      terms.add(rename(term, swap));
+    }
+    return new ParenList(terms);
+  }
+
+}
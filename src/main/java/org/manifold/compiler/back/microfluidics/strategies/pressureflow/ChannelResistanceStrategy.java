@@ -76,5 +76,15 @@ public class ChannelResistanceStrategy extends TranslationStrategy {
     exprs.add(heightLessThanWidth);
     return exprs;
   }
-  
+
+  /**
+   * Evaluates the same rectangular-channel resistance formula that
+   * this strategy emits, for use when the channel geometry is already known.
+   */
+  public static double calculateRectangularChannelResistance(
+      double mu, double length, double width, double height) {
+    return (12.0 * mu * length) / (width * Math.pow(height, 3.0)
+        * (1.0 - 0.630 * (height / width)));
+  }
+
 }
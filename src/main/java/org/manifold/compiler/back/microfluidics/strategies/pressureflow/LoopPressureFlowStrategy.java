@@ -0,0 +1,546 @@
+package org.manifold.compiler.back.microfluidics.strategies.pressureflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Loop (mesh) analysis: states the pressure/flow relation as one
+// equation per independent loop of the channel graph, over loop flows,
+// instead of one dP = Q*R per channel.
+//
+// The junctions are the two sides of every channel crossing and every
+// T-junction, where flow is conserved, and every port of any other
+// node, whose pressure the device strategies set. The ports are joined
+// through their pressures to a common ground, so that a path from one
+// port to another closes a loop. A spanning tree grown from the ground
+// reaches every port directly, so each channel left out of the tree
+// closes exactly one loop, and its flow is the flow of that loop. The
+// flow of a tree channel is the sum of the flows of the loops through
+// it; it gets a variable of its own only at a T-junction, whose
+// strategy refers to it, and the pressure of a T-junction is tied to
+// the tree as well. Every loop says that the pressure drop along its
+// channel equals the drop along the tree between the channel's ends.
+//
+// The loop system is only used if it has fewer relations than the
+// nodal one of SimplePressureFlowStrategy, which is used otherwise. The
+// nodal system gives every port a pressure of its own, so the ports on
+// one side of a crossing are then tied together and the flow through
+// that side is conserved, as the loop system has it.
+// After solving, reconstruct() recovers the flows and the crossing
+// pressures the loop system leaves out.
+public class LoopPressureFlowStrategy extends PressureFlowStrategy {
+
+  private static final int GROUND = 0;
+
+  private final boolean performWorstCaseAnalysis;
+
+  public LoopPressureFlowStrategy(boolean performWorstCaseAnalysis) {
+    this.performWorstCaseAnalysis = performWorstCaseAnalysis;
+  }
+
+  // if set, the loop system is used even where the nodal one is smaller
+  private boolean alwaysUseLoops = false;
+  public void setAlwaysUseLoops(boolean setting) {
+    this.alwaysUseLoops = setting;
+  }
+
+  // if set, the nodal system is used even where the loop one is smaller
+  private boolean neverUseLoops = false;
+  public void setNeverUseLoops(boolean setting) {
+    this.neverUseLoops = setting;
+  }
+
+  private boolean usedLoops = false;
+  /**
+   * @return true if the last translation used the loop system
+   */
+  public boolean isLoopFormulation() {
+    return usedLoops;
+  }
+
+  /**
+   * @return how many independent loops the last translation found
+   */
+  public int getLoopCount() {
+    return chords.size();
+  }
+
+  private Schematic schematic;
+  private List<ConnectionValue> channels;
+  private int[] channelFrom;
+  private int[] channelTo;
+  // the ports at each junction; a port of its own for a terminal
+  private List<List<PortValue>> junctionPorts;
+  // the T-junction at each junction, if any
+  private List<NodeValue> junctionNodes;
+  private List<Boolean> terminal;
+
+  // the spanning forest: for every junction its parent and the channel
+  // to it, or -1 for the ground link of a terminal
+  private int[] parent;
+  private int[] parentChannel;
+  private int[] depth;
+  private int[] root;
+  // junctions in the order the tree reached them
+  private List<Integer> reached;
+
+  private List<Integer> chords;
+  // for each chord, the steps from its ends up to where they meet, as
+  // junction and sign (+1 from the chord's from end, -1 from its to end)
+  private Map<Integer, List<int[]>> loopSteps;
+  // for each channel, the chords whose loops pass through it, as chord
+  // and sign relative to the channel's own direction
+  private List<List<int[]>> loopsThrough;
+  private List<Integer> definedFlows;
+  // whether each channel's flow is a variable, a chord or a defined flow
+  private boolean[] hasVariable;
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable) {
+    this.schematic = schematic;
+    buildGraph(typeTable);
+    growTree();
+    findLoops();
+
+    definedFlows = new ArrayList<>();
+    for (int c = 0; c < channels.size(); ++c) {
+      if (!hasVariable[c] && (junctionNodes.get(channelFrom[c]) != null
+          || junctionNodes.get(channelTo[c]) != null)) {
+        definedFlows.add(c);
+        hasVariable[c] = true;
+      }
+    }
+    int probes = 0;
+    for (int j = 0; j < junctionNodes.size(); ++j) {
+      if (junctionNodes.get(j) != null && root[j] == GROUND) {
+        ++probes;
+      }
+    }
+    int loopSize = chords.size() + definedFlows.size() + probes;
+    List<SExpression> crossings = crossingRelations(false);
+    int nodalSize = channels.size() + crossings.size();
+    usedLoops = !neverUseLoops
+        && (alwaysUseLoops || loopSize < nodalSize);
+    if (!usedLoops) {
+      List<SExpression> exprs = new LinkedList<>(
+          new SimplePressureFlowStrategy(performWorstCaseAnalysis)
+              .translate(schematic, processParams, typeTable));
+      exprs.addAll(crossings);
+      if (performWorstCaseAnalysis) {
+        exprs.addAll(crossingRelations(true));
+      }
+      return exprs;
+    }
+
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.addAll(translateLoops(false));
+    if (performWorstCaseAnalysis) {
+      // as in SimplePressureFlowStrategy, the pressures stay and the
+      // flows change
+      exprs.addAll(translateLoops(true));
+    }
+    for (int j = 0; j < junctionNodes.size(); ++j) {
+      NodeValue node = junctionNodes.get(j);
+      if (node != null && root[j] == GROUND) {
+        Symbol pressure = SymbolNameGenerator.getSym_NodePressure(
+            schematic, node);
+        exprs.add(QFNRA.assertEqual(pressure, potential(j, false)));
+        if (performWorstCaseAnalysis) {
+          // the nodal system ties the worst-case flows to the same
+          // pressures through its worst-case dP equations
+          exprs.add(QFNRA.assertEqual(pressure, potential(j, true)));
+        }
+      }
+    }
+    return exprs;
+  }
+
+  // for the nodal system: the ports on each side of a crossing that
+  // channels reach share one pressure, and the flows into that side sum
+  // to zero; the pressures are only tied for the nominal flows
+  private List<SExpression> crossingRelations(boolean worstCase) {
+    int junctions = junctionPorts.size();
+    List<List<PortValue>> reachedPorts = new ArrayList<>(junctions);
+    List<List<SExpression>> flowsIn = new ArrayList<>(junctions);
+    List<List<SExpression>> flowsOut = new ArrayList<>(junctions);
+    for (int j = 0; j < junctions; ++j) {
+      reachedPorts.add(new ArrayList<PortValue>());
+      flowsIn.add(new ArrayList<SExpression>());
+      flowsOut.add(new ArrayList<SExpression>());
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      ConnectionValue conn = channels.get(c);
+      reachedPorts.get(channelFrom[c]).add(conn.getFrom());
+      flowsOut.get(channelFrom[c]).add(flowSymbol(c, worstCase));
+      reachedPorts.get(channelTo[c]).add(conn.getTo());
+      flowsIn.get(channelTo[c]).add(flowSymbol(c, worstCase));
+    }
+    List<SExpression> exprs = new LinkedList<>();
+    for (int j = 0; j < junctions; ++j) {
+      if (j == GROUND || terminal.get(j) || junctionNodes.get(j) != null
+          || reachedPorts.get(j).isEmpty()) {
+        continue;
+      }
+      if (!worstCase) {
+        List<PortValue> ports = reachedPorts.get(j);
+        Symbol first = SymbolNameGenerator.getSym_PortPressure(
+            schematic, ports.get(0));
+        for (int i = 1; i < ports.size(); ++i) {
+          exprs.add(QFNRA.assertEqual(first, SymbolNameGenerator
+              .getSym_PortPressure(schematic, ports.get(i))));
+        }
+      }
+      exprs.add(QFNRA.assertEqual(sum(flowsIn.get(j), flowsOut.get(j)),
+          new Decimal(0.0)));
+    }
+    return exprs;
+  }
+
+  private void buildGraph(PrimitiveTypeTable typeTable) {
+    junctionPorts = new ArrayList<>();
+    junctionNodes = new ArrayList<>();
+    terminal = new ArrayList<>();
+    addJunction(null, false);
+    Map<PortValue, Integer> portJunctions = new HashMap<>();
+    // sorted, so that the tree does not depend on hashing
+    for (NodeValue node : new TreeMap<>(schematic.getNodes()).values()) {
+      Map<String, PortValue> ports = new TreeMap<>(node.getPorts());
+      if (node.getType().isSubtypeOf(
+          typeTable.getChannelCrossingNodeType())) {
+        for (List<PortValue> side : crossingSides(schematic, node)) {
+          int j = addJunction(null, false);
+          for (PortValue port : side) {
+            portJunctions.put(port, j);
+            junctionPorts.get(j).add(port);
+          }
+        }
+      } else if (node.getType().isSubtypeOf(
+          typeTable.getTJunctionNodeType())) {
+        int j = addJunction(node, false);
+        for (PortValue port : ports.values()) {
+          portJunctions.put(port, j);
+          junctionPorts.get(j).add(port);
+        }
+      } else {
+        for (PortValue port : ports.values()) {
+          int j = addJunction(null, true);
+          portJunctions.put(port, j);
+          junctionPorts.get(j).add(port);
+        }
+      }
+    }
+    channels = new ArrayList<>(new TreeMap<>(
+        schematic.getConnections()).values());
+    channelFrom = new int[channels.size()];
+    channelTo = new int[channels.size()];
+    for (int c = 0; c < channels.size(); ++c) {
+      ConnectionValue conn = channels.get(c);
+      Integer from = portJunctions.get(conn.getFrom());
+      Integer to = portJunctions.get(conn.getTo());
+      if (from == null || to == null) {
+        throw new CodeGenerationError("channel '"
+            + schematic.getConnectionName(conn)
+            + "' is connected to a port outside the schematic");
+      }
+      channelFrom[c] = from;
+      channelTo[c] = to;
+    }
+  }
+
+  private int addJunction(NodeValue node, boolean isTerminal) {
+    junctionPorts.add(new ArrayList<PortValue>());
+    junctionNodes.add(node);
+    terminal.add(isTerminal);
+    return junctionPorts.size() - 1;
+  }
+
+  // breadth-first from the ground, then from whatever it did not reach
+  private void growTree() {
+    int junctions = junctionPorts.size();
+    List<List<int[]>> adjacent = new ArrayList<>(junctions);
+    for (int j = 0; j < junctions; ++j) {
+      adjacent.add(new ArrayList<int[]>());
+    }
+    for (int j = 0; j < junctions; ++j) {
+      if (terminal.get(j)) {
+        adjacent.get(GROUND).add(new int[] {j, -1});
+        adjacent.get(j).add(new int[] {GROUND, -1});
+      }
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      adjacent.get(channelFrom[c]).add(new int[] {channelTo[c], c});
+      adjacent.get(channelTo[c]).add(new int[] {channelFrom[c], c});
+    }
+    parent = new int[junctions];
+    parentChannel = new int[junctions];
+    depth = new int[junctions];
+    root = new int[junctions];
+    reached = new ArrayList<>(junctions);
+    boolean[] visited = new boolean[junctions];
+    for (int start = 0; start < junctions; ++start) {
+      if (visited[start]) {
+        continue;
+      }
+      visited[start] = true;
+      parent[start] = -1;
+      parentChannel[start] = -1;
+      root[start] = start;
+      Deque<Integer> queue = new ArrayDeque<>();
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        int v = queue.poll();
+        reached.add(v);
+        for (int[] link : adjacent.get(v)) {
+          int w = link[0];
+          if (!visited[w]) {
+            visited[w] = true;
+            parent[w] = v;
+            parentChannel[w] = link[1];
+            depth[w] = depth[v] + 1;
+            root[w] = start;
+            queue.add(w);
+          }
+        }
+      }
+    }
+  }
+
+  private void findLoops() {
+    boolean[] inTree = new boolean[channels.size()];
+    for (int j = 0; j < parent.length; ++j) {
+      if (parent[j] >= 0 && parentChannel[j] >= 0) {
+        inTree[parentChannel[j]] = true;
+      }
+    }
+    chords = new ArrayList<>();
+    hasVariable = new boolean[channels.size()];
+    loopSteps = new HashMap<>();
+    loopsThrough = new ArrayList<>(channels.size());
+    for (int c = 0; c < channels.size(); ++c) {
+      loopsThrough.add(new ArrayList<int[]>());
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      if (inTree[c]) {
+        continue;
+      }
+      chords.add(c);
+      hasVariable[c] = true;
+      // the loop runs along the chord from its from end to its to end,
+      // then back through the tree
+      List<int[]> steps = new ArrayList<>();
+      int a = channelFrom[c];
+      int b = channelTo[c];
+      while (a != b) {
+        if (depth[a] >= depth[b]) {
+          steps.add(new int[] {a, 1});
+          // walked down, from the parent to a
+          addLoop(parentChannel[a], parent[a], c);
+          a = parent[a];
+        } else {
+          steps.add(new int[] {b, -1});
+          // walked up, from b to the parent
+          addLoop(parentChannel[b], b, c);
+          b = parent[b];
+        }
+      }
+      loopSteps.put(c, steps);
+    }
+  }
+
+  // the loop of the chord runs through the tree channel, leaving the
+  // given junction
+  private void addLoop(int channel, int leaving, int chord) {
+    if (channel < 0) {
+      return;
+    }
+    int sign = channelFrom[channel] == leaving ? 1 : -1;
+    loopsThrough.get(channel).add(new int[] {chord, sign});
+  }
+
+  private List<SExpression> translateLoops(boolean worstCase) {
+    List<SExpression> exprs = new LinkedList<>();
+    for (int c : chords) {
+      Symbol flow = flowSymbol(c, worstCase);
+      exprs.add(QFNRA.declareRealVariable(flow));
+      // the drop along the chord is the drop along the tree between
+      // its ends
+      List<SExpression> plus = new ArrayList<>();
+      List<SExpression> minus = new ArrayList<>();
+      for (int[] step : loopSteps.get(c)) {
+        addStep(step[0], step[1], worstCase, plus, minus);
+      }
+      exprs.add(QFNRA.assertEqual(
+          QFNRA.multiply(flow, resistance(c, worstCase)),
+          sum(plus, minus)));
+    }
+    for (int c : definedFlows) {
+      Symbol flow = flowSymbol(c, worstCase);
+      exprs.add(QFNRA.declareRealVariable(flow));
+      exprs.add(QFNRA.assertEqual(flow, loopSum(c, worstCase)));
+    }
+    return exprs;
+  }
+
+  // the pressure at a junction, from the ground along the tree
+  private SExpression potential(int junction, boolean worstCase) {
+    List<SExpression> plus = new ArrayList<>();
+    List<SExpression> minus = new ArrayList<>();
+    for (int x = junction; parent[x] >= 0; x = parent[x]) {
+      addStep(x, 1, worstCase, plus, minus);
+    }
+    return sum(plus, minus);
+  }
+
+  // adds sign * (pressure at x - pressure at its parent)
+  private void addStep(int x, int sign, boolean worstCase,
+      List<SExpression> plus, List<SExpression> minus) {
+    int t = parentChannel[x];
+    if (t < 0) {
+      // the ground link of a terminal
+      Symbol p = SymbolNameGenerator.getSym_PortPressure(schematic,
+          junctionPorts.get(x).get(0));
+      (sign > 0 ? plus : minus).add(p);
+      return;
+    }
+    SExpression flow = flow(t, worstCase);
+    if (flow == null) {
+      // no loop passes through, so no flow and no drop
+      return;
+    }
+    SExpression drop = QFNRA.multiply(flow, resistance(t, worstCase));
+    // the pressure falls along the channel's direction
+    boolean rises = channelFrom[t] != parent[x];
+    ((sign > 0) == rises ? plus : minus).add(drop);
+  }
+
+  /**
+   * @return the flow of the channel as a variable, a sum of loop flows,
+   * or null if no loop passes through it
+   */
+  private SExpression flow(int channel, boolean worstCase) {
+    if (hasVariable[channel]) {
+      return flowSymbol(channel, worstCase);
+    }
+    if (loopsThrough.get(channel).isEmpty()) {
+      return null;
+    }
+    return loopSum(channel, worstCase);
+  }
+
+  private SExpression loopSum(int channel, boolean worstCase) {
+    List<SExpression> plus = new ArrayList<>();
+    List<SExpression> minus = new ArrayList<>();
+    for (int[] loop : loopsThrough.get(channel)) {
+      (loop[1] > 0 ? plus : minus).add(flowSymbol(loop[0], worstCase));
+    }
+    return sum(plus, minus);
+  }
+
+  private Symbol flowSymbol(int channel, boolean worstCase) {
+    if (worstCase) {
+      return SymbolNameGenerator.getsym_ChannelFlowRate_WorstCase(
+          schematic, channels.get(channel));
+    }
+    return SymbolNameGenerator.getsym_ChannelFlowRate(
+        schematic, channels.get(channel));
+  }
+
+  private SExpression resistance(int channel, boolean worstCase) {
+    return channelResistance(schematic, channels.get(channel), worstCase);
+  }
+
+  /**
+   * Adds to a model of the formula the flows of the tree channels and
+   * the pressures at crossings, computed from the middle of the ranges
+   * of the loop flows, port pressures and resistances the model has.
+   * Nothing is added if the model is unsatisfiable or lacks any of them.
+   * @return true if the model was completed
+   */
+  @Override
+  public boolean reconstruct(DRealSolver.Result model) {
+    if (!usedLoops) {
+      return true;
+    }
+    if (!model.isSatisfiable()) {
+      return false;
+    }
+    Map<Symbol, Double> values = new HashMap<>();
+    double[] flows = new double[channels.size()];
+    for (int c = 0; c < channels.size(); ++c) {
+      for (int[] loop : loopsThrough.get(c)) {
+        Double q = midpoint(model, flowSymbol(loop[0], false));
+        if (q == null) {
+          return false;
+        }
+        flows[c] += loop[1] * q;
+      }
+    }
+    for (int c : chords) {
+      Double q = midpoint(model, flowSymbol(c, false));
+      if (q == null) {
+        return false;
+      }
+      flows[c] = q;
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      values.put(flowSymbol(c, false), flows[c]);
+    }
+
+    double[] pressures = new double[junctionPorts.size()];
+    for (int x : reached) {
+      if (parent[x] < 0) {
+        continue;
+      }
+      int t = parentChannel[x];
+      if (t < 0) {
+        Double p = midpoint(model, SymbolNameGenerator.getSym_PortPressure(
+            schematic, junctionPorts.get(x).get(0)));
+        if (p == null) {
+          return false;
+        }
+        pressures[x] = p;
+        continue;
+      }
+      Double r = midpoint(model, SymbolNameGenerator.getsym_ChannelResistance(
+          schematic, channels.get(t)));
+      if (r == null) {
+        return false;
+      }
+      double drop = flows[t] * r;
+      pressures[x] = pressures[parent[x]]
+          + (channelFrom[t] == parent[x] ? -drop : drop);
+      if (root[x] == GROUND && !terminal.get(x)) {
+        for (PortValue port : junctionPorts.get(x)) {
+          values.put(SymbolNameGenerator.getSym_PortPressure(
+              schematic, port), pressures[x]);
+        }
+      }
+    }
+
+    for (Map.Entry<Symbol, Double> entry : values.entrySet()) {
+      addIfMissing(model, entry.getKey(), entry.getValue());
+    }
+    return true;
+  }
+
+}
@@ -1,7 +1,118 @@
 package org.manifold.compiler.back.microfluidics.strategies.pressureflow;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
 import org.manifold.compiler.back.microfluidics.TranslationStrategy;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
 
 public abstract class PressureFlowStrategy extends TranslationStrategy {
 
+  /**
+   * Adds to a model of the formula the pressures and flows that the
+   * last translation left out of it. By default the translation leaves
+   * nothing out.
+   * @return true if the model was completed
+   */
+  public boolean reconstruct(DRealSolver.Result model) {
+    return true;
+  }
+
+  /**
+   * @return the resistance of the channel, with its droplets in the
+   * worst case
+   */
+  protected static SExpression channelResistance(Schematic schematic,
+      ConnectionValue conn, boolean worstCase) {
+    Symbol chR = SymbolNameGenerator.getsym_ChannelResistance(
+        schematic, conn);
+    if (!worstCase) {
+      return chR;
+    }
+    // as in SimplePressureFlowStrategy: each droplet adds its resistance
+    Symbol nDroplets = SymbolNameGenerator
+        .getsym_ChannelMaxDroplets(schematic, conn);
+    Symbol dropletResistance = SymbolNameGenerator
+        .getsym_ChannelDropletResistance(schematic, conn);
+    return QFNRA.add(chR, QFNRA.multiply(nDroplets, dropletResistance));
+  }
+
+  /**
+   * @return the terms of plus less the terms of minus, summed pairwise,
+   * which AssertionChecker can evaluate
+   */
+  protected static SExpression sum(List<SExpression> plus,
+      List<SExpression> minus) {
+    SExpression sum = null;
+    for (SExpression term : plus) {
+      sum = (sum == null) ? term : QFNRA.add(sum, term);
+    }
+    if (sum == null) {
+      sum = new Decimal(0.0);
+    }
+    for (SExpression term : minus) {
+      sum = QFNRA.subtract(sum, term);
+    }
+    return sum;
+  }
+
+  /**
+   * Splits the ports of a channel crossing into its two sides, each
+   * sorted by name, so that the name of a side's pressure is stable.
+   * @return the ports of the A side and the ports of the B side
+   */
+  protected static List<List<PortValue>> crossingSides(Schematic schematic,
+      NodeValue crossing) {
+    List<PortValue> a = new ArrayList<>();
+    List<PortValue> b = new ArrayList<>();
+    Map<String, PortValue> ports = new TreeMap<>(crossing.getPorts());
+    for (Map.Entry<String, PortValue> entry : ports.entrySet()) {
+      if (entry.getKey().startsWith("channelA")) {
+        a.add(entry.getValue());
+      } else if (entry.getKey().startsWith("channelB")) {
+        b.add(entry.getValue());
+      } else {
+        throw new CodeGenerationError("unexpected port '"
+            + entry.getKey() + "' on channel crossing '"
+            + schematic.getNodeName(crossing) + "'");
+      }
+    }
+    List<List<PortValue>> sides = new ArrayList<>(2);
+    sides.add(a);
+    sides.add(b);
+    return sides;
+  }
+
+  /**
+   * @return the middle of the range the model has for the symbol, or
+   * null if it has none
+   */
+  protected static Double midpoint(DRealSolver.Result model, Symbol sym) {
+    DRealSolver.RealRange range = model.getRange(sym);
+    if (range == null) {
+      return null;
+    }
+    return (range.lowerBound + range.upperBound) / 2.0;
+  }
+
+  // only fills in what the solver did not report
+  protected static void addIfMissing(DRealSolver.Result model, Symbol sym,
+      double value) {
+    if (model.getRange(sym) == null) {
+      model.addRange(sym, new DRealSolver.RealRange(value, value));
+    }
+  }
+
 }
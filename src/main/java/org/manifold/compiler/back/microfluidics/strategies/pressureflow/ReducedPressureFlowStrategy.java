@@ -0,0 +1,379 @@
+package org.manifold.compiler.back.microfluidics.strategies.pressureflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.PortValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.analysis.HydraulicNetwork;
+import org.manifold.compiler.back.microfluidics.analysis.NetworkReduction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+// Emits the pressure/flow relation of the reduced hydraulic network
+// (see NetworkReduction) instead of one dP = Q*R per channel.
+//
+// Every port of an ordinary node is a junction of its own whose
+// pressure the device strategies refer to, so those are kept. The A
+// ports and the B ports of a channel crossing are two junctions that
+// nothing else refers to, so a chain of channels through crossings
+// becomes a single element: one equation over the sum of the channel
+// resistances, with the flow of the chain's first channel. The flow of
+// its last channel is equated to it, since device strategies refer to
+// the flows of the channels at their ports; the channels in between
+// get no flow variable at all. Bundles of channels between the same two
+// junctions contribute their combined resistance, and every channel in a
+// bundle gets its share of the chain's flow, wherever the bundle is.
+//
+// After solving, reconstruct() recovers the pressures at the crossings
+// and the flows of the channels that were folded away.
+public class ReducedPressureFlowStrategy extends PressureFlowStrategy {
+
+  private final boolean performWorstCaseAnalysis;
+
+  public ReducedPressureFlowStrategy(boolean performWorstCaseAnalysis) {
+    this.performWorstCaseAnalysis = performWorstCaseAnalysis;
+  }
+
+  private Schematic schematic;
+  private HydraulicNetwork network;
+  private NetworkReduction reduction;
+  private List<ConnectionValue> channels;
+  // the ports at each junction; the first one names its pressure
+  private List<List<PortValue>> junctionPorts;
+
+  /**
+   * @return how many channels the last translation covered
+   */
+  public int getChannelCount() {
+    return channels.size();
+  }
+
+  /**
+   * @return how many elements the last translation reduced them to
+   */
+  public int getElementCount() {
+    return reduction.getElements().size();
+  }
+
+  @Override
+  protected List<SExpression> translationStep(Schematic schematic,
+      ProcessParameters processParams, PrimitiveTypeTable typeTable) {
+    this.schematic = schematic;
+    buildNetwork(typeTable);
+    reduction = new NetworkReduction(network);
+    for (int j = 0; j < junctionPorts.size(); ++j) {
+      if (junctionPorts.get(j).size() == 1) {
+        reduction.keep(j);
+      }
+    }
+    reduction.reduce();
+
+    List<SExpression> exprs = new LinkedList<>();
+    for (NetworkReduction.Element e : reduction.getElements()) {
+      exprs.addAll(translate(e));
+    }
+    return exprs;
+  }
+
+  private void buildNetwork(PrimitiveTypeTable typeTable) {
+    network = new HydraulicNetwork();
+    junctionPorts = new ArrayList<>();
+    Map<PortValue, Integer> portJunctions = new HashMap<>();
+    for (NodeValue node : schematic.getNodes().values()) {
+      if (node.getType().isSubtypeOf(
+          typeTable.getChannelCrossingNodeType())) {
+        for (List<PortValue> side : crossingSides(schematic, node)) {
+          int j = addJunction();
+          for (PortValue port : side) {
+            portJunctions.put(port, j);
+            junctionPorts.get(j).add(port);
+          }
+        }
+      } else {
+        for (PortValue port : node.getPorts().values()) {
+          int j = addJunction();
+          portJunctions.put(port, j);
+          junctionPorts.get(j).add(port);
+        }
+      }
+    }
+    channels = new ArrayList<>(schematic.getConnections().size());
+    for (ConnectionValue conn : schematic.getConnections().values()) {
+      Integer from = portJunctions.get(conn.getFrom());
+      Integer to = portJunctions.get(conn.getTo());
+      if (from == null || to == null) {
+        throw new CodeGenerationError("channel '"
+            + schematic.getConnectionName(conn)
+            + "' is connected to a port outside the schematic");
+      }
+      // the resistances are only known once the formula is solved
+      network.addChannel(from, to, 1.0);
+      channels.add(conn);
+    }
+  }
+
+  private int addJunction() {
+    junctionPorts.add(new ArrayList<PortValue>());
+    return network.addJunction();
+  }
+
+  private Symbol pressure(int junction) {
+    return SymbolNameGenerator.getSym_PortPressure(schematic,
+        junctionPorts.get(junction).get(0));
+  }
+
+  private List<SExpression> translate(NetworkReduction.Element e) {
+    List<SExpression> exprs = new LinkedList<>();
+    if (e.isParallel()) {
+      // every branch sees the same two pressures
+      for (NetworkReduction.Element part : e.getParts()) {
+        exprs.addAll(translate(part));
+      }
+      return exprs;
+    }
+    if (e.isChannel()) {
+      exprs.addAll(translateChain(e.getFrom(), e.getTo(), e,
+          e.getChannel(), -1));
+      return exprs;
+    }
+    List<NetworkReduction.Element> parts = e.getParts();
+    NetworkReduction.Element first = parts.get(0);
+    NetworkReduction.Element last = parts.get(parts.size() - 1);
+    int carrier;
+    if (first.isChannel()) {
+      carrier = 0;
+      exprs.addAll(translateChain(e.getFrom(), e.getTo(), e,
+          first.getChannel(), last.isChannel() ? last.getChannel() : -1));
+    } else if (last.isChannel()) {
+      carrier = parts.size() - 1;
+      exprs.addAll(translateChain(e.getTo(), e.getFrom(), e,
+          last.getChannel(), -1));
+    } else {
+      // no single channel carries the flow of the chain; state it
+      // channel by channel instead
+      for (int c : channelsOf(e)) {
+        exprs.addAll(translateChain(network.getChannelFrom(c),
+            network.getChannelTo(c), null, c, -1));
+      }
+      return exprs;
+    }
+    ConnectionValue carrierChannel = channels.get(
+        parts.get(carrier).getChannel());
+    for (int i = 0; i < parts.size(); ++i) {
+      if (!parts.get(i).isParallel()) {
+        continue;
+      }
+      boolean along = e.isReversed(i) == e.isReversed(carrier);
+      exprs.addAll(partFlows(parts.get(i), SymbolNameGenerator
+          .getsym_ChannelFlowRate(schematic, carrierChannel), along, false));
+      if (performWorstCaseAnalysis) {
+        exprs.addAll(partFlows(parts.get(i), SymbolNameGenerator
+            .getsym_ChannelFlowRate_WorstCase(schematic, carrierChannel),
+            along, true));
+      }
+    }
+    return exprs;
+  }
+
+  // declares the flow of every channel in the element p, which carries
+  // the given flow along p or against it
+  private List<SExpression> partFlows(NetworkReduction.Element p,
+      SExpression flow, boolean along, boolean worstCase) {
+    List<SExpression> exprs = new LinkedList<>();
+    if (p.isChannel()) {
+      ConnectionValue conn = channels.get(p.getChannel());
+      Symbol chV = worstCase
+          ? SymbolNameGenerator.getsym_ChannelFlowRate_WorstCase(
+              schematic, conn)
+          : SymbolNameGenerator.getsym_ChannelFlowRate(schematic, conn);
+      exprs.add(QFNRA.declareRealVariable(chV));
+      if (along) {
+        exprs.add(QFNRA.assertEqual(chV, flow));
+      } else {
+        exprs.add(QFNRA.assertEqual(new Decimal(0.0),
+            QFNRA.add(chV, flow)));
+      }
+    } else if (p.isParallel()) {
+      // the flow divides in inverse proportion to the resistances
+      for (NetworkReduction.Element part : p.getParts()) {
+        SExpression share = QFNRA.multiply(flow, QFNRA.divide(
+            resistance(p, worstCase), resistance(part, worstCase)));
+        exprs.addAll(partFlows(part, share,
+            along == (part.getFrom() == p.getFrom()), worstCase));
+      }
+    } else {
+      for (int i = 0; i < p.getParts().size(); ++i) {
+        exprs.addAll(partFlows(p.getParts().get(i), flow,
+            along != p.isReversed(i), worstCase));
+      }
+    }
+    return exprs;
+  }
+
+  // the element e (or, if null, the channel "first" alone) between the
+  // junctions start and end; the channel "first" is at the start and
+  // carries the flow, and the channel "last", if any, is at the end
+  private List<SExpression> translateChain(int start, int end,
+      NetworkReduction.Element e, int first, int last) {
+    List<SExpression> exprs = new LinkedList<>();
+    ConnectionValue firstChannel = channels.get(first);
+    // the flow of the first channel runs from its own from port, so
+    // the pressure difference is taken in that direction
+    boolean along = network.getChannelFrom(first) == start;
+    Symbol p1 = pressure(along ? start : end);
+    Symbol p2 = pressure(along ? end : start);
+
+    Symbol chV = SymbolNameGenerator.getsym_ChannelFlowRate(
+        schematic, firstChannel);
+    exprs.add(QFNRA.declareRealVariable(chV));
+    exprs.add(QFNRA.assertEqual(QFNRA.subtract(p1, p2), QFNRA.multiply(chV,
+        e == null ? resistance(first, false) : resistance(e, false))));
+    if (last >= 0) {
+      exprs.addAll(equateFlows(along, network.getChannelTo(last) == end,
+          chV, SymbolNameGenerator.getsym_ChannelFlowRate(
+              schematic, channels.get(last))));
+    }
+
+    if (performWorstCaseAnalysis) {
+      // as in SimplePressureFlowStrategy, the pressures stay and the
+      // flows change
+      Symbol chVWorstCase = SymbolNameGenerator
+          .getsym_ChannelFlowRate_WorstCase(schematic, firstChannel);
+      exprs.add(QFNRA.declareRealVariable(chVWorstCase));
+      exprs.add(QFNRA.assertEqual(QFNRA.subtract(p1, p2),
+          QFNRA.multiply(chVWorstCase, e == null
+              ? resistance(first, true) : resistance(e, true))));
+      if (last >= 0) {
+        exprs.addAll(equateFlows(along, network.getChannelTo(last) == end,
+            chVWorstCase, SymbolNameGenerator
+                .getsym_ChannelFlowRate_WorstCase(
+                    schematic, channels.get(last))));
+      }
+    }
+    return exprs;
+  }
+
+  // the last channel of a chain carries the flow of the first one;
+  // each runs either along the chain or against it
+  private static List<SExpression> equateFlows(boolean firstAlong,
+      boolean lastAlong, Symbol firstFlow, Symbol lastFlow) {
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.declareRealVariable(lastFlow));
+    if (firstAlong == lastAlong) {
+      exprs.add(QFNRA.assertEqual(firstFlow, lastFlow));
+    } else {
+      exprs.add(QFNRA.assertEqual(new Decimal(0.0),
+          QFNRA.add(firstFlow, lastFlow)));
+    }
+    return exprs;
+  }
+
+  private SExpression resistance(int channel, boolean worstCase) {
+    return channelResistance(schematic, channels.get(channel), worstCase);
+  }
+
+  private SExpression resistance(NetworkReduction.Element e,
+      boolean worstCase) {
+    if (e.isChannel()) {
+      return resistance(e.getChannel(), worstCase);
+    }
+    List<SExpression> terms = new ArrayList<>();
+    for (NetworkReduction.Element part : e.getParts()) {
+      SExpression term = resistance(part, worstCase);
+      if (e.isParallel()) {
+        term = QFNRA.divide(new Decimal(1.0), term);
+      }
+      terms.add(term);
+    }
+    SExpression sum = sum(terms, new ArrayList<SExpression>());
+    if (e.isParallel()) {
+      return QFNRA.divide(new Decimal(1.0), sum);
+    }
+    return sum;
+  }
+
+  private static List<Integer> channelsOf(NetworkReduction.Element e) {
+    List<Integer> result = new ArrayList<>();
+    if (e.isChannel()) {
+      result.add(e.getChannel());
+    } else {
+      for (NetworkReduction.Element part : e.getParts()) {
+        result.addAll(channelsOf(part));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds to a model of the formula the pressures at crossings and the
+   * flows of channels that the last translation folded away, computed
+   * from the middle of the ranges of the pressures and resistances the
+   * model has. Nothing is added if the model is unsatisfiable or lacks
+   * any of them.
+   * @return true if the model was completed
+   */
+  @Override
+  public boolean reconstruct(DRealSolver.Result model) {
+    if (!model.isSatisfiable()) {
+      return false;
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      Double r = midpoint(model, SymbolNameGenerator.getsym_ChannelResistance(
+          schematic, channels.get(c)));
+      if (r == null || !(r > 0.0)) {
+        return false;
+      }
+      network.setChannelResistance(c, r);
+    }
+    // junctions at the ends of elements; the others are folded away or
+    // have no channels
+    boolean[] ends = new boolean[network.getJunctionCount()];
+    for (NetworkReduction.Element e : reduction.getElements()) {
+      ends[e.getFrom()] = true;
+      ends[e.getTo()] = true;
+    }
+    double[] reducedPressures = new double[network.getJunctionCount()];
+    for (int j = 0; j < network.getJunctionCount(); ++j) {
+      if (!ends[j]) {
+        continue;
+      }
+      Double p = midpoint(model, pressure(j));
+      if (p == null) {
+        return false;
+      }
+      reducedPressures[reduction.getReducedJunction(j)] = p;
+    }
+    double[] pressures = reduction.reconstruct(reducedPressures);
+    for (int j = 0; j < network.getJunctionCount(); ++j) {
+      if (!ends[j] && reduction.getReducedJunction(j) >= 0) {
+        continue;
+      }
+      for (PortValue port : junctionPorts.get(j)) {
+        addIfMissing(model, SymbolNameGenerator.getSym_PortPressure(
+            schematic, port), pressures[j]);
+      }
+    }
+    for (int c = 0; c < channels.size(); ++c) {
+      addIfMissing(model, SymbolNameGenerator.getsym_ChannelFlowRate(
+          schematic, channels.get(c)),
+          (pressures[network.getChannelFrom(c)]
+              - pressures[network.getChannelTo(c)])
+          / network.getChannelResistance(c));
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,244 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// A job queue kept in a directory, shared by a coordinator and any number
+// of worker processes on the same machine.
+//
+//   sweep.json        what the queue is for (see SweepCoordinator)
+//   shared.smt2       the part of the formula common to all jobs
+//   pending/J.json    jobs waiting for a worker
+//   running/J.json.W  job J, claimed by worker W
+//   done/J.json       the result of job J
+//
+// Every change is a single atomic rename, so a job is claimed by exactly
+// one worker and no reader ever sees a partially written file. A worker
+// keeps touching the files of the jobs it holds; a job whose file has
+// not been touched for a lease period is assumed to belong to a crashed
+// worker and is moved back to pending.
+public class JobQueue {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String SUFFIX = ".json";
+
+  private final Path directory;
+  private final Path pending;
+  private final Path running;
+  private final Path done;
+  private final Path temp;
+
+  public JobQueue(Path directory) throws IOException {
+    this.directory = directory;
+    this.pending = directory.resolve("pending");
+    this.running = directory.resolve("running");
+    this.done = directory.resolve("done");
+    this.temp = directory.resolve("tmp");
+    Files.createDirectories(pending);
+    Files.createDirectories(running);
+    Files.createDirectories(done);
+    Files.createDirectories(temp);
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  private void writeAtomically(Path target, String content)
+      throws IOException {
+    Path t = Files.createTempFile(temp, "write", ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(t, CHARSET)) {
+      writer.write(content);
+    }
+    Files.move(t, target, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), CHARSET);
+  }
+
+  private static JsonObject readJson(Path path) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(path, CHARSET)) {
+      return new JsonParser().parse(reader).getAsJsonObject();
+    }
+  }
+
+  public JsonObject readManifest() throws IOException {
+    Path path = directory.resolve("sweep.json");
+    return Files.exists(path) ? readJson(path) : null;
+  }
+
+  public void writeManifest(JsonObject manifest) throws IOException {
+    writeAtomically(directory.resolve("sweep.json"), manifest.toString());
+  }
+
+  public String readShared() throws IOException {
+    return read(directory.resolve("shared.smt2"));
+  }
+
+  public void writeShared(String formula) throws IOException {
+    writeAtomically(directory.resolve("shared.smt2"), formula);
+  }
+
+  public boolean isDone(String job) {
+    return Files.exists(done.resolve(job + SUFFIX));
+  }
+
+  /**
+   * Adds a job unless it is already finished, waiting or running.
+   */
+  public void submit(String job, JsonObject description)
+      throws IOException {
+    if (isDone(job) || Files.exists(pending.resolve(job + SUFFIX))
+        || !claimsOf(job).isEmpty()) {
+      return;
+    }
+    writeAtomically(pending.resolve(job + SUFFIX), description.toString());
+  }
+
+  private List<Path> list(Path dir, String glob) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+      for (Path p : stream) {
+        paths.add(p);
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  private List<Path> claimsOf(String job) throws IOException {
+    return list(running, job + SUFFIX + ".*");
+  }
+
+  private static String jobOf(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.indexOf(SUFFIX));
+  }
+
+  /**
+   * @return the name of a job now held by the given worker,
+   * or null if no job is pending
+   */
+  public String claim(String worker) throws IOException {
+    for (Path job : list(pending, "*" + SUFFIX)) {
+      Path claimed = running.resolve(job.getFileName() + "." + worker);
+      try {
+        // start the lease before the job appears in running/
+        Files.setLastModifiedTime(job,
+            FileTime.fromMillis(System.currentTimeMillis()));
+        Files.move(job, claimed, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException | FileAlreadyExistsException e) {
+        // another worker was faster
+        continue;
+      }
+      return jobOf(claimed);
+    }
+    return null;
+  }
+
+  public JsonObject readClaimed(String job, String worker)
+      throws IOException {
+    return readJson(running.resolve(job + SUFFIX + "." + worker));
+  }
+
+  /**
+   * Renews the worker's lease on a job.
+   * @return false if the job is no longer held by the worker
+   */
+  public boolean heartbeat(String job, String worker) {
+    try {
+      Files.setLastModifiedTime(running.resolve(job + SUFFIX + "." + worker),
+          FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public void complete(String job, String worker, JsonObject result)
+      throws IOException {
+    writeAtomically(done.resolve(job + SUFFIX), result.toString());
+    Files.deleteIfExists(running.resolve(job + SUFFIX + "." + worker));
+  }
+
+  private boolean requeue(Path claimed) throws IOException {
+    try {
+      Files.move(claimed, pending.resolve(jobOf(claimed) + SUFFIX),
+          StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (NoSuchFileException | FileAlreadyExistsException e) {
+      // completed or requeued concurrently
+      return false;
+    }
+  }
+
+  /**
+   * Returns jobs whose lease has run out to the pending set.
+   * @return the number of jobs requeued
+   */
+  public int requeueExpired(long leaseMillis) throws IOException {
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (Path claimed : list(running, "*")) {
+      long touched;
+      try {
+        touched = Files.getLastModifiedTime(claimed).toMillis();
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      if (now - touched > leaseMillis && requeue(claimed)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns every job held by the given worker to the pending set,
+   * e.g. after the worker has died.
+   * @return the number of jobs requeued
+   */
+  public int requeueWorker(String worker) throws IOException {
+    int count = 0;
+    for (Path claimed : list(running, "*" + SUFFIX + "." + worker)) {
+      if (requeue(claimed)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  public int countPending() throws IOException {
+    return list(pending, "*" + SUFFIX).size();
+  }
+
+  public int countRunning() throws IOException {
+    return list(running, "*").size();
+  }
+
+  /**
+   * @return the result of a finished job, or null
+   */
+  public JsonObject readResult(String job) throws IOException {
+    Path path = done.resolve(job + SUFFIX);
+    return Files.exists(path) ? readJson(path) : null;
+  }
+
+}
@@ -0,0 +1,215 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameterGrid;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.smt2.TimedResult;
+import org.manifold.compiler.back.microfluidics.strategies.MultiPhaseStrategySet;
+import org.manifold.compiler.back.microfluidics.strategies.PlacementTranslationStrategySet;
+import org.manifold.compiler.back.microfluidics.strategies.PressureFlowStrategySet;
+import org.manifold.compiler.middle.Schematic;
+
+// Checks one schematic against many sets of process parameters.
+//
+// The process-independent part of the formula is translated once; for
+// each point only the process-dependent placement rules (chip extents,
+// minimum channel length, critical crossing angle) are translated and
+// appended. Points are solved concurrently on a fixed pool of workers,
+// each with its own solver.
+public class ParameterSweep {
+
+  private static final Logger log = LogManager.getLogger("ParameterSweep");
+
+  // Creates one solver per query, since solvers need not be thread-safe.
+  public interface SolverFactory {
+    FormulaSolver createSolver();
+  }
+
+  public static class DRealSolverFactory implements SolverFactory {
+    @Override
+    public FormulaSolver createSolver() {
+      return new DRealSolver();
+    }
+  }
+
+  // Creates the strategy sets that translate the schematic, so that
+  // points are translated under the same options as a single backend
+  // run. Strategies keep their last translation, so each translation
+  // gets sets of its own.
+  public interface StrategyFactory {
+    PlacementTranslationStrategySet createPlacementSet();
+    PressureFlowStrategySet createPressureFlowSet();
+  }
+
+  public static class DefaultStrategyFactory implements StrategyFactory {
+    @Override
+    public PlacementTranslationStrategySet createPlacementSet() {
+      return new PlacementTranslationStrategySet();
+    }
+
+    @Override
+    public PressureFlowStrategySet createPressureFlowSet() {
+      return new PressureFlowStrategySet();
+    }
+  }
+
+  public static class PointResult extends TimedResult {
+    private final ProcessParameters parameters;
+
+    PointResult(ProcessParameters parameters, DRealSolver.Result result,
+        String error, double seconds) {
+      super(result, error, seconds);
+      this.parameters = parameters;
+    }
+
+    public ProcessParameters getParameters() {
+      return parameters;
+    }
+
+    @Override
+    protected List<String> getKeys() {
+      List<String> keys = new ArrayList<>();
+      for (double v : ProcessParameterGrid.getValues(parameters)) {
+        keys.add(Double.toString(v));
+      }
+      return keys;
+    }
+  }
+
+  private final Schematic schematic;
+  private final PrimitiveTypeTable typeTable;
+
+  public ParameterSweep(Schematic schematic) {
+    this.schematic = schematic;
+    this.typeTable = MicrofluidicsBackend.constructTypeTable(schematic);
+  }
+
+  private SolverFactory solverFactory = new DRealSolverFactory();
+  public void useSolverFactory(SolverFactory factory) {
+    this.solverFactory = factory;
+  }
+
+  private StrategyFactory strategyFactory = new DefaultStrategyFactory();
+  public void useStrategyFactory(StrategyFactory factory) {
+    this.strategyFactory = factory;
+  }
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("sweep needs at least one worker");
+    }
+    this.threads = threads;
+  }
+
+  List<SExpression> translateProcessIndependent(
+      ProcessParameters anyPoint) {
+    List<SExpression> exprs = new LinkedList<>();
+    exprs.add(QFNRA.declareRealVariable(
+        SymbolNameGenerator.getsym_constant_pi()));
+    exprs.add(QFNRA.assertEqual(
+        SymbolNameGenerator.getsym_constant_pi(),
+        new Decimal(Math.PI)));
+    exprs.addAll(strategyFactory.createPlacementSet()
+        .translateProcessIndependent(schematic, anyPoint, typeTable));
+    exprs.addAll(new MultiPhaseStrategySet().translate(
+        schematic, anyPoint, typeTable));
+    exprs.addAll(strategyFactory.createPressureFlowSet().translate(
+        schematic, anyPoint, typeTable));
+    return exprs;
+  }
+
+  List<SExpression> translateProcessDependent(ProcessParameters point) {
+    return strategyFactory.createPlacementSet()
+        .translateProcessDependent(schematic, point, typeTable);
+  }
+
+  // the complete formula for one point
+  static List<SExpression> assemble(List<SExpression> shared,
+      List<SExpression> dependent) {
+    List<SExpression> unsorted = new ArrayList<>(shared);
+    unsorted.addAll(dependent);
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    formula.addAll(new MicrofluidicsBackend().sortExprs(unsorted));
+    return formula;
+  }
+
+  public List<PointResult> run(List<ProcessParameters> points)
+      throws InterruptedException {
+    List<PointResult> results = new ArrayList<>(points.size());
+    if (points.isEmpty()) {
+      return results;
+    }
+    final List<SExpression> shared = translateProcessIndependent(
+        points.get(0));
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.min(threads, points.size()));
+    try {
+      List<Future<PointResult>> futures = new ArrayList<>(points.size());
+      for (final ProcessParameters point : points) {
+        futures.add(pool.submit(new Callable<PointResult>() {
+          @Override
+          public PointResult call() {
+            long start = System.nanoTime();
+            try {
+              List<SExpression> formula = assemble(shared,
+                  translateProcessDependent(point));
+              DRealSolver.Result result = solverFactory.createSolver()
+                  .solve(formula);
+              return new PointResult(point, result, null,
+                  (System.nanoTime() - start) / 1e9);
+            } catch (IOException | RuntimeException e) {
+              log.warn("sweep point failed: " + e.getMessage());
+              return new PointResult(point, null, e.toString(),
+                  (System.nanoTime() - start) / 1e9);
+            }
+          }
+        }));
+      }
+      for (Future<PointResult> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          // call() catches everything it can
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return results;
+  }
+
+  /**
+   * Writes one comma-separated line per point: its parameters,
+   * the solver status and the time taken.
+   */
+  public static void writeTable(List<PointResult> results, Writer writer)
+      throws IOException {
+    TimedResult.writeTable(
+        Arrays.asList(ProcessParameterGrid.PARAMETER_NAMES), results, writer);
+  }
+
+}
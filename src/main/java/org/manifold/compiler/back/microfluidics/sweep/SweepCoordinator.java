@@ -0,0 +1,301 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.back.microfluidics.ProcessParameterGrid;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.middle.Schematic;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+// Runs a parameter sweep on a farm of worker processes instead of
+// threads, so that a solver that crashes or exhausts its memory only
+// takes one point down with it.
+//
+// The coordinator translates the schematic, writes one job per point to
+// a JobQueue and starts SweepWorker JVMs on it. Workers that die are
+// replaced and their jobs given to others. Since finished jobs stay in
+// the queue directory, running the same sweep again resumes it and only
+// solves the points that are not done yet.
+public class SweepCoordinator {
+
+  private static final Logger log = LogManager.getLogger("SweepCoordinator");
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final Schematic schematic;
+  private final Path queueDirectory;
+
+  public SweepCoordinator(Schematic schematic, Path queueDirectory) {
+    this.schematic = schematic;
+    this.queueDirectory = queueDirectory;
+  }
+
+  private int workers = Runtime.getRuntime().availableProcessors();
+  public void setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("sweep needs at least one worker");
+    }
+    this.workers = workers;
+  }
+
+  private long leaseMillis = 30000;
+  /**
+   * Sets how long a job may go without a heartbeat from its worker
+   * before it is given to another one.
+   */
+  public void setLeaseMillis(long leaseMillis) {
+    if (leaseMillis < 1) {
+      throw new IllegalArgumentException("lease must be positive");
+    }
+    this.leaseMillis = leaseMillis;
+  }
+
+  private int maximumRestarts = 10;
+  /**
+   * Sets how many failed workers are replaced before the sweep gives up
+   * on the remaining points.
+   */
+  public void setMaximumRestarts(int maximumRestarts) {
+    this.maximumRestarts = maximumRestarts;
+  }
+
+  private String solverFactory =
+      ParameterSweep.DRealSolverFactory.class.getName();
+  /**
+   * Uses the named factory in every worker; it must have a public
+   * constructor without arguments.
+   */
+  public void useSolverFactory(
+      Class<? extends ParameterSweep.SolverFactory> factory) {
+    this.solverFactory = factory.getName();
+  }
+
+  private ParameterSweep.StrategyFactory strategyFactory =
+      new ParameterSweep.DefaultStrategyFactory();
+  /**
+   * Translates the schematic with the given strategies; the workers only
+   * read the translated formulas.
+   */
+  public void useStrategyFactory(ParameterSweep.StrategyFactory factory) {
+    this.strategyFactory = factory;
+  }
+
+  private List<String> workerJvmArguments = Collections.emptyList();
+  /**
+   * Passes extra arguments (e.g. "-Xmx2g") to every worker JVM.
+   */
+  public void setWorkerJvmArguments(List<String> arguments) {
+    this.workerJvmArguments = new ArrayList<>(arguments);
+  }
+
+  private static String jobName(int index) {
+    return String.format("job-%06d", index);
+  }
+
+  private JsonObject manifest(List<ProcessParameters> points,
+      String formulaHash) {
+    JsonObject manifest = new JsonObject();
+    manifest.addProperty("schematic", schematic.getName());
+    manifest.addProperty("formula", formulaHash);
+    JsonArray jsonPoints = new JsonArray();
+    for (ProcessParameters point : points) {
+      jsonPoints.add(values(point));
+    }
+    manifest.add("points", jsonPoints);
+    manifest.addProperty("leaseMillis", leaseMillis);
+    manifest.addProperty("solverFactory", solverFactory);
+    return manifest;
+  }
+
+  private static JsonArray values(ProcessParameters point) {
+    JsonArray values = new JsonArray();
+    for (double v : ProcessParameterGrid.getValues(point)) {
+      values.add(new JsonPrimitive(v));
+    }
+    return values;
+  }
+
+  private static String write(List<SExpression> exprs) {
+    StringBuilder text = new StringBuilder();
+    for (SExpression expr : exprs) {
+      text.append(expr.toString()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private void prepare(JobQueue queue, List<ProcessParameters> points)
+      throws IOException {
+    ParameterSweep sweep = new ParameterSweep(schematic);
+    sweep.useStrategyFactory(strategyFactory);
+    String shared = write(sweep.translateProcessIndependent(points.get(0)));
+    List<String> formulas = new ArrayList<>(points.size());
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putString(shared, CHARSET);
+    for (ProcessParameters point : points) {
+      String formula = write(sweep.translateProcessDependent(point));
+      formulas.add(formula);
+      hasher.putString(formula, CHARSET);
+    }
+    // the finished results are only valid for the same formulas, which
+    // change with the schematic even if its name does not
+    JsonObject manifest = manifest(points, hasher.hash().toString());
+    JsonObject existing = queue.readManifest();
+    if (existing != null) {
+      if (existing.has("formula") && !existing.get("formula").equals(
+          manifest.get("formula"))) {
+        throw new IllegalStateException(queueDirectory
+            + " holds a sweep of a different formula; remove it to start"
+            + " over");
+      }
+      if (!existing.toString().equals(manifest.toString())) {
+        throw new IllegalStateException(queueDirectory
+            + " holds a different sweep; remove it to start over");
+      }
+      log.info("resuming sweep in " + queueDirectory);
+    } else {
+      queue.writeManifest(manifest);
+    }
+    queue.writeShared(shared);
+    for (int i = 0; i < points.size(); ++i) {
+      String job = jobName(i);
+      if (queue.isDone(job)) {
+        continue;
+      }
+      JsonObject description = new JsonObject();
+      description.addProperty("index", i);
+      description.add("parameters", values(points.get(i)));
+      description.addProperty("formula", formulas.get(i));
+      queue.submit(job, description);
+    }
+  }
+
+  private Process launch(String id) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java");
+    command.addAll(workerJvmArguments);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(SweepWorker.class.getName());
+    command.add(queueDirectory.toString());
+    command.add(id);
+    Path logs = queueDirectory.resolve("logs");
+    Files.createDirectories(logs);
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(logs.resolve(id + ".log").toFile());
+    log.debug("starting worker " + id);
+    return builder.start();
+  }
+
+  private boolean hasWork(JobQueue queue) throws IOException {
+    return queue.countPending() > 0 || queue.countRunning() > 0;
+  }
+
+  // reads back what SweepWorker.rangesToJson() wrote
+  private static void addRanges(DRealSolver.Result model,
+      JsonObject ranges) {
+    for (Map.Entry<String, JsonElement> entry : ranges.entrySet()) {
+      JsonArray bounds = entry.getValue().getAsJsonArray();
+      model.addRange(new Symbol(entry.getKey()), new DRealSolver.RealRange(
+          bounds.get(0).getAsDouble(), bounds.get(1).getAsDouble()));
+    }
+  }
+
+  public List<ParameterSweep.PointResult> run(List<ProcessParameters> points)
+      throws IOException, InterruptedException {
+    List<ParameterSweep.PointResult> results = new ArrayList<>();
+    if (points.isEmpty()) {
+      return results;
+    }
+    JobQueue queue = new JobQueue(queueDirectory);
+    prepare(queue, points);
+
+    Map<String, Process> alive = new HashMap<>();
+    int launched = 0;
+    int restarts = 0;
+    try {
+      while (true) {
+        for (Map.Entry<String, Process> w
+            : new ArrayList<>(alive.entrySet())) {
+          if (w.getValue().isAlive()) {
+            continue;
+          }
+          alive.remove(w.getKey());
+          int status = w.getValue().exitValue();
+          if (status != 0) {
+            ++restarts;
+            int lost = queue.requeueWorker(w.getKey());
+            log.warn("worker " + w.getKey() + " exited with status "
+                + status + ", requeued " + lost + " jobs");
+          }
+        }
+        queue.requeueExpired(leaseMillis);
+        if (!hasWork(queue)) {
+          break;
+        }
+        int wanted = Math.min(workers, queue.countPending()
+            + queue.countRunning());
+        while (alive.size() < wanted && restarts <= maximumRestarts) {
+          String id = "w" + launched++;
+          alive.put(id, launch(id));
+        }
+        if (alive.isEmpty()) {
+          log.error("too many workers failed; giving up on "
+              + (queue.countPending() + queue.countRunning()) + " points");
+          break;
+        }
+        Thread.sleep(Math.max(1, leaseMillis / 4));
+      }
+    } finally {
+      for (Process p : alive.values()) {
+        p.destroy();
+      }
+    }
+
+    for (int i = 0; i < points.size(); ++i) {
+      JsonObject r = queue.readResult(jobName(i));
+      if (r == null) {
+        results.add(new ParameterSweep.PointResult(points.get(i), null,
+            "not solved", 0.0));
+        continue;
+      }
+      String status = r.get("status").getAsString();
+      double seconds = r.get("seconds").getAsDouble();
+      if (status.equals("error")) {
+        results.add(new ParameterSweep.PointResult(points.get(i), null,
+            r.get("error").getAsString(), seconds));
+      } else {
+        DRealSolver.Result model = new DRealSolver.Result(
+            status.equals("sat"));
+        if (r.has("ranges")) {
+          addRanges(model, r.getAsJsonObject("ranges"));
+        }
+        results.add(new ParameterSweep.PointResult(points.get(i), model,
+            null, seconds));
+      }
+    }
+    return results;
+  }
+
+}
@@ -0,0 +1,202 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SExpressionParser;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+// One process of a sweep farm (see SweepCoordinator).
+//
+// A worker takes jobs from the queue until none are left, solving each
+// with a fresh solver from the factory named in the queue's manifest.
+// While the solver works on a job, the worker renews its lease, so a
+// worker that hangs or dies loses the job to another one. A worker that
+// finds it has lost a job interrupts the solver and does not publish a
+// result for it.
+public class SweepWorker {
+
+  private static final Logger log = LogManager.getLogger("SweepWorker");
+
+  private final JobQueue queue;
+  private final String id;
+
+  public SweepWorker(JobQueue queue, String id) {
+    this.queue = queue;
+    this.id = id;
+  }
+
+  private static ParameterSweep.SolverFactory createFactory(String name) {
+    try {
+      Object factory = Class.forName(name).newInstance();
+      if (!(factory instanceof ParameterSweep.SolverFactory)) {
+        throw new IllegalArgumentException("'" + name
+            + "' is not a solver factory");
+      }
+      return (ParameterSweep.SolverFactory) factory;
+    } catch (ClassNotFoundException | InstantiationException
+        | IllegalAccessException e) {
+      throw new IllegalArgumentException("cannot create solver factory '"
+          + name + "': " + e.getMessage());
+    }
+  }
+
+  // bounds are written as strings, which JSON numbers cannot hold if
+  // they are infinite
+  static JsonObject rangesToJson(DRealSolver.Result model) {
+    JsonObject ranges = new JsonObject();
+    for (Symbol sym : model.getSymbols()) {
+      DRealSolver.RealRange range = model.getRange(sym);
+      JsonArray bounds = new JsonArray();
+      bounds.add(new JsonPrimitive(Double.toString(range.lowerBound)));
+      bounds.add(new JsonPrimitive(Double.toString(range.upperBound)));
+      ranges.add(sym.getName(), bounds);
+    }
+    return ranges;
+  }
+
+  /**
+   * Works until the queue has no pending or running jobs left.
+   * @return the number of jobs this worker completed
+   */
+  public int run() throws IOException, InterruptedException {
+    JsonObject manifest = queue.readManifest();
+    if (manifest == null) {
+      throw new IllegalStateException("no sweep in "
+          + queue.getDirectory());
+    }
+    final long lease = manifest.get("leaseMillis").getAsLong();
+    ParameterSweep.SolverFactory factory = createFactory(
+        manifest.get("solverFactory").getAsString());
+    List<SExpression> shared = SExpressionParser.parse(queue.readShared());
+
+    int completed = 0;
+    ExecutorService solving = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            // a solver that ignores interrupts must not keep us alive
+            Thread t = new Thread(r, "solver-" + id);
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    try {
+      while (true) {
+        queue.requeueExpired(lease);
+        String job = queue.claim(id);
+        if (job == null) {
+          if (queue.countRunning() == 0 && queue.countPending() == 0) {
+            return completed;
+          }
+          // another worker's job may yet come back to the queue
+          Thread.sleep(Math.max(1, lease / 4));
+          continue;
+        }
+        JsonObject result = new JsonObject();
+        long start = System.nanoTime();
+        boolean held = true;
+        try {
+          JsonObject description = queue.readClaimed(job, id);
+          final List<SExpression> formula = ParameterSweep.assemble(shared,
+              SExpressionParser.parse(
+                  description.get("formula").getAsString()));
+          final FormulaSolver solver = factory.createSolver();
+          Future<DRealSolver.Result> solution = solving.submit(
+              new Callable<DRealSolver.Result>() {
+                @Override
+                public DRealSolver.Result call() throws IOException {
+                  return solver.solve(formula);
+                }
+              });
+          DRealSolver.Result r = await(job, solution, lease);
+          if (r == null) {
+            held = false;
+          } else {
+            result.addProperty("status",
+                r.isSatisfiable() ? "sat" : "unsat");
+            result.add("ranges", rangesToJson(r));
+          }
+        } catch (IOException | RuntimeException e) {
+          log.warn("job " + job + " failed: " + e.getMessage());
+          result.addProperty("status", "error");
+          result.addProperty("error", e.toString());
+        }
+        // the job may have been given to another worker since the last
+        // renewal; its result is that worker's to publish
+        if (!held || !queue.heartbeat(job, id)) {
+          log.warn("lost job " + job + " to another worker");
+          continue;
+        }
+        result.addProperty("seconds", (System.nanoTime() - start) / 1e9);
+        queue.complete(job, id, result);
+        ++completed;
+      }
+    } finally {
+      solving.shutdownNow();
+    }
+  }
+
+  // waits for the solution, renewing the lease on the job meanwhile
+  // @return the solution, or null if the lease could not be renewed,
+  // in which case the solver is interrupted
+  private DRealSolver.Result await(String job,
+      Future<DRealSolver.Result> solution, long lease)
+      throws IOException, InterruptedException {
+    while (queue.heartbeat(job, id)) {
+      try {
+        return solution.get(Math.max(1, lease / 4), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // still solving
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    solution.cancel(true);
+    return null;
+  }
+
+  /**
+   * Usage: SweepWorker queue-directory worker-id
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("usage: SweepWorker <queue directory> <worker id>");
+      System.exit(2);
+    }
+    try {
+      JobQueue queue = new JobQueue(Paths.get(args[0]));
+      int completed = new SweepWorker(queue, args[1]).run();
+      log.info("worker " + args[1] + " completed " + completed + " jobs");
+    } catch (Exception e) {
+      log.error("worker " + args[1] + " failed", e);
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+}
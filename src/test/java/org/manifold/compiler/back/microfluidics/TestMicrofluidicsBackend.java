@@ -1,5 +1,15 @@
 package org.manifold.compiler.back.microfluidics;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.Options;
@@ -11,6 +21,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.manifold.compiler.ConnectionValue;
 import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.DeltaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
 import org.manifold.compiler.middle.Schematic;
 
 public class TestMicrofluidicsBackend {
@@ -109,6 +123,259 @@ public class TestMicrofluidicsBackend {
     backend.invokeBackend(schematic, cmd);
   }
   
+  private static final String[] PROCESS_ARGS = {
+    "-bProcessMinimumNodeDistance", "0.0001",
+    "-bProcessMinimumChannelLength", "0.0001",
+    "-bProcessMaximumChipSizeX", "0.04",
+    "-bProcessMaximumChipSizeY", "0.04",
+    "-bProcessCriticalCrossingAngle", "0.0872664626"
+  };
+
+  // (fluidEntry) ---> (fluidExit)
+  private static Schematic entryToExit(String name) throws Exception {
+    Schematic schematic = UtilSchematicConstruction.instantiateSchematic(
+        name);
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        schematic, viscosityOfWater);
+    schematic.addNode("in0", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(schematic);
+    schematic.addNode("out0", exit);
+    schematic.addConnection("channel0",
+        UtilSchematicConstruction.instantiateChannel(
+            entry.getPort("output"), exit.getPort("input")));
+    return schematic;
+  }
+
+  private static void invoke(MicrofluidicsBackend backend,
+      Schematic schematic, String... extraArgs) throws Exception {
+    List<String> args = new ArrayList<>(Arrays.asList(PROCESS_ARGS));
+    args.addAll(Arrays.asList(extraArgs));
+    Options options = new Options();
+    backend.registerArguments(options);
+    CommandLineParser parser = new org.apache.commons.cli.BasicParser();
+    CommandLine cmd = parser.parse(options, args.toArray(new String[0]));
+    backend.invokeBackend(schematic, cmd);
+  }
+
+  private static void deleteOutputs(Schematic schematic, String... suffixes)
+      throws IOException {
+    for (String suffix : suffixes) {
+      Files.deleteIfExists(Paths.get(schematic.getName() + suffix));
+    }
+  }
+
+  // Answers every formula sat without a model, and remembers the
+  // precision of each query.
+  private static class StubSolver implements DeltaSolver {
+    final List<Double> precisions = new ArrayList<>();
+    final List<List<SExpression>> queries = new ArrayList<>();
+    private double precision = 0.0;
+
+    @Override
+    public void setPrecision(double precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      precisions.add(precision);
+      queries.add(formula);
+      return new DRealSolver.Result(true);
+    }
+  }
+
+  @Test
+  public void testPrecisionEscalationOption() throws Exception {
+    Schematic schematic = entryToExit("testPrecisionEscalation");
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    StubSolver stub = new StubSolver();
+    backend.useSolver(stub);
+    try {
+      invoke(backend, schematic, "-bQuery", "channel0_length",
+          "-bInitialPrecision", "0.1", "-bFinalPrecision", "0.001");
+    } finally {
+      deleteOutputs(schematic, ".query.smt2", ".query.json");
+    }
+    // an empty model never confirms the formula, so every step is taken
+    assertEquals(3, stub.precisions.size());
+    assertEquals(0.1, stub.precisions.get(0), 1e-12);
+    assertEquals(0.01, stub.precisions.get(1), 1e-12);
+    assertEquals(0.001, stub.precisions.get(2), 1e-12);
+  }
+
+  @Test
+  public void testPruningKeepsQueryTargets() throws Exception {
+    // without worst-case analysis no rule uses the droplet resistance,
+    // so pruning would drop its declaration
+    Schematic schematic = entryToExit("testPruningKeepsQuery");
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    StubSolver stub = new StubSolver();
+    backend.useSolver(stub);
+    try {
+      invoke(backend, schematic, "-bQuery", "channel0_droplet_resistance",
+          "-bPruneFormula");
+    } finally {
+      deleteOutputs(schematic, ".query.smt2", ".query.json");
+    }
+    assertTrue(stub.queries.get(0).toString().contains(
+        "channel0_droplet_resistance"));
+  }
+
+  @Test
+  public void testHierarchicalPlacementUsesBackendOptions()
+      throws Exception {
+    Schematic schematic = entryToExit("testHierarchicalOptions");
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    StubSolver stub = new StubSolver();
+    backend.useSolver(stub);
+    try {
+      invoke(backend, schematic, "-bQuery", "channel0_length",
+          "-bHierarchicalPlacement", "1", "-bLengthRule", "manhattan");
+    } finally {
+      deleteOutputs(schematic, ".query.smt2", ".query.json");
+    }
+    // the clusters are solved by the configured solver too, and measure
+    // the channel as the option asks
+    assertTrue(stub.queries.size() > 1);
+    assertTrue(stub.queries.get(0).toString().contains(
+        "channel0_extent_x"));
+    for (int i = 0; i < stub.queries.size() - 1; ++i) {
+      assertTrue(!stub.queries.get(i).toString().contains("^"));
+    }
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testPrecisionEscalationRejectsFinerStart() throws Exception {
+    Schematic schematic = entryToExit("testPrecisionEscalation");
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    backend.useSolver(new StubSolver());
+    invoke(backend, schematic, "-bQuery", "channel0_length",
+        "-bInitialPrecision", "0.0001", "-bFinalPrecision", "0.001");
+  }
+
+  private static int lazyQuerySizes(String name, boolean lazy,
+      String... args) throws Exception {
+    Schematic schematic = entryToExit(name);
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    StubSolver stub = new StubSolver();
+    backend.useSolver(stub);
+    List<String> all = new ArrayList<>(Arrays.asList(args));
+    if (lazy) {
+      all.add("-bLazyConstraints");
+    }
+    try {
+      invoke(backend, schematic, all.toArray(new String[0]));
+    } catch (IllegalStateException e) {
+      // compaction needs the stub's missing model for its next step;
+      // the first layout has been asked for by then
+    } finally {
+      deleteOutputs(schematic, ".query.smt2", ".query.json",
+          ".compact.json");
+    }
+    if (!lazy) {
+      return stub.queries.get(0).size();
+    }
+    // an empty model violates every lazy rule, so the second query has
+    // them all
+    assertTrue(stub.queries.size() >= 2);
+    assertTrue(stub.queries.get(0).size() < stub.queries.get(1).size());
+    return stub.queries.get(1).size();
+  }
+
+  @Test
+  public void testLazyConstraintsInQuery() throws Exception {
+    String[] args = new String[] {"-bQuery", "in0_pos_x",
+        "-bNodeSeparation"};
+    assertEquals(lazyQuerySizes("testLazyQuery", false, args),
+        lazyQuerySizes("testLazyQuery", true, args));
+  }
+
+  @Test
+  public void testLazyConstraintsInCompaction() throws Exception {
+    String[] args = new String[] {"-bCompactArea", "-bNodeSeparation"};
+    assertEquals(lazyQuerySizes("testLazyCompact", false, args),
+        lazyQuerySizes("testLazyCompact", true, args));
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testLazyConstraintsNeedSolving() throws Exception {
+    Schematic schematic = entryToExit("testLazyAlone");
+    invoke(new MicrofluidicsBackend(), schematic, "-bLazyConstraints");
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testConflictingModesRejected() throws Exception {
+    Schematic schematic = entryToExit("testConflictingModes");
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    backend.useSolver(new StubSolver());
+    invoke(backend, schematic, "-bOptimize", "chipArea",
+        "-bCompactArea");
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testSweepRejectsFormulaOptions() throws Exception {
+    Schematic schematic = entryToExit("testSweepOptions");
+    invoke(new MicrofluidicsBackend(), schematic, "-bProcessSweep",
+        "sweep.json", "-bSimplify");
+  }
+
+  // Places in0, out0, in1 and out1 so that the two channels cross in
+  // the first model, and side by side in the others.
+  private static class CrossingStubSolver extends StubSolver {
+    private final Schematic schematic;
+
+    CrossingStubSolver(Schematic schematic) {
+      this.schematic = schematic;
+    }
+
+    private void place(DRealSolver.Result model, String node, double x,
+        double y) {
+      NodeValue n = schematic.getNodes().get(node);
+      model.addRange(SymbolNameGenerator.getsym_NodeX(schematic, n),
+          new DRealSolver.RealRange(x, x));
+      model.addRange(SymbolNameGenerator.getsym_NodeY(schematic, n),
+          new DRealSolver.RealRange(y, y));
+    }
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      boolean first = queries.isEmpty();
+      DRealSolver.Result model = super.solve(formula);
+      place(model, "in0", 0.0, 0.0);
+      place(model, "out0", 0.01, first ? 0.01 : 0.0);
+      place(model, "in1", 0.0, first ? 0.01 : 0.005);
+      place(model, "out1", 0.01, first ? 0.0 : 0.005);
+      return model;
+    }
+  }
+
+  @Test
+  public void testCrossingsInFinalLayoutGetRules() throws Exception {
+    Schematic schematic = entryToExit("testFinalCrossings");
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        schematic, viscosityOfWater);
+    schematic.addNode("in1", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(schematic);
+    schematic.addNode("out1", exit);
+    schematic.addConnection("channel1",
+        UtilSchematicConstruction.instantiateChannel(
+            entry.getPort("output"), exit.getPort("input")));
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    CrossingStubSolver stub = new CrossingStubSolver(schematic);
+    backend.useSolver(stub);
+    try {
+      invoke(backend, schematic, "-bQuery", "in0_pos_x,in1_pos_x");
+    } finally {
+      deleteOutputs(schematic, ".query.smt2", ".query.json");
+    }
+    // the crossing in the first layout is ruled out, and the second
+    // layout has none
+    assertEquals(2, stub.queries.size());
+    assertEquals(stub.queries.get(0).size() + 1,
+        stub.queries.get(1).size());
+    assertTrue(stub.queries.get(1).toString().contains("( or "));
+  }
+
   // TODO update test for new interface
   /*
   @Test
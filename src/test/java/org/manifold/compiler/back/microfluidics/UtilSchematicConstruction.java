@@ -191,6 +191,18 @@ public class UtilSchematicConstruction {
     return tj;
   }
   
+  public static NodeValue instantiateChannelCrossing(Schematic schematic)
+      throws SchematicException {
+    Map<String, Map<String, Value>> portAttrsMap = new HashMap<>();
+    portAttrsMap.put("channelA0", noAttributes);
+    portAttrsMap.put("channelA1", noAttributes);
+    portAttrsMap.put("channelB0", noAttributes);
+    portAttrsMap.put("channelB1", noAttributes);
+    NodeValue crossing = new NodeValue(
+        schematic.getNodeType("channelCrossing"), noAttributes, portAttrsMap);
+    return crossing;
+  }
+  
   /**
    * Instantiate a pressure control point with the given number of ports.
    * The control point's typename will be "pressureControlPointN",
@@ -0,0 +1,158 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.ChannelResistanceStrategy;
+import org.manifold.compiler.back.microfluidics.strategies.pressureflow.SimplePressureFlowStrategy;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestHydraulicAnalysis {
+
+  @Test
+  public void testSeriesChannels() {
+    // (10 Pa) --R=1--> (?) --R=3--> (0 Pa)
+    HydraulicNetwork net = new HydraulicNetwork();
+    int j0 = net.addJunction();
+    int j1 = net.addJunction();
+    int j2 = net.addJunction();
+    int c0 = net.addChannel(j0, j1, 1.0);
+    int c1 = net.addChannel(j1, j2, 3.0);
+    net.fixPressure(j0, 10.0);
+    net.fixPressure(j2, 0.0);
+    HydraulicNetwork.Solution sol = net.solve();
+    assertEquals(7.5, sol.getPressure(j1), 1e-9);
+    assertEquals(2.5, sol.getFlow(c0), 1e-9);
+    assertEquals(2.5, sol.getFlow(c1), 1e-9);
+  }
+
+  @Test
+  public void testLongLadderIsLinear() {
+    // a long chain of equal resistors has a linear pressure profile;
+    // this also forces the conjugate gradient solver to iterate
+    int n = 2000;
+    HydraulicNetwork net = new HydraulicNetwork();
+    int first = net.addJunction();
+    int prev = first;
+    for (int i = 1; i < n; ++i) {
+      int next = net.addJunction();
+      net.addChannel(prev, next, 2.0);
+      prev = next;
+    }
+    net.fixPressure(first, 1.0);
+    net.fixPressure(prev, 0.0);
+    ConjugateGradientSolver solver = new ConjugateGradientSolver();
+    solver.setPreconditioner(ConjugateGradientSolver.Preconditioner.JACOBI);
+    HydraulicNetwork.Solution sol = net.solve(solver);
+    for (int i = 0; i < n; ++i) {
+      assertEquals(1.0 - (double) i / (n - 1), sol.getPressure(i), 1e-6);
+    }
+  }
+
+  @Test
+  public void testStalledCoarseningIsNotFactored() {
+    // junctions that only touch fixed pressures share no coupling, so
+    // aggregation cannot shrink the system at all
+    int n = 5000;
+    HydraulicNetwork net = new HydraulicNetwork();
+    int high = net.addJunction();
+    int low = net.addJunction();
+    net.fixPressure(high, 4.0);
+    net.fixPressure(low, 0.0);
+    for (int i = 0; i < n; ++i) {
+      int mid = net.addJunction();
+      net.addChannel(high, mid, 1.0);
+      net.addChannel(mid, low, 3.0);
+    }
+    CSRMatrix.Builder b = new CSRMatrix.Builder(n);
+    for (int i = 0; i < n; ++i) {
+      b.add(i, i, 2.0);
+    }
+    AggregationMultigrid multigrid = new AggregationMultigrid(b.build());
+    assertEquals(1, multigrid.getLevelCount());
+    assertFalse(multigrid.isCoarsestFactored());
+
+    HydraulicNetwork.Solution sol = net.solve(new ConjugateGradientSolver());
+    for (int i = 0; i < n; ++i) {
+      assertEquals(3.0, sol.getPressure(i + 2), 1e-9);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFloatingNetworkRejected() {
+    HydraulicNetwork net = new HydraulicNetwork();
+    int j0 = net.addJunction();
+    int j1 = net.addJunction();
+    net.addChannel(j0, j1, 1.0);
+    net.solve();
+  }
+
+  @Test
+  public void testEntryExitAgreesWithPressureFlowStrategy()
+      throws SchematicException {
+    // (fluidEntry) ---> (fluidExit)
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, 0.001);
+    sch.addNode("in0", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(sch);
+    sch.addNode("out0", exit);
+    ConnectionValue ch0 = UtilSchematicConstruction.instantiateChannel(
+        entry.getPort("output"), exit.getPort("input"));
+    sch.addConnection("ch0", ch0);
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+
+    HydraulicAnalysis analysis = new HydraulicAnalysis(sch, typeTable);
+    analysis.addBinding(SymbolNameGenerator.getSym_PortPressure(
+        sch, entry.getPort("output")), 2000.0);
+    analysis.addBinding(SymbolNameGenerator.getSym_PortPressure(
+        sch, exit.getPort("input")), 500.0);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelViscosity(
+        sch, ch0), 0.001);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelLength(
+        sch, ch0), 0.01);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelWidth(
+        sch, ch0), 0.0001);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelHeight(
+        sch, ch0), 0.00005);
+    Map<Symbol, Double> results = analysis.analyze();
+
+    double r = ChannelResistanceStrategy.calculateRectangularChannelResistance(
+        0.001, 0.01, 0.0001, 0.00005);
+    double q = results.get(
+        SymbolNameGenerator.getsym_ChannelFlowRate(sch, ch0));
+    assertTrue(q > 0.0);
+    assertEquals(1500.0 / r, q, 1e-12 * Math.abs(q) + 1e-20);
+
+    // the analysed values must satisfy the emitted pressure/flow formula
+    SimplePressureFlowStrategy strat = new SimplePressureFlowStrategy(false);
+    List<SExpression> exprs = strat.translate(
+        sch, ProcessParameters.loadTestData(), typeTable);
+    AssertionChecker check = new AssertionChecker();
+    check.setDelta(1e-6);
+    for (Map.Entry<Symbol, Double> entryBinding : results.entrySet()) {
+      check.addBinding(entryBinding.getKey(), entryBinding.getValue());
+    }
+    if (!check.verify(exprs)) {
+      fail("assertion failed: " + check.getLastExpression().toString());
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestNetworkReduction {
+
+  private static void assertSameSolution(HydraulicNetwork net) {
+    HydraulicNetwork.Solution direct = net.solve();
+    HydraulicNetwork.Solution reduced = new NetworkReduction(net).solve(
+        new ConjugateGradientSolver());
+    for (int j = 0; j < net.getJunctionCount(); ++j) {
+      assertEquals(direct.getPressure(j), reduced.getPressure(j), 1e-9);
+    }
+    for (int c = 0; c < net.getChannelCount(); ++c) {
+      assertEquals(direct.getFlow(c), reduced.getFlow(c), 1e-9);
+    }
+  }
+
+  @Test
+  public void testSeriesParallelFoldsToOneElement() {
+    // (10 Pa) --1-- (a) --2-- (b) ==(4, 4)== (0 Pa)
+    //                            \--1--(c)--1--/
+    // where the channel of 2 runs from b to a
+    HydraulicNetwork net = new HydraulicNetwork();
+    int in = net.addJunction();
+    int a = net.addJunction();
+    int b = net.addJunction();
+    int c = net.addJunction();
+    int out = net.addJunction();
+    net.addChannel(in, a, 1.0);
+    // against the direction of flow
+    net.addChannel(b, a, 2.0);
+    net.addChannel(b, out, 4.0);
+    net.addChannel(out, b, 4.0);
+    net.addChannel(b, c, 1.0);
+    net.addChannel(c, out, 1.0);
+    net.fixPressure(in, 10.0);
+    net.fixPressure(out, 0.0);
+
+    NetworkReduction reduction = new NetworkReduction(net);
+    HydraulicNetwork reduced = reduction.reduce();
+    assertEquals(2, reduced.getJunctionCount());
+    assertEquals(1, reduced.getChannelCount());
+    // 1 + 2 + (4 || 4 || 2) = 4
+    assertEquals(4.0, reduced.getChannelResistance(0), 1e-12);
+    assertEquals(-1, reduction.getReducedJunction(a));
+
+    HydraulicNetwork.Solution sol = reduction.solve(
+        new ConjugateGradientSolver());
+    assertEquals(7.5, sol.getPressure(a), 1e-9);
+    assertEquals(2.5, sol.getPressure(b), 1e-9);
+    assertEquals(1.25, sol.getPressure(c), 1e-9);
+    assertEquals(-2.5, sol.getFlow(1), 1e-9);
+    assertSameSolution(net);
+  }
+
+  @Test
+  public void testBridgeIsLeftAlone() {
+    // a Wheatstone bridge has no series or parallel part, but the
+    // chains leading to it do
+    HydraulicNetwork net = new HydraulicNetwork();
+    int in = net.addJunction();
+    int mid = net.addJunction();
+    int top = net.addJunction();
+    int left = net.addJunction();
+    int right = net.addJunction();
+    int bottom = net.addJunction();
+    net.addChannel(in, mid, 1.0);
+    net.addChannel(mid, top, 1.0);
+    net.addChannel(top, left, 1.0);
+    net.addChannel(top, right, 2.0);
+    net.addChannel(left, right, 3.0);
+    net.addChannel(left, bottom, 4.0);
+    net.addChannel(right, bottom, 5.0);
+    net.fixPressure(in, 1.0);
+    net.fixPressure(bottom, 0.0);
+    NetworkReduction reduction = new NetworkReduction(net);
+    HydraulicNetwork reduced = reduction.reduce();
+    assertEquals(6, reduced.getChannelCount());
+    assertEquals(-1, reduction.getReducedJunction(mid));
+    assertSameSolution(net);
+  }
+
+  @Test
+  public void testKeptJunctionsStay() {
+    int n = 200;
+    HydraulicNetwork net = new HydraulicNetwork();
+    int first = net.addJunction();
+    int prev = first;
+    for (int i = 1; i < n; ++i) {
+      int next = net.addJunction();
+      net.addChannel(prev, next, 2.0);
+      prev = next;
+    }
+    net.fixPressure(first, 1.0);
+    net.fixPressure(prev, 0.0);
+    NetworkReduction reduction = new NetworkReduction(net);
+    assertEquals(1, reduction.reduce().getChannelCount());
+
+    reduction = new NetworkReduction(net);
+    reduction.keep(n / 2);
+    assertEquals(2, reduction.reduce().getChannelCount());
+    assertTrue(reduction.getReducedJunction(n / 2) >= 0);
+    assertSameSolution(net);
+  }
+
+}
@@ -0,0 +1,154 @@
+package org.manifold.compiler.back.microfluidics.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestNewtonNetworkSolver {
+
+  // (100 Pa) --C--> (J) <--D-- (80 Pa), (J) --O--> (0 Pa)
+  private HydraulicNetwork tJunction() {
+    HydraulicNetwork net = new HydraulicNetwork();
+    int inC = net.addJunction();
+    int inD = net.addJunction();
+    int j = net.addJunction();
+    int out = net.addJunction();
+    net.addChannel(inC, j, 1.0);
+    net.addChannel(inD, j, 2.0);
+    net.addChannel(j, out, 1.0);
+    net.fixPressure(inC, 100.0);
+    net.fixPressure(inD, 80.0);
+    net.fixPressure(out, 0.0);
+    return net;
+  }
+
+  @Test
+  public void testNoLoadsIsLinear() {
+    HydraulicNetwork net = tJunction();
+    HydraulicNetwork.Solution linear = net.solve();
+    NewtonNetworkSolver newton = new NewtonNetworkSolver(net);
+    HydraulicNetwork.Solution sol = newton.solve();
+    assertTrue(newton.hasConverged());
+    assertEquals(0, newton.getIterations());
+    for (int c = 0; c < net.getChannelCount(); ++c) {
+      assertEquals(linear.getFlow(c), sol.getFlow(c), 1e-9);
+    }
+  }
+
+  @Test
+  public void testLoadedOutputIsSelfConsistent() {
+    HydraulicNetwork net = tJunction();
+    NewtonNetworkSolver.DropletLoad load = new NewtonNetworkSolver.DropletLoad(
+        2, 1, 1.0, 0, 1.0, 1.0, 0.5, 2.0, 0.5);
+    NewtonNetworkSolver newton = new NewtonNetworkSolver(net);
+    newton.addDropletLoad(load);
+    HydraulicNetwork.Solution sol = newton.solve();
+    assertTrue(newton.hasConverged());
+    assertTrue(newton.getIterations() > 0);
+
+    double qC = sol.getFlow(0);
+    double qD = sol.getFlow(1);
+    double qO = sol.getFlow(2);
+    // conservation of flow at the junction
+    assertEquals(qC + qD, qO, 1e-9);
+    // the output resistance includes the droplets implied by qD/qC
+    double v = 1.0 + 0.5 * qD / qC;
+    double r = 1.0 + 0.5 * 2.0 / v;
+    assertEquals(r, newton.getEffectiveResistance(2), 1e-9);
+    assertEquals(sol.getPressure(2), qO * r, 1e-9);
+    // droplets can only slow the output down
+    assertTrue(qO < net.solve().getFlow(2));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCyclicLoadsRejected() {
+    HydraulicNetwork net = tJunction();
+    NewtonNetworkSolver newton = new NewtonNetworkSolver(net);
+    newton.addDropletLoad(new NewtonNetworkSolver.DropletLoad(
+        0, 1, 1.0, 2, 1.0, 1.0, 0.5, 2.0, 0.5));
+    newton.addDropletLoad(new NewtonNetworkSolver.DropletLoad(
+        2, 1, 1.0, 0, 1.0, 1.0, 0.5, 2.0, 0.5));
+    newton.solve();
+  }
+
+  private void bindChannel(DropletAnalysis analysis, Schematic sch,
+      ConnectionValue ch, double width) {
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelViscosity(
+        sch, ch), 0.001);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelLength(
+        sch, ch), 0.01);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelWidth(
+        sch, ch), width);
+    analysis.addBinding(SymbolNameGenerator.getsym_ChannelHeight(
+        sch, ch), 0.00005);
+  }
+
+  @Test
+  public void testDropletAnalysisOnTJunction() throws SchematicException {
+    // (continuous) ---> (T) ---> (exit)
+    //                    ^
+    //    (dispersed) ----+
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue entryC = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, 0.001);
+    sch.addNode("inC", entryC);
+    NodeValue entryD = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, 0.001);
+    sch.addNode("inD", entryD);
+    NodeValue tj = UtilSchematicConstruction.instantiateTJunction(sch);
+    sch.addNode("tj", tj);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(sch);
+    sch.addNode("out", exit);
+    ConnectionValue chC = UtilSchematicConstruction.instantiateChannel(
+        entryC.getPort("output"), tj.getPort("continuous"));
+    sch.addConnection("chC", chC);
+    ConnectionValue chD = UtilSchematicConstruction.instantiateChannel(
+        entryD.getPort("output"), tj.getPort("dispersed"));
+    sch.addConnection("chD", chD);
+    ConnectionValue chO = UtilSchematicConstruction.instantiateChannel(
+        tj.getPort("output"), exit.getPort("input"));
+    sch.addConnection("chO", chO);
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+
+    DropletAnalysis analysis = new DropletAnalysis(sch, typeTable);
+    analysis.addBinding(SymbolNameGenerator.getSym_PortPressure(
+        sch, entryC.getPort("output")), 3000.0);
+    analysis.addBinding(SymbolNameGenerator.getSym_PortPressure(
+        sch, entryD.getPort("output")), 3000.0);
+    analysis.addBinding(SymbolNameGenerator.getSym_PortPressure(
+        sch, exit.getPort("input")), 0.0);
+    bindChannel(analysis, sch, chC, 0.0001);
+    bindChannel(analysis, sch, chD, 0.00008);
+    bindChannel(analysis, sch, chO, 0.0001);
+    analysis.addBinding(SymbolNameGenerator.getsym_TJunctionEpsilon(
+        sch, tj), 0.0);
+    Map<Symbol, Double> results = analysis.analyze();
+
+    double q = results.get(
+        SymbolNameGenerator.getsym_ChannelFlowRate(sch, chO));
+    double qWorstCase = results.get(
+        SymbolNameGenerator.getsym_ChannelFlowRate_WorstCase(sch, chO));
+    assertTrue(qWorstCase > 0.0);
+    assertTrue(qWorstCase < q);
+    double v = results.get(
+        SymbolNameGenerator.getsym_ChannelDropletVolume(sch, chO));
+    double vWorstCase = results.get(
+        SymbolNameGenerator.getsym_ChannelDropletVolume_WorstCase(sch, chO));
+    assertTrue(v > 0.0);
+    assertEquals(vWorstCase / v - 1.0,
+        analysis.getVolumeDrift().get(tj), 1e-12);
+  }
+
+}
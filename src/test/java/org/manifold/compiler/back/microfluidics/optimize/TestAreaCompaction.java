@@ -0,0 +1,163 @@
+package org.manifold.compiler.back.microfluidics.optimize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.ParenList;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.PlacementTranslationStrategySet;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestAreaCompaction {
+
+  // Only reads constant bounds on symbols. A symbol with a minimum must
+  // be at least that; every symbol is reported at the largest value the
+  // query allows, or 1 if it is unbounded, as a solver with no interest
+  // in the area might.
+  private static class BoxSolver implements FormulaSolver {
+    private final Map<Symbol, Double> minimum = new HashMap<>();
+    private int queries = 0;
+    // every constant bound it was given, as written
+    private final List<String> bounds = new ArrayList<>();
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      ++queries;
+      Map<Symbol, Double> lower = new HashMap<>(minimum);
+      Map<Symbol, Double> upper = new HashMap<>();
+      for (SExpression expr : formula) {
+        List<SExpression> terms = ((ParenList) expr).getExprs();
+        if (!terms.get(0).equals(new Symbol("assert"))) {
+          continue;
+        }
+        List<SExpression> cmp = ((ParenList) terms.get(1)).getExprs();
+        if (!(cmp.get(1) instanceof Symbol)
+            || !(cmp.get(2) instanceof Decimal)) {
+          continue;
+        }
+        Symbol sym = (Symbol) cmp.get(1);
+        bounds.add(cmp.get(2).toString());
+        double v = Double.parseDouble(cmp.get(2).toString());
+        if (cmp.get(0).equals(new Symbol(">="))
+            || cmp.get(0).equals(new Symbol(">"))) {
+          Double old = lower.get(sym);
+          lower.put(sym, old == null ? v : Math.max(old, v));
+        } else if (cmp.get(0).equals(new Symbol("<="))) {
+          Double old = upper.get(sym);
+          upper.put(sym, old == null ? v : Math.min(old, v));
+        }
+      }
+      DRealSolver.Result model = new DRealSolver.Result(true);
+      for (Map.Entry<Symbol, Double> entry : lower.entrySet()) {
+        Double top = upper.get(entry.getKey());
+        if (top != null && top < entry.getValue()) {
+          return new DRealSolver.Result(false);
+        }
+        double value = top == null ? 1.0 : top;
+        model.addRange(entry.getKey(),
+            new DRealSolver.RealRange(value, value));
+      }
+      return model;
+    }
+  }
+
+  @Test
+  public void testEachSideShrinksToItsLimit() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue n0 = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 1);
+    sch.addNode("n0", n0);
+    NodeValue n1 = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 1);
+    sch.addNode("n1", n1);
+
+    PlacementTranslationStrategySet placeSet =
+        new PlacementTranslationStrategySet();
+    placeSet.setAssumeInfiniteArea(true);
+    List<SExpression> formula = new ArrayList<>(placeSet.translate(sch,
+        ProcessParameters.loadTestData(),
+        MicrofluidicsBackend.constructTypeTable(sch)));
+    // the unbounded formula bounds nodes from below only
+    for (SExpression expr : formula) {
+      assertFalse(expr.toString().contains("<"));
+    }
+
+    BoxSolver solver = new BoxSolver();
+    solver.minimum.put(SymbolNameGenerator.getsym_NodeX(sch, n0), 0.3);
+    solver.minimum.put(SymbolNameGenerator.getsym_NodeY(sch, n1), 0.2);
+    AreaCompaction compaction = new AreaCompaction(solver, sch);
+    compaction.setMaximumSteps(200);
+    AreaCompaction.Compaction result = compaction.compact(formula);
+
+    assertTrue(result.isFeasible());
+    assertEquals(solver.queries, result.getSteps());
+    // within the last step that failed of the limits
+    assertTrue(result.getWidth() >= 0.3 && result.getWidth() < 0.3 / 0.98);
+    assertTrue(result.getHeight() >= 0.2
+        && result.getHeight() < 0.2 / 0.98);
+    assertEquals(result.getWidth() * result.getHeight(), result.getArea(),
+        1e-12);
+    assertTrue(result.getModel().getRange(
+        SymbolNameGenerator.getsym_NodeX(sch, n0)).upperBound
+        <= result.getWidth());
+  }
+
+  @Test
+  public void testChipScaleBoundsArePlain() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue n0 = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 1);
+    sch.addNode("n0", n0);
+    PlacementTranslationStrategySet placeSet =
+        new PlacementTranslationStrategySet();
+    placeSet.setAssumeInfiniteArea(true);
+    List<SExpression> formula = new ArrayList<>(placeSet.translate(sch,
+        ProcessParameters.loadTestData(),
+        MicrofluidicsBackend.constructTypeTable(sch)));
+
+    BoxSolver solver = new BoxSolver();
+    solver.minimum.put(SymbolNameGenerator.getsym_NodeX(sch, n0), 3e-4);
+    solver.minimum.put(SymbolNameGenerator.getsym_NodeY(sch, n0), 2e-4);
+    AreaCompaction compaction = new AreaCompaction(solver, sch);
+    compaction.setMaximumSteps(200);
+    assertTrue(compaction.compact(formula).isFeasible());
+    assertFalse(solver.bounds.isEmpty());
+    for (String bound : solver.bounds) {
+      assertFalse(bound, bound.contains("E"));
+      assertFalse(bound, bound.startsWith("-"));
+    }
+  }
+
+  @Test
+  public void testInfeasibleWithoutBound() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    FormulaSolver unsat = new FormulaSolver() {
+      @Override
+      public DRealSolver.Result solve(List<SExpression> formula) {
+        return new DRealSolver.Result(false);
+      }
+    };
+    AreaCompaction.Compaction result = new AreaCompaction(unsat, sch)
+        .compact(new ArrayList<SExpression>());
+    assertFalse(result.isFeasible());
+    assertEquals(1, result.getSteps());
+    assertEquals(null, result.getModel());
+  }
+
+}
@@ -0,0 +1,170 @@
+package org.manifold.compiler.back.microfluidics.optimize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.ParenList;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestBisectionOptimizer {
+
+  private static final Symbol OBJECTIVE =
+      SymbolNameGenerator.getsym_Objective();
+
+  // Any objective value of at least `minimum` is feasible. A sat answer
+  // reports the objective at the largest value the query allows, as a
+  // solver with no interest in the objective might.
+  private static class ThresholdSolver implements FormulaSolver {
+    private final double minimum;
+    private final List<Double> lowerBounds = new ArrayList<>();
+
+    ThresholdSolver(double minimum) {
+      this.minimum = minimum;
+    }
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      double lower = Double.NEGATIVE_INFINITY;
+      double upper = Double.POSITIVE_INFINITY;
+      for (SExpression expr : formula) {
+        if (!(expr instanceof ParenList)) {
+          continue;
+        }
+        List<SExpression> terms = ((ParenList) expr).getExprs();
+        if (!terms.get(0).equals(new Symbol("assert"))) {
+          continue;
+        }
+        List<SExpression> cmp = ((ParenList) terms.get(1)).getExprs();
+        if (!cmp.get(1).equals(OBJECTIVE)
+            || !(cmp.get(2) instanceof Decimal)) {
+          continue;
+        }
+        double v = Double.parseDouble(cmp.get(2).toString());
+        if (cmp.get(0).equals(new Symbol(">="))) {
+          lower = Math.max(lower, v);
+        } else if (cmp.get(0).equals(new Symbol("<="))) {
+          upper = Math.min(upper, v);
+        }
+      }
+      lowerBounds.add(lower);
+      if (upper < minimum) {
+        return new DRealSolver.Result(false);
+      }
+      double value = Double.isInfinite(upper) ? 2 * minimum + 1 : upper;
+      DRealSolver.Result model = new DRealSolver.Result(true);
+      model.addRange(OBJECTIVE, new DRealSolver.RealRange(value, value));
+      return model;
+    }
+  }
+
+  private Objective plainObjective() {
+    List<SExpression> definition = new ArrayList<>();
+    definition.add(QFNRA.declareRealVariable(OBJECTIVE));
+    return new Objective("test", OBJECTIVE, definition);
+  }
+
+  @Test
+  public void testBisectsToTolerance() throws Exception {
+    ThresholdSolver solver = new ThresholdSolver(0.3);
+    BisectionOptimizer optimizer = new BisectionOptimizer(solver);
+    optimizer.setTolerance(1e-4);
+    BisectionOptimizer.Optimum optimum = optimizer.minimize(
+        new ArrayList<SExpression>(), plainObjective());
+    assertTrue(optimum.isFeasible());
+    assertTrue(optimum.getLowerBound() <= 0.3);
+    assertTrue(optimum.getUpperBound() >= 0.3);
+    assertTrue(optimum.getUpperBound() - optimum.getLowerBound() <= 1e-4);
+    assertEquals(optimum.getUpperBound(),
+        optimum.getModel().getRange(OBJECTIVE).upperBound, 0.0);
+    // every query carries the lower bound learned so far
+    List<Double> bounds = solver.lowerBounds;
+    assertEquals(optimum.getSteps(), bounds.size());
+    for (int i = 1; i < bounds.size(); ++i) {
+      assertTrue(bounds.get(i) >= bounds.get(i - 1));
+    }
+    assertTrue(bounds.get(bounds.size() - 1) > 0.29);
+  }
+
+  @Test
+  public void testSmallBoundsHaveNoExponent() throws Exception {
+    final List<String> queries = new ArrayList<>();
+    final ThresholdSolver threshold = new ThresholdSolver(0.0003);
+    FormulaSolver solver = new FormulaSolver() {
+      @Override
+      public DRealSolver.Result solve(List<SExpression> formula) {
+        queries.add(formula.toString());
+        return threshold.solve(formula);
+      }
+    };
+    BisectionOptimizer optimizer = new BisectionOptimizer(solver);
+    optimizer.setTolerance(1e-6);
+    BisectionOptimizer.Optimum optimum = optimizer.minimize(
+        new ArrayList<SExpression>(), plainObjective());
+    assertTrue(optimum.isFeasible());
+    assertTrue(optimum.getUpperBound() < 0.001);
+    for (String query : queries) {
+      assertFalse(query, query.contains("E-"));
+    }
+  }
+
+  @Test
+  public void testInfeasibleFormula() throws Exception {
+    FormulaSolver unsat = new FormulaSolver() {
+      @Override
+      public DRealSolver.Result solve(List<SExpression> formula) {
+        return new DRealSolver.Result(false);
+      }
+    };
+    BisectionOptimizer.Optimum optimum = new BisectionOptimizer(unsat)
+        .minimize(new ArrayList<SExpression>(), plainObjective());
+    assertFalse(optimum.isFeasible());
+    assertEquals(1, optimum.getSteps());
+  }
+
+  @Test
+  public void testObjectiveInsertedBeforeCheckSat() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, 0.001);
+    sch.addNode("in0", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(sch);
+    sch.addNode("out0", exit);
+    ConnectionValue ch0 = UtilSchematicConstruction.instantiateChannel(
+        entry.getPort("output"), exit.getPort("input"));
+    sch.addConnection("ch0", ch0);
+
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    formula.add(new ParenList(new SExpression[] {new Symbol("check-sat")}));
+    Objective area = Objective.chipArea(sch);
+    List<SExpression> query = QFNRA.insertBeforeCheckSat(formula,
+        area.getDefinition());
+    assertEquals(new Symbol("check-sat"),
+        ((ParenList) query.get(query.size() - 1)).getExprs().get(0));
+    String text = query.toString();
+    assertTrue(text.contains("( <= in0_pos_x chip_width )"));
+    assertTrue(text.contains("( <= out0_pos_y chip_height )"));
+
+    Objective inlet = Objective.maximumInletPressure(sch,
+        MicrofluidicsBackend.constructTypeTable(sch));
+    assertTrue(inlet.getDefinition().toString().contains(
+        "( >= objective in0_output_pressure )"));
+  }
+
+}
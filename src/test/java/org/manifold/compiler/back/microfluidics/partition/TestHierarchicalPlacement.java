@@ -0,0 +1,187 @@
+package org.manifold.compiler.back.microfluidics.partition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.ParenList;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.sweep.ParameterSweep;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestHierarchicalPlacement {
+
+  // Answers sat, with every declared variable at the given value, and
+  // remembers the variables and the text of every formula it was asked
+  // to solve.
+  private static class RecordingSolverFactory
+      implements ParameterSweep.SolverFactory {
+    private final double value;
+    final List<Set<Symbol>> queries =
+        Collections.synchronizedList(new ArrayList<Set<Symbol>>());
+    final List<String> texts =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    RecordingSolverFactory(double value) {
+      this.value = value;
+    }
+
+    @Override
+    public FormulaSolver createSolver() {
+      return new FormulaSolver() {
+        @Override
+        public DRealSolver.Result solve(List<SExpression> formula) {
+          Set<Symbol> declared = new HashSet<>();
+          DRealSolver.Result result = new DRealSolver.Result(true);
+          for (SExpression expr : formula) {
+            List<SExpression> terms = ((ParenList) expr).getExprs();
+            if (terms.get(0).equals(new Symbol("declare-fun"))) {
+              Symbol sym = (Symbol) terms.get(1);
+              declared.add(sym);
+              result.addRange(sym, new DRealSolver.RealRange(value, value));
+            }
+          }
+          queries.add(declared);
+          texts.add(formula.toString());
+          return result;
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testGridPartitionIsBalancedWithSmallCut() {
+    // a 20 x 20 grid graph
+    List<int[]> edges = new ArrayList<>();
+    for (int i = 0; i < 20; ++i) {
+      for (int j = 0; j < 20; ++j) {
+        if (i + 1 < 20) {
+          edges.add(new int[] {20 * i + j, 20 * (i + 1) + j});
+        }
+        if (j + 1 < 20) {
+          edges.add(new int[] {20 * i + j, 20 * i + j + 1});
+        }
+      }
+    }
+    GraphPartitioner.Partition partition = new GraphPartitioner().partition(
+        400, edges, 4, new double[] {0.0, 0.0, 1.0, 1.0});
+    int[] sizes = new int[4];
+    for (int v = 0; v < 400; ++v) {
+      sizes[partition.getPart(v)] += 1;
+    }
+    double area = 0.0;
+    for (int p = 0; p < 4; ++p) {
+      assertTrue(Math.abs(sizes[p] - 100) <= 5);
+      double[] r = partition.getRegion(p);
+      area += (r[2] - r[0]) * (r[3] - r[1]);
+    }
+    assertEquals(1.0, area, 1e-12);
+    // four quadrants cut 40 edges; a random split cuts about 570
+    assertTrue(partition.getCutEdges() <= 60);
+  }
+
+  // (n0) --- (n1) --- ... --- (n7)
+  private Schematic chain(List<NodeValue> nodes,
+      List<ConnectionValue> channels) throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    for (int i = 0; i < 8; ++i) {
+      NodeValue n = UtilSchematicConstruction.instantiatePressureControlPoint(
+          sch, 2);
+      sch.addNode("n" + i, n);
+      nodes.add(n);
+      if (i > 0) {
+        ConnectionValue ch = UtilSchematicConstruction.instantiateChannel(
+            nodes.get(i - 1).getPort("channel1"), n.getPort("channel0"));
+        sch.addConnection("ch" + i, ch);
+        channels.add(ch);
+      }
+    }
+    return sch;
+  }
+
+  @Test
+  public void testClustersSolvedSeparately() throws Exception {
+    List<NodeValue> nodes = new ArrayList<>();
+    List<ConnectionValue> channels = new ArrayList<>();
+    Schematic sch = chain(nodes, channels);
+    RecordingSolverFactory factory = new RecordingSolverFactory(0.01);
+    HierarchicalPlacement hierarchy = new HierarchicalPlacement(sch,
+        ProcessParameters.loadTestData());
+    hierarchy.setClusterSize(4);
+    hierarchy.setThreads(1);
+    hierarchy.useSolverFactory(factory);
+    DRealSolver.Result result = hierarchy.place();
+    assertTrue(result.isSatisfiable());
+
+    GraphPartitioner.Partition partition = hierarchy.getLastPartition();
+    // the partition numbers nodes in the schematic's order
+    nodes = new ArrayList<>(sch.getNodes().values());
+    assertEquals(2, partition.getParts());
+    assertEquals(1, partition.getCutEdges());
+    // two clusters and the channel between them
+    assertEquals(3, factory.queries.size());
+    ConnectionValue cut = null;
+    for (ConnectionValue ch : channels) {
+      if (partition.getPart(nodes.indexOf(ch.getFrom().getParent()))
+          != partition.getPart(nodes.indexOf(ch.getTo().getParent()))) {
+        cut = ch;
+      }
+    }
+    Symbol cutLength = SymbolNameGenerator.getsym_ChannelLength(sch, cut);
+    assertFalse(factory.queries.get(0).contains(cutLength));
+    assertFalse(factory.queries.get(1).contains(cutLength));
+    assertTrue(factory.queries.get(2).contains(cutLength));
+    // each cluster formula only places its own nodes
+    for (int p = 0; p < 2; ++p) {
+      for (int i = 0; i < 8; ++i) {
+        assertEquals(partition.getPart(i) == p, factory.queries.get(p)
+            .contains(SymbolNameGenerator.getsym_NodeX(sch, nodes.get(i))));
+      }
+    }
+    assertTrue(hierarchy.getLastFinalAssertions() > 0);
+    assertTrue(result.getSymbols().contains(cutLength));
+  }
+
+  @Test
+  public void testChipScaleBoundsArePlain() throws Exception {
+    Schematic sch = chain(new ArrayList<NodeValue>(),
+        new ArrayList<ConnectionValue>());
+    // models of a 1 mm chip, whose values Double.toString writes with an
+    // exponent
+    RecordingSolverFactory factory = new RecordingSolverFactory(1e-4);
+    HierarchicalPlacement hierarchy = new HierarchicalPlacement(sch,
+        ProcessParameters.loadTestData());
+    hierarchy.setClusterSize(4);
+    hierarchy.setThreads(1);
+    hierarchy.useSolverFactory(factory);
+    assertTrue(hierarchy.place().isSatisfiable());
+    assertEquals(3, factory.texts.size());
+    // the region bounds and the ranges held in the last formula
+    Matcher bound = Pattern.compile("_pos_[xy] ([^ )]+) \\)").matcher(
+        factory.texts.get(2));
+    int bounds = 0;
+    while (bound.find()) {
+      assertFalse(bound.group(1), bound.group(1).contains("E"));
+      ++bounds;
+    }
+    assertTrue(bounds > 0);
+  }
+
+}
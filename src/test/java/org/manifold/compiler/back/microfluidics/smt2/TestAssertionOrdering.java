@@ -0,0 +1,171 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestAssertionOrdering {
+
+  private static final Symbol PI = SymbolNameGenerator.getsym_constant_pi();
+  private static final Symbol X = new Symbol("x");
+  private static final Symbol Y = new Symbol("y");
+  private static final Symbol Z = new Symbol("z");
+
+  private static List<SExpression> declare(Symbol... syms) {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    for (Symbol sym : syms) {
+      formula.add(QFNRA.declareRealVariable(sym));
+    }
+    return formula;
+  }
+
+  // the assertions of the ordered formula, as indices into the original
+  private static List<Integer> permutation(List<SExpression> original,
+      List<SExpression> ordered) {
+    List<String> text = new ArrayList<>();
+    for (SExpression expr : original) {
+      text.add(expr.toString());
+    }
+    List<Integer> indices = new ArrayList<>();
+    for (SExpression expr : ordered) {
+      if (expr.toString().startsWith("( assert")) {
+        indices.add(text.indexOf(expr.toString()));
+      }
+    }
+    return indices;
+  }
+
+  private static String indices(List<SExpression> formula, int... at) {
+    List<Integer> expected = new ArrayList<>();
+    for (int i : at) {
+      expected.add(formula.size() - 5 + i);
+    }
+    return expected.toString();
+  }
+
+  @Test
+  public void testClusterKeepsSharedVariablesTogether() {
+    List<SExpression> formula = declare(PI, X, Y, Z);
+    formula.add(QFNRA.assertGreater(X, new Decimal(0.0)));
+    formula.add(QFNRA.assertGreater(Y, new Decimal(0.0)));
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+    // pi does not connect z to x
+    formula.add(QFNRA.assertEqual(Z, QFNRA.multiply(PI, Y)));
+    formula.add(QFNRA.assertLessThan(X, new Decimal(1.0)));
+    List<SExpression> ordered = new AssertionOrdering(
+        AssertionOrdering.CLUSTER).order(formula);
+    assertEquals(formula.size(), ordered.size());
+    assertEquals(indices(formula, 0, 4, 1, 3, 2),
+        permutation(formula, ordered).toString());
+    // the logic stays first, and x is used first
+    assertEquals(formula.get(0).toString(), ordered.get(0).toString());
+    assertEquals(QFNRA.declareRealVariable(X).toString(),
+        ordered.get(1).toString());
+  }
+
+  @Test
+  public void testTightestFirst() {
+    List<SExpression> formula = declare(PI, X, Y, Z);
+    formula.add(QFNRA.assertThat(QFNRA.or(
+        QFNRA.lessThan(X, new Decimal(0.0)),
+        QFNRA.greater(X, new Decimal(1.0)))));
+    formula.add(QFNRA.assertLessThan(X, Y));
+    formula.add(QFNRA.assertEqual(Z, QFNRA.add(X, Y)));
+    formula.add(QFNRA.assertGreater(Y, new Decimal(0.0)));
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+    List<SExpression> ordered = new AssertionOrdering(
+        AssertionOrdering.TIGHTNESS).order(formula);
+    assertEquals(indices(formula, 4, 3, 2, 1, 0),
+        permutation(formula, ordered).toString());
+  }
+
+  @Test
+  public void testSchematicOrderFollowsChain() throws Exception {
+    // a, ch0, b, ch1, c
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue a = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 1);
+    NodeValue b = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 2);
+    NodeValue c = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 1);
+    sch.addNode("a", a);
+    sch.addNode("b", b);
+    sch.addNode("c", c);
+    sch.addConnection("ch0", UtilSchematicConstruction.instantiateChannel(
+        a.getPort("channel0"), b.getPort("channel0")));
+    sch.addConnection("ch1", UtilSchematicConstruction.instantiateChannel(
+        b.getPort("channel1"), c.getPort("channel0")));
+
+    Symbol ax = new Symbol("a_pos_x");
+    Symbol bx = new Symbol("b_pos_x");
+    Symbol cx = new Symbol("c_pos_x");
+    Symbol length = new Symbol("ch0_length");
+    List<SExpression> formula = declare(PI, ax, bx, cx, length);
+    formula.add(QFNRA.assertGreater(cx, new Decimal(0.0)));
+    formula.add(QFNRA.assertEqual(length, QFNRA.subtract(bx, ax)));
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+    formula.add(QFNRA.assertGreater(ax, new Decimal(0.0)));
+    formula.add(QFNRA.assertLessThan(bx, cx));
+    AssertionOrdering ordering = new AssertionOrdering(
+        AssertionOrdering.SCHEMATIC);
+    ordering.useSchematic(sch);
+    List<SExpression> ordered = ordering.order(formula);
+    assertEquals(indices(formula, 2, 3, 1, 0, 4),
+        permutation(formula, ordered).toString());
+  }
+
+  @Test
+  public void testDefaultLeavesFormulaAlone() {
+    List<SExpression> formula = declare(X, Y);
+    formula.add(QFNRA.assertLessThan(Y, new Decimal(1.0)));
+    formula.add(QFNRA.assertLessThan(X, Y));
+    assertEquals(formula.toString(), new AssertionOrdering(
+        AssertionOrdering.DEFAULT).order(formula).toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownOrderingRejected() {
+    new AssertionOrdering("random");
+  }
+
+  @Test
+  public void testBenchmarkTimesEveryOrdering() throws Exception {
+    final List<String> seen = new ArrayList<>();
+    FormulaSolver solver = new FormulaSolver() {
+      @Override
+      public DRealSolver.Result solve(List<SExpression> formula) {
+        seen.add(formula.toString());
+        return new DRealSolver.Result(true);
+      }
+    };
+    List<SExpression> formula = declare(X, Y);
+    formula.add(QFNRA.assertLessThan(X, Y));
+    formula.add(QFNRA.assertGreater(Y, new Decimal(0.0)));
+    OrderingBenchmark benchmark = new OrderingBenchmark(solver);
+    benchmark.setRepetitions(2);
+    List<OrderingBenchmark.Timing> timings = benchmark.run(formula,
+        UtilSchematicConstruction.instantiateSchematic("test"));
+    assertEquals(AssertionOrdering.NAMES.length, timings.size());
+    assertEquals(2 * AssertionOrdering.NAMES.length, seen.size());
+    // tightness states the bound on y first
+    assertTrue(seen.get(4), seen.get(4).indexOf("( > y")
+        < seen.get(4).indexOf("( < x"));
+
+    StringWriter table = new StringWriter();
+    OrderingBenchmark.writeTable(timings, table);
+    String[] lines = table.toString().split("\n");
+    assertEquals(AssertionOrdering.NAMES.length + 1, lines.length);
+    assertTrue(lines[1], lines[1].startsWith("default,sat,"));
+  }
+
+}
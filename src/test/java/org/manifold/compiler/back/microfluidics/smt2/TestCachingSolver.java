@@ -0,0 +1,199 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestCachingSolver {
+
+  // x = 2 * y, y > 1, declared and asserted in the given order
+  private List<SExpression> formula(String x, String y, boolean swap) {
+    Symbol sx = new Symbol(x);
+    Symbol sy = new Symbol(y);
+    SExpression declX = QFNRA.declareRealVariable(sx);
+    SExpression declY = QFNRA.declareRealVariable(sy);
+    SExpression a1 = QFNRA.assertEqual(sx, QFNRA.multiply(new Numeral(2), sy));
+    SExpression a2 = QFNRA.assertGreater(sy, new Numeral(1));
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    if (swap) {
+      formula.add(declY);
+      formula.add(declX);
+      formula.add(a2);
+      formula.add(a1);
+    } else {
+      formula.add(declX);
+      formula.add(declY);
+      formula.add(a1);
+      formula.add(a2);
+    }
+    return formula;
+  }
+
+  private static class CountingSolver implements FormulaSolver {
+    int calls = 0;
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      ++calls;
+      // names the range after whatever the second declared variable is
+      Symbol x = (Symbol) ((ParenList) formula.get(1)).getExprs().get(1);
+      DRealSolver.Result result = new DRealSolver.Result(true);
+      result.addRange(x, new DRealSolver.RealRange(4.0, 4.0));
+      return result;
+    }
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void testFingerprintIgnoresNamesAndOrder() {
+    FormulaFingerprint f1 = new FormulaFingerprint(formula("x", "y", false));
+    FormulaFingerprint f2 = new FormulaFingerprint(formula("a", "b", true));
+    assertEquals(f1.getCanonicalText(), f2.getCanonicalText());
+    assertEquals(f1.getHash(), f2.getHash());
+    assertEquals(32, f1.getHash().length());
+
+    List<SExpression> different = formula("x", "y", false);
+    different.add(QFNRA.assertGreater(new Symbol("y"), new Numeral(3)));
+    assertNotEquals(f1.getHash(), new FormulaFingerprint(different).getHash());
+  }
+
+  @Test
+  public void testFingerprintKeepsSortsLogicAndSolver() {
+    List<SExpression> real = formula("x", "y", false);
+    String hash = new FormulaFingerprint(real).getHash();
+
+    List<SExpression> integer = formula("x", "y", false);
+    integer.set(1, QFNRA.declareIntegerVariable(new Symbol("x")));
+    assertNotEquals(hash, new FormulaFingerprint(integer).getHash());
+
+    List<SExpression> linear = formula("x", "y", false);
+    linear.set(0, QFNRA.useQFLIA());
+    assertNotEquals(hash, new FormulaFingerprint(linear).getHash());
+
+    assertNotEquals(hash, new FormulaFingerprint(real,
+        "dReal --precision 0.1").getHash());
+    assertEquals(new FormulaFingerprint(real, "a").getHash(),
+        new FormulaFingerprint(formula("p", "q", true), "a").getHash());
+  }
+
+  private static class DeltaCountingSolver extends CountingSolver
+      implements DeltaSolver {
+    @Override
+    public void setPrecision(double precision) {
+    }
+  }
+
+  @Test
+  public void testPrecisionIsPartOfTheKey() throws IOException {
+    Path dir = Files.createTempDirectory("resultcache");
+    try {
+      DeltaCountingSolver counting = new DeltaCountingSolver();
+      CachingSolver solver = new CachingSolver(counting,
+          new ResultCache(dir, 16));
+      solver.setPrecision(0.1);
+      solver.solve(formula("x", "y", false));
+      solver.setPrecision(0.001);
+      solver.solve(formula("x", "y", false));
+      assertEquals(2, counting.calls);
+      solver.setPrecision(0.1);
+      solver.solve(formula("x", "y", false));
+      assertEquals(2, counting.calls);
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testEquivalentFormulaIsAnsweredFromCache() throws IOException {
+    Path dir = Files.createTempDirectory("resultcache");
+    try {
+      CountingSolver counting = new CountingSolver();
+      CachingSolver solver = new CachingSolver(counting,
+          new ResultCache(dir, 16));
+      DRealSolver.Result first = solver.solve(formula("x", "y", false));
+      assertNotNull(first.getRange(new Symbol("x")));
+
+      DRealSolver.Result second = solver.solve(formula("a", "b", true));
+      assertEquals(1, counting.calls);
+      assertEquals(1, solver.getHits());
+      assertTrue(second.isSatisfiable());
+      // the range of x comes back under the corresponding new name
+      assertNull(second.getRange(new Symbol("b")));
+      assertEquals(4.0, second.getRange(new Symbol("a")).lowerBound, 0.0);
+
+      // a fresh cache on the same directory sees the stored result
+      CachingSolver other = new CachingSolver(counting,
+          new ResultCache(dir, 16));
+      other.solve(formula("p", "q", false));
+      assertEquals(1, counting.calls);
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    Path dir = Files.createTempDirectory("resultcache");
+    try {
+      ResultCache cache = new ResultCache(dir, 1);
+      cache.put("aaaa", new DRealSolver.Result(false));
+      cache.put("bbbb", new DRealSolver.Result(true));
+      assertNull(cache.get("aaaa"));
+      assertTrue(cache.get("bbbb").isSatisfiable());
+      assertFalse(Files.exists(dir.resolve("aaaa.result.json")));
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testEvictionWithoutTheKeptFile() throws IOException {
+    Path dir = Files.createTempDirectory("resultcache");
+    try {
+      ResultCache cache = new ResultCache(dir, 2);
+      cache.put("aaaa", new DRealSolver.Result(false));
+      cache.put("bbbb", new DRealSolver.Result(false));
+      cache.put("cccc", new DRealSolver.Result(false));
+      String[] names = {"aaaa", "bbbb", "cccc"};
+      for (int i = 0; i < names.length; ++i) {
+        Path file = dir.resolve(names[i] + ".result.json");
+        if (!Files.exists(file)) {
+          // restore what the last put evicted
+          Files.write(file, "{}".getBytes("UTF-8"));
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000L * i));
+      }
+      // another process already removed the file to keep: only the one
+      // oldest file is over the budget
+      cache.evict(dir.resolve("dddd.result.json"));
+      assertFalse(Files.exists(dir.resolve("aaaa.result.json")));
+      assertTrue(Files.exists(dir.resolve("bbbb.result.json")));
+      assertTrue(Files.exists(dir.resolve("cccc.result.json")));
+    } finally {
+      deleteRecursively(dir);
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestConeOfInfluence {
+
+  private static final Symbol PI = SymbolNameGenerator.getsym_constant_pi();
+  private static final Symbol A = new Symbol("a");
+  private static final Symbol B = new Symbol("b");
+  private static final Symbol C = new Symbol("c");
+  private static final Symbol D = new Symbol("d");
+  private static final Symbol E = new Symbol("e");
+
+  // a - b - c are chained, d - e are chained, and both chains use PI
+  private List<SExpression> formula() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    for (Symbol sym : new Symbol[] {PI, A, B, C, D, E}) {
+      formula.add(QFNRA.declareRealVariable(sym));
+    }
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+    formula.add(QFNRA.assertEqual(A, QFNRA.multiply(PI, B)));
+    formula.add(QFNRA.assertLessThan(B, C));
+    formula.add(QFNRA.assertGreater(C, new Decimal(0.0)));
+    formula.add(QFNRA.assertEqual(D, QFNRA.multiply(PI, E)));
+    formula.add(QFNRA.assertGreater(E, new Decimal(1.0)));
+    formula.add(new ParenList(new Symbol("check-sat")));
+    return formula;
+  }
+
+  @Test
+  public void testSliceStopsAtConstants() {
+    ConeOfInfluence cone = new ConeOfInfluence();
+    cone.addTarget(A);
+    List<SExpression> slice = cone.slice(formula());
+    assertTrue(cone.getCone().contains(PI));
+    assertTrue(cone.getCone().contains(C));
+    assertFalse(cone.getCone().contains(D));
+    assertFalse(cone.getCone().contains(E));
+    // set-logic, 4 declarations, 4 assertions, check-sat
+    assertEquals(10, slice.size());
+    String text = slice.toString();
+    assertTrue(text.contains("( assert ( = PI "));
+    assertFalse(text.contains(" d "));
+    assertFalse(text.contains(" e "));
+    assertTrue(text.contains("check-sat"));
+  }
+
+  @Test
+  public void testTargetsCombine() {
+    ConeOfInfluence cone = new ConeOfInfluence();
+    cone.addTarget(B);
+    cone.addTarget(E);
+    assertEquals(formula().size(), cone.slice(formula()).size());
+  }
+
+  @Test
+  public void testConstantTargetTakesItsUses() {
+    ConeOfInfluence cone = new ConeOfInfluence();
+    cone.addTarget(PI);
+    cone.slice(formula());
+    assertTrue(cone.getCone().contains(A));
+    assertTrue(cone.getCone().contains(D));
+  }
+
+}
@@ -0,0 +1,131 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestDenominatorClearing {
+
+  private static final Symbol A = new Symbol("a");
+  private static final Symbol R = new Symbol("r");
+  private static final Symbol W = new Symbol("w");
+  private static final Symbol H = new Symbol("h");
+  private static final Symbol X = new Symbol("x");
+  private static final Symbol Y = new Symbol("y");
+
+  private static boolean containsDivision(List<SExpression> exprs) {
+    for (SExpression expr : exprs) {
+      if (expr.toString().contains(" / ")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static AssertionChecker bind(double... values) {
+    AssertionChecker check = new AssertionChecker();
+    Symbol[] syms = new Symbol[] {A, R, W, H, X, Y};
+    for (int i = 0; i < values.length; ++i) {
+      check.addBinding(syms[i], values[i]);
+    }
+    check.setDelta(1e-9);
+    return check;
+  }
+
+  @Test
+  public void testNestedDivisionsCleared() {
+    // r = a / (w * (1 - h / w)), with w, h > 0
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.assertGreater(W, new Decimal(0.0)));
+    formula.add(QFNRA.assertGreater(H, new Decimal(0.0)));
+    formula.add(QFNRA.assertLessThan(H, W));
+    formula.add(QFNRA.assertEqual(R, QFNRA.divide(A, QFNRA.multiply(W,
+        QFNRA.subtract(new Decimal(1.0), QFNRA.divide(H, W))))));
+    DenominatorClearing clearing = new DenominatorClearing();
+    List<SExpression> cleared = clearing.rewrite(formula);
+    // the sign of w - h is not known from the form of the term, so only
+    // the inner division goes
+    assertEquals(1, clearing.getClearedDivisions());
+    assertEquals(1, cleared.get(3).toString().split(" / ").length - 1);
+
+    Random random = new Random(1);
+    for (int i = 0; i < 100; ++i) {
+      double w = 0.5 + random.nextDouble();
+      double h = w * random.nextDouble();
+      double a = random.nextDouble();
+      double r = a / (w * (1.0 - h / w));
+      assertTrue(bind(a, r, w, h).verify(cleared));
+      assertFalse(bind(a, r + 0.1, w, h).verify(cleared));
+    }
+  }
+
+  @Test
+  public void testSumOfSquaresClearedWithSideCondition() {
+    // 0.5 <= (x * y)^2 / ((x * x + y * y) * w), like the critical angle
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.assertGreater(W, new Decimal(0.0)));
+    SExpression ratio = QFNRA.divide(
+        QFNRA.pow(QFNRA.multiply(X, Y), new Decimal(2.0)),
+        QFNRA.multiply(QFNRA.add(QFNRA.multiply(X, X),
+            QFNRA.multiply(Y, Y)), W));
+    formula.add(QFNRA.assertLessThanEqual(new Decimal(0.5), ratio));
+    DenominatorClearing clearing = new DenominatorClearing();
+    List<SExpression> cleared = clearing.rewrite(formula);
+    assertFalse(containsDivision(cleared));
+    assertEquals(1, clearing.getClearedDivisions());
+    // plus (> (* (+ (* x x) (* y y)) w) 0.0)
+    assertEquals(3, cleared.size());
+    assertTrue(cleared.get(2).toString().startsWith("( assert ( > "));
+
+    Random random = new Random(2);
+    for (int i = 0; i < 100; ++i) {
+      double x = random.nextDouble() * 2.0 - 1.0;
+      double y = random.nextDouble() * 2.0 - 1.0;
+      double w = 0.1 + random.nextDouble();
+      boolean holds = 0.5 <= Math.pow(x * y, 2.0) / ((x * x + y * y) * w);
+      assertEquals(holds, bind(0, 0, w, 0, x, y).verify(cleared));
+    }
+  }
+
+  @Test
+  public void testNonNegativeVariableGetsSideCondition() {
+    // a / w = r with only w >= 0 known: w = 0 must stay excluded
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.assertGreaterEqual(W, new Decimal(0.0)));
+    formula.add(QFNRA.assertEqual(QFNRA.divide(A, W), R));
+    DenominatorClearing clearing = new DenominatorClearing();
+    List<SExpression> cleared = clearing.rewrite(formula);
+    assertFalse(containsDivision(cleared));
+    assertEquals(1, clearing.getClearedDivisions());
+    assertEquals(3, cleared.size());
+    assertEquals(QFNRA.assertGreater(W, new Decimal(0.0)).toString(),
+        cleared.get(2).toString());
+    assertTrue(bind(2.0, 4.0, 0.5).verify(cleared));
+    // a = r * w holds at w = 0, but a / w is undefined there
+    assertFalse(bind(0.0, 1.0, 0.0).verify(cleared));
+  }
+
+  @Test
+  public void testUnknownSignKept() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.assertEqual(R, QFNRA.divide(A, W)));
+    // a square is only non-negative, and inside "or" there is nowhere
+    // to put the side condition
+    formula.add(QFNRA.assertThat(QFNRA.or(
+        QFNRA.equal(R, QFNRA.divide(A, QFNRA.multiply(X, X))),
+        QFNRA.equal(R, A))));
+    DenominatorClearing clearing = new DenominatorClearing();
+    List<SExpression> cleared = clearing.rewrite(formula);
+    assertEquals(0, clearing.getClearedDivisions());
+    assertEquals(2, cleared.size());
+    assertTrue(containsDivision(cleared.subList(0, 1)));
+    assertTrue(containsDivision(cleared.subList(1, 2)));
+  }
+
+}
@@ -0,0 +1,98 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestLazyConstraintSolver {
+
+  private static final Symbol X = new Symbol("x");
+
+  // Solves formulas of bounds on x, picking the smallest feasible x.
+  private static class BoundSolver implements FormulaSolver {
+    private final List<Integer> sizes = new ArrayList<>();
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      sizes.add(formula.size());
+      double lower = 0.0;
+      double upper = Double.POSITIVE_INFINITY;
+      for (SExpression expr : formula) {
+        if (AssertionChecker.isNonAssertion(expr)) {
+          continue;
+        }
+        List<SExpression> cmp = ((ParenList) ((ParenList) expr).getExprs()
+            .get(1)).getExprs();
+        double v = Double.parseDouble(cmp.get(2).toString());
+        if (cmp.get(0).equals(new Symbol(">="))) {
+          lower = Math.max(lower, v);
+        } else {
+          upper = Math.min(upper, v);
+        }
+      }
+      if (lower > upper) {
+        return new DRealSolver.Result(false);
+      }
+      DRealSolver.Result model = new DRealSolver.Result(true);
+      model.addRange(X, new DRealSolver.RealRange(lower, lower));
+      return model;
+    }
+  }
+
+  private List<SExpression> formula() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.declareRealVariable(X));
+    formula.add(new ParenList(new SExpression[] {new Symbol("check-sat")}));
+    return formula;
+  }
+
+  private List<SExpression> lazy(double... lowerBounds) {
+    List<SExpression> lazy = new ArrayList<>();
+    for (double b : lowerBounds) {
+      lazy.add(QFNRA.assertGreaterEqual(X, new Decimal(b)));
+    }
+    lazy.add(QFNRA.assertLessThanEqual(X, new Decimal(10.0)));
+    return lazy;
+  }
+
+  @Test
+  public void testAddsOnlyViolatedAssertions() throws Exception {
+    BoundSolver inner = new BoundSolver();
+    LazyConstraintSolver solver = new LazyConstraintSolver(inner,
+        lazy(1.0, 2.0, 0.0, -1.0));
+    DRealSolver.Result result = solver.solve(formula());
+    assertTrue(result.isSatisfiable());
+    assertEquals(2.0, result.getRange(X).lowerBound, 0.0);
+    assertEquals(2, solver.getLastRounds());
+    assertEquals(2, solver.getLastActive());
+    // the satisfied bounds never reach the solver
+    assertEquals(2, (int) inner.sizes.get(0));
+    assertEquals(4, (int) inner.sizes.get(1));
+  }
+
+  @Test
+  public void testUnsatSubsetIsUnsat() throws Exception {
+    LazyConstraintSolver solver = new LazyConstraintSolver(
+        new BoundSolver(), lazy(20.0));
+    assertFalse(solver.solve(formula()).isSatisfiable());
+    // x >= 20 only brings x <= 10 into play once x has moved
+    assertEquals(3, solver.getLastRounds());
+  }
+
+  @Test
+  public void testLastRoundAddsEverything() throws Exception {
+    BoundSolver inner = new BoundSolver();
+    LazyConstraintSolver solver = new LazyConstraintSolver(inner,
+        lazy(1.0, 2.0, 0.0));
+    solver.setMaximumRounds(1);
+    assertTrue(solver.solve(formula()).isSatisfiable());
+    assertEquals(1, solver.getLastRounds());
+    assertEquals(4, solver.getLastActive());
+  }
+
+}
@@ -0,0 +1,87 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPrecisionEscalationSolver {
+
+  // Returns x in a box of width precision, centred at centre + precision,
+  // so coarse answers miss (= x 1) by more than the final precision.
+  private static class FakeDeltaSolver implements DeltaSolver {
+    private final boolean satisfiable;
+    private final double centre;
+    private double precision;
+    final List<Double> precisions = new ArrayList<>();
+
+    FakeDeltaSolver(boolean satisfiable, double centre) {
+      this.satisfiable = satisfiable;
+      this.centre = centre;
+    }
+
+    @Override
+    public void setPrecision(double precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      precisions.add(precision);
+      DRealSolver.Result result = new DRealSolver.Result(satisfiable);
+      if (satisfiable) {
+        double mid = centre + precision;
+        result.addRange(new Symbol("x"), new DRealSolver.RealRange(
+            mid - precision / 2.0, mid + precision / 2.0));
+      }
+      return result;
+    }
+  }
+
+  private List<SExpression> formula(SExpression assertion) {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.declareRealVariable(new Symbol("x")));
+    formula.add(assertion);
+    return formula;
+  }
+
+  @Test
+  public void testUnsatAtCoarsePrecision() throws Exception {
+    FakeDeltaSolver fake = new FakeDeltaSolver(false, 0.0);
+    PrecisionEscalationSolver solver = new PrecisionEscalationSolver(fake);
+    assertFalse(solver.solve(formula(QFNRA.assertEqual(
+        new Symbol("x"), new Numeral(1)))).isSatisfiable());
+    assertEquals(1, solver.getLastAttempts());
+    assertEquals(0.1, solver.getLastPrecision(), 0.0);
+  }
+
+  @Test
+  public void testRobustModelAcceptedAtCoarsePrecision() throws Exception {
+    FakeDeltaSolver fake = new FakeDeltaSolver(true, 5.0);
+    PrecisionEscalationSolver solver = new PrecisionEscalationSolver(fake);
+    assertTrue(solver.solve(formula(QFNRA.assertGreater(
+        new Symbol("x"), new Numeral(1)))).isSatisfiable());
+    assertEquals(1, solver.getLastAttempts());
+  }
+
+  @Test
+  public void testBorderlineModelIsRefined() throws Exception {
+    FakeDeltaSolver fake = new FakeDeltaSolver(true, 1.0);
+    PrecisionEscalationSolver solver = new PrecisionEscalationSolver(fake);
+    solver.setFinalPrecision(0.0001);
+    DRealSolver.Result result = solver.solve(formula(QFNRA.assertEqual(
+        new Symbol("x"), new Numeral(1))));
+    assertTrue(result.isSatisfiable());
+    // every coarse answer is off by its precision, more than 0.0001,
+    // so the precision is tightened all the way to the final one
+    assertEquals(4, solver.getLastAttempts());
+    assertEquals(0.0001, solver.getLastPrecision(), 1e-12);
+    assertEquals(0.1, fake.precisions.get(0), 0.0);
+    assertEquals(0.01, fake.precisions.get(1), 1e-12);
+  }
+
+}
@@ -0,0 +1,54 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestRedundancyElimination {
+
+  private static final Symbol X = new Symbol("x");
+  private static final Symbol Y = new Symbol("y");
+  private static final Symbol UNUSED = new Symbol("ch0_max_droplets");
+
+  private List<SExpression> formula() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.useQFNRA());
+    formula.add(QFNRA.declareRealVariable(X));
+    formula.add(QFNRA.declareRealVariable(Y));
+    formula.add(QFNRA.declareRealVariable(UNUSED));
+    // declared again by another strategy
+    formula.add(QFNRA.declareRealVariable(X));
+    formula.add(QFNRA.assertGreater(X, new Decimal(0.0)));
+    formula.add(QFNRA.assertLessThan(X, Y));
+    formula.add(QFNRA.assertGreater(X, new Decimal(0.0)));
+    return formula;
+  }
+
+  @Test
+  public void testRepeatsAndDeadDeclarationsRemoved() {
+    RedundancyElimination elimination = new RedundancyElimination();
+    List<SExpression> result = elimination.rewrite(formula());
+    assertEquals(2, elimination.getDuplicates());
+    assertEquals(1, elimination.getDeadDeclarations());
+    List<SExpression> expected = new ArrayList<>();
+    expected.add(QFNRA.useQFNRA());
+    expected.add(QFNRA.declareRealVariable(X));
+    expected.add(QFNRA.declareRealVariable(Y));
+    expected.add(QFNRA.assertGreater(X, new Decimal(0.0)));
+    expected.add(QFNRA.assertLessThan(X, Y));
+    assertEquals(expected.toString(), result.toString());
+  }
+
+  @Test
+  public void testKeptDeclarationSurvives() {
+    RedundancyElimination elimination = new RedundancyElimination();
+    elimination.keep(UNUSED);
+    List<SExpression> result = elimination.rewrite(formula());
+    assertEquals(0, elimination.getDeadDeclarations());
+    assertEquals(6, result.size());
+  }
+
+}
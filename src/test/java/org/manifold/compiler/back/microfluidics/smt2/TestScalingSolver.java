@@ -0,0 +1,93 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestScalingSolver {
+
+  private static final Symbol X = new Symbol("x");
+  private static final Symbol H = new Symbol("h");
+  private static final Symbol R = new Symbol("r");
+  private static final Symbol P = new Symbol("p");
+
+  // Remembers the query and answers with fixed ranges.
+  private static class FixedSolver implements FormulaSolver {
+    private List<SExpression> query = null;
+    private final DRealSolver.Result answer = new DRealSolver.Result(true);
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      query = formula;
+      return answer;
+    }
+  }
+
+  private List<SExpression> formula() {
+    // 0 < x < 0.05, h = 1e-6, r = x / h^3, p unconstrained
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.declareRealVariable(X));
+    formula.add(QFNRA.declareRealVariable(H));
+    formula.add(QFNRA.declareRealVariable(R));
+    formula.add(QFNRA.declareRealVariable(P));
+    formula.add(QFNRA.assertGreater(X, new Decimal(0.0)));
+    formula.add(QFNRA.assertLessThan(X, new Decimal(0.05)));
+    formula.add(QFNRA.assertEqual(H, Decimal.plain(1e-6)));
+    formula.add(QFNRA.assertEqual(R,
+        QFNRA.divide(X, QFNRA.pow(H, new Numeral(3)))));
+    formula.add(QFNRA.assertGreaterEqual(P, R));
+    return formula;
+  }
+
+  @Test
+  public void testScalesFromBoundsAndDefinitions() {
+    Map<Symbol, Double> scales = new ScalingSolver(new FixedSolver())
+        .chooseScales(formula());
+    assertEquals(0.1, scales.get(X), 1e-15);
+    assertEquals(1e-6, scales.get(H), 1e-21);
+    // 0.05 / (1e-6)^3 = 5e16
+    assertEquals(1e17, scales.get(R), 1e2);
+    assertFalse(scales.containsKey(P));
+  }
+
+  @Test
+  public void testHintsTakePrecedence() {
+    ScalingSolver solver = new ScalingSolver(new FixedSolver());
+    Map<Symbol, Double> hints = new HashMap<>();
+    hints.put(X, 1000.0);
+    solver.useHints(hints);
+    assertEquals(1000.0, solver.chooseScales(formula()).get(X), 1e-12);
+  }
+
+  @Test
+  public void testQueryScaledAndAnswerUnscaled() throws Exception {
+    FixedSolver inner = new FixedSolver();
+    inner.answer.addRange(X, new DRealSolver.RealRange(0.2, 0.3));
+    inner.answer.addRange(P, new DRealSolver.RealRange(-1.0, 1.0));
+    ScalingSolver solver = new ScalingSolver(inner);
+    DRealSolver.Result result = solver.solve(formula());
+
+    // bounds are divided by the scale...
+    assertEquals("( assert ( < x 0.5 ) )", inner.query.get(5).toString());
+    assertEquals("( assert ( = h 1.0 ) )", inner.query.get(6).toString());
+    // ...and variables elsewhere multiplied by it
+    String definition = inner.query.get(7).toString();
+    assertTrue(definition, definition.contains("( * 0.1 x )"));
+    assertTrue(definition, definition.contains("( * 0.000001 h )"));
+    for (SExpression expr : inner.query) {
+      assertFalse(expr.toString(), expr.toString().contains("E"));
+    }
+
+    assertEquals(0.02, result.getRange(X).lowerBound, 1e-15);
+    assertEquals(0.03, result.getRange(X).upperBound, 1e-15);
+    assertEquals(-1.0, result.getRange(P).lowerBound, 0.0);
+  }
+
+}
@@ -0,0 +1,153 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestSimplifier {
+
+  private static final Symbol PI = SymbolNameGenerator.getsym_constant_pi();
+  private static final Symbol X = new Symbol("x");
+  private static final Symbol Y = new Symbol("y");
+  private static final Symbol Z = new Symbol("z");
+
+  private static String simplify(SExpression term) {
+    return simplify2(term).toString();
+  }
+
+  private static SExpression simplify2(SExpression term) {
+    return new Simplifier().simplifyTerm(term);
+  }
+
+  @Test
+  public void testFoldsAndFlattens() {
+    // (+ (+ x 1) (+ 2 y)) is (+ (+ x y) 3)
+    assertEquals("( + ( + x y ) 3 )", simplify(QFNRA.add(
+        QFNRA.add(X, new Numeral(1)), QFNRA.add(new Numeral(2), Y))));
+    // (* 2.0 (* x 0.5)) is x
+    assertEquals("x", simplify(QFNRA.multiply(new Decimal(2.0),
+        QFNRA.multiply(X, new Decimal(0.5)))));
+    // (* x 0.0) is 0
+    assertEquals("0.0", simplify(QFNRA.multiply(X, new Decimal(0.0))));
+    assertEquals("x", simplify(QFNRA.pow(X, new Decimal(1.0))));
+    assertEquals("( ^ x 3 )", simplify(QFNRA.pow(X, new Decimal(3.0))));
+    assertEquals("x", simplify(QFNRA.divide(X, new Numeral(1))));
+    assertEquals("x", simplify(QFNRA.subtract(X, new Decimal(0.0))));
+    // integer arithmetic stays integer
+    assertEquals("6", simplify(QFNRA.multiply(new Numeral(2),
+        new Numeral(3))));
+    assertEquals("1.5", simplify(QFNRA.divide(new Numeral(3),
+        new Numeral(2))));
+  }
+
+  @Test
+  public void testFoldsOnlyExactly() {
+    // no rounding in binary floating point
+    assertEquals("0.3", simplify(QFNRA.multiply(new Decimal("0.1"),
+        new Numeral(3))));
+    assertEquals("0.3", simplify(QFNRA.add(new Decimal("0.1"),
+        new Decimal("0.2"))));
+    assertEquals("0.01", simplify(QFNRA.pow(new Decimal("0.1"),
+        new Numeral(2))));
+    // a quotient without a terminating decimal stays a quotient
+    assertEquals("( / 1 3 )", simplify(QFNRA.divide(new Numeral(1),
+        new Numeral(3))));
+    assertEquals("( * x ( / 1 3 ) )", simplify(QFNRA.multiply(X,
+        QFNRA.divide(new Numeral(1), new Numeral(3)))));
+    assertEquals("0.25", simplify(QFNRA.divide(new Numeral(1),
+        new Numeral(4))));
+  }
+
+  @Test
+  public void testOutputIsBinary() {
+    // (+ x (+ y (+ z 1))) with every operator of two arguments, so that
+    // AssertionChecker can evaluate it
+    SExpression sum = simplify2(QFNRA.add(X, QFNRA.add(Y,
+        QFNRA.add(Z, new Numeral(1)))));
+    assertEquals("( + ( + ( + x y ) z ) 1 )", sum.toString());
+    SExpression either = simplify2(QFNRA.or(QFNRA.lessThan(X, Y),
+        QFNRA.or(QFNRA.lessThan(Y, Z), QFNRA.lessThan(Z, X))));
+    assertEquals("( or ( or ( < x y ) ( < y z ) ) ( < z x ) )",
+        either.toString());
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(X, 1.0);
+    check.addBinding(Y, 2.0);
+    check.addBinding(Z, 3.0);
+    assertTrue(check.verify(QFNRA.assertThat(QFNRA.equal(sum,
+        new Numeral(7)))));
+    assertTrue(check.verify(QFNRA.assertThat(either)));
+  }
+
+  @Test
+  public void testComparisons() {
+    // the constant goes to the right
+    assertEquals("( = ( + x y ) 0.0 )", simplify(QFNRA.equal(
+        new Decimal(0.0), QFNRA.add(X, Y))));
+    assertEquals("( > x 1.0 )", simplify(QFNRA.lessThan(
+        new Decimal(1.0), X)));
+    assertEquals("true", simplify(QFNRA.lessThanEqual(X, X)));
+    assertEquals("false", simplify(QFNRA.greater(new Decimal(1.0),
+        new Decimal(2.0))));
+    assertEquals("( < x 1 )", simplify(QFNRA.or(
+        QFNRA.lessThan(X, new Numeral(1)),
+        QFNRA.greater(new Numeral(1), new Numeral(2)))));
+  }
+
+  @Test
+  public void testDefinedConstantsSubstituted() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.declareRealVariable(PI));
+    formula.add(QFNRA.declareRealVariable(X));
+    formula.add(QFNRA.declareRealVariable(Y));
+    formula.add(QFNRA.declareRealVariable(Z));
+    // z's definition comes before pi's
+    formula.add(QFNRA.assertEqual(Z, QFNRA.subtract(new Numeral(1),
+        QFNRA.divide(PI, new Numeral(4)))));
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+    formula.add(QFNRA.assertEqual(X, QFNRA.multiply(
+        QFNRA.multiply(new Decimal(0.375), PI), Y)));
+    formula.add(QFNRA.assertGreater(Y, QFNRA.multiply(Z, new Decimal(0.0))));
+    formula.add(QFNRA.assertEqual(PI, new Decimal(Math.PI)));
+
+    Simplifier simplifier = new Simplifier();
+    List<SExpression> simplified = simplifier.rewrite(formula);
+    // the duplicate definition of pi is true, and goes
+    assertEquals(formula.size() - 1, simplified.size());
+    assertTrue(simplifier.getRemovedTerms() > 0);
+    // definitions are kept as they were
+    assertEquals(formula.get(4).toString(), simplified.get(4).toString());
+    assertEquals(formula.get(5).toString(), simplified.get(5).toString());
+    assertEquals("( assert ( = x ( * " + Decimal.plain(
+        new BigDecimal("0.375").multiply(new BigDecimal(
+            new Decimal(Math.PI).getRepresentation())))
+        + " y ) ) )", simplified.get(6).toString());
+    assertEquals("( assert ( > y 0.0 ) )", simplified.get(7).toString());
+
+    // every assignment satisfies both formulas alike
+    double[][] points = new double[][] {
+      {1.0, 0.375 * Math.PI, 1.0 - Math.PI / 4.0},
+      {-2.0, -0.75 * Math.PI, 1.0 - Math.PI / 4.0},
+      {2.0, 0.75 * Math.PI, 1.0 - Math.PI / 4.0},
+      {2.0, 0.75 * Math.PI, 0.5},
+      {2.0, 1.0, 1.0 - Math.PI / 4.0},
+    };
+    for (double[] p : points) {
+      AssertionChecker before = new AssertionChecker();
+      AssertionChecker after = new AssertionChecker();
+      for (AssertionChecker check : new AssertionChecker[] {before, after}) {
+        check.addBinding(PI, Math.PI);
+        check.addBinding(Y, p[0]);
+        check.addBinding(X, p[1]);
+        check.addBinding(Z, p[2]);
+        check.setDelta(1e-9);
+      }
+      assertEquals(before.verify(formula), after.verify(simplified));
+    }
+  }
+
+}
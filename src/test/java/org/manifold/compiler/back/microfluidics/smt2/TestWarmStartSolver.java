@@ -0,0 +1,136 @@
+package org.manifold.compiler.back.microfluidics.smt2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestWarmStartSolver {
+
+  // Answers sat with x in [1, 2], or unsat to any formula longer than
+  // the given limit; remembers every formula it was asked to solve.
+  private static class FakeSolver implements FormulaSolver {
+    private final int unsatAboveSize;
+    final List<List<SExpression>> queries = new ArrayList<>();
+
+    FakeSolver(int unsatAboveSize) {
+      this.unsatAboveSize = unsatAboveSize;
+    }
+
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      queries.add(formula);
+      if (formula.size() > unsatAboveSize) {
+        return new DRealSolver.Result(false);
+      }
+      DRealSolver.Result result = new DRealSolver.Result(true);
+      result.addRange(new Symbol("x"), new DRealSolver.RealRange(1.0, 2.0));
+      return result;
+    }
+  }
+
+  private List<SExpression> formula() {
+    List<SExpression> formula = new ArrayList<>();
+    formula.add(QFNRA.declareRealVariable(new Symbol("x")));
+    formula.add(QFNRA.assertGreater(new Symbol("x"), new Numeral(0)));
+    return formula;
+  }
+
+  @Test
+  public void testSecondSolveIsSeeded() throws IOException {
+    Path model = Files.createTempFile("warmstart", ".json");
+    Files.delete(model);
+    try {
+      FakeSolver fake = new FakeSolver(Integer.MAX_VALUE);
+      WarmStartSolver solver = new WarmStartSolver(fake, model);
+      assertTrue(solver.solve(formula()).isSatisfiable());
+      assertFalse(solver.wasLastSolveSeeded());
+      assertTrue(Files.exists(model));
+
+      assertTrue(solver.solve(formula()).isSatisfiable());
+      assertTrue(solver.wasLastSolveSeeded());
+      assertEquals(2, fake.queries.size());
+      // one lower and one upper bound on x
+      List<SExpression> seeded = fake.queries.get(1);
+      assertEquals(formula().size() + 2, seeded.size());
+      assertEquals(QFNRA.assertGreaterEqual(new Symbol("x"),
+          QFNRA.constant(1.0 - 0.2 - 1e-6)).toString(),
+          seeded.get(2).toString());
+    } finally {
+      Files.deleteIfExists(model);
+    }
+  }
+
+  @Test
+  public void testBoundsAreSmtLibDecimals() {
+    WarmStartSolver solver = new WarmStartSolver(
+        new FakeSolver(Integer.MAX_VALUE), Paths.get("unused.json"));
+    DRealSolver.Result prior = new DRealSolver.Result(true);
+    prior.addRange(new Symbol("x"),
+        new DRealSolver.RealRange(-2e-5, 1e-5));
+    List<SExpression> seeded = solver.seed(formula(), prior);
+    String lower = seeded.get(2).toString();
+    String upper = seeded.get(3).toString();
+    assertFalse(lower, lower.contains("E"));
+    assertFalse(upper, upper.contains("E"));
+    // no signed literal, but a negation
+    assertTrue(lower, lower.contains("( - 0.0000"));
+    assertFalse(lower, lower.contains(" -0"));
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(new Symbol("x"), -2e-5);
+    assertTrue(check.verify(seeded.subList(2, 4)));
+    check.addBinding(new Symbol("x"), -1.0);
+    assertFalse(check.verify(seeded.subList(2, 4)));
+  }
+
+  @Test
+  public void testSaveLeavesOnlyTheModel() throws IOException {
+    Path dir = Files.createTempDirectory("warmstart");
+    Path model = dir.resolve("test.model.json");
+    try {
+      WarmStartSolver solver = new WarmStartSolver(
+          new FakeSolver(Integer.MAX_VALUE), model);
+      solver.solve(formula());
+      solver.solve(formula());
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+        for (Path file : files) {
+          assertEquals(model, file);
+        }
+      }
+      assertEquals(2.0, solver.loadModel().getRange(
+          new Symbol("x")).upperBound, 0.0);
+    } finally {
+      Files.deleteIfExists(model);
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void testUnsatSeedFallsBack() throws IOException {
+    Path model = Files.createTempFile("warmstart", ".json");
+    Files.delete(model);
+    try {
+      FakeSolver fake = new FakeSolver(formula().size());
+      WarmStartSolver solver = new WarmStartSolver(fake, model);
+      solver.solve(formula());
+      DRealSolver.Result result = solver.solve(formula());
+      assertTrue(result.isSatisfiable());
+      assertFalse(solver.wasLastSolveSeeded());
+      // cold solve, seeded solve, then the full query again
+      assertEquals(3, fake.queries.size());
+      assertEquals(formula().size(), fake.queries.get(2).size());
+    } finally {
+      Files.deleteIfExists(model);
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+package org.manifold.compiler.back.microfluidics.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.CodeGenerationError;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestGridPlacementStrategySet {
+
+  private Schematic sch;
+  private NodeValue n1;
+  private NodeValue n2;
+  private ConnectionValue ch0;
+  // 50 x 50 cells of 1 mm
+  private ProcessParameters params =
+      ProcessParameters.loadTestData().withPlacementPitch(0.001);
+
+  @Before
+  public void setup() throws SchematicException {
+    // (n1) --- (n2), with n1 pinned at (10 mm, 20 mm)
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    n1 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    sch.addNode("n1", n1);
+    n2 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    sch.addNode("n2", n2);
+    ch0 = UtilSchematicConstruction.instantiateChannel(
+        n1.getPort("channel0"), n2.getPort("channel0"));
+    sch.addConnection("ch0", ch0);
+  }
+
+  private void pin(double x, double y) throws SchematicException {
+    sch.addConstraint("pin0",
+        UtilSchematicConstruction.instantiateControlPointPlacementConstraint(
+            n1, x, y));
+  }
+
+  private AssertionChecker bind(long x1, long y1, long x2, long y2) {
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(SymbolNameGenerator.getsym_NodeGridX(sch, n1),
+        (double) x1);
+    check.addBinding(SymbolNameGenerator.getsym_NodeGridY(sch, n1),
+        (double) y1);
+    check.addBinding(SymbolNameGenerator.getsym_NodeGridX(sch, n2),
+        (double) x2);
+    check.addBinding(SymbolNameGenerator.getsym_NodeGridY(sch, n2),
+        (double) y2);
+    check.addBinding(SymbolNameGenerator.getsym_ChannelGridExtentX(sch, ch0),
+        (double) Math.abs(x1 - x2));
+    check.addBinding(SymbolNameGenerator.getsym_ChannelGridExtentY(sch, ch0),
+        (double) Math.abs(y1 - y2));
+    check.addBinding(SymbolNameGenerator.getsym_ChannelGridLength(sch, ch0),
+        (double) (Math.abs(x1 - x2) + Math.abs(y1 - y2)));
+    return check;
+  }
+
+  @Test
+  public void testIntegerRules() throws SchematicException {
+    pin(0.01, 0.02);
+    List<SExpression> exprs = new GridPlacementStrategySet().translate(sch,
+        params, MicrofluidicsBackend.constructTypeTable(sch));
+    for (SExpression expr : exprs) {
+      // integers only
+      assertFalse(expr.toString(), expr.toString().contains("."));
+      assertFalse(expr.toString(), expr.toString().contains("Real"));
+    }
+    AssertionChecker check = bind(10, 20, 7, 24);
+    if (!check.verify(exprs)) {
+      fail("assertion failed: " + check.getLastExpression().toString());
+    }
+    // off the pin, off the chip, and on top of each other
+    assertFalse(bind(11, 20, 7, 24).verify(exprs));
+    assertFalse(bind(10, 20, 50, 24).verify(exprs));
+    assertFalse(bind(10, 20, 10, 20).verify(exprs));
+    assertFalse(bind(10, 20, 0, 24).verify(exprs));
+    assertTrue(bind(10, 20, 49, 24).verify(exprs));
+  }
+
+  @Test(expected = CodeGenerationError.class)
+  public void testPinOffGrid() throws SchematicException {
+    pin(0.0105, 0.02);
+    new GridPlacementStrategySet().translate(sch, params,
+        MicrofluidicsBackend.constructTypeTable(sch));
+  }
+
+  @Test
+  public void testToPlacement() {
+    DRealSolver.Result model = new DRealSolver.Result(true);
+    model.addRange(SymbolNameGenerator.getsym_NodeGridX(sch, n1),
+        new DRealSolver.RealRange(3.0, 3.0));
+    model.addRange(SymbolNameGenerator.getsym_NodeGridY(sch, n1),
+        new DRealSolver.RealRange(4.0, 4.0));
+    Map<NodeValue, double[]> placement =
+        GridPlacementStrategySet.toPlacement(sch, params, model);
+    assertEquals(1, placement.size());
+    assertEquals(0.003, placement.get(n1)[0], 1e-12);
+    assertEquals(0.004, placement.get(n1)[1], 1e-12);
+  }
+
+}
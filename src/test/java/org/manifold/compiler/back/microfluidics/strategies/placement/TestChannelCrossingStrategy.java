@@ -0,0 +1,107 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestChannelCrossingStrategy {
+
+  private void assertSamePairs(List<int[]> expected, List<int[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.get(i)[0], actual.get(i)[0]);
+      assertEquals(expected.get(i)[1], actual.get(i)[1]);
+    }
+  }
+
+  @Test
+  public void testSweepMatchesBruteForce_RandomSegments() {
+    Random random = new Random(36);
+    for (int trial = 0; trial < 20; ++trial) {
+      List<double[]> segments = new ArrayList<>();
+      for (int i = 0; i < 60; ++i) {
+        double x = random.nextDouble();
+        double y = random.nextDouble();
+        segments.add(new double[] {x, y,
+          x + 0.3 * (random.nextDouble() - 0.5),
+          y + 0.3 * (random.nextDouble() - 0.5)});
+      }
+      assertSamePairs(SegmentSweep.bruteForce(segments),
+          SegmentSweep.findIntersections(segments));
+    }
+  }
+
+  @Test
+  public void testSweepMatchesBruteForce_GridWithSharedEnds() {
+    // a grid of horizontal and vertical unit segments between lattice
+    // points, plus diagonals: many shared endpoints and exact crossings
+    List<double[]> segments = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      for (int j = 0; j < 5; ++j) {
+        segments.add(new double[] {i, j, i + 1, j});
+        segments.add(new double[] {i, j, i, j + 1});
+        if ((i + j) % 2 == 0) {
+          segments.add(new double[] {i, j, i + 1, j + 1});
+          segments.add(new double[] {i + 1, j, i, j + 1});
+        }
+      }
+    }
+    assertSamePairs(SegmentSweep.bruteForce(segments),
+        SegmentSweep.findIntersections(segments));
+  }
+
+  @Test
+  public void testCrossingChannelsConstrained() throws Exception {
+    // (n0) --- (n1) crossing (n2) --- (n3)
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    List<NodeValue> nodes = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      NodeValue n = UtilSchematicConstruction.instantiatePressureControlPoint(
+          sch, 1);
+      sch.addNode("n" + i, n);
+      nodes.add(n);
+    }
+    ConnectionValue ch0 = UtilSchematicConstruction.instantiateChannel(
+        nodes.get(0).getPort("channel0"), nodes.get(1).getPort("channel0"));
+    sch.addConnection("ch0", ch0);
+    ConnectionValue ch1 = UtilSchematicConstruction.instantiateChannel(
+        nodes.get(2).getPort("channel0"), nodes.get(3).getPort("channel0"));
+    sch.addConnection("ch1", ch1);
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+
+    Map<NodeValue, double[]> placement = new HashMap<>();
+    placement.put(nodes.get(0), new double[] {0.0, 0.0});
+    placement.put(nodes.get(1), new double[] {0.01, 0.01});
+    placement.put(nodes.get(2), new double[] {0.0, 0.01});
+    placement.put(nodes.get(3), new double[] {0.01, 0.0});
+    assertEquals(1, ChannelCrossingStrategy.findCrossings(sch, placement)
+        .size());
+
+    ChannelCrossingStrategy strat = new ChannelCrossingStrategy();
+    strat.useReferencePlacement(placement);
+    List<SExpression> exprs = strat.translationStep(sch, params, typeTable);
+    assertEquals(1, exprs.size());
+    assertTrue(exprs.get(0).toString().startsWith("( assert ( or "));
+
+    // pulled apart, the channels no longer need a rule
+    placement.put(nodes.get(3), new double[] {0.0, 0.02});
+    assertEquals(0, strat.translationStep(sch, params, typeTable).size());
+  }
+
+}
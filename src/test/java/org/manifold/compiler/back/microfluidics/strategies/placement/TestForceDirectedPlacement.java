@@ -0,0 +1,105 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestForceDirectedPlacement {
+
+  private List<NodeValue> nodes = new ArrayList<>();
+
+  // (n0) --- (n1) --- ... --- (n(count-1)) --- (n0)
+  private Schematic ring(int count) throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    nodes.clear();
+    for (int i = 0; i < count; ++i) {
+      NodeValue n = UtilSchematicConstruction.instantiatePressureControlPoint(
+          sch, 2);
+      sch.addNode("n" + i, n);
+      nodes.add(n);
+      if (i > 0) {
+        ConnectionValue ch = UtilSchematicConstruction.instantiateChannel(
+            nodes.get(i - 1).getPort("channel1"), n.getPort("channel0"));
+        sch.addConnection("ch" + i, ch);
+      }
+    }
+    ConnectionValue ch = UtilSchematicConstruction.instantiateChannel(
+        nodes.get(count - 1).getPort("channel1"),
+        nodes.get(0).getPort("channel0"));
+    sch.addConnection("ch0", ch);
+    return sch;
+  }
+
+  private double distance(double[] a, double[] b) {
+    return Math.hypot(a[0] - b[0], a[1] - b[1]);
+  }
+
+  @Test
+  public void testRingIsSpreadOut() throws Exception {
+    Schematic sch = ring(40);
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+    ForceDirectedPlacement placer = new ForceDirectedPlacement();
+    Map<NodeValue, double[]> placement = placer.place(sch, params,
+        typeTable);
+    assertEquals(40, placement.size());
+
+    double channelLength = 0.0;
+    double allPairs = 0.0;
+    for (int i = 0; i < 40; ++i) {
+      double[] p = placement.get(nodes.get(i));
+      assertTrue(p[0] > 0.0 && p[0] < params.getMaximumChipSizeX());
+      assertTrue(p[1] > 0.0 && p[1] < params.getMaximumChipSizeY());
+      channelLength += distance(p, placement.get(nodes.get((i + 1) % 40)));
+      for (int j = 0; j < 40; ++j) {
+        allPairs += distance(p, placement.get(nodes.get(j)));
+      }
+    }
+    // connected nodes end up much closer than nodes in general
+    assertTrue(channelLength / 40 < 0.5 * allPairs / (40 * 39));
+    // and no two nodes on top of each other
+    for (int i = 0; i < 40; ++i) {
+      for (int j = i + 1; j < 40; ++j) {
+        assertTrue(distance(placement.get(nodes.get(i)),
+            placement.get(nodes.get(j))) > params.getMinimumNodeDistance());
+      }
+    }
+  }
+
+  @Test
+  public void testPinnedNodesStayAndThreadsAgree() throws Exception {
+    Schematic sch = ring(30);
+    sch.addConstraint("pin0",
+        UtilSchematicConstruction.instantiateControlPointPlacementConstraint(
+            nodes.get(0), 0.01, 0.02));
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+
+    ForceDirectedPlacement placer = new ForceDirectedPlacement();
+    placer.setThreads(1);
+    Map<NodeValue, double[]> single = placer.place(sch, params, typeTable);
+    placer.setThreads(4);
+    Map<NodeValue, double[]> multi = placer.place(sch, params, typeTable);
+
+    assertEquals(0.01, single.get(nodes.get(0))[0], 0.0);
+    assertEquals(0.02, single.get(nodes.get(0))[1], 0.0);
+    for (NodeValue n : nodes) {
+      assertEquals(single.get(n)[0], multi.get(n)[0], 0.0);
+      assertEquals(single.get(n)[1], multi.get(n)[1], 0.0);
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestManhattanLengthRuleStrategy {
+
+  private Schematic sch;
+  private NodeValue n1;
+  private NodeValue n2;
+  private ConnectionValue ch0;
+  private PrimitiveTypeTable typeTable;
+
+  @Before
+  public void setup() throws SchematicException {
+    // (n1) --- (n2)
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    n1 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    sch.addNode("n1", n1);
+    n2 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    sch.addNode("n2", n2);
+    ch0 = UtilSchematicConstruction.instantiateChannel(
+        n1.getPort("channel0"), n2.getPort("channel0"));
+    sch.addConnection("ch0", ch0);
+    typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+  }
+
+  // n2 is at (-3, 4) from n1
+  private AssertionChecker bind(double extentX, double extentY,
+      double length) {
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(SymbolNameGenerator.getsym_NodeX(sch, n1), 12.3);
+    check.addBinding(SymbolNameGenerator.getsym_NodeY(sch, n1), -4.56);
+    check.addBinding(SymbolNameGenerator.getsym_NodeX(sch, n2), 12.3 - 3.0);
+    check.addBinding(SymbolNameGenerator.getsym_NodeY(sch, n2), -4.56 + 4.0);
+    check.addBinding(SymbolNameGenerator.getsym_ChannelExtentX(sch, ch0),
+        extentX);
+    check.addBinding(SymbolNameGenerator.getsym_ChannelExtentY(sch, ch0),
+        extentY);
+    check.addBinding(SymbolNameGenerator.getsym_ChannelLength(sch, ch0),
+        length);
+    return check;
+  }
+
+  @Test
+  public void testManhattanLength() {
+    ManhattanLengthRuleStrategy strat = new ManhattanLengthRuleStrategy();
+    List<SExpression> exprs = strat.translate(sch,
+        ProcessParameters.loadTestData(), typeTable);
+    AssertionChecker check = bind(3.0, 4.0, 7.0);
+    if (!check.verify(exprs)) {
+      fail("assertion failed: " + check.getLastExpression().toString());
+    }
+    // neither the Euclidean length nor a negative extent is accepted
+    assertFalse(bind(3.0, 4.0, 5.0).verify(exprs));
+    assertFalse(bind(-3.0, 4.0, 1.0).verify(exprs));
+  }
+
+  @Test
+  public void testOctilinearLength() {
+    ManhattanLengthRuleStrategy strat = new ManhattanLengthRuleStrategy();
+    strat.setOctilinear(true);
+    List<SExpression> exprs = strat.translate(sch,
+        ProcessParameters.loadTestData(), typeTable);
+    // 3 diagonally, then 1 straight
+    double length = 3.0 * Math.sqrt(2.0) + 1.0;
+    AssertionChecker check = bind(3.0, 4.0, length);
+    if (!check.verify(exprs)) {
+      fail("assertion failed: " + check.getLastExpression().toString());
+    }
+    assertFalse(bind(3.0, 4.0, 7.0).verify(exprs));
+  }
+
+}
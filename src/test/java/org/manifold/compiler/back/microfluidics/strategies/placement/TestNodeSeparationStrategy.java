@@ -0,0 +1,112 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestNodeSeparationStrategy {
+
+  private List<NodeValue> nodes = new ArrayList<>();
+
+  // (n0) --- (n1) --- ... --- (n(count-1))
+  private Schematic chain(int count) throws SchematicException {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    nodes.clear();
+    for (int i = 0; i < count; ++i) {
+      NodeValue n = UtilSchematicConstruction.instantiatePressureControlPoint(
+          sch, 2);
+      sch.addNode("n" + i, n);
+      nodes.add(n);
+      if (i > 0) {
+        ConnectionValue ch = UtilSchematicConstruction.instantiateChannel(
+            nodes.get(i - 1).getPort("channel1"), n.getPort("channel0"));
+        sch.addConnection("ch" + i, ch);
+      }
+    }
+    return sch;
+  }
+
+  @Test
+  public void testOnlyNearbyPairsConstrained() throws Exception {
+    Schematic sch = chain(10);
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+    NodeSeparationStrategy strat = new NodeSeparationStrategy();
+    // neighbours and next-but-one neighbours only
+    assertEquals(9 + 8,
+        strat.translationStep(sch, params, typeTable).size());
+
+    // a reference placement folding the chain back onto itself
+    Map<NodeValue, double[]> placement = new HashMap<>();
+    for (int i = 0; i < 10; ++i) {
+      placement.put(nodes.get(i), new double[] {0.01 * (i % 9), 0.0});
+    }
+    strat.useReferencePlacement(placement);
+    assertEquals(9 + 8 + 1,
+        strat.translationStep(sch, params, typeTable).size());
+  }
+
+  @Test
+  public void testSearchStopsAtHubs() throws Exception {
+    // twenty leaves around one hub
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue hub = UtilSchematicConstruction.instantiatePressureControlPoint(
+        sch, 20);
+    sch.addNode("hub", hub);
+    for (int i = 0; i < 20; ++i) {
+      NodeValue leaf = UtilSchematicConstruction
+          .instantiatePressureControlPoint(sch, 1);
+      sch.addNode("leaf" + i, leaf);
+      sch.addConnection("ch" + i, UtilSchematicConstruction.instantiateChannel(
+          hub.getPort("channel" + i), leaf.getPort("channel0")));
+    }
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+    NodeSeparationStrategy strat = new NodeSeparationStrategy();
+    assertEquals(20, strat.translationStep(sch, params, typeTable).size());
+    strat.setMaximumHubDegree(20);
+    assertEquals(20 + 20 * 19 / 2,
+        strat.translationStep(sch, params, typeTable).size());
+  }
+
+  @Test
+  public void testViolation_CoincidentNodes() throws Exception {
+    Schematic sch = chain(3);
+    ProcessParameters params = ProcessParameters.loadTestData();
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(sch);
+    NodeSeparationStrategy strat = new NodeSeparationStrategy();
+    List<SExpression> exprs = strat.translationStep(sch, params, typeTable);
+
+    AssertionChecker check = new AssertionChecker();
+    for (int i = 0; i < 3; ++i) {
+      check.addBinding(SymbolNameGenerator.getsym_NodeX(sch, nodes.get(i)),
+          0.01 * i);
+      check.addBinding(SymbolNameGenerator.getsym_NodeY(sch, nodes.get(i)),
+          0.0);
+    }
+    assertTrue(check.verify(exprs));
+    // move n2 onto n0
+    check.addBinding(SymbolNameGenerator.getsym_NodeX(sch, nodes.get(2)),
+        0.0);
+    assertFalse(check.verify(exprs));
+  }
+
+}
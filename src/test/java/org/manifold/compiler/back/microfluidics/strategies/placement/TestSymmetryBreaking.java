@@ -0,0 +1,104 @@
+package org.manifold.compiler.back.microfluidics.strategies.placement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.Decimal;
+import org.manifold.compiler.back.microfluidics.smt2.QFNRA;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.back.microfluidics.strategies.PlacementTranslationStrategySet;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestSymmetryBreaking {
+
+  private Schematic sch;
+  private NodeValue hub;
+  private NodeValue[] leaves = new NodeValue[3];
+  private ProcessParameters params = ProcessParameters.loadTestData();
+
+  @Before
+  public void setup() throws SchematicException {
+    // a hub with three identical leaves
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    hub = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 3);
+    sch.addNode("hub", hub);
+    for (int i = 0; i < leaves.length; ++i) {
+      leaves[i] = UtilSchematicConstruction.instantiatePressureControlPoint(
+          sch, 1);
+      sch.addNode("leaf" + i, leaves[i]);
+      sch.addConnection("ch" + i, UtilSchematicConstruction.instantiateChannel(
+          hub.getPort("channel" + i), leaves[i].getPort("channel0")));
+    }
+  }
+
+  private List<SExpression> formula(PrimitiveTypeTable typeTable) {
+    return new ArrayList<>(new PlacementTranslationStrategySet().translate(
+        sch, params, typeTable));
+  }
+
+  @Test
+  public void testLeavesOrderedAndHubAnchored() {
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(
+        sch);
+    SymmetryBreaking symmetry = new SymmetryBreaking();
+    List<SExpression> exprs = symmetry.translate(sch, params, typeTable,
+        formula(typeTable));
+    assertEquals(1, symmetry.getInterchangeableNodes().size());
+    assertEquals(3, symmetry.getInterchangeableNodes().get(0).size());
+    assertEquals(hub, symmetry.getAnchor());
+    String text = exprs.toString();
+    assertTrue(text, text.contains("( <= leaf0_pos_x leaf1_pos_x )"));
+    assertTrue(text, text.contains("( <= leaf1_pos_x leaf2_pos_x )"));
+    assertTrue(text, text.contains("( <= hub_pos_x "
+        + new Decimal(params.getMaximumChipSizeX() / 2.0) + " )"));
+  }
+
+  @Test
+  public void testPinnedNodesStay() throws SchematicException {
+    sch.addConstraint("pin0",
+        UtilSchematicConstruction.instantiateControlPointPlacementConstraint(
+            leaves[0], 0.01, 0.01));
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(
+        sch);
+    SymmetryBreaking symmetry = new SymmetryBreaking();
+    List<SExpression> exprs = symmetry.translate(sch, params, typeTable,
+        formula(typeTable));
+    // only leaf1 and leaf2 can swap, and nothing is mirrored
+    assertEquals(1, symmetry.getInterchangeableNodes().size());
+    assertEquals(leaves[1],
+        symmetry.getInterchangeableNodes().get(0).get(0));
+    assertNull(symmetry.getAnchor());
+    assertEquals(1, exprs.size());
+  }
+
+  @Test
+  public void testAsymmetricFormulaChecked() {
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(
+        sch);
+    List<SExpression> formula = formula(typeTable);
+    // a rule about leaf1 alone, which the schematic does not show
+    formula.add(QFNRA.assertLessThan(
+        SymbolNameGenerator.getsym_NodeX(sch, leaves[1]),
+        new Decimal(0.02)));
+    SymmetryBreaking symmetry = new SymmetryBreaking();
+    symmetry.setBreakReflections(false);
+    List<SExpression> exprs = symmetry.translate(sch, params, typeTable,
+        formula);
+    assertEquals(0, symmetry.getInterchangeableNodes().size());
+    assertEquals(0, exprs.size());
+  }
+
+}
@@ -0,0 +1,259 @@
+package org.manifold.compiler.back.microfluidics.strategies.pressureflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestLoopPressureFlowStrategy {
+
+  private Schematic sch;
+  private ConnectionValue[] ch = new ConnectionValue[3];
+  private NodeValue[] points;
+
+  private NodeValue addControlPoint(String name) throws SchematicException {
+    NodeValue node = UtilSchematicConstruction
+        .instantiatePressureControlPoint(sch, 1);
+    sch.addNode(name, node);
+    return node;
+  }
+
+  private void addChannel(int i, NodeValue from, String fromPort,
+      NodeValue to, String toPort) throws SchematicException {
+    ch[i] = UtilSchematicConstruction.instantiateChannel(
+        from.getPort(fromPort), to.getPort(toPort));
+    sch.addConnection("ch" + i, ch[i]);
+  }
+
+  private Symbol pressure(NodeValue node, String port) throws Exception {
+    return SymbolNameGenerator.getSym_PortPressure(sch, node.getPort(port));
+  }
+
+  private Symbol flow(int i) {
+    return SymbolNameGenerator.getsym_ChannelFlowRate(sch, ch[i]);
+  }
+
+  private Symbol resistance(int i) {
+    return SymbolNameGenerator.getsym_ChannelResistance(sch, ch[i]);
+  }
+
+  private List<SExpression> translate(PressureFlowStrategy strat) {
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(
+        sch);
+    return strat.translate(sch, ProcessParameters.loadTestData(),
+        typeTable);
+  }
+
+  private NodeValue[] setupCrossings() throws SchematicException {
+    // (n1) --ch0-- [x] --ch1-- [y] --ch2-- (n2)
+    // through the A sides of two crossings; ch1 runs from y to x
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue n1 = addControlPoint("n1");
+    NodeValue n2 = addControlPoint("n2");
+    points = new NodeValue[] {n1, n2};
+    NodeValue x = UtilSchematicConstruction.instantiateChannelCrossing(sch);
+    NodeValue y = UtilSchematicConstruction.instantiateChannelCrossing(sch);
+    sch.addNode("x", x);
+    sch.addNode("y", y);
+    addChannel(0, n1, "channel0", x, "channelA0");
+    addChannel(1, y, "channelA0", x, "channelA1");
+    addChannel(2, y, "channelA1", n2, "channel0");
+    return new NodeValue[] {x, y};
+  }
+
+  @Test
+  public void testCrossingsMakeOneLoop() throws Exception {
+    NodeValue[] crossings = setupCrossings();
+    NodeValue n1 = points[0];
+    NodeValue n2 = points[1];
+    NodeValue x = crossings[0];
+    NodeValue y = crossings[1];
+
+    LoopPressureFlowStrategy strat = new LoopPressureFlowStrategy(false);
+    List<SExpression> exprs = translate(strat);
+    assertTrue(strat.isLoopFormulation());
+    assertEquals(1, strat.getLoopCount());
+    // one flow stands for all three channels
+    assertFalse(exprs.toString(), exprs.toString().contains(
+        flow(0).getName()));
+
+    // (12 - 0) = 2 * (1 + 2 + 3), against ch1
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(pressure(n1, "channel0"), 12.0);
+    check.addBinding(pressure(n2, "channel0"), 0.0);
+    for (int i = 0; i < ch.length; ++i) {
+      check.addBinding(resistance(i), i + 1.0);
+    }
+    check.addBinding(flow(1), -2.0);
+    assertTrue(exprs.toString(), check.verify(exprs));
+    check.addBinding(flow(1), 2.0);
+    assertFalse(check.verify(exprs));
+
+    DRealSolver.Result model = new DRealSolver.Result(true);
+    model.addRange(pressure(n1, "channel0"),
+        new DRealSolver.RealRange(11.5, 12.5));
+    model.addRange(pressure(n2, "channel0"),
+        new DRealSolver.RealRange(0.0, 0.0));
+    model.addRange(flow(1), new DRealSolver.RealRange(-2.0, -2.0));
+    for (int i = 0; i < ch.length; ++i) {
+      model.addRange(resistance(i), new DRealSolver.RealRange(i + 1.0,
+          i + 1.0));
+    }
+    assertTrue(strat.reconstruct(model));
+    assertEquals(2.0, model.getRange(flow(0)).lowerBound, 1e-9);
+    assertEquals(2.0, model.getRange(flow(2)).upperBound, 1e-9);
+    assertEquals(10.0, model.getRange(pressure(x, "channelA1")).lowerBound,
+        1e-9);
+    assertEquals(6.0, model.getRange(pressure(y, "channelA0")).lowerBound,
+        1e-9);
+    assertNull(model.getRange(pressure(x, "channelB0")));
+
+    // without the loop flow there is nothing to go on
+    DRealSolver.Result partial = new DRealSolver.Result(true);
+    assertFalse(strat.reconstruct(partial));
+    assertTrue(partial.getSymbols().isEmpty());
+  }
+
+  @Test
+  public void testNodalCrossingsAgreeWithLoops() throws Exception {
+    NodeValue[] crossings = setupCrossings();
+    LoopPressureFlowStrategy loops = new LoopPressureFlowStrategy(false);
+    loops.setAlwaysUseLoops(true);
+    List<SExpression> loopExprs = translate(loops);
+    assertTrue(loops.isLoopFormulation());
+    LoopPressureFlowStrategy nodal = new LoopPressureFlowStrategy(false);
+    nodal.setNeverUseLoops(true);
+    List<SExpression> nodalExprs = translate(nodal);
+    assertFalse(nodal.isLoopFormulation());
+
+    // flows of ch0, ch1 and ch2, then the pressures at x.A0, x.A1, y.A0
+    // and y.A1; the second case satisfies every channel on its own, but
+    // splits the pressure at both crossings
+    double[][] cases = new double[][] {
+      {2.0, -2.0, 2.0, 10.0, 10.0, 6.0, 6.0},
+      {2.0, -1.0, 1.0, 10.0, 2.0, 0.0, 3.0},
+    };
+    boolean[] feasible = new boolean[] {true, false};
+    String[] ports = new String[] {"channelA0", "channelA1"};
+    for (int k = 0; k < cases.length; ++k) {
+      AssertionChecker check = new AssertionChecker();
+      check.addBinding(pressure(points[0], "channel0"), 12.0);
+      check.addBinding(pressure(points[1], "channel0"), 0.0);
+      for (int i = 0; i < ch.length; ++i) {
+        check.addBinding(resistance(i), i + 1.0);
+        check.addBinding(flow(i), cases[k][i]);
+      }
+      for (int i = 0; i < 4; ++i) {
+        check.addBinding(pressure(crossings[i / 2], ports[i % 2]),
+            cases[k][3 + i]);
+      }
+      assertEquals(feasible[k], check.verify(loopExprs));
+      assertEquals(feasible[k], check.verify(nodalExprs));
+    }
+  }
+
+  private NodeValue setupTJunction() throws SchematicException {
+    // (n1) --ch0-- [tj] --ch1-- (n2)
+    //                |
+    // (n3) --ch2-----+
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue n1 = addControlPoint("n1");
+    NodeValue n2 = addControlPoint("n2");
+    NodeValue n3 = addControlPoint("n3");
+    points = new NodeValue[] {n1, n2, n3};
+    NodeValue tj = UtilSchematicConstruction.instantiateTJunction(sch);
+    sch.addNode("tj", tj);
+    addChannel(0, n1, "channel0", tj, "continuous");
+    addChannel(1, tj, "output", n2, "channel0");
+    addChannel(2, n3, "channel0", tj, "dispersed");
+    return tj;
+  }
+
+  private AssertionChecker bindTJunction(NodeValue tj) throws Exception {
+    // 10 Pa at n1 and none at n2 and n3: the T-junction sits at 5 Pa
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(pressure(points[0], "channel0"), 10.0);
+    check.addBinding(pressure(points[1], "channel0"), 0.0);
+    check.addBinding(pressure(points[2], "channel0"), 0.0);
+    check.addBinding(SymbolNameGenerator.getSym_NodePressure(sch, tj), 5.0);
+    check.addBinding(resistance(0), 1.0);
+    check.addBinding(resistance(1), 2.0);
+    check.addBinding(resistance(2), 2.0);
+    check.addBinding(flow(0), 5.0);
+    check.addBinding(flow(1), 2.5);
+    check.addBinding(flow(2), -2.5);
+    return check;
+  }
+
+  @Test
+  public void testFallsBackToNodal() throws Exception {
+    setupTJunction();
+    LoopPressureFlowStrategy strat = new LoopPressureFlowStrategy(false);
+    List<SExpression> exprs = translate(strat);
+    // two loops, the flow into the T-junction and its pressure make four
+    // relations against three channels
+    assertFalse(strat.isLoopFormulation());
+    assertEquals(2, strat.getLoopCount());
+    assertEquals(translate(new SimplePressureFlowStrategy(false)).toString(),
+        exprs.toString());
+  }
+
+  @Test
+  public void testWorstCaseTiesTJunctionPressure() throws Exception {
+    NodeValue tj = setupTJunction();
+    LoopPressureFlowStrategy loops = new LoopPressureFlowStrategy(true);
+    loops.setAlwaysUseLoops(true);
+    List<SExpression> loopExprs = translate(loops);
+    LoopPressureFlowStrategy nodal = new LoopPressureFlowStrategy(true);
+    nodal.setNeverUseLoops(true);
+    List<SExpression> nodalExprs = translate(nodal);
+
+    // a droplet in ch0 doubles its resistance; the worst-case flows
+    // below would put the T-junction at 10/3 Pa, not at its 5 Pa
+    AssertionChecker check = bindTJunction(tj);
+    check.setDelta(1e-9);
+    double[] droplets = new double[] {1.0, 0.0, 0.0};
+    double[] worstFlows = new double[] {10.0 / 3.0, 5.0 / 3.0, -5.0 / 3.0};
+    for (int i = 0; i < ch.length; ++i) {
+      check.addBinding(SymbolNameGenerator.getsym_ChannelMaxDroplets(
+          sch, ch[i]), 1.0);
+      check.addBinding(SymbolNameGenerator.getsym_ChannelDropletResistance(
+          sch, ch[i]), droplets[i]);
+      check.addBinding(SymbolNameGenerator.getsym_ChannelFlowRate_WorstCase(
+          sch, ch[i]), worstFlows[i]);
+    }
+    assertFalse(check.verify(loopExprs));
+    assertFalse(check.verify(nodalExprs));
+  }
+
+  @Test
+  public void testTJunctionLoops() throws Exception {
+    NodeValue tj = setupTJunction();
+    LoopPressureFlowStrategy strat = new LoopPressureFlowStrategy(false);
+    strat.setAlwaysUseLoops(true);
+    List<SExpression> exprs = translate(strat);
+    assertTrue(strat.isLoopFormulation());
+    AssertionChecker check = bindTJunction(tj);
+    assertTrue(exprs.toString(), check.verify(exprs));
+    check.addBinding(flow(1), 3.0);
+    assertFalse(check.verify(exprs));
+  }
+
+}
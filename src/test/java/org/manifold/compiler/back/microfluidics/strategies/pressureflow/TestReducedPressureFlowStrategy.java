@@ -0,0 +1,195 @@
+package org.manifold.compiler.back.microfluidics.strategies.pressureflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.PrimitiveTypeTable;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.AssertionChecker;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.back.microfluidics.smt2.SymbolNameGenerator;
+import org.manifold.compiler.middle.Schematic;
+import org.manifold.compiler.middle.SchematicException;
+
+public class TestReducedPressureFlowStrategy {
+
+  private Schematic sch;
+  private NodeValue n1;
+  private NodeValue n2;
+  private NodeValue x;
+  private NodeValue y;
+  private ConnectionValue[] ch = new ConnectionValue[3];
+
+  @Before
+  public void setup() throws SchematicException {
+    // (n1) --ch0-- [x] --ch1-- [y] --ch2-- (n2)
+    // through the A sides of two crossings; ch1 runs from y to x
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    n1 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    n2 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    x = UtilSchematicConstruction.instantiateChannelCrossing(sch);
+    y = UtilSchematicConstruction.instantiateChannelCrossing(sch);
+    sch.addNode("n1", n1);
+    sch.addNode("n2", n2);
+    sch.addNode("x", x);
+    sch.addNode("y", y);
+    ch[0] = UtilSchematicConstruction.instantiateChannel(
+        n1.getPort("channel0"), x.getPort("channelA0"));
+    ch[1] = UtilSchematicConstruction.instantiateChannel(
+        y.getPort("channelA0"), x.getPort("channelA1"));
+    ch[2] = UtilSchematicConstruction.instantiateChannel(
+        y.getPort("channelA1"), n2.getPort("channel0"));
+    for (int i = 0; i < ch.length; ++i) {
+      sch.addConnection("ch" + i, ch[i]);
+    }
+  }
+
+  private Symbol pressure(NodeValue node, String port) throws Exception {
+    return SymbolNameGenerator.getSym_PortPressure(sch, node.getPort(port));
+  }
+
+  private Symbol flow(int i) {
+    return SymbolNameGenerator.getsym_ChannelFlowRate(sch, ch[i]);
+  }
+
+  private Symbol resistance(int i) {
+    return SymbolNameGenerator.getsym_ChannelResistance(sch, ch[i]);
+  }
+
+  private List<SExpression> translate(ReducedPressureFlowStrategy strat) {
+    PrimitiveTypeTable typeTable = MicrofluidicsBackend.constructTypeTable(
+        sch);
+    return strat.translate(sch, ProcessParameters.loadTestData(),
+        typeTable);
+  }
+
+  @Test
+  public void testChainIsOneRelation() throws Exception {
+    ReducedPressureFlowStrategy strat = new ReducedPressureFlowStrategy(
+        false);
+    List<SExpression> exprs = translate(strat);
+    assertEquals(3, strat.getChannelCount());
+    assertEquals(1, strat.getElementCount());
+    // nothing about the middle channel
+    assertFalse(exprs.toString(), exprs.toString().contains(
+        flow(1).getName()));
+
+    // (12 - 0) = 2 * (1 + 2 + 3)
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(pressure(n1, "channel0"), 12.0);
+    check.addBinding(pressure(n2, "channel0"), 0.0);
+    for (int i = 0; i < ch.length; ++i) {
+      check.addBinding(resistance(i), i + 1.0);
+    }
+    check.addBinding(flow(0), 2.0);
+    check.addBinding(flow(2), 2.0);
+    assertTrue(exprs.toString(), check.verify(exprs));
+
+    check.addBinding(flow(2), -2.0);
+    assertFalse(check.verify(exprs));
+  }
+
+  @Test
+  public void testReconstruction() throws Exception {
+    ReducedPressureFlowStrategy strat = new ReducedPressureFlowStrategy(
+        false);
+    translate(strat);
+    DRealSolver.Result model = new DRealSolver.Result(true);
+    model.addRange(pressure(n1, "channel0"),
+        new DRealSolver.RealRange(11.5, 12.5));
+    model.addRange(pressure(n2, "channel0"),
+        new DRealSolver.RealRange(0.0, 0.0));
+    for (int i = 0; i < ch.length; ++i) {
+      model.addRange(resistance(i), new DRealSolver.RealRange(i + 1.0,
+          i + 1.0));
+    }
+    assertTrue(strat.reconstruct(model));
+    // the pressure falls by 2 per unit of resistance
+    assertEquals(10.0, model.getRange(pressure(x, "channelA0")).lowerBound,
+        1e-9);
+    assertEquals(10.0, model.getRange(pressure(x, "channelA1")).lowerBound,
+        1e-9);
+    assertEquals(6.0, model.getRange(pressure(y, "channelA1")).upperBound,
+        1e-9);
+    // ch1 runs from y to x, against the flow
+    assertEquals(-2.0, model.getRange(flow(1)).lowerBound, 1e-9);
+    assertNull(model.getRange(pressure(x, "channelB0")));
+
+    // without resistances there is nothing to go on
+    DRealSolver.Result partial = new DRealSolver.Result(true);
+    assertFalse(strat.reconstruct(partial));
+    assertTrue(partial.getSymbols().isEmpty());
+  }
+
+  @Test
+  public void testBundleAtChainStart() throws Exception {
+    // (n1) ==ch0,ch1== [x] --ch2-- (n2)
+    // two channels from the same port into the A side of a crossing
+    sch = UtilSchematicConstruction.instantiateSchematic("test");
+    n1 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    n2 = UtilSchematicConstruction.instantiatePressureControlPoint(sch, 1);
+    x = UtilSchematicConstruction.instantiateChannelCrossing(sch);
+    sch.addNode("n1", n1);
+    sch.addNode("n2", n2);
+    sch.addNode("x", x);
+    ch[0] = UtilSchematicConstruction.instantiateChannel(
+        n1.getPort("channel0"), x.getPort("channelA0"));
+    ch[1] = UtilSchematicConstruction.instantiateChannel(
+        n1.getPort("channel0"), x.getPort("channelA1"));
+    ch[2] = UtilSchematicConstruction.instantiateChannel(
+        x.getPort("channelA1"), n2.getPort("channel0"));
+    for (int i = 0; i < ch.length; ++i) {
+      sch.addConnection("ch" + i, ch[i]);
+    }
+    ReducedPressureFlowStrategy strat = new ReducedPressureFlowStrategy(
+        false);
+    List<SExpression> exprs = translate(strat);
+    assertEquals(1, strat.getElementCount());
+    // the channels of the bundle are at n1, so they need flows
+    assertTrue(exprs.toString(), exprs.toString().contains(
+        flow(0).getName()));
+    assertTrue(exprs.toString(), exprs.toString().contains(
+        flow(1).getName()));
+
+    // (12 - 0) = 3 * (1 + 3), split evenly over the bundle
+    AssertionChecker check = new AssertionChecker();
+    check.addBinding(pressure(n1, "channel0"), 12.0);
+    check.addBinding(pressure(n2, "channel0"), 0.0);
+    check.addBinding(resistance(0), 2.0);
+    check.addBinding(resistance(1), 2.0);
+    check.addBinding(resistance(2), 3.0);
+    check.addBinding(flow(0), 1.5);
+    check.addBinding(flow(1), 1.5);
+    check.addBinding(flow(2), 3.0);
+    assertTrue(exprs.toString(), check.verify(exprs));
+    check.addBinding(flow(1), 3.0);
+    assertFalse(check.verify(exprs));
+
+    DRealSolver.Result model = new DRealSolver.Result(true);
+    model.addRange(pressure(n1, "channel0"),
+        new DRealSolver.RealRange(12.0, 12.0));
+    model.addRange(pressure(n2, "channel0"),
+        new DRealSolver.RealRange(0.0, 0.0));
+    model.addRange(resistance(0), new DRealSolver.RealRange(2.0, 2.0));
+    model.addRange(resistance(1), new DRealSolver.RealRange(2.0, 2.0));
+    model.addRange(resistance(2), new DRealSolver.RealRange(3.0, 3.0));
+    assertTrue(strat.reconstruct(model));
+    assertEquals(1.5, model.getRange(flow(0)).lowerBound, 1e-9);
+    assertEquals(1.5, model.getRange(flow(1)).lowerBound, 1e-9);
+    assertEquals(9.0, model.getRange(pressure(x, "channelA1")).lowerBound,
+        1e-9);
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.MicrofluidicsBackend;
+import org.manifold.compiler.back.microfluidics.ProcessParameterGrid;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.middle.Schematic;
+
+public class TestParameterSweep {
+
+  // "sat" exactly when the formula bounds the chip by 0.05 m
+  private static class ChipSizeSolver implements FormulaSolver {
+    @Override
+    public DRealSolver.Result solve(List<SExpression> formula) {
+      boolean bigChip = false;
+      for (SExpression expr : formula) {
+        if (expr.toString().contains("0.05")) {
+          bigChip = true;
+        }
+      }
+      return new DRealSolver.Result(bigChip);
+    }
+  }
+
+  private Schematic entryExit() throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, 0.001);
+    sch.addNode("in0", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(sch);
+    sch.addNode("out0", exit);
+    ConnectionValue ch0 = UtilSchematicConstruction.instantiateChannel(
+        entry.getPort("output"), exit.getPort("input"));
+    sch.addConnection("ch0", ch0);
+    return sch;
+  }
+
+  private static List<Double> values(Double... v) {
+    return new ArrayList<>(Arrays.asList(v));
+  }
+
+  @Test
+  public void testGridPoints() {
+    List<List<Double>> values = new ArrayList<>();
+    values.add(values(0.001));
+    values.add(values(0.00001, 0.00002));
+    values.add(values(0.02, 0.05));
+    values.add(values(0.05));
+    values.add(values(0.1));
+    ProcessParameterGrid grid = new ProcessParameterGrid(values);
+    List<ProcessParameters> points = grid.getPoints();
+    assertEquals(4, points.size());
+    assertEquals(0.02, points.get(0).getMaximumChipSizeX(), 0.0);
+    assertEquals(0.05, points.get(1).getMaximumChipSizeX(), 0.0);
+    assertEquals(0.00002, points.get(3).getMinimumChannelLength(), 0.0);
+  }
+
+  @Test
+  public void testSweepUsesBackendOptions() throws Exception {
+    Schematic sch = entryExit();
+    ProcessParameters point = ProcessParameters.loadTestData();
+    String plain = new ParameterSweep(sch).translateProcessIndependent(
+        point).toString();
+
+    MicrofluidicsBackend backend = new MicrofluidicsBackend();
+    backend.setLengthRule(MicrofluidicsBackend.LENGTH_MANHATTAN);
+    ParameterSweep sweep = new ParameterSweep(sch);
+    sweep.useStrategyFactory(backend.createStrategyFactory());
+    String manhattan = sweep.translateProcessIndependent(point).toString();
+    assertFalse(plain.equals(manhattan));
+    // the Manhattan rule chooses the sign of each coordinate difference
+    assertFalse(plain.contains("( or "));
+    assertTrue(manhattan.contains("( or "));
+  }
+
+  @Test
+  public void testSweepSolvesEveryPoint() throws Exception {
+    List<List<Double>> values = new ArrayList<>();
+    values.add(values(0.001));
+    values.add(values(0.00001));
+    values.add(values(0.02, 0.05, 0.03));
+    values.add(values(0.04));
+    values.add(values(0.0872664626));
+    ProcessParameterGrid grid = new ProcessParameterGrid(values);
+
+    ParameterSweep sweep = new ParameterSweep(entryExit());
+    sweep.setThreads(2);
+    sweep.useSolverFactory(new ParameterSweep.SolverFactory() {
+      @Override
+      public FormulaSolver createSolver() {
+        return new ChipSizeSolver();
+      }
+    });
+    List<ParameterSweep.PointResult> results = sweep.run(grid.getPoints());
+    assertEquals(3, results.size());
+    assertFalse(results.get(0).getResult().isSatisfiable());
+    assertTrue(results.get(1).getResult().isSatisfiable());
+    assertFalse(results.get(2).getResult().isSatisfiable());
+
+    StringWriter table = new StringWriter();
+    ParameterSweep.writeTable(results, table);
+    String[] lines = table.toString().split("\n");
+    assertEquals(4, lines.length);
+    assertTrue(lines[0].startsWith("minimumNodeDistance,"));
+    assertTrue(lines[2].contains(",sat,"));
+  }
+
+}
@@ -0,0 +1,283 @@
+package org.manifold.compiler.back.microfluidics.sweep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.manifold.compiler.ConnectionValue;
+import org.manifold.compiler.NodeValue;
+import org.manifold.compiler.back.microfluidics.ProcessParameterGrid;
+import org.manifold.compiler.back.microfluidics.ProcessParameters;
+import org.manifold.compiler.back.microfluidics.UtilSchematicConstruction;
+import org.manifold.compiler.back.microfluidics.smt2.DRealSolver;
+import org.manifold.compiler.back.microfluidics.smt2.FormulaSolver;
+import org.manifold.compiler.back.microfluidics.smt2.SExpression;
+import org.manifold.compiler.back.microfluidics.smt2.Symbol;
+import org.manifold.compiler.middle.Schematic;
+
+import com.google.gson.JsonObject;
+
+public class TestSweepFarm {
+
+  // "sat" exactly when the formula bounds the chip by 0.05 m
+  public static class ChipSizeSolverFactory
+      implements ParameterSweep.SolverFactory {
+    @Override
+    public FormulaSolver createSolver() {
+      return new FormulaSolver() {
+        @Override
+        public DRealSolver.Result solve(List<SExpression> formula) {
+          boolean bigChip = false;
+          for (SExpression expr : formula) {
+            if (expr.toString().contains("0.05")) {
+              bigChip = true;
+            }
+          }
+          return new DRealSolver.Result(bigChip);
+        }
+      };
+    }
+  }
+
+  // "sat", with a model that places in0 at (0.25, 0.5)
+  public static class ModelSolverFactory
+      implements ParameterSweep.SolverFactory {
+    @Override
+    public FormulaSolver createSolver() {
+      return new FormulaSolver() {
+        @Override
+        public DRealSolver.Result solve(List<SExpression> formula) {
+          DRealSolver.Result model = new DRealSolver.Result(true);
+          model.addRange(new Symbol("in0_pos_x"),
+              new DRealSolver.RealRange(0.25, 0.25));
+          model.addRange(new Symbol("in0_pos_y"),
+              new DRealSolver.RealRange(0.5, Double.POSITIVE_INFINITY));
+          return model;
+        }
+      };
+    }
+  }
+
+  // "sat", after a few seconds unless the solver is interrupted
+  public static class StallingSolverFactory
+      implements ParameterSweep.SolverFactory {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public FormulaSolver createSolver() {
+      return new FormulaSolver() {
+        @Override
+        public DRealSolver.Result solve(List<SExpression> formula) {
+          started.countDown();
+          try {
+            Thread.sleep(5000);
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+          }
+          return new DRealSolver.Result(true);
+        }
+      };
+    }
+  }
+
+  // kills the first worker that solves anything, then behaves as above
+  public static class CrashOnceSolverFactory extends ChipSizeSolverFactory {
+    @Override
+    public FormulaSolver createSolver() {
+      Path marker = Paths.get(System.getProperty("sweep.test.marker"));
+      try {
+        Files.createFile(marker);
+        Runtime.getRuntime().halt(3);
+      } catch (IOException e) {
+        // already crashed once
+      }
+      return super.createSolver();
+    }
+  }
+
+  private Schematic entryExit() throws Exception {
+    return entryExit(0.001);
+  }
+
+  private Schematic entryExit(double viscosity) throws Exception {
+    Schematic sch = UtilSchematicConstruction.instantiateSchematic("test");
+    NodeValue entry = UtilSchematicConstruction.instantiateFluidEntry(
+        sch, viscosity);
+    sch.addNode("in0", entry);
+    NodeValue exit = UtilSchematicConstruction.instantiateFluidExit(sch);
+    sch.addNode("out0", exit);
+    ConnectionValue ch0 = UtilSchematicConstruction.instantiateChannel(
+        entry.getPort("output"), exit.getPort("input"));
+    sch.addConnection("ch0", ch0);
+    return sch;
+  }
+
+  private List<ProcessParameters> points(Double... chipSizes) {
+    List<List<Double>> values = new ArrayList<>();
+    values.add(new ArrayList<>(Arrays.asList(0.001)));
+    values.add(new ArrayList<>(Arrays.asList(0.00001)));
+    values.add(new ArrayList<>(Arrays.asList(chipSizes)));
+    values.add(new ArrayList<>(Arrays.asList(0.04)));
+    values.add(new ArrayList<>(Arrays.asList(0.0872664626)));
+    return new ProcessParameterGrid(values).getPoints();
+  }
+
+  private void assertChipSizeResults(
+      List<ParameterSweep.PointResult> results) {
+    assertEquals(3, results.size());
+    for (ParameterSweep.PointResult r : results) {
+      assertNull(r.getError());
+    }
+    assertFalse(results.get(0).getResult().isSatisfiable());
+    assertTrue(results.get(1).getResult().isSatisfiable());
+    assertFalse(results.get(2).getResult().isSatisfiable());
+  }
+
+  @Test
+  public void testFarmSolvesEveryPoint() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(2);
+    farm.setLeaseMillis(1000);
+    farm.useSolverFactory(ChipSizeSolverFactory.class);
+    assertChipSizeResults(farm.run(points(0.02, 0.05, 0.03)));
+  }
+
+  @Test
+  public void testFarmKeepsModels() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(1);
+    farm.setLeaseMillis(1000);
+    farm.useSolverFactory(ModelSolverFactory.class);
+    List<ParameterSweep.PointResult> results = farm.run(points(0.02));
+    assertEquals(1, results.size());
+    DRealSolver.Result model = results.get(0).getResult();
+    assertTrue(model.isSatisfiable());
+    DRealSolver.RealRange x = model.getRange(new Symbol("in0_pos_x"));
+    assertEquals(0.25, x.lowerBound, 0.0);
+    assertEquals(0.25, x.upperBound, 0.0);
+    DRealSolver.RealRange y = model.getRange(new Symbol("in0_pos_y"));
+    assertEquals(0.5, y.lowerBound, 0.0);
+    assertTrue(Double.isInfinite(y.upperBound));
+  }
+
+  @Test
+  public void testLostJobIsNotPublished() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    final JobQueue queue = new JobQueue(dir);
+    JsonObject manifest = new JsonObject();
+    manifest.addProperty("leaseMillis", 1000);
+    manifest.addProperty("solverFactory",
+        StallingSolverFactory.class.getName());
+    queue.writeManifest(manifest);
+    queue.writeShared("( declare-fun x ( ) Real )");
+    JsonObject description = new JsonObject();
+    description.addProperty("formula", "( assert ( > x 0.0 ) )");
+    queue.submit("p0", description);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> worker = pool.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          return new SweepWorker(queue, "w0").run();
+        }
+      });
+      assertTrue(StallingSolverFactory.started.await(5, TimeUnit.SECONDS));
+      // another worker takes the job over, as if the lease had run out,
+      // and finishes it first
+      Files.move(dir.resolve("running").resolve("p0.json.w0"),
+          dir.resolve("running").resolve("p0.json.w1"));
+      JsonObject theirs = new JsonObject();
+      theirs.addProperty("status", "unsat");
+      theirs.addProperty("seconds", 0.0);
+      queue.complete("p0", "w1", theirs);
+      assertEquals(0, (int) worker.get(4, TimeUnit.SECONDS));
+      assertTrue(StallingSolverFactory.interrupted.await(1,
+          TimeUnit.SECONDS));
+      assertEquals(theirs, queue.readResult("p0"));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCrashedWorkerIsReplaced() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    Path marker = dir.resolve("crashed");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(1);
+    farm.setLeaseMillis(1000);
+    farm.setMaximumRestarts(1);
+    farm.useSolverFactory(CrashOnceSolverFactory.class);
+    farm.setWorkerJvmArguments(Arrays.asList(
+        "-Dsweep.test.marker=" + marker));
+    assertChipSizeResults(farm.run(points(0.02, 0.05, 0.03)));
+    assertTrue(Files.exists(marker));
+  }
+
+  @Test
+  public void testResumeKeepsFinishedPoints() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(1);
+    farm.setLeaseMillis(1000);
+    farm.useSolverFactory(ChipSizeSolverFactory.class);
+    farm.run(points(0.02, 0.05, 0.03));
+    // a finished sweep is not solved again
+    JobQueue queue = new JobQueue(dir);
+    assertEquals(0, queue.countPending());
+    assertChipSizeResults(farm.run(points(0.02, 0.05, 0.03)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDifferentSweepIsRejected() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(1);
+    farm.setLeaseMillis(1000);
+    farm.useSolverFactory(ChipSizeSolverFactory.class);
+    farm.run(points(0.02, 0.05, 0.03));
+    farm.run(points(0.02, 0.06, 0.03));
+  }
+
+  @Test
+  public void testChangedSchematicIsRejected() throws Exception {
+    Path dir = Files.createTempDirectory("sweepfarm");
+    SweepCoordinator farm = new SweepCoordinator(entryExit(), dir);
+    farm.setWorkers(1);
+    farm.setLeaseMillis(1000);
+    farm.useSolverFactory(ChipSizeSolverFactory.class);
+    farm.run(points(0.02, 0.05, 0.03));
+    // same name and points, but another fluid
+    SweepCoordinator changed = new SweepCoordinator(entryExit(0.002), dir);
+    changed.setWorkers(1);
+    changed.setLeaseMillis(1000);
+    changed.useSolverFactory(ChipSizeSolverFactory.class);
+    try {
+      changed.run(points(0.02, 0.05, 0.03));
+      fail("resumed a sweep of a different formula");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("different formula"));
+    }
+  }
+
+}